@@ -0,0 +1,174 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import nl.gdries.jmsjmx.jms.TransportEventSink;
+
+/**
+ * Records the events of the JMS transport as JDK Flight Recorder events, so connector 
+ * cost shows up in recordings next to the application's own. Install it with
+ * -Dnl.gdries.jmsjmx.events.sink=nl.gdries.jmsjmx.jfr.JfrEventSink
+ * <p>
+ * The transport measures durations itself, they are recorded in the elapsed field. Leave 
+ * out short events with the threshold of TransportEvents, or turn event types off in 
+ * the recording settings.
+ * <p>
+ * This class needs Java 11 and is built separately by the jfr target.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class JfrEventSink implements TransportEventSink {
+	
+	public void messageRead(String connectionId, String messageType, int size, long duration) {
+		MessageReadEvent event = new MessageReadEvent();
+		if(!event.isEnabled())
+			return;
+		
+		event.connectionId = connectionId;
+		event.messageType = messageType;
+		event.size = size;
+		event.elapsed = duration;
+		event.commit();
+	}
+
+	public void messageWritten(String connectionId, String messageType, int size, long duration) {
+		MessageWrittenEvent event = new MessageWrittenEvent();
+		if(!event.isEnabled())
+			return;
+		
+		event.connectionId = connectionId;
+		event.messageType = messageType;
+		event.size = size;
+		event.elapsed = duration;
+		event.commit();
+	}
+
+	public void connected(String connectionId, String topic, long duration) {
+		ConnectEvent event = new ConnectEvent();
+		if(!event.isEnabled())
+			return;
+		
+		event.connectionId = connectionId;
+		event.topic = topic;
+		event.elapsed = duration;
+		event.commit();
+	}
+
+	public void accepted(String connectionId, String clientConnectionId, long duration) {
+		AcceptEvent event = new AcceptEvent();
+		if(!event.isEnabled())
+			return;
+		
+		event.connectionId = connectionId;
+		event.clientConnectionId = clientConnectionId;
+		event.elapsed = duration;
+		event.commit();
+	}
+	
+	@Name("nl.gdries.jmsjmx.MessageRead")
+	@Label("JMS Message Read")
+	@Description("A JMXMP message was received and deserialized")
+	@Category({ "JMX", "JMS Transport" })
+	static class MessageReadEvent extends Event {
+		@Label("Connection Id")
+		String connectionId;
+		
+		@Label("Message Type")
+		String messageType;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+		
+		@Label("Elapsed")
+		@Description("Time from receipt of the JMS message until it was deserialized")
+		@Timespan
+		long elapsed;
+	}
+	
+	@Name("nl.gdries.jmsjmx.MessageWritten")
+	@Label("JMS Message Written")
+	@Description("A JMXMP message was serialized and sent")
+	@Category({ "JMX", "JMS Transport" })
+	static class MessageWrittenEvent extends Event {
+		@Label("Connection Id")
+		String connectionId;
+		
+		@Label("Message Type")
+		String messageType;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+		
+		@Label("Elapsed")
+		@Description("Time spent serializing and sending")
+		@Timespan
+		long elapsed;
+	}
+	
+	@Name("nl.gdries.jmsjmx.Connect")
+	@Label("JMS Connect")
+	@Description("A client sent its connect message")
+	@Category({ "JMX", "JMS Transport" })
+	static class ConnectEvent extends Event {
+		@Label("Connection Id")
+		String connectionId;
+		
+		@Label("Topic")
+		String topic;
+		
+		@Label("Elapsed")
+		@Timespan
+		long elapsed;
+	}
+	
+	@Name("nl.gdries.jmsjmx.Accept")
+	@Label("JMS Accept")
+	@Description("A server accepted a connection")
+	@Category({ "JMX", "JMS Transport" })
+	static class AcceptEvent extends Event {
+		@Label("Connection Id")
+		String connectionId;
+		
+		@Label("Client Connection Id")
+		String clientConnectionId;
+		
+		@Label("Elapsed")
+		@Description("Time spent waiting for the connect message")
+		@Timespan
+		long elapsed;
+	}
+}
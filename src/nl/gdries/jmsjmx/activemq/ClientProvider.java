@@ -27,12 +27,20 @@ package nl.gdries.jmsjmx.activemq;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import javax.jms.ConnectionFactory;
+
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXServiceURL;
 
 import nl.gdries.jmsjmx.jms.AbstractClientProvider;
+import nl.gdries.jmsjmx.jms.AbstractMessageConnection;
+import nl.gdries.jmsjmx.jms.BalancingConnectionFactory;
+import nl.gdries.jmsjmx.jms.DeliveryStrategy;
+import nl.gdries.jmsjmx.jms.EnvHelper;
+import nl.gdries.jmsjmx.jms.ServiceURLHelper;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 
@@ -51,21 +59,44 @@ public class ClientProvider extends AbstractClientProvider {
 			Map<String, ?> environment) throws IOException {
 
 		// Copy the environment
-		Map<String, Object> newEnv = new HashMap<String, Object>(environment);
+		final Map<String, Object> newEnv = new HashMap<String, Object>(environment);
 		
 		// Create the connection to activemq
-		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(
-				"tcp://" + serviceURL.getHost() + ":" + serviceURL.getPort());
+		List<String> brokers = ServiceURLHelper.getBrokers(serviceURL);
+		ActiveMQConnectionFactory connectionFactory = createConnectionFactory(brokers.get(0), newEnv);
+		
+		// ActiveMQ copies messages on send, so the transport can safely reuse them
+		if(!newEnv.containsKey(AbstractMessageConnection.REUSE_MESSAGES))
+			newEnv.put(AbstractMessageConnection.REUSE_MESSAGES, connectionFactory.isCopyMessageOnSend());
+		
+		// Connect through the fastest of several brokers
+		if(brokers.size() > 1) {
+			newEnv.put(CONNECTION_FACTORY, new BalancingConnectionFactory(brokers, 
+					new BalancingConnectionFactory.BrokerFactory() {
+						public ConnectionFactory createConnectionFactory(String broker) {
+							return ClientProvider.this.createConnectionFactory(broker, newEnv);
+						}
+					}, 
+					EnvHelper.getLong(newEnv, REBALANCE_INTERVAL, BalancingConnectionFactory.DEFAULT_REBALANCE_INTERVAL),
+					EnvHelper.getInt(newEnv, PROBE_TIMEOUT, BalancingConnectionFactory.DEFAULT_PROBE_TIMEOUT)));
+		} else {
+			newEnv.put(CONNECTION_FACTORY, connectionFactory);
+		}
+		
+		return super.newJMXConnector(serviceURL, newEnv);
+	}
+	
+	private ActiveMQConnectionFactory createConnectionFactory(String broker, Map<String, Object> env) {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://" + broker);
 
-		if(newEnv.containsKey(JMXConnector.CREDENTIALS)) {
-			String[] cred = (String[])newEnv.get(JMXConnector.CREDENTIALS);
+		if(env.containsKey(JMXConnector.CREDENTIALS)) {
+			String[] cred = (String[])env.get(JMXConnector.CREDENTIALS);
 			connectionFactory.setUserName(cred[0]);
 			connectionFactory.setPassword(cred[1]);
 		}
 		
-		newEnv.put(CONNECTION_FACTORY, connectionFactory);
-		
-		return super.newJMXConnector(serviceURL, newEnv);
+		connectionFactory.setUseAsyncSend(DeliveryStrategy.fromEnvironment(env).isAsyncSend());
+		return connectionFactory;
 	}
 
 	
@@ -27,14 +27,21 @@ package nl.gdries.jmsjmx.activemq;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import javax.jms.ConnectionFactory;
+
 import javax.management.MBeanServer;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorServer;
 import javax.management.remote.JMXServiceURL;
 
+import nl.gdries.jmsjmx.jms.AbstractMessageConnection;
 import nl.gdries.jmsjmx.jms.AbstractServerProvider;
+import nl.gdries.jmsjmx.jms.BalancingConnectionFactory;
+import nl.gdries.jmsjmx.jms.DeliveryStrategy;
+import nl.gdries.jmsjmx.jms.ServiceURLHelper;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 
@@ -54,21 +61,43 @@ public class ServerProvider extends AbstractServerProvider {
 			throws IOException {
 		
 		// Copy the environment
-		Map<String, Object> newEnv = new HashMap<String, Object>(environment);
+		final Map<String, Object> newEnv = new HashMap<String, Object>(environment);
 		
 		// Create the connection to activemq
-		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(
-				"tcp://" + serviceURL.getHost() + ":" + serviceURL.getPort());
+		List<String> brokers = ServiceURLHelper.getBrokers(serviceURL);
+		ActiveMQConnectionFactory connectionFactory = createConnectionFactory(brokers.get(0), newEnv);
+		
+		// ActiveMQ copies messages on send, so the transport can safely reuse them
+		if(!newEnv.containsKey(AbstractMessageConnection.REUSE_MESSAGES))
+			newEnv.put(AbstractMessageConnection.REUSE_MESSAGES, connectionFactory.isCopyMessageOnSend());
+		
+		// Listen on the fastest of several brokers. The server stays there, moving it would
+		// disconnect all of its clients.
+		if(brokers.size() > 1) {
+			newEnv.put(CONNECTION_FACTORY, new BalancingConnectionFactory(brokers, 
+					new BalancingConnectionFactory.BrokerFactory() {
+						public ConnectionFactory createConnectionFactory(String broker) {
+							return ServerProvider.this.createConnectionFactory(broker, newEnv);
+						}
+					}, 0, BalancingConnectionFactory.DEFAULT_PROBE_TIMEOUT));
+		} else {
+			newEnv.put(CONNECTION_FACTORY, connectionFactory);
+		}
+		
+		return super.newJMXConnectorServer(serviceURL, newEnv, mbeanServer);
+	}
+	
+	private ActiveMQConnectionFactory createConnectionFactory(String broker, Map<String, Object> env) {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://" + broker);
 		
-		if(newEnv.containsKey(JMXConnector.CREDENTIALS)) {
-			String[] cred = (String[])newEnv.get(JMXConnector.CREDENTIALS);
+		if(env.containsKey(JMXConnector.CREDENTIALS)) {
+			String[] cred = (String[])env.get(JMXConnector.CREDENTIALS);
 			connectionFactory.setUserName(cred[0]);
 			connectionFactory.setPassword(cred[1]);
 		}
 		
-		newEnv.put(CONNECTION_FACTORY, connectionFactory);
-		
-		return super.newJMXConnectorServer(serviceURL, newEnv, mbeanServer);
+		connectionFactory.setUseAsyncSend(DeliveryStrategy.fromEnvironment(env).isAsyncSend());
+		return connectionFactory;
 	}
 
 }
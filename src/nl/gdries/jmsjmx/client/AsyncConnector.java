@@ -0,0 +1,235 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.generic.GenericConnector;
+import javax.management.remote.generic.MessageConnection;
+import javax.management.remote.generic.ObjectWrapping;
+import javax.management.remote.message.CloseMessage;
+import javax.security.auth.Subject;
+
+import com.sun.jmx.remote.generic.ClientAdmin;
+import com.sun.jmx.remote.generic.DefaultConfig;
+import com.sun.jmx.remote.generic.ObjectWrappingImpl;
+
+import nl.gdries.jmsjmx.jms.AbstractMessageConnection;
+
+/**
+ * A JMXConnector for asynchronous requests only, see AsyncMBeanServerConnection. It does
+ * the same handshake as the GenericConnector, after that responses are delivered by the 
+ * JMS provider instead of read by a thread of the connector. Profiles that wrap the 
+ * connection, like TLS, are not supported.
+ * <p>
+ * The request timeout is taken from the jmx.remote.x.request.waiting.timeout environment
+ * property, and is DEFAULT_REQUEST_TIMEOUT when that's not set. Without a timeout, 
+ * requests to a server that stopped answering would wait forever.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class AsyncConnector implements JMXConnector {
+	/**
+	 * Request timeout in milliseconds when the environment doesn't set one
+	 */
+	public static final long DEFAULT_REQUEST_TIMEOUT = 60000;
+	
+	private final AbstractMessageConnection messageConnection;
+	private final Map<String, ?> environment;
+	private final NotificationBroadcasterSupport broadcaster = new NotificationBroadcasterSupport();
+	
+	private ClientAdmin admin;
+	private AsyncMBeanServerConnection connection;
+	private volatile String connectionId;
+	private long notificationSequence;
+	
+	public AsyncConnector(AbstractMessageConnection messageConnection, Map<String, ?> environment) {
+		this.messageConnection = messageConnection;
+		this.environment = environment;
+	}
+
+	public void connect() throws IOException {
+		connect(null);
+	}
+
+	public synchronized void connect(Map<String, ?> env) throws IOException {
+		if(connectionId != null)
+			return;
+		
+		Map<String, Object> merged = new HashMap<String, Object>(environment);
+		if(env != null)
+			merged.putAll(env);
+		
+		messageConnection.connect(merged);
+		
+		// The same handshake the GenericConnector does
+		admin = DefaultConfig.getClientAdmin(merged);
+		MessageConnection opened = admin.connectionOpen(messageConnection);
+		if(opened != messageConnection) {
+			admin.connectionClosed(opened);
+			messageConnection.close();
+			throw new IOException("Profiles that wrap the connection are not supported by the asynchronous connector");
+		}
+		
+		ObjectWrapping wrapping = (ObjectWrapping)merged.get(GenericConnector.OBJECT_WRAPPING);
+		if(wrapping == null)
+			wrapping = new ObjectWrappingImpl();
+		
+		ClassLoader classLoader = (ClassLoader)merged.get(JMXConnectorFactory.DEFAULT_CLASS_LOADER);
+		if(classLoader == null)
+			classLoader = Thread.currentThread().getContextClassLoader();
+		
+		long timeout = DefaultConfig.getRequestTimeout(merged);
+		if(connection == null)
+			connection = new AsyncMBeanServerConnection(this, messageConnection, wrapping, classLoader, 
+					timeout == Long.MAX_VALUE ? DEFAULT_REQUEST_TIMEOUT : timeout);
+		else
+			connection.reopen();
+		
+		messageConnection.setMessageHandler(connection);
+		connectionId = admin.getConnectionId();
+		sendNotification(JMXConnectionNotification.OPENED, "Connected");
+	}
+	
+	/**
+	 * @return The connection to make asynchronous requests through. It stays the same after
+	 * a reconnect.
+	 */
+	public synchronized AsyncMBeanServerConnection getAsyncConnection() throws IOException {
+		if(connectionId == null)
+			throw new IOException("The connector is not connected");
+		return connection;
+	}
+
+	/**
+	 * Not supported, this connector only makes asynchronous requests
+	 */
+	public MBeanServerConnection getMBeanServerConnection() throws IOException {
+		throw new IOException("This connector only makes asynchronous requests, use getAsyncConnection()");
+	}
+
+	/**
+	 * Not supported, this connector only makes asynchronous requests
+	 */
+	public MBeanServerConnection getMBeanServerConnection(Subject delegationSubject) throws IOException {
+		return getMBeanServerConnection();
+	}
+
+	public synchronized void close() throws IOException {
+		if(connectionId == null)
+			return;
+		
+		connection.failAll(new IOException("The connection is closed"));
+		try {
+			messageConnection.writeMessage(new CloseMessage("The client closed the connection"));
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		
+		disconnect(JMXConnectionNotification.CLOSED, "Closed");
+	}
+	
+	/**
+	 * The server closed the connection or the connection to the broker was lost for good.
+	 * Close our side so connect() can be called again, and tell the listeners. That is done
+	 * on another thread, the JMS provider's thread can't close the connection it's delivering to.
+	 * 
+	 * @param type JMXConnectionNotification.CLOSED or FAILED
+	 */
+	void disconnected(final String type, final String message) {
+		final String lostId = connectionId;
+		if(lostId == null)
+			return;
+		
+		Thread thread = new Thread("AsyncConnector-" + lostId) {
+			@Override
+			public void run() {
+				synchronized(AsyncConnector.this) {
+					// Closed or reconnected in the meantime
+					if(!lostId.equals(connectionId))
+						return;
+					
+					try {
+						disconnect(type, message);
+					} catch (IOException e) {
+						// The connection is gone already
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void disconnect(String type, String message) throws IOException {
+		String closedId = connectionId;
+		connectionId = null;
+		try {
+			admin.connectionClosed(messageConnection);
+			messageConnection.close();
+		} finally {
+			broadcaster.sendNotification(new JMXConnectionNotification(type, this, 
+					closedId, notificationSequence++, message, null));
+		}
+	}
+	
+	private void sendNotification(String type, String message) {
+		broadcaster.sendNotification(new JMXConnectionNotification(type, this, connectionId, 
+				notificationSequence++, message, null));
+	}
+
+	public void addConnectionNotificationListener(NotificationListener listener, 
+			NotificationFilter filter, Object handback) {
+		broadcaster.addNotificationListener(listener, filter, handback);
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener) 
+			throws ListenerNotFoundException {
+		broadcaster.removeNotificationListener(listener);
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener, 
+			NotificationFilter filter, Object handback) throws ListenerNotFoundException {
+		broadcaster.removeNotificationListener(listener, filter, handback);
+	}
+
+	public synchronized String getConnectionId() throws IOException {
+		if(connectionId == null)
+			throw new IOException("The connector is not connected");
+		return connectionId;
+	}
+}
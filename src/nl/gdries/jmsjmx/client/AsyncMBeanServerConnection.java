@@ -0,0 +1,350 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanInfo;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.management.remote.generic.MessageConnection;
+import javax.management.remote.generic.ObjectWrapping;
+import javax.management.remote.message.CloseMessage;
+import javax.management.remote.message.MBeanServerRequestMessage;
+import javax.management.remote.message.MBeanServerResponseMessage;
+import javax.management.remote.message.Message;
+
+import nl.gdries.jmsjmx.jms.AbstractClientProvider;
+import nl.gdries.jmsjmx.jms.AbstractMessageConnection;
+import nl.gdries.jmsjmx.jms.ConnectionLostException;
+
+/**
+ * An MBeanServerConnection whose operations return right away with an AsyncResult. 
+ * Responses are handed to the waiting results by the JMS provider as they arrive, no
+ * thread waits for them. One thread can keep thousands of requests to many servers in
+ * flight.
+ * <p>
+ * Every request fails with an InterruptedIOException when no response arrived within the 
+ * request timeout, use withTimeout() for requests that need another timeout. When the
+ * connection to the broker is lost and can't be resumed, all waiting requests fail at 
+ * once. Notifications are not supported, use a regular connector for those.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class AsyncMBeanServerConnection implements AbstractMessageConnection.MessageHandler {
+	// One thread expires the requests of all connections
+	private static final ScheduledExecutorService timeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "AsyncMBeanServerConnection timeouts");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private final MessageConnection connection;
+	private final ObjectWrapping wrapping;
+	private final ClassLoader classLoader;
+	private final State state;
+	private final long timeout;
+	
+	/**
+	 * @param connector Told when the server closes the connection or it's lost
+	 * @param connection A connected transport that completed the JMXMP handshake
+	 * @param timeout Default request timeout in milliseconds, 0 for none
+	 */
+	AsyncMBeanServerConnection(AsyncConnector connector, MessageConnection connection, ObjectWrapping wrapping, 
+			ClassLoader classLoader, long timeout) {
+		this(connection, wrapping, classLoader, new State(connector), timeout);
+	}
+	
+	private AsyncMBeanServerConnection(MessageConnection connection, ObjectWrapping wrapping, 
+			ClassLoader classLoader, State state, long timeout) {
+		this.connection = connection;
+		this.wrapping = wrapping;
+		this.classLoader = classLoader;
+		this.state = state;
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Connect to a server for asynchronous requests only
+	 */
+	public static AsyncConnector connect(JMXServiceURL serviceURL, Map<String, ?> environment) throws IOException {
+		Map<String, Object> env = new HashMap<String, Object>(environment);
+		env.put(AbstractClientProvider.ASYNC, Boolean.TRUE);
+		
+		JMXConnector connector = JMXConnectorFactory.newJMXConnector(serviceURL, env);
+		if(!(connector instanceof AsyncConnector))
+			throw new IOException("The protocol " + serviceURL.getProtocol() + " has no asynchronous connector");
+		
+		connector.connect();
+		return (AsyncConnector)connector;
+	}
+	
+	/**
+	 * @return A view on this connection that times out requests after a different number 
+	 * of milliseconds, 0 for never
+	 */
+	public AsyncMBeanServerConnection withTimeout(long timeout) {
+		return new AsyncMBeanServerConnection(connection, wrapping, classLoader, state, timeout);
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * @return The number of requests waiting for a response
+	 */
+	public int getPendingRequests() {
+		return state.pending.size();
+	}
+	
+	public AsyncResult<Object> getAttribute(ObjectName name, String attribute) {
+		return request(MBeanServerRequestMessage.GET_ATTRIBUTE, name, attribute);
+	}
+	
+	public AsyncResult<AttributeList> getAttributes(ObjectName name, String[] attributes) {
+		return request(MBeanServerRequestMessage.GET_ATTRIBUTES, name, attributes);
+	}
+	
+	public AsyncResult<Void> setAttribute(ObjectName name, Attribute attribute) {
+		return request(MBeanServerRequestMessage.SET_ATTRIBUTE, name, wrap(attribute));
+	}
+	
+	public AsyncResult<AttributeList> setAttributes(ObjectName name, AttributeList attributes) {
+		return request(MBeanServerRequestMessage.SET_ATTRIBUTES, name, wrap(attributes));
+	}
+	
+	public AsyncResult<Object> invoke(ObjectName name, String operationName, Object[] params, String[] signature) {
+		return request(MBeanServerRequestMessage.INVOKE, name, operationName, wrap(params), signature);
+	}
+	
+	public AsyncResult<Set<ObjectName>> queryNames(ObjectName name, QueryExp query) {
+		return request(MBeanServerRequestMessage.QUERY_NAMES, name, wrap(query));
+	}
+	
+	public AsyncResult<Set<ObjectInstance>> queryMBeans(ObjectName name, QueryExp query) {
+		return request(MBeanServerRequestMessage.QUERY_MBEANS, name, wrap(query));
+	}
+	
+	public AsyncResult<Boolean> isRegistered(ObjectName name) {
+		return request(MBeanServerRequestMessage.IS_REGISTERED, name);
+	}
+	
+	public AsyncResult<Boolean> isInstanceOf(ObjectName name, String className) {
+		return request(MBeanServerRequestMessage.IS_INSTANCE_OF, name, className);
+	}
+	
+	public AsyncResult<Integer> getMBeanCount() {
+		return request(MBeanServerRequestMessage.GET_MBEAN_COUNT);
+	}
+	
+	public AsyncResult<MBeanInfo> getMBeanInfo(ObjectName name) {
+		return request(MBeanServerRequestMessage.GET_MBEAN_INFO, name);
+	}
+	
+	public AsyncResult<ObjectInstance> getObjectInstance(ObjectName name) {
+		return request(MBeanServerRequestMessage.GET_OBJECT_INSTANCE, name);
+	}
+	
+	public AsyncResult<String> getDefaultDomain() {
+		return request(MBeanServerRequestMessage.GET_DEFAULT_DOMAIN);
+	}
+	
+	public AsyncResult<String[]> getDomains() {
+		return request(MBeanServerRequestMessage.GET_DOMAINS);
+	}
+	
+	public AsyncResult<Void> unregisterMBean(ObjectName name) {
+		return request(MBeanServerRequestMessage.UNREGISTER_MBEAN, name);
+	}
+	
+	/**
+	 * Parameters that are not JMX API classes go wrapped, the server unwraps them with the
+	 * class loader of the MBean
+	 */
+	private Object wrap(Object object) {
+		try {
+			return wrapping.wrap(object);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to serialize " + object + ": " + e);
+		}
+	}
+	
+	private <T> AsyncResult<T> request(int methodId, Object... params) {
+		final AsyncResult<T> result = new AsyncResult<T>();
+		if(state.closed) {
+			result.fail(new IOException("The connection is closed"));
+			return result;
+		}
+		
+		MBeanServerRequestMessage message = new MBeanServerRequestMessage(methodId, 
+				params.length == 0 ? null : params, null);
+		final Long id = Long.valueOf(message.getMessageId());
+		final Request request = new Request(result);
+		state.pending.put(id, request);
+		
+		result.setCancelAction(new Runnable() {
+			public void run() {
+				remove(id);
+			}
+		});
+		
+		if(timeout > 0) {
+			request.timeout = timeouts.schedule(new Runnable() {
+				public void run() {
+					if(remove(id) != null)
+						result.fail(new InterruptedIOException("No response within " + timeout + " ms"));
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		
+		try {
+			connection.writeMessage(message);
+		} catch (IOException e) {
+			if(remove(id) != null)
+				result.fail(e);
+		} catch (RuntimeException e) {
+			if(remove(id) != null)
+				result.fail(e);
+		}
+		return result;
+	}
+	
+	private Request remove(Long id) {
+		Request request = state.pending.remove(id);
+		if(request != null && request.timeout != null)
+			request.timeout.cancel(false);
+		return request;
+	}
+	
+	/**
+	 * Complete the request a response belongs to
+	 */
+	public void handleMessage(Message message) {
+		if(message instanceof CloseMessage) {
+			failAll(new IOException("The server closed the connection"));
+			state.connector.disconnected(JMXConnectionNotification.CLOSED, "The server closed the connection");
+			return;
+		}
+		
+		if(!(message instanceof MBeanServerResponseMessage))
+			return;
+		
+		MBeanServerResponseMessage response = (MBeanServerResponseMessage)message;
+		Request request = remove(Long.valueOf(response.getMessageId()));
+		if(request == null)
+			return; // Timed out or cancelled
+		
+		Object result;
+		try {
+			result = wrapping.unwrap(response.getWrappedResult(), classLoader);
+		} catch (Exception e) {
+			request.result.fail(e);
+			return;
+		}
+		
+		if(response.isException())
+			request.result.fail((Throwable)result);
+		else
+			request.complete(result);
+	}
+
+	/**
+	 * The connection to the broker is gone for good, fail all waiting requests. Any other 
+	 * exception is a response that could not be read, its request will time out.
+	 */
+	public void handleException(Exception e) {
+		if(e instanceof ConnectionLostException) {
+			IOException failure = new IOException("The connection to the server was lost: " + e.getMessage());
+			failure.initCause(e);
+			failAll(failure);
+			state.connector.disconnected(JMXConnectionNotification.FAILED, failure.getMessage());
+		}
+	}
+	
+	/**
+	 * Fail all waiting requests and refuse new ones
+	 */
+	void failAll(IOException e) {
+		state.closed = true;
+		for(Long id: state.pending.keySet()) {
+			Request request = remove(id);
+			if(request != null)
+				request.result.fail(e);
+		}
+	}
+	
+	void reopen() {
+		state.closed = false;
+	}
+	
+	/**
+	 * Shared by a connection and its views with other timeouts
+	 */
+	private static class State {
+		final AsyncConnector connector;
+		final Map<Long, Request> pending = new ConcurrentHashMap<Long, Request>();
+		volatile boolean closed;
+		
+		State(AsyncConnector connector) {
+			this.connector = connector;
+		}
+	}
+	
+	private static class Request {
+		final AsyncResult<?> result;
+		volatile ScheduledFuture<?> timeout;
+		
+		Request(AsyncResult<?> result) {
+			this.result = result;
+		}
+		
+		@SuppressWarnings("unchecked")
+		void complete(Object value) {
+			((AsyncResult<Object>)result).complete(value);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous request. Wait for it with get() or have callbacks called 
+ * when it's there. Callbacks added before completion run on the thread that completes the
+ * request, usually the JMS provider's delivery thread, so they must not block.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class AsyncResult<T> implements Future<T> {
+	private List<AsyncCallback<? super T>> callbacks = new ArrayList<AsyncCallback<? super T>>(1);
+	private boolean done;
+	private T result;
+	private Throwable failure;
+	private Runnable cancelAction;
+	
+	/**
+	 * @return A result that is already complete
+	 */
+	public static <T> AsyncResult<T> completed(T result) {
+		AsyncResult<T> asyncResult = new AsyncResult<T>();
+		asyncResult.complete(result);
+		return asyncResult;
+	}
+	
+	/**
+	 * @return A result that already failed
+	 */
+	public static <T> AsyncResult<T> failed(Throwable failure) {
+		AsyncResult<T> asyncResult = new AsyncResult<T>();
+		asyncResult.fail(failure);
+		return asyncResult;
+	}
+	
+	/**
+	 * Call the callback when the result is there, or right away if it already is
+	 */
+	public void addCallback(AsyncCallback<? super T> callback) {
+		synchronized(this) {
+			if(!done) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		call(callback);
+	}
+	
+	/**
+	 * @return true if this call completed the result, false if it was already done
+	 */
+	public boolean complete(T result) {
+		return finish(result, null);
+	}
+	
+	/**
+	 * @return true if this call completed the result, false if it was already done
+	 */
+	public boolean fail(Throwable failure) {
+		return finish(null, failure);
+	}
+	
+	/**
+	 * @param cancelAction Called when the result is cancelled before it's complete
+	 */
+	synchronized void setCancelAction(Runnable cancelAction) {
+		this.cancelAction = cancelAction;
+	}
+	
+	private boolean finish(T result, Throwable failure) {
+		List<AsyncCallback<? super T>> toNotify;
+		synchronized(this) {
+			if(done)
+				return false;
+			
+			this.done = true;
+			this.result = result;
+			this.failure = failure;
+			toNotify = callbacks;
+			callbacks = null;
+			cancelAction = null;
+			notifyAll();
+		}
+		
+		for(AsyncCallback<? super T> callback: toNotify)
+			call(callback);
+		return true;
+	}
+	
+	private void call(AsyncCallback<? super T> callback) {
+		if(failure == null)
+			callback.completed(result);
+		else
+			callback.failed(failure);
+	}
+
+	/**
+	 * Give up on the request. The server may still execute it, its response is ignored.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		Runnable action;
+		synchronized(this) {
+			action = cancelAction;
+		}
+		
+		if(!fail(new CancellationException("Request cancelled")))
+			return false;
+		if(action != null)
+			action.run();
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return failure instanceof CancellationException;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while(!done)
+			wait();
+		return report();
+	}
+
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, 
+			TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(!done) {
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return report();
+	}
+	
+	private T report() throws ExecutionException {
+		if(failure instanceof CancellationException)
+			throw (CancellationException)failure;
+		if(failure != null)
+			throw new ExecutionException(failure);
+		return result;
+	}
+}
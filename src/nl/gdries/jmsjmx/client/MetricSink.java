@@ -0,0 +1,64 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import javax.management.AttributeList;
+import javax.management.ObjectName;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Receives what a Poller reads. Methods are called from the poller's scheduler threads
+ * and should return quickly, a slow sink delays the polls of other servers.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface MetricSink {
+	/**
+	 * The attributes of one MBean matched by a spec were read
+	 * 
+	 * @param values The attributes the spec asked for that could be read
+	 * @param timestamp When they were read
+	 */
+	void sample(MetricSpec spec, ObjectName name, AttributeList values, long timestamp);
+	
+	/**
+	 * The attributes of a spec could not be read this cycle
+	 */
+	void failed(MetricSpec spec, Exception e);
+	
+	/**
+	 * A cycle started late, but before the next one was due
+	 * 
+	 * @param lateness Milliseconds after the cycle was due
+	 */
+	void late(JMXServiceURL serviceURL, long interval, long lateness);
+	
+	/**
+	 * Cycles were skipped because the previous cycle or the scheduler fell behind
+	 */
+	void missed(JMXServiceURL serviceURL, long interval, long cycles);
+}
@@ -0,0 +1,224 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotCompliantMBeanException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+
+/**
+ * An MBeanServerConnection that answers queryNames without a QueryExp, isRegistered,
+ * getMBeanCount and getDomains from a NameRegistry instead of asking the server, as long
+ * as the registry is current. Everything else goes to the server.
+ * <p>
+ * The registry learns about MBeans registered or unregistered through this connection 
+ * from the server's notifications, like it does for everyone else's, so it may not have 
+ * them right after the call returns.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class MirroredMBeanServerConnection implements MBeanServerConnection {
+	private final MBeanServerConnection connection;
+	private final NameRegistry registry;
+	
+	public MirroredMBeanServerConnection(MBeanServerConnection connection, NameRegistry registry) {
+		this.connection = connection;
+		this.registry = registry;
+	}
+	
+	public MBeanServerConnection getConnection() {
+		return connection;
+	}
+	
+	public NameRegistry getRegistry() {
+		return registry;
+	}
+	
+	/*
+	 * Mirrored reads
+	 */
+	
+	public boolean isRegistered(ObjectName name) throws IOException {
+		if(!registry.isCurrent())
+			return connection.isRegistered(name);
+		
+		return registry.isRegistered(name);
+	}
+	
+	public Set<ObjectName> queryNames(ObjectName name, QueryExp query) throws IOException {
+		if(query != null || !registry.isCurrent())
+			return connection.queryNames(name, query);
+		
+		return registry.queryNames(name);
+	}
+	
+	public Integer getMBeanCount() throws IOException {
+		if(!registry.isCurrent())
+			return connection.getMBeanCount();
+		
+		return registry.getMBeanCount();
+	}
+
+	public String[] getDomains() throws IOException {
+		if(!registry.isCurrent())
+			return connection.getDomains();
+		
+		return registry.getDomains();
+	}
+	
+	/*
+	 * Everything else goes straight to the server
+	 */
+
+	public ObjectInstance createMBean(String className, ObjectName name) 
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, 
+			MBeanException, NotCompliantMBeanException, IOException {
+		return connection.createMBean(className, name);
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName) 
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, 
+			MBeanException, NotCompliantMBeanException, InstanceNotFoundException, IOException {
+		return connection.createMBean(className, name, loaderName);
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature) 
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, 
+			MBeanException, NotCompliantMBeanException, IOException {
+		return connection.createMBean(className, name, params, signature);
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName, 
+			Object[] params, String[] signature) 
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, 
+			MBeanException, NotCompliantMBeanException, InstanceNotFoundException, IOException {
+		return connection.createMBean(className, name, loaderName, params, signature);
+	}
+
+	public void unregisterMBean(ObjectName name) 
+			throws InstanceNotFoundException, MBeanRegistrationException, IOException {
+		connection.unregisterMBean(name);
+	}
+
+	public Object getAttribute(ObjectName name, String attribute) 
+			throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
+		return connection.getAttribute(name, attribute);
+	}
+
+	public AttributeList getAttributes(ObjectName name, String[] attributes) 
+			throws InstanceNotFoundException, ReflectionException, IOException {
+		return connection.getAttributes(name, attributes);
+	}
+
+	public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException, IOException {
+		return connection.getObjectInstance(name);
+	}
+
+	public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) throws IOException {
+		return connection.queryMBeans(name, query);
+	}
+
+	public void setAttribute(ObjectName name, Attribute attribute) 
+			throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException, 
+			MBeanException, ReflectionException, IOException {
+		connection.setAttribute(name, attribute);
+	}
+
+	public AttributeList setAttributes(ObjectName name, AttributeList attributes) 
+			throws InstanceNotFoundException, ReflectionException, IOException {
+		return connection.setAttributes(name, attributes);
+	}
+
+	public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature) 
+			throws InstanceNotFoundException, MBeanException, ReflectionException, IOException {
+		return connection.invoke(name, operationName, params, signature);
+	}
+
+	public String getDefaultDomain() throws IOException {
+		return connection.getDefaultDomain();
+	}
+
+	public void addNotificationListener(ObjectName name, NotificationListener listener, 
+			NotificationFilter filter, Object handback) throws InstanceNotFoundException, IOException {
+		connection.addNotificationListener(name, listener, filter, handback);
+	}
+
+	public void addNotificationListener(ObjectName name, ObjectName listener, 
+			NotificationFilter filter, Object handback) throws InstanceNotFoundException, IOException {
+		connection.addNotificationListener(name, listener, filter, handback);
+	}
+
+	public void removeNotificationListener(ObjectName name, ObjectName listener) 
+			throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		connection.removeNotificationListener(name, listener);
+	}
+
+	public void removeNotificationListener(ObjectName name, ObjectName listener, 
+			NotificationFilter filter, Object handback) 
+			throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		connection.removeNotificationListener(name, listener, filter, handback);
+	}
+
+	public void removeNotificationListener(ObjectName name, NotificationListener listener) 
+			throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		connection.removeNotificationListener(name, listener);
+	}
+
+	public void removeNotificationListener(ObjectName name, NotificationListener listener, 
+			NotificationFilter filter, Object handback) 
+			throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		connection.removeNotificationListener(name, listener, filter, handback);
+	}
+
+	public MBeanInfo getMBeanInfo(ObjectName name) 
+			throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+		return connection.getMBeanInfo(name);
+	}
+
+	public boolean isInstanceOf(ObjectName name, String className) throws InstanceNotFoundException, IOException {
+		return connection.isInstanceOf(name, className);
+	}
+}
@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.security.auth.Subject;
+
+/**
+ * A JMXConnector whose MBeanServerConnection answers name queries from a local copy of the
+ * remote MBean names, see MirroredMBeanServerConnection. The copy is taken again when the
+ * connector reports lost notifications. Connections obtained for a delegation Subject are
+ * not mirrored, they may see different MBeans.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class MirroringConnector implements JMXConnector, NotificationListener {
+	private final JMXConnector connector;
+	
+	private MBeanServerConnection delegate;
+	private NameRegistry registry;
+	private MirroredMBeanServerConnection connection;
+	
+	public MirroringConnector(JMXConnector connector) {
+		this.connector = connector;
+		connector.addConnectionNotificationListener(this, null, null);
+	}
+	
+	public void connect() throws IOException {
+		connector.connect();
+	}
+
+	public void connect(Map<String, ?> env) throws IOException {
+		connector.connect(env);
+	}
+
+	/**
+	 * @return The mirrored connection, the first call takes the snapshot of names
+	 */
+	public synchronized MBeanServerConnection getMBeanServerConnection() throws IOException {
+		MBeanServerConnection current = connector.getMBeanServerConnection();
+		if(registry == null) {
+			registry = new NameRegistry(current);
+			registry.start();
+		} else if(current != delegate) {
+			registry.setConnection(current);
+		}
+		
+		if(current != delegate)
+			connection = new MirroredMBeanServerConnection(current, registry);
+		delegate = current;
+		return connection;
+	}
+
+	public MBeanServerConnection getMBeanServerConnection(Subject delegationSubject) throws IOException {
+		if(delegationSubject == null)
+			return getMBeanServerConnection();
+		
+		return connector.getMBeanServerConnection(delegationSubject);
+	}
+	
+	public void handleNotification(Notification notification, Object handback) {
+		if(JMXConnectionNotification.NOTIFS_LOST.equals(notification.getType())) {
+			NameRegistry registry;
+			synchronized(this) {
+				registry = this.registry;
+			}
+			if(registry != null)
+				registry.resync();
+		}
+	}
+
+	public void close() throws IOException {
+		NameRegistry registry;
+		synchronized(this) {
+			registry = this.registry;
+			this.registry = null;
+			delegate = null;
+		}
+		
+		if(registry != null) {
+			try {
+				registry.close();
+			} catch (IOException e) {
+				// Closing the connector stops the notifications anyway
+			}
+		}
+		connector.close();
+	}
+
+	public void addConnectionNotificationListener(NotificationListener listener, 
+			NotificationFilter filter, Object handback) {
+		connector.addConnectionNotificationListener(listener, filter, handback);
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener) 
+			throws ListenerNotFoundException {
+		connector.removeConnectionNotificationListener(listener);
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener, 
+			NotificationFilter filter, Object handback) throws ListenerNotFoundException {
+		connector.removeConnectionNotificationListener(listener, filter, handback);
+	}
+
+	public String getConnectionId() throws IOException {
+		return connector.getConnectionId();
+	}
+}
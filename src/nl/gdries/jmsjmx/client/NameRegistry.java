@@ -0,0 +1,401 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * A copy of the names of the MBeans registered in a remote MBeanServer. It starts from a 
+ * snapshot and is kept current by the registration notifications of the MBeanServerDelegate,
+ * so queryNames and isRegistered are answered without asking the server. 
+ * <p>
+ * The delegate numbers its notifications. When one is missing, or the connector reports 
+ * lost notifications, the registry takes a new snapshot. Until that arrives the registry 
+ * is not current and answers from the previous state. Only one snapshot is taken at a time.
+ * <p>
+ * Names are indexed by domain and by key property, so a pattern only looks at the names
+ * in the smallest matching index.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class NameRegistry implements NotificationListener {
+	private static final Logger logger = Logger.getLogger(NameRegistry.class.getName());
+	
+	private final ObjectName delegateName;
+	
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	// Held while taking a snapshot, so a resync and a new connection don't take one at once
+	private final Object snapshotLock = new Object();
+	private final Set<ObjectName> names = new HashSet<ObjectName>();
+	private final Map<String, Set<ObjectName>> domains = new HashMap<String, Set<ObjectName>>();
+	private final Map<String, Set<ObjectName>> properties = new HashMap<String, Set<ObjectName>>();
+	
+	private MBeanServerConnection connection;
+	
+	// Notifications arriving while a snapshot is taken, null when not taking one
+	private List<MBeanServerNotification> buffered;
+	private boolean bufferedGap;
+	private long lastSequence = -1;
+	private boolean current;
+	private boolean resyncing;
+	private boolean closed;
+	
+	private long snapshots;
+	private long gaps;
+	private long applied;
+	
+	public NameRegistry(MBeanServerConnection connection) {
+		this.connection = connection;
+		try {
+			this.delegateName = new ObjectName("JMImplementation:type=MBeanServerDelegate");
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Subscribe to the delegate and take the first snapshot
+	 */
+	public void start() throws IOException {
+		try {
+			connection.addNotificationListener(delegateName, this, null, null);
+		} catch (JMException e) {
+			IOException ioe = new IOException("Unable to listen to the MBeanServerDelegate: " + e);
+			ioe.initCause(e);
+			throw ioe;
+		}
+		snapshot();
+	}
+	
+	/**
+	 * Stop following the remote MBeanServer
+	 */
+	public void close() throws IOException {
+		synchronized(this) {
+			closed = true;
+			current = false;
+		}
+		
+		try {
+			connection.removeNotificationListener(delegateName, this);
+		} catch (JMException e) {
+			// Not listening anymore
+		}
+	}
+	
+	/**
+	 * Follow the remote MBeanServer through a new connection, for instance after a reconnect
+	 */
+	public void setConnection(MBeanServerConnection connection) throws IOException {
+		synchronized(this) {
+			this.connection = connection;
+			current = false;
+		}
+		start();
+	}
+	
+	/**
+	 * Take a new snapshot, in the background if one is not being taken already
+	 */
+	public void resync() {
+		synchronized(this) {
+			current = false;
+			if(resyncing || closed)
+				return;
+			resyncing = true;
+		}
+		
+		Thread thread = new Thread("NameRegistry resync") {
+			@Override
+			public void run() {
+				try {
+					snapshot();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Unable to resynchronize MBean names", e);
+				} finally {
+					synchronized(NameRegistry.this) {
+						resyncing = false;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Replace the names with those registered now. Notifications that arrive meanwhile are
+	 * applied afterwards, in order, so changes made while the query ran are not lost. If 
+	 * one of those is missing, the snapshot is taken again.
+	 */
+	private void snapshot() throws IOException {
+		synchronized(snapshotLock) {
+			boolean again;
+			do {
+				MBeanServerConnection connection;
+				synchronized(this) {
+					buffered = new ArrayList<MBeanServerNotification>();
+					bufferedGap = false;
+					connection = this.connection;
+				}
+				
+				Set<ObjectName> snapshot;
+				try {
+					snapshot = connection.queryNames(null, null);
+				} catch (IOException e) {
+					synchronized(this) {
+						buffered = null;
+					}
+					throw e;
+				}
+				
+				synchronized(this) {
+					lock.writeLock().lock();
+					try {
+						names.clear();
+						domains.clear();
+						properties.clear();
+						for(ObjectName name: snapshot)
+							add(name);
+						for(MBeanServerNotification notification: buffered)
+							apply(notification);
+					} finally {
+						lock.writeLock().unlock();
+					}
+					
+					buffered = null;
+					current = !closed && !bufferedGap;
+					again = !closed && bufferedGap;
+					snapshots++;
+				}
+			} while(again);
+		}
+	}
+	
+	public void handleNotification(Notification notification, Object handback) {
+		if(!(notification instanceof MBeanServerNotification))
+			return;
+		
+		boolean gap;
+		synchronized(this) {
+			if(closed)
+				return;
+			
+			long sequence = notification.getSequenceNumber();
+			gap = lastSequence >= 0 && sequence != lastSequence + 1;
+			lastSequence = sequence;
+			
+			if(gap)
+				gaps++;
+			
+			if(buffered != null) {
+				bufferedGap |= gap;
+				buffered.add((MBeanServerNotification)notification);
+				return;
+			}
+			
+			if(!gap) {
+				lock.writeLock().lock();
+				try {
+					apply((MBeanServerNotification)notification);
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		}
+		
+		if(gap)
+			resync();
+	}
+	
+	private void apply(MBeanServerNotification notification) {
+		applied++;
+		if(MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType()))
+			add(notification.getMBeanName());
+		else if(MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType()))
+			remove(notification.getMBeanName());
+	}
+	
+	private void add(ObjectName name) {
+		if(!names.add(name))
+			return;
+		
+		index(domains, name.getDomain(), name);
+		for(Map.Entry<String, String> property: name.getKeyPropertyList().entrySet())
+			index(properties, property.getKey() + "=" + property.getValue(), name);
+	}
+	
+	private void remove(ObjectName name) {
+		if(!names.remove(name))
+			return;
+		
+		unindex(domains, name.getDomain(), name);
+		for(Map.Entry<String, String> property: name.getKeyPropertyList().entrySet())
+			unindex(properties, property.getKey() + "=" + property.getValue(), name);
+	}
+	
+	private static void index(Map<String, Set<ObjectName>> index, String key, ObjectName name) {
+		Set<ObjectName> set = index.get(key);
+		if(set == null) {
+			set = new HashSet<ObjectName>();
+			index.put(key, set);
+		}
+		set.add(name);
+	}
+	
+	private static void unindex(Map<String, Set<ObjectName>> index, String key, ObjectName name) {
+		Set<ObjectName> set = index.get(key);
+		if(set != null && set.remove(name) && set.isEmpty())
+			index.remove(key);
+	}
+	
+	/**
+	 * @param pattern The name or pattern, or null for all names
+	 * @return The registered names matching the pattern
+	 */
+	public Set<ObjectName> queryNames(ObjectName pattern) {
+		lock.readLock().lock();
+		try {
+			if(pattern == null)
+				return new HashSet<ObjectName>(names);
+			
+			if(!pattern.isPattern())
+				return names.contains(pattern) ? Collections.singleton(pattern) : Collections.<ObjectName>emptySet();
+			
+			Set<ObjectName> result = new HashSet<ObjectName>();
+			for(ObjectName name: candidates(pattern)) {
+				if(pattern.apply(name))
+					result.add(name);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Find the smallest set of names that holds all names matching the pattern
+	 */
+	private Set<ObjectName> candidates(ObjectName pattern) {
+		Set<ObjectName> smallest = names;
+		
+		if(!pattern.isDomainPattern()) {
+			smallest = domains.get(pattern.getDomain());
+			if(smallest == null)
+				return Collections.emptySet();
+		}
+		
+		for(Map.Entry<String, String> property: pattern.getKeyPropertyList().entrySet()) {
+			String value = property.getValue();
+			if(value.indexOf('*') >= 0 || value.indexOf('?') >= 0)
+				continue;
+			
+			Set<ObjectName> set = properties.get(property.getKey() + "=" + value);
+			if(set == null)
+				return Collections.emptySet();
+			if(set.size() < smallest.size())
+				smallest = set;
+		}
+		return smallest;
+	}
+	
+	public boolean isRegistered(ObjectName name) {
+		lock.readLock().lock();
+		try {
+			return names.contains(name);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public int getMBeanCount() {
+		lock.readLock().lock();
+		try {
+			return names.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public String[] getDomains() {
+		lock.readLock().lock();
+		try {
+			return domains.keySet().toArray(new String[domains.size()]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return Whether the registry follows the remote MBeanServer, false while a new 
+	 *         snapshot is being taken
+	 */
+	public synchronized boolean isCurrent() {
+		return current;
+	}
+	
+	/**
+	 * @return The number of snapshots taken
+	 */
+	public synchronized long getSnapshots() {
+		return snapshots;
+	}
+	
+	/**
+	 * @return The number of times a notification was found missing
+	 */
+	public synchronized long getGaps() {
+		return gaps;
+	}
+	
+	/**
+	 * @return The number of registration notifications applied
+	 */
+	public synchronized long getApplied() {
+		return applied;
+	}
+}
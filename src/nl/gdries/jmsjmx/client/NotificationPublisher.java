@@ -0,0 +1,136 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the notifications of an MBean to subscribers that each take them at their own
+ * pace. Every subscriber gets its own spool on the server's NotificationSpooler, and
+ * notifications are only fetched from it as the subscriber requests them, so a slow 
+ * subscriber holds up nobody else. The spool holds the notifications the subscriber
+ * didn't ask for yet, up to the spool capacity. What happens when it overflows is up to 
+ * the OverflowStrategy.
+ * <p>
+ * The server must have a NotificationSpooler, see AbstractServerProvider.NOTIFICATION_SPOOL.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class NotificationPublisher implements Publisher<Notification> {
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_FETCH_TIMEOUT = 10000;
+	
+	/**
+	 * What to do when a subscriber's spool overflows
+	 */
+	public enum OverflowStrategy {
+		/**
+		 * Drop the oldest notifications and carry on. NotificationSubscription.getLost() 
+		 * tells how many were dropped.
+		 */
+		DROP_OLDEST,
+		
+		/**
+		 * End the subscription with a NotificationOverflowException
+		 */
+		ERROR
+	}
+	
+	private final MBeanServerConnection connection;
+	private final ObjectName name;
+	private final NotificationFilter filter;
+	
+	private ObjectName spoolerName;
+	private int spoolCapacity;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long fetchTimeout = DEFAULT_FETCH_TIMEOUT;
+	private OverflowStrategy overflowStrategy = OverflowStrategy.DROP_OLDEST;
+	
+	/**
+	 * @param filter Selects the notifications to publish on the server, or null for all
+	 */
+	public NotificationPublisher(MBeanServerConnection connection, ObjectName name, NotificationFilter filter) {
+		this.connection = connection;
+		this.name = name;
+		this.filter = filter;
+	}
+	
+	public void subscribe(Subscriber<? super Notification> subscriber) {
+		NotificationSubscription subscription;
+		synchronized(this) {
+			subscription = new NotificationSubscription(subscriber, connection, spoolerName, name, filter, 
+					spoolCapacity, batchSize, fetchTimeout, overflowStrategy);
+		}
+		subscription.start();
+	}
+	
+	public ObjectName getName() {
+		return name;
+	}
+	
+	/**
+	 * @param spoolerName The NotificationSpooler on the server, or null for the one the connector 
+	 * server registers
+	 */
+	public synchronized void setSpoolerName(ObjectName spoolerName) {
+		this.spoolerName = spoolerName;
+	}
+	
+	/**
+	 * @param spoolCapacity Bytes each subscriber's spool holds on the server, 0 for the spooler's default
+	 */
+	public synchronized void setSpoolCapacity(int spoolCapacity) {
+		this.spoolCapacity = spoolCapacity;
+	}
+	
+	/**
+	 * @param batchSize The most notifications fetched at once, and buffered for a subscriber
+	 */
+	public synchronized void setBatchSize(int batchSize) {
+		if(batchSize < 1)
+			throw new IllegalArgumentException("The batch size must be at least 1");
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * @param fetchTimeout Milliseconds a fetch waits on the server for notifications when the
+	 * spool has none for a subscriber that wants them. It must be less than the connection's
+	 * request timeout.
+	 */
+	public synchronized void setFetchTimeout(long fetchTimeout) {
+		if(fetchTimeout < 1)
+			throw new IllegalArgumentException("The fetch timeout must be at least 1 millisecond");
+		this.fetchTimeout = fetchTimeout;
+	}
+	
+	public synchronized void setOverflowStrategy(OverflowStrategy overflowStrategy) {
+		this.overflowStrategy = overflowStrategy;
+	}
+}
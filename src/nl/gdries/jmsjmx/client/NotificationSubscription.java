@@ -0,0 +1,300 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.ObjectName;
+
+import nl.gdries.jmsjmx.spool.SpoolBatch;
+import nl.gdries.jmsjmx.spool.SpoolReader;
+
+/**
+ * A subscriber's subscription to a NotificationPublisher. Notifications are fetched from
+ * the subscriber's spool on the server when the subscriber has requested them, at most 
+ * the batch size at a time. When the spool is empty, the fetch waits on the server until
+ * a notification arrives or the fetch timeout passes, so there is no polling. Fetching and 
+ * delivery run on a pooled thread that serves only this subscription while it has demand,
+ * so a slow subscriber only delays itself. A subscriber whose onNext throws is cancelled.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class NotificationSubscription implements Subscription, Runnable {
+	private static final Logger logger = Logger.getLogger(NotificationSubscription.class.getName());
+	
+	private static final ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new DaemonThreadFactory("NotificationSubscription"));
+	
+	private final Subscriber<? super Notification> subscriber;
+	private final MBeanServerConnection connection;
+	private final ObjectName spoolerName;
+	private final ObjectName name;
+	private final NotificationFilter filter;
+	private final int spoolCapacity;
+	private final int batchSize;
+	private final long fetchTimeout;
+	private final NotificationPublisher.OverflowStrategy overflowStrategy;
+	
+	private final LinkedList<Notification> buffer = new LinkedList<Notification>();
+	private SpoolReader reader;
+	
+	private long demand;
+	private boolean cancelled;
+	private boolean finished;
+	private boolean running;
+	private boolean runAgain;
+	private long delivered;
+	private long lost;
+	
+	NotificationSubscription(Subscriber<? super Notification> subscriber, MBeanServerConnection connection, 
+			ObjectName spoolerName, ObjectName name, NotificationFilter filter, int spoolCapacity, int batchSize, 
+			long fetchTimeout, NotificationPublisher.OverflowStrategy overflowStrategy) {
+		this.subscriber = subscriber;
+		this.connection = connection;
+		this.spoolerName = spoolerName;
+		this.name = name;
+		this.filter = filter;
+		this.spoolCapacity = spoolCapacity;
+		this.batchSize = batchSize;
+		this.fetchTimeout = fetchTimeout;
+		this.overflowStrategy = overflowStrategy;
+	}
+	
+	/**
+	 * Create the spool and hand the subscription to the subscriber, on a pooled thread
+	 */
+	void start() {
+		schedule();
+	}
+
+	public void request(long n) {
+		synchronized(this) {
+			if(finished)
+				return;
+			
+			if(n <= 0) {
+				cancelled = true;
+				demand = -1;
+			} else {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			}
+		}
+		schedule();
+	}
+
+	public void cancel() {
+		synchronized(this) {
+			if(cancelled)
+				return;
+			cancelled = true;
+		}
+		schedule();
+	}
+	
+	/**
+	 * @return The number of notifications handed to the subscriber
+	 */
+	public synchronized long getDelivered() {
+		return delivered;
+	}
+	
+	/**
+	 * @return The number of notifications the spool dropped because the subscriber didn't keep up
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+	
+	/**
+	 * Have run() called, or called once more if it's running now
+	 */
+	private void schedule() {
+		synchronized(this) {
+			if(running) {
+				runAgain = true;
+				return;
+			}
+			running = true;
+		}
+		executor.execute(this);
+	}
+	
+	public void run() {
+		try {
+			work();
+		} finally {
+			boolean again;
+			synchronized(this) {
+				again = runAgain && !finished;
+				runAgain = false;
+				running = again;
+			}
+			if(again)
+				executor.execute(this);
+		}
+	}
+	
+	private void work() {
+		if(finished)
+			return;
+		
+		if(reader == null && !subscribe())
+			return;
+		
+		while(true) {
+			long wanted;
+			boolean stop;
+			synchronized(this) {
+				wanted = demand;
+				stop = cancelled;
+			}
+			
+			if(wanted < 0) {
+				fail(new IllegalArgumentException("Subscribers must request a positive number of notifications"));
+				return;
+			}
+			
+			if(stop) {
+				finish();
+				return;
+			}
+			
+			if(wanted == 0)
+				return;
+			
+			if(buffer.isEmpty()) {
+				SpoolBatch batch;
+				try {
+					batch = reader.fetch((int)Math.min(wanted, batchSize), fetchTimeout);
+				} catch (Exception e) {
+					fail(e);
+					return;
+				}
+				
+				if(batch.getLost() > 0) {
+					synchronized(this) {
+						lost += batch.getLost();
+					}
+					if(overflowStrategy == NotificationPublisher.OverflowStrategy.ERROR) {
+						fail(new NotificationOverflowException(batch.getLost()));
+						return;
+					}
+				}
+				
+				// Nothing arrived before the timeout, ask again unless the subscriber lost interest
+				if(batch.getNotifications().length == 0)
+					continue;
+				
+				for(Notification notification: batch.getNotifications())
+					buffer.add(notification);
+			}
+			
+			Notification notification = buffer.removeFirst();
+			synchronized(this) {
+				demand--;
+				delivered++;
+			}
+			try {
+				subscriber.onNext(notification);
+			} catch (RuntimeException e) {
+				// The subscriber broke the contract, it gets nothing more
+				logger.log(Level.WARNING, "Subscriber " + subscriber + " failed, cancelling its subscription to " + name, e);
+				finish();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Create the subscriber's spool and hand it the subscription
+	 * 
+	 * @return false if that failed
+	 */
+	private boolean subscribe() {
+		try {
+			if(spoolerName == null)
+				reader = SpoolReader.create(connection, name, filter, spoolCapacity);
+			else
+				reader = SpoolReader.create(connection, spoolerName, name, filter, spoolCapacity);
+		} catch (Exception e) {
+			subscriber.onSubscribe(this);
+			fail(e);
+			return false;
+		}
+		
+		subscriber.onSubscribe(this);
+		return true;
+	}
+	
+	private void fail(Throwable error) {
+		finish();
+		subscriber.onError(error);
+	}
+	
+	/**
+	 * Stop for good and remove the spool from the server
+	 */
+	private void finish() {
+		synchronized(this) {
+			finished = true;
+			cancelled = true;
+		}
+		
+		buffer.clear();
+		if(reader != null) {
+			try {
+				reader.close();
+			} catch (Exception e) {
+				// The spool expires on its own
+			}
+		}
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
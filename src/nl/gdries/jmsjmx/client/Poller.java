@@ -0,0 +1,438 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import nl.gdries.jmsjmx.jms.AbstractClientProvider;
+
+/**
+ * Polls attributes described by MetricSpecs and hands them to a MetricSink. Specs for
+ * the same server and interval are polled together: each cycle reads all attributes any
+ * of them wants from an MBean with one getAttributes call.
+ * <p>
+ * Each server and interval gets a random phase within the interval, and every cycle starts
+ * up to <i>jitter</i> times the interval after it's due, so many servers with the same 
+ * interval are not all polled at the same moment. Cycles that start more than a quarter of 
+ * the interval late are reported to the sink, cycles that could not start before the next
+ * one was due are skipped and reported as missed.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class Poller {
+	public static final double DEFAULT_JITTER = 0.1;
+	
+	// MBean name patterns are looked up again every this many cycles
+	private static final int RESOLVE_CYCLES = 10;
+	
+	private final MetricSink sink;
+	private final Map<String, Object> environment = new HashMap<String, Object>();
+	private final double jitter;
+	private final int threads;
+	private ScheduledExecutorService scheduler;
+	private final Random random = new Random();
+	
+	private final Map<JMXServiceURL, Server> servers = new HashMap<JMXServiceURL, Server>();
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+	private boolean started;
+	
+	private final AtomicLong cycles = new AtomicLong();
+	private final AtomicLong lateCycles = new AtomicLong();
+	private final AtomicLong missedCycles = new AtomicLong();
+	
+	public Poller(MetricSink sink, int threads) {
+		this(sink, threads, new HashMap<String, Object>(), DEFAULT_JITTER);
+	}
+	
+	/**
+	 * @param sink Receives the results
+	 * @param threads The number of scheduler threads
+	 * @param environment The environment to connect to servers with. Connections to the
+	 *        same broker are shared unless the environment says otherwise.
+	 * @param jitter The fraction of the interval cycles may start after they're due
+	 */
+	public Poller(MetricSink sink, int threads, Map<String, ?> environment, double jitter) {
+		this.sink = sink;
+		this.jitter = jitter;
+		this.environment.put(JMXConnectorFactory.PROTOCOL_PROVIDER_PACKAGES, "nl.gdries.jmsjmx");
+		this.environment.put(AbstractClientProvider.SHARE_CONNECTION, Boolean.TRUE);
+		this.environment.putAll(environment);
+		this.threads = threads;
+	}
+	
+	public synchronized void add(MetricSpec spec) {
+		String key = spec.getServiceURL() + " " + spec.getInterval();
+		Group group = groups.get(key);
+		if(group == null) {
+			Server server = servers.get(spec.getServiceURL());
+			if(server == null) {
+				server = new Server(spec.getServiceURL());
+				servers.put(spec.getServiceURL(), server);
+			}
+			
+			group = new Group(server, spec.getInterval());
+			groups.put(key, group);
+			if(started)
+				group.start(scheduler);
+		}
+		group.specs.add(spec);
+	}
+	
+	public synchronized void remove(MetricSpec spec) {
+		String key = spec.getServiceURL() + " " + spec.getInterval();
+		Group group = groups.get(key);
+		if(group != null && group.specs.remove(spec) && group.specs.isEmpty()) {
+			group.cancel();
+			groups.remove(key);
+			
+			for(Group other: groups.values()) {
+				if(other.server == group.server)
+					return;
+			}
+			servers.remove(group.server.serviceURL).close();
+		}
+	}
+	
+	public synchronized void start() {
+		if(scheduler == null) {
+			final AtomicInteger count = new AtomicInteger();
+			scheduler = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Poller-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		started = true;
+		for(Group group: groups.values())
+			group.start(scheduler);
+	}
+	
+	/**
+	 * Stop polling and close all connections. Polling can be started again.
+	 */
+	public synchronized void stop() {
+		started = false;
+		for(Group group: groups.values())
+			group.stop();
+		
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		
+		for(Server server: servers.values())
+			server.close();
+	}
+	
+	/**
+	 * @return The number of cycles run
+	 */
+	public long getCycles() {
+		return cycles.get();
+	}
+	
+	/**
+	 * @return The number of cycles that started late
+	 */
+	public long getLateCycles() {
+		return lateCycles.get();
+	}
+	
+	/**
+	 * @return The number of cycles skipped
+	 */
+	public long getMissedCycles() {
+		return missedCycles.get();
+	}
+	
+	/**
+	 * All specs of one server with the same interval
+	 */
+	private class Group {
+		final Server server;
+		final long interval;
+		final List<MetricSpec> specs = new CopyOnWriteArrayList<MetricSpec>();
+		
+		// The names each pattern matched when it was last looked up
+		private final Map<MetricSpec, Set<ObjectName>> resolved = new HashMap<MetricSpec, Set<ObjectName>>();
+		private int cycle;
+		
+		private long due;
+		private long scheduled;
+		private ScheduledExecutorService executor;
+		private ScheduledFuture<?> future;
+		private boolean cancelled;
+		
+		// Incremented on every start and stop, so cycles of an earlier start don't reschedule
+		private int generation;
+		
+		Group(Server server, long interval) {
+			this.server = server;
+			this.interval = interval;
+		}
+		
+		synchronized void start(ScheduledExecutorService executor) {
+			this.executor = executor;
+			generation++;
+			due = System.currentTimeMillis() + (long)(random.nextDouble() * interval);
+			schedule(generation);
+		}
+		
+		synchronized void stop() {
+			generation++;
+			if(future != null)
+				future.cancel(false);
+		}
+		
+		synchronized void cancel() {
+			cancelled = true;
+			stop();
+		}
+		
+		private synchronized void schedule(final int started) {
+			if(cancelled || started != generation || executor.isShutdown())
+				return;
+			
+			scheduled = due + (long)(random.nextDouble() * jitter * interval);
+			future = executor.schedule(new Runnable() {
+				public void run() {
+					cycle(started);
+				}
+			}, Math.max(0, scheduled - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+
+		private void cycle(int started) {
+			long lateness;
+			long missed = 0;
+			synchronized(this) {
+				lateness = System.currentTimeMillis() - scheduled;
+				if(lateness >= interval) {
+					// Skip the cycles we can't catch up with
+					missed = lateness / interval;
+					due += missed * interval;
+				}
+			}
+			
+			if(missed > 0) {
+				missedCycles.addAndGet(missed);
+				sink.missed(server.serviceURL, interval, missed);
+			} else if(lateness > interval / 4) {
+				lateCycles.incrementAndGet();
+				sink.late(server.serviceURL, interval, lateness);
+			}
+			
+			try {
+				cycles.incrementAndGet();
+				poll();
+			} catch (RuntimeException e) {
+				// Don't let one bad cycle stop polling
+				for(MetricSpec spec: specs)
+					sink.failed(spec, e);
+			} finally {
+				synchronized(this) {
+					due += interval;
+				}
+				schedule(started);
+			}
+		}
+		
+		private void poll() {
+			MBeanServerConnection connection;
+			try {
+				connection = server.getConnection();
+			} catch (IOException e) {
+				for(MetricSpec spec: specs)
+					sink.failed(spec, e);
+				return;
+			}
+			
+			// Collect the attributes wanted from each MBean by all specs together
+			Map<ObjectName, Set<String>> attributes = new LinkedHashMap<ObjectName, Set<String>>();
+			Map<ObjectName, List<MetricSpec>> wantedBy = new HashMap<ObjectName, List<MetricSpec>>();
+			boolean resolve = cycle++ % RESOLVE_CYCLES == 0;
+			
+			for(MetricSpec spec: specs) {
+				Set<ObjectName> names;
+				try {
+					names = getNames(connection, spec, resolve);
+				} catch (IOException e) {
+					// Nothing else can be polled without the connection either
+					server.close();
+					for(MetricSpec failed: specs)
+						sink.failed(failed, e);
+					return;
+				}
+				
+				for(ObjectName name: names) {
+					Set<String> set = attributes.get(name);
+					if(set == null) {
+						set = new LinkedHashSet<String>();
+						attributes.put(name, set);
+						wantedBy.put(name, new ArrayList<MetricSpec>());
+					}
+					for(String attribute: spec.getAttributes())
+						set.add(attribute);
+					wantedBy.get(name).add(spec);
+				}
+			}
+			
+			for(Map.Entry<ObjectName, Set<String>> entry: attributes.entrySet()) {
+				ObjectName name = entry.getKey();
+				List<MetricSpec> subscribers = wantedBy.get(name);
+				try {
+					AttributeList values = connection.getAttributes(name, 
+							entry.getValue().toArray(new String[entry.getValue().size()]));
+					long timestamp = System.currentTimeMillis();
+					
+					for(MetricSpec spec: subscribers)
+						sink.sample(spec, name, select(values, spec), timestamp);
+				} catch (InstanceNotFoundException e) {
+					// The MBean is gone, look the patterns up again next cycle
+					cycle = 0;
+					for(MetricSpec spec: subscribers)
+						sink.failed(spec, e);
+				} catch (JMException e) {
+					for(MetricSpec spec: subscribers)
+						sink.failed(spec, e);
+				} catch (IOException e) {
+					server.close();
+					for(MetricSpec spec: subscribers)
+						sink.failed(spec, e);
+					return;
+				}
+			}
+		}
+		
+		private Set<ObjectName> getNames(MBeanServerConnection connection, MetricSpec spec, boolean resolve) throws IOException {
+			if(!spec.getName().isPattern())
+				return Collections.singleton(spec.getName());
+			
+			Set<ObjectName> names = resolved.get(spec);
+			if(names == null || resolve) {
+				names = connection.queryNames(spec.getName(), null);
+				resolved.put(spec, names);
+			}
+			return names;
+		}
+		
+		/**
+		 * @return The values the spec asked for
+		 */
+		private AttributeList select(AttributeList values, MetricSpec spec) {
+			AttributeList result = new AttributeList();
+			for(Object value: values) {
+				Attribute attribute = (Attribute)value;
+				if(spec.hasAttribute(attribute.getName()))
+					result.add(attribute);
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * The connection to one server. Connects lazily and reconnects after a failure.
+	 */
+	private class Server {
+		final JMXServiceURL serviceURL;
+		
+		private JMXConnector connector;
+		private MBeanServerConnection connection;
+		
+		Server(JMXServiceURL serviceURL) {
+			this.serviceURL = serviceURL;
+		}
+		
+		synchronized MBeanServerConnection getConnection() throws IOException {
+			if(connection == null) {
+				final JMXConnector newConnector = JMXConnectorFactory.connect(serviceURL, environment);
+				newConnector.addConnectionNotificationListener(new NotificationListener() {
+					public void handleNotification(Notification notification, Object handback) {
+						String type = notification.getType();
+						if(JMXConnectionNotification.CLOSED.equals(type) || JMXConnectionNotification.FAILED.equals(type))
+							disconnected(newConnector);
+					}
+				}, null, null);
+				
+				connector = newConnector;
+				connection = newConnector.getMBeanServerConnection();
+			}
+			return connection;
+		}
+		
+		private synchronized void disconnected(JMXConnector oldConnector) {
+			if(connector == oldConnector) {
+				connector = null;
+				connection = null;
+			}
+		}
+		
+		synchronized void close() {
+			if(connector != null) {
+				try {
+					connector.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+				connector = null;
+				connection = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.jms.ConnectionFactory;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.security.auth.Subject;
+
+import nl.gdries.jmsjmx.jms.SharedNotifications;
+
+/**
+ * A JMXConnector whose MBeanServerConnection receives the notifications the server shares
+ * from its shared notification topic, see SharedNotificationMBeanServerConnection. The
+ * subscriptions use a JMS connection of their own, opened when the connector connects.
+ * Connections obtained for a delegation Subject add their listeners on the server.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class SharedNotificationConnector implements JMXConnector {
+	private final JMXConnector connector;
+	private final ConnectionFactory connectionFactory;
+	private final ObjectName[] patterns;
+	private final SharedNotifications notifications;
+	
+	private MBeanServerConnection delegate;
+	private SharedNotificationMBeanServerConnection connection;
+	
+	/**
+	 * @param topicPrefix The topic of the server, from its service URL
+	 * @param patterns The MBeans whose notifications the server shares
+	 */
+	public SharedNotificationConnector(JMXConnector connector, ConnectionFactory connectionFactory, 
+			String topicPrefix, ObjectName[] patterns) {
+		this.connector = connector;
+		this.connectionFactory = connectionFactory;
+		this.patterns = patterns.clone();
+		this.notifications = new SharedNotifications(topicPrefix);
+	}
+	
+	public void connect() throws IOException {
+		connect(null);
+	}
+
+	public void connect(Map<String, ?> env) throws IOException {
+		if(env == null)
+			connector.connect();
+		else
+			connector.connect(env);
+		
+		try {
+			notifications.start(connectionFactory);
+		} catch (IOException e) {
+			connector.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The connection that listens to shared notifications on the topic
+	 */
+	public synchronized MBeanServerConnection getMBeanServerConnection() throws IOException {
+		MBeanServerConnection current = connector.getMBeanServerConnection();
+		if(current != delegate)
+			connection = new SharedNotificationMBeanServerConnection(current, notifications, patterns);
+		delegate = current;
+		return connection;
+	}
+
+	public MBeanServerConnection getMBeanServerConnection(Subject delegationSubject) throws IOException {
+		if(delegationSubject == null)
+			return getMBeanServerConnection();
+		
+		return connector.getMBeanServerConnection(delegationSubject);
+	}
+
+	public void close() throws IOException {
+		try {
+			notifications.stop();
+		} finally {
+			connector.close();
+		}
+	}
+
+	public void addConnectionNotificationListener(NotificationListener listener, 
+			NotificationFilter filter, Object handback) {
+		connector.addConnectionNotificationListener(listener, filter, handback);
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener) 
+			throws ListenerNotFoundException {
+		connector.removeConnectionNotificationListener(listener);
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener, 
+			NotificationFilter filter, Object handback) throws ListenerNotFoundException {
+		connector.removeConnectionNotificationListener(listener, filter, handback);
+	}
+
+	public String getConnectionId() throws IOException {
+		return connector.getConnectionId();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnector;
+import javax.security.auth.Subject;
+
+/**
+ * A JMXConnector that collapses identical concurrent reads made through its 
+ * MBeanServerConnection, see SingleFlightMBeanServerConnection. Connections obtained
+ * for a delegation Subject are not collapsed, results are never shared between subjects.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class SingleFlightConnector implements JMXConnector {
+	private final JMXConnector connector;
+	private final long freshness;
+	
+	private MBeanServerConnection delegate;
+	private SingleFlightMBeanServerConnection connection;
+	
+	public SingleFlightConnector(JMXConnector connector, long freshness) {
+		this.connector = connector;
+		this.freshness = freshness;
+	}
+	
+	public void connect() throws IOException {
+		connector.connect();
+	}
+
+	public void connect(Map<String, ?> env) throws IOException {
+		connector.connect(env);
+	}
+
+	/**
+	 * @return The collapsing connection, its counters are kept for the lifetime of the connector
+	 */
+	public synchronized MBeanServerConnection getMBeanServerConnection() throws IOException {
+		MBeanServerConnection current = connector.getMBeanServerConnection();
+		if(connection == null) {
+			connection = new SingleFlightMBeanServerConnection(current, freshness);
+		} else if(current != delegate) {
+			// Keep counting where the previous connection left off
+			SingleFlightMBeanServerConnection previous = connection;
+			connection = new SingleFlightMBeanServerConnection(current, freshness);
+			connection.add(previous);
+		}
+		delegate = current;
+		return connection;
+	}
+
+	public MBeanServerConnection getMBeanServerConnection(Subject delegationSubject) throws IOException {
+		if(delegationSubject == null)
+			return getMBeanServerConnection();
+		
+		return connector.getMBeanServerConnection(delegationSubject);
+	}
+
+	public void close() throws IOException {
+		connector.close();
+	}
+
+	public void addConnectionNotificationListener(NotificationListener listener, 
+			NotificationFilter filter, Object handback) {
+		connector.addConnectionNotificationListener(listener, filter, handback);
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener) 
+			throws ListenerNotFoundException {
+		connector.removeConnectionNotificationListener(listener);
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener, 
+			NotificationFilter filter, Object handback) throws ListenerNotFoundException {
+		connector.removeConnectionNotificationListener(listener, filter, handback);
+	}
+
+	public String getConnectionId() throws IOException {
+		return connector.getConnectionId();
+	}
+}
@@ -0,0 +1,523 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotCompliantMBeanException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+
+/**
+ * An MBeanServerConnection that collapses identical read requests made by different 
+ * threads at the same time into one request to the server. Every waiting thread gets
+ * the result, or the exception, of that one request.
+ * <p>
+ * getAttribute, getAttributes, isRegistered and queryNames are collapsed. With a freshness
+ * window, a result is also reused for identical requests made within that many milliseconds
+ * after it arrived. Writes through this connection drop reused results for the MBean written
+ * to, but changes made by others are not seen until the window has passed.
+ * <p>
+ * Sets and AttributeLists are copied for each caller. The value returned by getAttribute
+ * is the same instance for all callers and must not be modified. Queries with a QueryExp
+ * are only collapsed with requests using the same QueryExp instance.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class SingleFlightMBeanServerConnection implements MBeanServerConnection, SingleFlightMBeanServerConnectionMBean {
+	private static final String GET_ATTRIBUTE  = "getAttribute";
+	private static final String GET_ATTRIBUTES = "getAttributes";
+	private static final String IS_REGISTERED  = "isRegistered";
+	private static final String QUERY_NAMES    = "queryNames";
+	
+	// Expired results are removed once every this many requests sent to the server
+	private static final int SWEEP_INTERVAL = 64;
+	
+	private final MBeanServerConnection connection;
+	private final long freshness;
+	
+	private final ConcurrentMap<Key, Flight> flights = new ConcurrentHashMap<Key, Flight>();
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong roundTrips = new AtomicLong();
+	private final AtomicLong collapsed = new AtomicLong();
+	private final AtomicLong freshHits = new AtomicLong();
+	
+	/**
+	 * @param connection The connection to send requests to
+	 * @param freshness How long in milliseconds results may be reused, or 0 to only share 
+	 *        results with requests made while they were in flight
+	 */
+	public SingleFlightMBeanServerConnection(MBeanServerConnection connection, long freshness) {
+		this.connection = connection;
+		this.freshness = freshness;
+	}
+	
+	public MBeanServerConnection getConnection() {
+		return connection;
+	}
+	
+	/*
+	 * Collapsed reads
+	 */
+	
+	public Object getAttribute(final ObjectName name, final String attribute) 
+			throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
+		try {
+			return flight(new Key(GET_ATTRIBUTE, name, attribute), new Request() {
+				public Object execute() throws Exception {
+					return connection.getAttribute(name, attribute);
+				}
+			});
+		} catch (MBeanException e) {
+			throw e;
+		} catch (AttributeNotFoundException e) {
+			throw e;
+		} catch (InstanceNotFoundException e) {
+			throw e;
+		} catch (ReflectionException e) {
+			throw e;
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new UndeclaredThrowableException(e);
+		}
+	}
+
+	public AttributeList getAttributes(final ObjectName name, final String[] attributes) 
+			throws InstanceNotFoundException, ReflectionException, IOException {
+		try {
+			AttributeList result = (AttributeList)flight(new Key(GET_ATTRIBUTES, name, attributes), new Request() {
+				public Object execute() throws Exception {
+					return connection.getAttributes(name, attributes);
+				}
+			});
+			return result == null ? null : new AttributeList(result);
+		} catch (InstanceNotFoundException e) {
+			throw e;
+		} catch (ReflectionException e) {
+			throw e;
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new UndeclaredThrowableException(e);
+		}
+	}
+
+	public boolean isRegistered(final ObjectName name) throws IOException {
+		try {
+			return (Boolean)flight(new Key(IS_REGISTERED, name), new Request() {
+				public Object execute() throws Exception {
+					return connection.isRegistered(name);
+				}
+			});
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new UndeclaredThrowableException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public Set<ObjectName> queryNames(final ObjectName name, final QueryExp query) throws IOException {
+		try {
+			Set<ObjectName> result = (Set<ObjectName>)flight(new Key(QUERY_NAMES, name, query), new Request() {
+				public Object execute() throws Exception {
+					return connection.queryNames(name, query);
+				}
+			});
+			return result == null ? null : new HashSet<ObjectName>(result);
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new UndeclaredThrowableException(e);
+		}
+	}
+	
+	/**
+	 * Execute the request, or wait for an identical one that is already in flight
+	 */
+	private Object flight(Key key, Request request) throws Exception {
+		requests.incrementAndGet();
+		
+		while(true) {
+			Flight flight = new Flight();
+			Flight existing = flights.putIfAbsent(key, flight);
+			
+			if(existing == null) {
+				roundTrips.incrementAndGet();
+				try {
+					flight.result = request.execute();
+				} catch (Throwable t) {
+					flight.failure = t;
+				} finally {
+					flight.completed = System.currentTimeMillis();
+					flight.done.countDown();
+					
+					// Failures are never reused, a retry should go to the server
+					if(freshness <= 0 || flight.failure != null)
+						flights.remove(key, flight);
+					
+					if(roundTrips.get() % SWEEP_INTERVAL == 0)
+						sweep();
+				}
+				return flight.get();
+			}
+			
+			if(existing.done.getCount() == 0) {
+				if(existing.isFresh(System.currentTimeMillis())) {
+					freshHits.incrementAndGet();
+					return existing.get();
+				}
+				
+				// Expired, replace it with a new flight
+				flights.remove(key, existing);
+				continue;
+			}
+			
+			collapsed.incrementAndGet();
+			try {
+				existing.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + key.operation);
+			}
+			return existing.get();
+		}
+	}
+	
+	/**
+	 * Remove expired results
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		for(Iterator<Flight> i = flights.values().iterator(); i.hasNext();) {
+			Flight flight = i.next();
+			if(flight.done.getCount() == 0 && !flight.isFresh(now))
+				i.remove();
+		}
+	}
+	
+	/**
+	 * Forget reused results that a write to <i>name</i> may have changed. Writes call this
+	 * before and after they run, reads that were in flight during the write may have 
+	 * returned the old state.
+	 */
+	private void invalidate(ObjectName name, boolean registration) {
+		if(freshness <= 0)
+			return;
+		
+		for(Iterator<Key> i = flights.keySet().iterator(); i.hasNext();) {
+			Key key = i.next();
+			if((name != null && name.equals(key.arguments[0])) || 
+					(registration && QUERY_NAMES.equals(key.operation)))
+				i.remove();
+		}
+	}
+	
+	private interface Request {
+		Object execute() throws Exception;
+	}
+	
+	private class Flight {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Object result;
+		volatile Throwable failure;
+		volatile long completed;
+		
+		boolean isFresh(long now) {
+			return failure == null && now - completed < freshness;
+		}
+		
+		Object get() throws Exception {
+			if(failure instanceof Exception)
+				throw (Exception)failure;
+			if(failure instanceof Error)
+				throw (Error)failure;
+			if(failure != null)
+				throw new UndeclaredThrowableException(failure);
+			return result;
+		}
+	}
+	
+	private static final class Key {
+		final String operation;
+		final Object[] arguments;
+		final int hash;
+		
+		Key(String operation, Object... arguments) {
+			this.operation = operation;
+			this.arguments = arguments;
+			this.hash = operation.hashCode() * 31 + Arrays.deepHashCode(arguments);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			
+			Key other = (Key)obj;
+			return operation.equals(other.operation) && Arrays.deepEquals(arguments, other.arguments);
+		}
+	}
+	
+	/*
+	 * Counters
+	 */
+	
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	public long getCollapsed() {
+		return collapsed.get();
+	}
+
+	public long getFreshHits() {
+		return freshHits.get();
+	}
+
+	public double getCollapseRate() {
+		long total = requests.get();
+		return total == 0 ? 0 : (double)(collapsed.get() + freshHits.get()) / total;
+	}
+
+	public long getFreshness() {
+		return freshness;
+	}
+
+	/**
+	 * Add the counters of another connection to this one's
+	 */
+	void add(SingleFlightMBeanServerConnection other) {
+		requests.addAndGet(other.requests.get());
+		roundTrips.addAndGet(other.roundTrips.get());
+		collapsed.addAndGet(other.collapsed.get());
+		freshHits.addAndGet(other.freshHits.get());
+	}
+
+	public void resetCounters() {
+		requests.set(0);
+		roundTrips.set(0);
+		collapsed.set(0);
+		freshHits.set(0);
+	}
+	
+	/*
+	 * Everything else goes straight to the server
+	 */
+
+	public ObjectInstance createMBean(String className, ObjectName name) 
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, 
+			MBeanException, NotCompliantMBeanException, IOException {
+		invalidate(name, true);
+		try {
+			return connection.createMBean(className, name);
+		} finally {
+			invalidate(name, true);
+		}
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName) 
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, 
+			MBeanException, NotCompliantMBeanException, InstanceNotFoundException, IOException {
+		invalidate(name, true);
+		try {
+			return connection.createMBean(className, name, loaderName);
+		} finally {
+			invalidate(name, true);
+		}
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature) 
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, 
+			MBeanException, NotCompliantMBeanException, IOException {
+		invalidate(name, true);
+		try {
+			return connection.createMBean(className, name, params, signature);
+		} finally {
+			invalidate(name, true);
+		}
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName, 
+			Object[] params, String[] signature) 
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, 
+			MBeanException, NotCompliantMBeanException, InstanceNotFoundException, IOException {
+		invalidate(name, true);
+		try {
+			return connection.createMBean(className, name, loaderName, params, signature);
+		} finally {
+			invalidate(name, true);
+		}
+	}
+
+	public void unregisterMBean(ObjectName name) 
+			throws InstanceNotFoundException, MBeanRegistrationException, IOException {
+		invalidate(name, true);
+		try {
+			connection.unregisterMBean(name);
+		} finally {
+			invalidate(name, true);
+		}
+	}
+
+	public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException, IOException {
+		return connection.getObjectInstance(name);
+	}
+
+	public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) throws IOException {
+		return connection.queryMBeans(name, query);
+	}
+
+	public Integer getMBeanCount() throws IOException {
+		return connection.getMBeanCount();
+	}
+
+	public void setAttribute(ObjectName name, Attribute attribute) 
+			throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException, 
+			MBeanException, ReflectionException, IOException {
+		invalidate(name, false);
+		try {
+			connection.setAttribute(name, attribute);
+		} finally {
+			invalidate(name, false);
+		}
+	}
+
+	public AttributeList setAttributes(ObjectName name, AttributeList attributes) 
+			throws InstanceNotFoundException, ReflectionException, IOException {
+		invalidate(name, false);
+		try {
+			return connection.setAttributes(name, attributes);
+		} finally {
+			invalidate(name, false);
+		}
+	}
+
+	public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature) 
+			throws InstanceNotFoundException, MBeanException, ReflectionException, IOException {
+		invalidate(name, false);
+		try {
+			return connection.invoke(name, operationName, params, signature);
+		} finally {
+			invalidate(name, false);
+		}
+	}
+
+	public String getDefaultDomain() throws IOException {
+		return connection.getDefaultDomain();
+	}
+
+	public String[] getDomains() throws IOException {
+		return connection.getDomains();
+	}
+
+	public void addNotificationListener(ObjectName name, NotificationListener listener, 
+			NotificationFilter filter, Object handback) throws InstanceNotFoundException, IOException {
+		connection.addNotificationListener(name, listener, filter, handback);
+	}
+
+	public void addNotificationListener(ObjectName name, ObjectName listener, 
+			NotificationFilter filter, Object handback) throws InstanceNotFoundException, IOException {
+		connection.addNotificationListener(name, listener, filter, handback);
+	}
+
+	public void removeNotificationListener(ObjectName name, ObjectName listener) 
+			throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		connection.removeNotificationListener(name, listener);
+	}
+
+	public void removeNotificationListener(ObjectName name, ObjectName listener, 
+			NotificationFilter filter, Object handback) 
+			throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		connection.removeNotificationListener(name, listener, filter, handback);
+	}
+
+	public void removeNotificationListener(ObjectName name, NotificationListener listener) 
+			throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		connection.removeNotificationListener(name, listener);
+	}
+
+	public void removeNotificationListener(ObjectName name, NotificationListener listener, 
+			NotificationFilter filter, Object handback) 
+			throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		connection.removeNotificationListener(name, listener, filter, handback);
+	}
+
+	public MBeanInfo getMBeanInfo(ObjectName name) 
+			throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+		return connection.getMBeanInfo(name);
+	}
+
+	public boolean isInstanceOf(ObjectName name, String className) throws InstanceNotFoundException, IOException {
+		return connection.isInstanceOf(name, className);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.client;
+
+/**
+ * Counters of a SingleFlightMBeanServerConnection
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface SingleFlightMBeanServerConnectionMBean {
+	/**
+	 * @return The number of read requests made through the connection
+	 */
+	long getRequests();
+	
+	/**
+	 * @return The number of read requests that were sent to the server
+	 */
+	long getRoundTrips();
+	
+	/**
+	 * @return The number of read requests that waited for an identical request in flight
+	 */
+	long getCollapsed();
+	
+	/**
+	 * @return The number of read requests answered from a result within the freshness window
+	 */
+	long getFreshHits();
+	
+	/**
+	 * @return The fraction of read requests that were not sent to the server
+	 */
+	double getCollapseRate();
+	
+	/**
+	 * @return How long in milliseconds a result is reused after it arrived, 0 if results 
+	 * are only shared with requests that were already waiting for it
+	 */
+	long getFreshness();
+	
+	void resetCounters();
+}
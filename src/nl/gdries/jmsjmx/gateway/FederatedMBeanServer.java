@@ -0,0 +1,879 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.gateway;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMRuntimeException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.OperationsException;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.RuntimeOperationsException;
+import javax.management.loading.ClassLoaderRepository;
+
+/**
+ * An MBeanServer that combines a local MBeanServer with any number of remote ones. The
+ * MBeans of a remote server appear with their domain prefixed by the server's id and
+ * "//", so java.lang:type=Runtime on server <i>app1</i> is app1//java.lang:type=Runtime.
+ * Names without a prefix refer to the local MBeanServer.
+ * <p>
+ * Queries that can match MBeans on more than one server are sent to all of them in 
+ * parallel. Servers that fail or don't answer in time are left out of the result.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class FederatedMBeanServer implements MBeanServer {
+	static final String SEPARATOR = "//";
+	
+	private final MBeanServer local;
+	private final ExecutorService executor;
+	private final long queryTimeout;
+	
+	private final Map<String, RemoteServer> servers = new ConcurrentHashMap<String, RemoteServer>();
+	
+	// Listeners registered on remote MBeans and the translating listeners that wrap them
+	private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+	
+	FederatedMBeanServer(MBeanServer local, ExecutorService executor, long queryTimeout) {
+		this.local = local;
+		this.executor = executor;
+		this.queryTimeout = queryTimeout;
+	}
+	
+	void addServer(RemoteServer server) {
+		if(server.getId().indexOf(SEPARATOR) >= 0)
+			throw new IllegalArgumentException("Server id " + server.getId() + " may not contain " + SEPARATOR);
+		
+		servers.put(server.getId(), server);
+		
+		// Tools listening to the delegate want to hear about this server's MBeans too
+		for(Registration registration: registrations) {
+			if(registration.server == null)
+				addDelegateListeners(Collections.singleton(server), registration);
+		}
+	}
+	
+	RemoteServer removeServer(String id) {
+		RemoteServer server = servers.remove(id);
+		if(server != null) {
+			for(Registration registration: registrations) {
+				if(registration.server == server)
+					registrations.remove(registration);
+			}
+			server.close();
+		}
+		return server;
+	}
+	
+	Collection<RemoteServer> getServers() {
+		return servers.values();
+	}
+	
+	/*
+	 * Name translation
+	 */
+	
+	/**
+	 * Find the server an MBean name refers to, or null for the local MBeanServer
+	 */
+	private RemoteServer serverFor(ObjectName name) throws InstanceNotFoundException {
+		if(name == null)
+			return null;
+		
+		String domain = name.getDomain();
+		int separator = domain.indexOf(SEPARATOR);
+		if(separator < 0)
+			return null;
+		
+		RemoteServer server = servers.get(domain.substring(0, separator));
+		if(server == null)
+			throw new InstanceNotFoundException(name.toString());
+		
+		return server;
+	}
+	
+	/**
+	 * Strip the server prefix from a name
+	 */
+	static ObjectName toRemote(ObjectName name) {
+		if(name == null)
+			return null;
+		
+		String domain = name.getDomain();
+		int separator = domain.indexOf(SEPARATOR);
+		if(separator < 0)
+			return name;
+		
+		return newName(domain.substring(separator + SEPARATOR.length()), name);
+	}
+	
+	/**
+	 * Add the server prefix to a name
+	 */
+	static ObjectName toFederated(RemoteServer server, ObjectName name) {
+		if(name == null)
+			return null;
+		
+		return newName(server.getId() + SEPARATOR + name.getDomain(), name);
+	}
+	
+	private static ObjectName newName(String domain, ObjectName name) {
+		String canonical = name.getCanonicalName();
+		try {
+			return new ObjectName(domain + canonical.substring(canonical.indexOf(':')));
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException(e.toString());
+		}
+	}
+	
+	private static ObjectInstance toFederated(RemoteServer server, ObjectInstance instance) {
+		return new ObjectInstance(toFederated(server, instance.getObjectName()), instance.getClassName());
+	}
+	
+	private static JMRuntimeException remoteFailure(RemoteServer server, IOException e) {
+		JMRuntimeException ex = new JMRuntimeException("Communication with server " + server.getId() + 
+				" failed: " + e.toString());
+		ex.initCause(e);
+		return ex;
+	}
+	
+	private static RuntimeOperationsException notSupported(String what) {
+		return new RuntimeOperationsException(new UnsupportedOperationException(what + " is not supported for remote MBeans"));
+	}
+	
+	/*
+	 * Parallel queries
+	 */
+	
+	private interface RemoteQuery<T> {
+		T query(RemoteServer server, MBeanServerConnection connection) throws Exception;
+	}
+	
+	/**
+	 * Run a query on the given servers in parallel and return the results of the
+	 * servers that answered in time.
+	 */
+	private <T> List<T> fanOut(Collection<RemoteServer> targets, final RemoteQuery<T> query) {
+		List<Future<T>> futures = new ArrayList<Future<T>>(targets.size());
+		for(final RemoteServer server: targets) {
+			futures.add(executor.submit(new Callable<T>() {
+				public T call() throws Exception {
+					return query.query(server, server.getConnection());
+				}
+			}));
+		}
+		
+		return collect(futures);
+	}
+	
+	/**
+	 * Wait up to the query timeout for tasks on the executor and return the results of
+	 * the ones that completed successfully
+	 */
+	private <T> List<T> collect(List<Future<T>> futures) {
+		List<T> results = new ArrayList<T>(futures.size());
+		long deadline = System.currentTimeMillis() + queryTimeout;
+		for(Future<T> future: futures) {
+			try {
+				results.add(future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+			} catch (ExecutionException e) {
+				// This server is not available, leave it out
+			} catch (TimeoutException e) {
+				future.cancel(true);
+			} catch (InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Determine which servers a query pattern can match MBeans on
+	 */
+	private Collection<RemoteServer> serversFor(ObjectName pattern) {
+		if(pattern == null)
+			return servers.values();
+		
+		String domain = pattern.getDomain();
+		int separator = domain.indexOf(SEPARATOR);
+		if(separator >= 0) {
+			String id = domain.substring(0, separator);
+			List<RemoteServer> result = new ArrayList<RemoteServer>();
+			for(RemoteServer server: servers.values()) {
+				if(matches(id, server.getId()))
+					result.add(server);
+			}
+			return result;
+		}
+		
+		// A domain without wildcards and without prefix is always local
+		if(domain.indexOf('*') < 0 && domain.indexOf('?') < 0)
+			return new ArrayList<RemoteServer>();
+		
+		return servers.values();
+	}
+	
+	/**
+	 * The pattern to send to a remote server for a federated pattern
+	 */
+	private static ObjectName remotePattern(ObjectName pattern) {
+		if(pattern == null)
+			return null;
+		
+		String domain = pattern.getDomain();
+		int separator = domain.indexOf(SEPARATOR);
+		if(separator >= 0)
+			return toRemote(pattern);
+		
+		// The pattern can only match if the prefix matches its domain wildcard, so ask
+		// for everything matching the key properties and filter afterwards.
+		try {
+			return new ObjectName("*" + pattern.getCanonicalName().substring(pattern.getCanonicalName().indexOf(':')));
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException(e.toString());
+		}
+	}
+	
+	/**
+	 * Simple glob match supporting * and ?, like ObjectName domain patterns
+	 */
+	static boolean matches(String pattern, String value) {
+		return matches(pattern, 0, value, 0);
+	}
+	
+	private static boolean matches(String pattern, int p, String value, int v) {
+		while(p < pattern.length()) {
+			char c = pattern.charAt(p);
+			if(c == '*') {
+				for(int i = v; i <= value.length(); i++) {
+					if(matches(pattern, p + 1, value, i))
+						return true;
+				}
+				return false;
+			}
+			
+			if(v >= value.length() || (c != '?' && c != value.charAt(v)))
+				return false;
+			
+			p++;
+			v++;
+		}
+		return v == value.length();
+	}
+	
+	/*
+	 * MBeanServer implementation
+	 */
+	
+	public ObjectInstance createMBean(String className, ObjectName name) throws ReflectionException,
+			InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException {
+		return createMBean(className, name, (Object[])null, (String[])null);
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName)
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+			NotCompliantMBeanException, InstanceNotFoundException {
+		return createMBean(className, name, loaderName, null, null);
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature)
+			throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+			NotCompliantMBeanException {
+		RemoteServer server;
+		try {
+			server = serverFor(name);
+		} catch (InstanceNotFoundException e) {
+			throw new RuntimeOperationsException(new IllegalArgumentException("Unknown server for " + name));
+		}
+		
+		if(server == null)
+			return local.createMBean(className, name, params, signature);
+		
+		try {
+			return toFederated(server, server.getConnection().createMBean(className, toRemote(name), params, signature));
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName, Object[] params,
+			String[] signature) throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+			MBeanException, NotCompliantMBeanException, InstanceNotFoundException {
+		RemoteServer server = serverFor(name);
+		if(server != serverFor(loaderName))
+			throw new RuntimeOperationsException(new IllegalArgumentException("The class loader must be on the same server as the MBean"));
+		
+		if(server == null)
+			return local.createMBean(className, name, loaderName, params, signature);
+		
+		try {
+			return toFederated(server, server.getConnection().createMBean(className, toRemote(name), 
+					toRemote(loaderName), params, signature));
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public ObjectInstance registerMBean(Object object, ObjectName name) throws InstanceAlreadyExistsException,
+			MBeanRegistrationException, NotCompliantMBeanException {
+		try {
+			if(serverFor(name) != null)
+				throw notSupported("registerMBean");
+		} catch (InstanceNotFoundException e) {
+			throw notSupported("registerMBean");
+		}
+		
+		return local.registerMBean(object, name);
+	}
+
+	public void unregisterMBean(ObjectName name) throws InstanceNotFoundException, MBeanRegistrationException {
+		RemoteServer server = serverFor(name);
+		if(server == null) {
+			local.unregisterMBean(name);
+			return;
+		}
+		
+		try {
+			server.getConnection().unregisterMBean(toRemote(name));
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException {
+		RemoteServer server = serverFor(name);
+		if(server == null)
+			return local.getObjectInstance(name);
+		
+		try {
+			return toFederated(server, server.getConnection().getObjectInstance(toRemote(name)));
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public Set<ObjectInstance> queryMBeans(final ObjectName name, final QueryExp query) {
+		final Set<ObjectInstance> result = new HashSet<ObjectInstance>(local.queryMBeans(name, query));
+		
+		final ObjectName remotePattern = remotePattern(name);
+		List<Set<ObjectInstance>> remote = fanOut(serversFor(name), new RemoteQuery<Set<ObjectInstance>>() {
+			public Set<ObjectInstance> query(RemoteServer server, MBeanServerConnection connection) throws Exception {
+				Set<ObjectInstance> instances = new HashSet<ObjectInstance>();
+				for(ObjectInstance instance: connection.queryMBeans(remotePattern, query)) {
+					ObjectInstance federated = toFederated(server, instance);
+					if(name == null || name.apply(federated.getObjectName()))
+						instances.add(federated);
+				}
+				return instances;
+			}
+		});
+		
+		for(Set<ObjectInstance> instances: remote)
+			result.addAll(instances);
+		
+		return result;
+	}
+
+	public Set<ObjectName> queryNames(final ObjectName name, final QueryExp query) {
+		final Set<ObjectName> result = new HashSet<ObjectName>(local.queryNames(name, query));
+		
+		final ObjectName remotePattern = remotePattern(name);
+		List<Set<ObjectName>> remote = fanOut(serversFor(name), new RemoteQuery<Set<ObjectName>>() {
+			public Set<ObjectName> query(RemoteServer server, MBeanServerConnection connection) throws Exception {
+				Set<ObjectName> names = new HashSet<ObjectName>();
+				for(ObjectName remoteName: connection.queryNames(remotePattern, query)) {
+					ObjectName federated = toFederated(server, remoteName);
+					if(name == null || name.apply(federated))
+						names.add(federated);
+				}
+				return names;
+			}
+		});
+		
+		for(Set<ObjectName> names: remote)
+			result.addAll(names);
+		
+		return result;
+	}
+
+	public boolean isRegistered(ObjectName name) {
+		RemoteServer server;
+		try {
+			server = serverFor(name);
+		} catch (InstanceNotFoundException e) {
+			return false;
+		}
+		
+		if(server == null)
+			return local.isRegistered(name);
+		
+		try {
+			return server.getConnection().isRegistered(toRemote(name));
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public Integer getMBeanCount() {
+		int count = local.getMBeanCount().intValue();
+		
+		List<Integer> remote = fanOut(servers.values(), new RemoteQuery<Integer>() {
+			public Integer query(RemoteServer server, MBeanServerConnection connection) throws Exception {
+				return connection.getMBeanCount();
+			}
+		});
+		
+		for(Integer c: remote)
+			count += c.intValue();
+		
+		return Integer.valueOf(count);
+	}
+
+	public Object getAttribute(ObjectName name, String attribute) throws MBeanException, AttributeNotFoundException,
+			InstanceNotFoundException, ReflectionException {
+		RemoteServer server = serverFor(name);
+		if(server == null)
+			return local.getAttribute(name, attribute);
+		
+		try {
+			return server.getConnection().getAttribute(toRemote(name), attribute);
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public AttributeList getAttributes(ObjectName name, String[] attributes) throws InstanceNotFoundException,
+			ReflectionException {
+		RemoteServer server = serverFor(name);
+		if(server == null)
+			return local.getAttributes(name, attributes);
+		
+		try {
+			return server.getConnection().getAttributes(toRemote(name), attributes);
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public void setAttribute(ObjectName name, Attribute attribute) throws InstanceNotFoundException,
+			AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+		RemoteServer server = serverFor(name);
+		if(server == null) {
+			local.setAttribute(name, attribute);
+			return;
+		}
+		
+		try {
+			server.getConnection().setAttribute(toRemote(name), attribute);
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public AttributeList setAttributes(ObjectName name, AttributeList attributes) throws InstanceNotFoundException,
+			ReflectionException {
+		RemoteServer server = serverFor(name);
+		if(server == null)
+			return local.setAttributes(name, attributes);
+		
+		try {
+			return server.getConnection().setAttributes(toRemote(name), attributes);
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+			throws InstanceNotFoundException, MBeanException, ReflectionException {
+		RemoteServer server = serverFor(name);
+		if(server == null)
+			return local.invoke(name, operationName, params, signature);
+		
+		try {
+			return server.getConnection().invoke(toRemote(name), operationName, params, signature);
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public String getDefaultDomain() {
+		return local.getDefaultDomain();
+	}
+
+	public String[] getDomains() {
+		List<String> domains = new ArrayList<String>();
+		for(String domain: local.getDomains())
+			domains.add(domain);
+		
+		List<List<String>> remote = fanOut(servers.values(), new RemoteQuery<List<String>>() {
+			public List<String> query(RemoteServer server, MBeanServerConnection connection) throws Exception {
+				List<String> result = new ArrayList<String>();
+				for(String domain: connection.getDomains())
+					result.add(server.getId() + SEPARATOR + domain);
+				return result;
+			}
+		});
+		
+		for(List<String> d: remote)
+			domains.addAll(d);
+		
+		return domains.toArray(new String[domains.size()]);
+	}
+
+	public MBeanInfo getMBeanInfo(ObjectName name) throws InstanceNotFoundException, IntrospectionException,
+			ReflectionException {
+		RemoteServer server = serverFor(name);
+		if(server == null)
+			return local.getMBeanInfo(name);
+		
+		try {
+			return server.getMBeanInfo(toRemote(name));
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public boolean isInstanceOf(ObjectName name, String className) throws InstanceNotFoundException {
+		RemoteServer server = serverFor(name);
+		if(server == null)
+			return local.isInstanceOf(name, className);
+		
+		try {
+			return server.getConnection().isInstanceOf(toRemote(name), className);
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+	
+	/*
+	 * Notifications
+	 */
+
+	public void addNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter,
+			Object handback) throws InstanceNotFoundException {
+		RemoteServer server = serverFor(name);
+		if(server != null) {
+			Registration registration = new Registration(server, name, listener, filter, handback);
+			try {
+				server.addNotificationListener(toRemote(name), registration, filter, handback, false);
+			} catch (IOException e) {
+				throw remoteFailure(server, e);
+			}
+			registrations.add(registration);
+			return;
+		}
+		
+		local.addNotificationListener(name, listener, filter, handback);
+		
+		// Forward registrations and unregistrations on all servers to listeners on the delegate
+		if(MBeanServerDelegate.DELEGATE_NAME.equals(name)) {
+			Registration registration = new Registration(null, name, listener, filter, handback);
+			registrations.add(registration);
+			addDelegateListeners(servers.values(), registration);
+		}
+	}
+	
+	/**
+	 * Add a listener for a local delegate listener to the delegates of the given servers 
+	 * in parallel. Servers that are not available get the listener when they connect.
+	 */
+	private void addDelegateListeners(Collection<RemoteServer> targets, Registration delegateRegistration) {
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(targets.size());
+		for(final RemoteServer server: targets) {
+			final Registration registration = new Registration(server, delegateRegistration.name, 
+					delegateRegistration.listener, delegateRegistration.filter, delegateRegistration.handback);
+			registrations.add(registration);
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					try {
+						server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registration, null, 
+								registration.handback, true);
+					} catch (IOException e) {
+						// Not available now, the listener is added when the server connects
+					}
+					
+					// Removed while it was being added
+					if(registration.removed)
+						server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registration, null, 
+								registration.handback);
+					return null;
+				}
+			}));
+		}
+		
+		collect(futures);
+	}
+
+	public void addNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter, Object handback)
+			throws InstanceNotFoundException {
+		RemoteServer server = serverFor(name);
+		if(server != serverFor(listener))
+			throw notSupported("A listener MBean on another server");
+		
+		if(server == null) {
+			local.addNotificationListener(name, listener, filter, handback);
+			return;
+		}
+		
+		try {
+			server.getConnection().addNotificationListener(toRemote(name), toRemote(listener), filter, handback);
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public void removeNotificationListener(ObjectName name, ObjectName listener) throws InstanceNotFoundException,
+			ListenerNotFoundException {
+		RemoteServer server = serverFor(name);
+		if(server == null) {
+			local.removeNotificationListener(name, listener);
+			return;
+		}
+		
+		try {
+			server.getConnection().removeNotificationListener(toRemote(name), toRemote(listener));
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public void removeNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter,
+			Object handback) throws InstanceNotFoundException, ListenerNotFoundException {
+		RemoteServer server = serverFor(name);
+		if(server == null) {
+			local.removeNotificationListener(name, listener, filter, handback);
+			return;
+		}
+		
+		try {
+			server.getConnection().removeNotificationListener(toRemote(name), toRemote(listener), filter, handback);
+		} catch (IOException e) {
+			throw remoteFailure(server, e);
+		}
+	}
+
+	public void removeNotificationListener(ObjectName name, NotificationListener listener)
+			throws InstanceNotFoundException, ListenerNotFoundException {
+		removeListeners(name, listener, false, null, null);
+	}
+
+	public void removeNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter,
+			Object handback) throws InstanceNotFoundException, ListenerNotFoundException {
+		removeListeners(name, listener, true, filter, handback);
+	}
+	
+	private void removeListeners(ObjectName name, NotificationListener listener, boolean exact, 
+			NotificationFilter filter, Object handback) throws InstanceNotFoundException, ListenerNotFoundException {
+		RemoteServer server = serverFor(name);
+		if(server == null) {
+			if(exact)
+				local.removeNotificationListener(name, listener, filter, handback);
+			else
+				local.removeNotificationListener(name, listener);
+		}
+		
+		boolean found = server == null;
+		for(Registration registration: registrations) {
+			if(!registration.name.equals(name) || registration.listener != listener)
+				continue;
+			if(exact && (registration.filter != filter || registration.handback != handback))
+				continue;
+			
+			registrations.remove(registration);
+			registration.removed = true;
+			found = true;
+			
+			if(registration.server == null)
+				continue;
+			
+			try {
+				ObjectName remoteName = registration.server == server ? toRemote(name) : MBeanServerDelegate.DELEGATE_NAME;
+				registration.server.removeNotificationListener(remoteName, registration, 
+						registration.server == server ? registration.filter : null, registration.handback);
+			} catch (IOException e) {
+				// The registration is gone with the connection
+			} catch (ListenerNotFoundException e) {
+				// Already gone
+			} catch (InstanceNotFoundException e) {
+				// Already gone
+			}
+		}
+		
+		if(!found)
+			throw new ListenerNotFoundException("Listener not registered on " + name);
+	}
+	
+	/**
+	 * A listener registration on a remote server. Translates the names in received
+	 * notifications to federated names before passing them on.
+	 */
+	private static class Registration implements NotificationListener {
+		final RemoteServer server;
+		final ObjectName name;
+		final NotificationListener listener;
+		final NotificationFilter filter;
+		final Object handback;
+		volatile boolean removed;
+		
+		Registration(RemoteServer server, ObjectName name, NotificationListener listener, NotificationFilter filter, 
+				Object handback) {
+			this.server = server;
+			this.name = name;
+			this.listener = listener;
+			this.filter = filter;
+			this.handback = handback;
+		}
+		
+		public void handleNotification(Notification notification, Object handback) {
+			// Registrations on the local delegate also receive the delegate notifications of every server
+			boolean forwarded = name.equals(MBeanServerDelegate.DELEGATE_NAME);
+			
+			if(notification instanceof MBeanServerNotification) {
+				MBeanServerNotification n = (MBeanServerNotification)notification;
+				Object source = forwarded ? MBeanServerDelegate.DELEGATE_NAME : 
+					toFederated(server, MBeanServerDelegate.DELEGATE_NAME);
+				MBeanServerNotification translated = new MBeanServerNotification(n.getType(), source, 
+						n.getSequenceNumber(), toFederated(server, n.getMBeanName()));
+				translated.setTimeStamp(n.getTimeStamp());
+				
+				// The filter was not sent to the server, it only knows federated names
+				if(forwarded && filter != null && !filter.isNotificationEnabled(translated))
+					return;
+				
+				notification = translated;
+			} else if(notification.getSource() instanceof ObjectName) {
+				notification.setSource(toFederated(server, (ObjectName)notification.getSource()));
+			}
+			
+			listener.handleNotification(notification, handback);
+		}
+	}
+	
+	/*
+	 * Class loading and instantiation are only supported locally
+	 */
+
+	public Object instantiate(String className) throws ReflectionException, MBeanException {
+		return local.instantiate(className);
+	}
+
+	public Object instantiate(String className, ObjectName loaderName) throws ReflectionException, MBeanException,
+			InstanceNotFoundException {
+		if(serverFor(loaderName) != null)
+			throw notSupported("instantiate");
+		return local.instantiate(className, loaderName);
+	}
+
+	public Object instantiate(String className, Object[] params, String[] signature) throws ReflectionException,
+			MBeanException {
+		return local.instantiate(className, params, signature);
+	}
+
+	public Object instantiate(String className, ObjectName loaderName, Object[] params, String[] signature)
+			throws ReflectionException, MBeanException, InstanceNotFoundException {
+		if(serverFor(loaderName) != null)
+			throw notSupported("instantiate");
+		return local.instantiate(className, loaderName, params, signature);
+	}
+
+	@SuppressWarnings("deprecation")
+	public ObjectInputStream deserialize(ObjectName name, byte[] data) throws InstanceNotFoundException,
+			OperationsException {
+		if(serverFor(name) != null)
+			throw notSupported("deserialize");
+		return local.deserialize(name, data);
+	}
+
+	@SuppressWarnings("deprecation")
+	public ObjectInputStream deserialize(String className, byte[] data) throws OperationsException, ReflectionException {
+		return local.deserialize(className, data);
+	}
+
+	@SuppressWarnings("deprecation")
+	public ObjectInputStream deserialize(String className, ObjectName loaderName, byte[] data)
+			throws InstanceNotFoundException, OperationsException, ReflectionException {
+		if(serverFor(loaderName) != null)
+			throw notSupported("deserialize");
+		return local.deserialize(className, loaderName, data);
+	}
+
+	public ClassLoader getClassLoaderFor(ObjectName mbeanName) throws InstanceNotFoundException {
+		// Remote MBeans have no class loader in this JVM, use our own
+		if(serverFor(mbeanName) != null)
+			return getClass().getClassLoader();
+		return local.getClassLoaderFor(mbeanName);
+	}
+
+	public ClassLoader getClassLoader(ObjectName loaderName) throws InstanceNotFoundException {
+		if(serverFor(loaderName) != null)
+			return getClass().getClassLoader();
+		return local.getClassLoader(loaderName);
+	}
+
+	public ClassLoaderRepository getClassLoaderRepository() {
+		return local.getClassLoaderRepository();
+	}
+}
@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.gateway;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import nl.gdries.jmsjmx.jms.AbstractClientProvider;
+
+/**
+ * Exposes many remote MBeanServers as one. A single JMX client (like JConsole) connected
+ * to the gateway sees the MBeans of every server in the federation, with the server id
+ * prepended to their domain: <i>id</i>//<i>domain</i>:<i>keys</i>. Each remote server 
+ * only sees one connection, from the gateway.
+ * <p>
+ * The connectors to the remote servers share their JMS connections per broker, MBeanInfo
+ * is cached and queries over all servers are performed in parallel.
+ * <p>
+ * Usage: FederationGateway <i>gatewayURL</i> <i>id</i>=<i>serviceURL</i> ...
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class FederationGateway implements FederationGatewayMBean {
+	public static final int DEFAULT_THREADS = 16;
+	public static final long DEFAULT_QUERY_TIMEOUT = 10000;
+	public static final long DEFAULT_METADATA_TIMEOUT = 300000;
+	
+	private final MBeanServer localServer;
+	private final FederatedMBeanServer mbeanServer;
+	private final ExecutorService executor;
+	private final long metadataTimeout;
+	private final Map<String, Object> defaultEnvironment = new HashMap<String, Object>();
+	
+	private JMXConnectorServer connectorServer;
+	private ObjectName objectName;
+	
+	/**
+	 * Create a gateway with the platform MBeanServer as its local MBeanServer
+	 */
+	public FederationGateway() {
+		this(ManagementFactory.getPlatformMBeanServer(), DEFAULT_THREADS, DEFAULT_QUERY_TIMEOUT, DEFAULT_METADATA_TIMEOUT);
+	}
+	
+	/**
+	 * @param localServer The MBeanServer for MBeans without a server prefix
+	 * @param threads The number of threads used to query servers in parallel
+	 * @param queryTimeout How long to wait for servers to answer a query in milliseconds
+	 * @param metadataTimeout How long MBeanInfo is cached in milliseconds
+	 */
+	public FederationGateway(MBeanServer localServer, int threads, long queryTimeout, long metadataTimeout) {
+		this.localServer = localServer;
+		this.metadataTimeout = metadataTimeout;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count;
+			
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FederationGateway-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.mbeanServer = new FederatedMBeanServer(localServer, executor, queryTimeout);
+		
+		defaultEnvironment.put(JMXConnectorServerFactory.PROTOCOL_PROVIDER_PACKAGES, "nl.gdries.jmsjmx");
+		defaultEnvironment.put(AbstractClientProvider.SHARE_CONNECTION, Boolean.TRUE);
+	}
+	
+	/**
+	 * @return The MBeanServer that combines the local and all remote MBeanServers
+	 */
+	public MBeanServer getMBeanServer() {
+		return mbeanServer;
+	}
+	
+	/**
+	 * @return The environment that is used for servers added without one. Changes to
+	 *   the map apply to servers that are added afterwards.
+	 */
+	public Map<String, Object> getDefaultEnvironment() {
+		return defaultEnvironment;
+	}
+	
+	/**
+	 * Add a server to the federation. The connection is made when the server is first used.
+	 * 
+	 * @param id The prefix for the server's MBean domains. May not contain "//".
+	 * @param serviceURL The URL of the server's connector
+	 * @param environment The environment for the connector. Connections to the same broker
+	 *   are shared unless the environment says otherwise.
+	 */
+	public void addServer(String id, JMXServiceURL serviceURL, Map<String, ?> environment) {
+		Map<String, Object> env = new HashMap<String, Object>(defaultEnvironment);
+		env.putAll(environment);
+		
+		mbeanServer.addServer(new RemoteServer(id, serviceURL, env, metadataTimeout, executor));
+	}
+	
+	public void addServer(String id, String serviceURL) throws IOException {
+		addServer(id, new JMXServiceURL(serviceURL), defaultEnvironment);
+	}
+	
+	public void removeServer(String id) {
+		mbeanServer.removeServer(id);
+	}
+	
+	public String[] getServerIds() {
+		List<String> ids = new ArrayList<String>();
+		for(RemoteServer server: mbeanServer.getServers())
+			ids.add(server.getId());
+		return ids.toArray(new String[ids.size()]);
+	}
+	
+	public String[] getConnectedServerIds() {
+		List<String> ids = new ArrayList<String>();
+		for(RemoteServer server: mbeanServer.getServers()) {
+			if(server.isConnected())
+				ids.add(server.getId());
+		}
+		return ids.toArray(new String[ids.size()]);
+	}
+	
+	/**
+	 * Register the gateway's MBean and start a connector server for the federated 
+	 * MBeanServer on the given address.
+	 */
+	public JMXConnectorServer start(JMXServiceURL serviceURL, Map<String, ?> environment) throws IOException, JMException {
+		objectName = new ObjectName("nl.gdries.jmsjmx", "type", "FederationGateway");
+		localServer.registerMBean(this, objectName);
+		
+		connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(serviceURL, environment, mbeanServer);
+		connectorServer.start();
+		return connectorServer;
+	}
+	
+	/**
+	 * Stop the connector server and close the connections to all remote servers
+	 */
+	public void stop() throws IOException, JMException {
+		if(connectorServer != null) {
+			connectorServer.stop();
+			connectorServer = null;
+		}
+		
+		if(objectName != null) {
+			localServer.unregisterMBean(objectName);
+			objectName = null;
+		}
+		
+		for(String id: getServerIds())
+			mbeanServer.removeServer(id);
+		
+		executor.shutdown();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		FederationGateway gateway = new FederationGateway();
+		
+		for(int i = 1; i < args.length; i++) {
+			int separator = args[i].indexOf('=');
+			if(separator < 0)
+				throw new IllegalArgumentException("Servers must be given as id=serviceURL, not " + args[i]);
+			
+			gateway.addServer(args[i].substring(0, separator), args[i].substring(separator + 1));
+		}
+		
+		gateway.start(new JMXServiceURL(args[0]), gateway.getDefaultEnvironment());
+		
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
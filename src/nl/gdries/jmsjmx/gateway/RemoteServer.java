@@ -0,0 +1,325 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.gateway;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * One remote MBeanServer in a federation. Connects lazily, reconnects after the 
+ * connection failed and caches MBeanInfo for the remote MBeans.
+ * <p>
+ * Notification listeners added through the RemoteServer are added again on every new
+ * connection. While it has listeners, a server that lost its connection reconnects
+ * every RECONNECT_INTERVAL milliseconds.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class RemoteServer {
+	static final long RECONNECT_INTERVAL = 5000;
+	
+	// Only schedules reconnects, they are made on the executor
+	private static final Timer reconnectTimer = new Timer("RemoteServer-reconnect", true);
+	
+	private final String id;
+	private final JMXServiceURL serviceURL;
+	private final Map<String, ?> environment;
+	private final long metadataTimeout;
+	private final Executor executor;
+	
+	private final Map<ObjectName, CachedInfo> infoCache = new ConcurrentHashMap<ObjectName, CachedInfo>();
+	private final List<RemoteListener> listeners = new CopyOnWriteArrayList<RemoteListener>();
+	
+	// Held while connecting and while changing listeners, so connecting doesn't block 
+	// the users of the monitor
+	private final Object connectLock = new Object();
+	
+	private JMXConnector connector;
+	private MBeanServerConnection connection;
+	private TimerTask reconnectTask;
+	private boolean closed;
+	
+	RemoteServer(String id, JMXServiceURL serviceURL, Map<String, ?> environment, long metadataTimeout, 
+			Executor executor) {
+		this.id = id;
+		this.serviceURL = serviceURL;
+		this.environment = environment;
+		this.metadataTimeout = metadataTimeout;
+		this.executor = executor;
+	}
+	
+	String getId() {
+		return id;
+	}
+	
+	JMXServiceURL getServiceURL() {
+		return serviceURL;
+	}
+	
+	synchronized boolean isConnected() {
+		return connection != null;
+	}
+	
+	/**
+	 * Get the connection to the remote server, connecting first if required
+	 */
+	MBeanServerConnection getConnection() throws IOException {
+		synchronized(this) {
+			if(connection != null)
+				return connection;
+		}
+		
+		synchronized(connectLock) {
+			synchronized(this) {
+				if(connection != null)
+					return connection;
+				if(closed)
+					throw new IOException("Server " + id + " was removed from the federation");
+			}
+			
+			final JMXConnector newConnector = JMXConnectorFactory.connect(serviceURL, environment);
+			newConnector.addConnectionNotificationListener(new NotificationListener() {
+				public void handleNotification(Notification notification, Object handback) {
+					String type = notification.getType();
+					if(JMXConnectionNotification.CLOSED.equals(type) || JMXConnectionNotification.FAILED.equals(type))
+						disconnected(newConnector);
+				}
+			}, null, null);
+			
+			MBeanServerConnection newConnection = newConnector.getMBeanServerConnection();
+			try {
+				newConnection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, new NotificationListener() {
+					public void handleNotification(Notification notification, Object handback) {
+						if(notification instanceof MBeanServerNotification)
+							infoCache.remove(((MBeanServerNotification)notification).getMBeanName());
+					}
+				}, null, null);
+			} catch (InstanceNotFoundException e) {
+				// No delegate, cached entries will only expire
+			}
+			
+			synchronized(this) {
+				if(closed) {
+					closeQuietly(newConnector);
+					throw new IOException("Server " + id + " was removed from the federation");
+				}
+				connector = newConnector;
+				connection = newConnection;
+				if(reconnectTask != null) {
+					reconnectTask.cancel();
+					reconnectTask = null;
+				}
+			}
+			
+			for(RemoteListener listener: listeners) {
+				try {
+					newConnection.addNotificationListener(listener.name, listener.listener, listener.filter, 
+							listener.handback);
+				} catch (InstanceNotFoundException e) {
+					// The MBean is gone, its listener stays until it is removed
+				}
+			}
+			
+			return newConnection;
+		}
+	}
+	
+	/**
+	 * Add a listener to a remote MBean and add it again whenever the server reconnects
+	 * 
+	 * @param retry When the server is not available, add the listener when it connects
+	 *        instead of only throwing the IOException
+	 */
+	void addNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter, 
+			Object handback, boolean retry) throws InstanceNotFoundException, IOException {
+		RemoteListener remote = new RemoteListener(name, listener, filter, handback);
+		synchronized(connectLock) {
+			try {
+				getConnection().addNotificationListener(name, listener, filter, handback);
+			} catch (IOException e) {
+				if(retry) {
+					listeners.add(remote);
+					scheduleReconnect();
+				}
+				throw e;
+			}
+			listeners.add(remote);
+		}
+	}
+	
+	/**
+	 * Remove a listener added with addNotificationListener(). The server is not connected
+	 * just to remove a listener, a new connection won't add it.
+	 */
+	void removeNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter, 
+			Object handback) throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+		MBeanServerConnection current;
+		synchronized(connectLock) {
+			synchronized(this) {
+				current = connection;
+			}
+			if(current != null)
+				current.removeNotificationListener(name, listener, filter, handback);
+			
+			// Forget the registration once the server removed it, or if there's no connection to remove it from
+			for(RemoteListener remote: listeners) {
+				if(remote.matches(name, listener, filter, handback)) {
+					listeners.remove(remote);
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the MBeanInfo for a remote MBean from the cache, or from the remote server 
+	 * if it is not cached or has expired.
+	 */
+	MBeanInfo getMBeanInfo(ObjectName name) throws InstanceNotFoundException, IntrospectionException, 
+			ReflectionException, IOException {
+		CachedInfo cached = infoCache.get(name);
+		if(cached != null && cached.expires > System.currentTimeMillis())
+			return cached.info;
+		
+		MBeanInfo info = getConnection().getMBeanInfo(name);
+		infoCache.put(name, new CachedInfo(info, System.currentTimeMillis() + metadataTimeout));
+		return info;
+	}
+	
+	private synchronized void disconnected(JMXConnector oldConnector) {
+		if(connector == oldConnector) {
+			connector = null;
+			connection = null;
+			infoCache.clear();
+			
+			// Nobody may use the server again, but its listeners are waiting for notifications
+			if(!listeners.isEmpty())
+				scheduleReconnect();
+		}
+	}
+	
+	private synchronized void scheduleReconnect() {
+		if(closed || reconnectTask != null)
+			return;
+		
+		reconnectTask = new TimerTask() {
+			public void run() {
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							try {
+								getConnection();
+							} catch (IOException e) {
+								// Still not available, try again later
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// The federation is shutting down
+					cancel();
+				}
+			}
+		};
+		reconnectTimer.schedule(reconnectTask, RECONNECT_INTERVAL, RECONNECT_INTERVAL);
+	}
+	
+	private static void closeQuietly(JMXConnector connector) {
+		try {
+			connector.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+	
+	synchronized void close() {
+		closed = true;
+		if(reconnectTask != null) {
+			reconnectTask.cancel();
+			reconnectTask = null;
+		}
+		if(connector != null) {
+			closeQuietly(connector);
+			connector = null;
+			connection = null;
+		}
+		listeners.clear();
+		infoCache.clear();
+	}
+	
+	private static class RemoteListener {
+		final ObjectName name;
+		final NotificationListener listener;
+		final NotificationFilter filter;
+		final Object handback;
+		
+		RemoteListener(ObjectName name, NotificationListener listener, NotificationFilter filter, Object handback) {
+			this.name = name;
+			this.listener = listener;
+			this.filter = filter;
+			this.handback = handback;
+		}
+		
+		boolean matches(ObjectName name, NotificationListener listener, NotificationFilter filter, Object handback) {
+			return this.name.equals(name) && this.listener == listener && this.filter == filter 
+				&& this.handback == handback;
+		}
+	}
+	
+	private static class CachedInfo {
+		final MBeanInfo info;
+		final long expires;
+		
+		CachedInfo(MBeanInfo info, long expires) {
+			this.info = info;
+			this.expires = expires;
+		}
+	}
+}
@@ -30,11 +30,17 @@ import java.util.HashMap;
 import java.util.Map;
 
 import javax.jms.ConnectionFactory;
+import javax.management.ObjectName;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorProvider;
 import javax.management.remote.JMXServiceURL;
 import javax.management.remote.generic.GenericConnector;
 
+import nl.gdries.jmsjmx.client.AsyncConnector;
+import nl.gdries.jmsjmx.client.MirroringConnector;
+import nl.gdries.jmsjmx.client.SharedNotificationConnector;
+import nl.gdries.jmsjmx.client.SingleFlightConnector;
+
 /**
  * Factory class for JMX connections over JMS
  * 
@@ -51,6 +57,84 @@ public abstract class AbstractClientProvider implements JMXConnectorProvider {
 	 * Environment property name for the connection timeout in milliseconds (Long object)
 	 */
 	public static final String CONNECTION_TIMEOUT = "nl.gdries.jmsjmx.jms.connecttimeout";
+	
+	/**
+	 * Environment property name to share one JMS connection between all connectors to
+	 * the same broker (Boolean). Each connector still uses its own session.
+	 */
+	public static final String SHARE_CONNECTION = "nl.gdries.jmsjmx.jms.shareconnection";
+	
+	/**
+	 * Environment property name for a ServerDirectory to check before connecting, or Boolean.TRUE
+	 * to use a directory shared by all connectors to the same broker. Connecting to a server 
+	 * the directory knows to be gone fails immediately instead of after the connect timeout.
+	 * Servers the directory never heard from are connected to as usual, they may not advertise.
+	 */
+	public static final String SERVER_DIRECTORY = "nl.gdries.jmsjmx.jms.serverdirectory";
+	
+	/**
+	 * Environment property name for the topic servers advertise on, defaults to 
+	 * ServerDirectory.DEFAULT_ADVERTISEMENT_TOPIC
+	 */
+	public static final String ADVERTISEMENT_TOPIC = "nl.gdries.jmsjmx.jms.advertisementtopic";
+	
+	/**
+	 * Environment property name for the interval in milliseconds at which servers advertise 
+	 * (Long object), defaults to ServerDirectory.DEFAULT_ADVERTISEMENT_INTERVAL. The shared 
+	 * directory is authoritative after listening for ServerDirectory.WARMUP_INTERVALS intervals.
+	 */
+	public static final String ADVERTISEMENT_INTERVAL = "nl.gdries.jmsjmx.jms.advertisementinterval";
+	
+	/**
+	 * Environment property name for the class of session this client asks for (String). Servers
+	 * with admission control decide which connections are operators themselves, asking for
+	 * AdmissionControl.COLLECTOR gives up operator priority.
+	 */
+	public static final String SESSION_CLASS = "nl.gdries.jmsjmx.jms.sessionclass";
+	
+	/**
+	 * Environment property name to collapse identical concurrent reads into one request (Boolean).
+	 * See SingleFlightMBeanServerConnection.
+	 */
+	public static final String SINGLE_FLIGHT = "nl.gdries.jmsjmx.jms.singleflight";
+	
+	/**
+	 * Environment property name for how long in milliseconds collapsed read results may be 
+	 * reused (Long object), defaults to 0.
+	 */
+	public static final String SINGLE_FLIGHT_FRESHNESS = "nl.gdries.jmsjmx.jms.singleflightfreshness";
+	
+	/**
+	 * Environment property name for the milliseconds between checks whether connections should
+	 * move to a faster broker (Long object), when the service URL lists several brokers. 0 disables
+	 * moving connections. Defaults to BalancingConnectionFactory.DEFAULT_REBALANCE_INTERVAL.
+	 */
+	public static final String REBALANCE_INTERVAL = "nl.gdries.jmsjmx.jms.rebalanceinterval";
+	
+	/**
+	 * Environment property name for the milliseconds to wait for a broker to accept a TCP
+	 * connection when probing brokers (Integer object).
+	 */
+	public static final String PROBE_TIMEOUT = "nl.gdries.jmsjmx.jms.probetimeout";
+	
+	/**
+	 * Environment property name to create an AsyncConnector instead of a regular one (Boolean).
+	 * See AsyncMBeanServerConnection.connect().
+	 */
+	public static final String ASYNC = "nl.gdries.jmsjmx.jms.async";
+	
+	/**
+	 * Environment property name to answer name queries from a local copy of the server's MBean
+	 * names (Boolean). See MirroredMBeanServerConnection.
+	 */
+	public static final String MIRROR_NAMES = "nl.gdries.jmsjmx.jms.mirrornames";
+	
+	/**
+	 * Environment property name for the MBeans whose notifications the server shares on its
+	 * notification topic (ObjectName[]), like the server's AbstractServerProvider.SHARED_NOTIFICATIONS. 
+	 * Listeners for these MBeans subscribe to the topic. See SharedNotificationMBeanServerConnection.
+	 */
+	public static final String SHARED_NOTIFICATIONS = "nl.gdries.jmsjmx.jms.sharednotifications";
 
 	/**
 	 * Override this method to provide the protocol name this provider uses
@@ -70,14 +154,31 @@ public abstract class AbstractClientProvider implements JMXConnectorProvider {
 			
 			final Map<String, Object> env = new HashMap<String, Object>(environment);		
 			
+			ConnectionFactory connectionFactory = (ConnectionFactory)env.get(CONNECTION_FACTORY);
 			final ClientMessageConnection messageConnection = 
-				new ClientMessageConnection((ConnectionFactory)env.get(CONNECTION_FACTORY), serviceURL);
+				new ClientMessageConnection(connectionFactory, serviceURL);
 			env.remove(CONNECTION_FACTORY);
 
+			if(EnvHelper.getBoolean(env, ASYNC, false))
+				return new AsyncConnector(messageConnection, env);
+			
 			// Create the GenericConnector and return it.
 			env.put(GenericConnector.MESSAGE_CONNECTION, messageConnection);
 			
-			return new GenericConnector(env);
+			JMXConnector connector = new GenericConnector(env);
+			
+			if(EnvHelper.getBoolean(env, MIRROR_NAMES, false))
+				connector = new MirroringConnector(connector);
+			
+			ObjectName[] shared = (ObjectName[])env.get(SHARED_NOTIFICATIONS);
+			if(shared != null && shared.length > 0)
+				connector = new SharedNotificationConnector(connector, connectionFactory, 
+						ServiceURLHelper.getTopic(serviceURL), shared);
+			
+			if(EnvHelper.getBoolean(env, SINGLE_FLIGHT, false))
+				connector = new SingleFlightConnector(connector, EnvHelper.getLong(env, SINGLE_FLIGHT_FRESHNESS, 0));
+			
+			return connector;
 		}
 		
 		return null;
@@ -25,14 +25,20 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package nl.gdries.jmsjmx.jms;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
-import javax.jms.DeliveryMode;
+import javax.jms.BytesMessage;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.ObjectMessage;
 import javax.jms.Session;
@@ -41,9 +47,80 @@ import javax.management.remote.message.Message;
 
 public abstract class AbstractMessageConnection implements MessageConnection {
 	public static final long MAX_TIMEOUT = 3600000; // One hour
+	
+	/**
+	 * Environment property name to reuse one JMS message for every send (Boolean). Only
+	 * enable this for JMS providers that are done with a message when send() returns.
+	 */
+	public static final String REUSE_MESSAGES = "nl.gdries.jmsjmx.jms.reusemessages";
+	
+	/**
+	 * Environment property name to stamp requests with timestamps and collect a timing 
+	 * breakdown per request in RequestTimings (Boolean). The client must enable this. Servers
+	 * always answer stamped requests, with this enabled they also tell queueing apart from 
+	 * execution.
+	 */
+	public static final String TIMING = "nl.gdries.jmsjmx.jms.timing";
+	
+	/**
+	 * Environment property name for the BlobStore to offload big messages to, or the name of a
+	 * directory to use a FileBlobStore on (String). Messages bigger than the blob threshold 
+	 * don't go through the broker, only a reference to the blob does. The peer must see the 
+	 * same blobs to read them, so configure client and server alike.
+	 */
+	public static final String BLOB_STORE = "nl.gdries.jmsjmx.jms.blobstore";
+	
+	/**
+	 * Environment property name for the size in bytes above which messages are offloaded to
+	 * the blob store (Integer), defaults to DEFAULT_BLOB_THRESHOLD
+	 */
+	public static final String BLOB_THRESHOLD = "nl.gdries.jmsjmx.jms.blobthreshold";
+	
+	public static final int DEFAULT_BLOB_THRESHOLD = 1024 * 1024;
+	
+	/**
+	 * Environment property name for the compressions to use, comma separated in order of 
+	 * preference (String): lzf, deflate or none. A connection compresses with the first one 
+	 * the peer enabled too, and doesn't compress if the peer enabled none.
+	 */
+	public static final String COMPRESSION = "nl.gdries.jmsjmx.jms.compression";
+	
+	/**
+	 * Environment property name for the size in bytes below which messages are not compressed 
+	 * (Integer), defaults to DEFAULT_COMPRESSION_THRESHOLD
+	 */
+	public static final String COMPRESSION_THRESHOLD = "nl.gdries.jmsjmx.jms.compressionthreshold";
+	
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	
+	/**
+	 * Environment property name for how long in milliseconds a session survives losing its
+	 * broker connection (Long), 0 disables resuming sessions. The server keeps the state of a
+	 * broken connection, including its notification listeners, this long and the client keeps 
+	 * trying to re-attach to it this long. Configure client and server alike.
+	 */
+	public static final String RESUME_TIMEOUT = "nl.gdries.jmsjmx.jms.resumetimeout";
+	
+	// Compression must save this fraction of a message, or the next ones are sent uncompressed
+	// without trying, up to MAX_SKIPPED of them when it keeps failing
+	private static final double MIN_SAVINGS = 0.1;
+	private static final int MAX_SKIPPED = 64;
 
 	protected static final String PROP_REQUESTTYPE    = "nl_gdries_jmsjmx_requesttype";
 	protected static final String REQUESTTYPE_CONNECT = "CONNECT";
+	protected static final String REQUESTTYPE_RESUMED = "RESUMED";
+	protected static final String REQUESTTYPE_REJECTED = "REJECTED";
+	protected static final String PROP_SESSIONCLASS   = "nl_gdries_jmsjmx_sessionclass";
+	protected static final String PROP_CONNECTIONID   = "nl_gdries_jmsjmx_connectionid";
+	protected static final String PROP_BLOB           = "nl_gdries_jmsjmx_blob";
+	protected static final String PROP_BLOBLENGTH     = "nl_gdries_jmsjmx_bloblength";
+	protected static final String PROP_COMPRESSIONS   = "nl_gdries_jmsjmx_compressions";
+	protected static final String PROP_COMPRESSION    = "nl_gdries_jmsjmx_compression";
+	protected static final String PROP_UNCOMPRESSEDLENGTH = "nl_gdries_jmsjmx_uncompressedlength";
+	protected static final String PROP_SESSIONTOKEN   = "nl_gdries_jmsjmx_sessiontoken";
+	protected static final String PROP_EXECUTING      = "nl_gdries_jmsjmx_executing";
+	protected static final String PROP_FETCHING       = "nl_gdries_jmsjmx_fetching";
+	protected static final String PROP_BYTES          = "nl_gdries_jmsjmx_bytes";
 	
 	protected final String connectionId;
 	
@@ -56,6 +133,43 @@ public abstract class AbstractMessageConnection implements MessageConnection {
 	protected MessageProducer producer;
 	
 	protected long receiveTimeout = MAX_TIMEOUT;
+	
+	protected DeliveryStrategy deliveryStrategy = DeliveryStrategy.DEFAULT;
+	
+	// Last received message that was not yet acknowledged (CLIENT_ACKNOWLEDGE only)
+	private javax.jms.Message unacknowledged;
+	private int unacknowledgedCount;
+	
+	// Serializes writes, so the reusable message is never used by two threads at once
+	private final Object writeLock = new Object();
+	private boolean reuseMessages;
+	private BytesMessage sendMessage;
+	
+	protected boolean timing;
+	
+	// The token to resume this connection's session with, the server sends it along with its first message
+	protected String sessionToken;
+	protected boolean sessionTokenSent = true;
+	
+	private MessageListener messageListener;
+	private volatile MessageHandler messageHandler;
+	
+	private BlobStore blobStore;
+	private int blobThreshold = DEFAULT_BLOB_THRESHOLD;
+	
+	private List<Compression> compressions = Collections.emptyList();
+	private String peerCompressions;
+	private volatile Compression compression;
+	private boolean compressionsAdvertised;
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	
+	// Older peers only read ObjectMessages, so BytesMessages are sent once the peer said it reads them
+	private volatile boolean peerReadsBytes;
+	
+	// Adaptive skipping of compression, guarded by compressionLock
+	private final Object compressionLock = new Object();
+	private int skip;
+	private int skipRun;
 
 	public AbstractMessageConnection() {
 		this(null, null);
@@ -67,9 +181,20 @@ public abstract class AbstractMessageConnection implements MessageConnection {
 	 * @param peerDestination The destination to send messages to
 	 */
 	public AbstractMessageConnection(Session session, Destination peerDestination) {
+		this(session, peerDestination, DeliveryStrategy.DEFAULT);
+	}
+	
+	/**
+	 * 
+	 * @param session
+	 * @param peerDestination The destination to send messages to
+	 * @param deliveryStrategy The strategy the session was created with
+	 */
+	public AbstractMessageConnection(Session session, Destination peerDestination, DeliveryStrategy deliveryStrategy) {
 		this.connectionId = UUID.randomUUID().toString();
 		this.session = session;
 		this.peerDestination = peerDestination;
+		this.deliveryStrategy = deliveryStrategy;
 	}
 	
 	public String getConnectionId() {
@@ -81,15 +206,35 @@ public abstract class AbstractMessageConnection implements MessageConnection {
 	 */
 	@SuppressWarnings("unchecked")
 	public void connect(Map env) throws IOException {
+		reuseMessages = EnvHelper.getBoolean(env, REUSE_MESSAGES, false);
+		
+		// A message created by a previous session can't be sent on this one
+		synchronized(writeLock) {
+			sendMessage = null;
+		}
+		timing = EnvHelper.getBoolean(env, TIMING, false);
+		
+		Object store = env == null ? null : env.get(BLOB_STORE);
+		if(store == null || store instanceof BlobStore)
+			blobStore = (BlobStore)store;
+		else
+			blobStore = FileBlobStore.forDirectory(new File(store.toString()));
+		blobThreshold = EnvHelper.getInt(env, BLOB_THRESHOLD, DEFAULT_BLOB_THRESHOLD);
+		
+		compressions = Compression.parse(EnvHelper.getString(env, COMPRESSION, null));
+		compressionThreshold = EnvHelper.getInt(env, COMPRESSION_THRESHOLD, DEFAULT_COMPRESSION_THRESHOLD);
+		compressionsAdvertised = compressions.isEmpty();
+		chooseCompression();
+		if(!compressions.isEmpty())
+			CompressionStatistics.register();
+		
 		try {
 			if(myDestination == null)
 				myDestination = session.createTemporaryTopic();
 			consumer = session.createConsumer(myDestination);
 			
-			if(peerDestination != null) {
-				producer = session.createProducer(peerDestination);
-				producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
-			}
+			if(peerDestination != null)
+				producer = deliveryStrategy.createProducer(session, peerDestination);
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
 		}
@@ -97,6 +242,11 @@ public abstract class AbstractMessageConnection implements MessageConnection {
 	
 	public void close() throws IOException {
 		try {
+			if(unacknowledged != null) {
+				unacknowledged.acknowledge();
+				unacknowledged = null;
+			}
+			
 			if(consumer != null) {
 				consumer.close();
 			}
@@ -114,37 +264,486 @@ public abstract class AbstractMessageConnection implements MessageConnection {
 			throw new IOException("The connection is closed");
 		
 		try {
-			ObjectMessage om = (ObjectMessage)consumer.receive(receiveTimeout);
-			if(om == null)
-				throw new IOException("Receive timeout expired");
-
-			// If the peer destination is still unknown. Use this message's
-			// JMSReplyTo as the peer destination.
-			if(peerDestination == null && producer == null)
-				createProducer(om.getJMSReplyTo());
+			long start = System.currentTimeMillis();
+			javax.jms.Message msg;
+			do {
+				msg = consumer.receive(receiveTimeout);
+				if(msg == null) {
+					// A receive that returns early means the consumer was closed under us
+					if(System.currentTimeMillis() - start < receiveTimeout)
+						throw new ConnectionLostException("The consumer was closed");
+					throw new IOException("Receive timeout expired");
+				}
+			} while(isControlMessage(msg));
 			
-			return (Message)om.getObject();
+			return receive(msg);
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
 		}
 	}
+	
+	/**
+	 * Handles the messages of a connection as they arrive, instead of through readMessage
+	 */
+	public interface MessageHandler {
+		void handleMessage(Message message);
+		
+		/**
+		 * A message arrived that could not be read
+		 */
+		void handleException(Exception e);
+	}
+	
+	/**
+	 * Have messages delivered to a handler by the JMS provider. No thread waits for them, 
+	 * readMessage must not be called anymore once a handler is set.
+	 */
+	public void setMessageHandler(final MessageHandler handler) throws IOException {
+		if(consumer == null)
+			throw new IOException("The connection is closed");
+		
+		try {
+			messageHandler = handler;
+			messageListener = new MessageListener() {
+				public void onMessage(javax.jms.Message msg) {
+					Message message;
+					try {
+						if(isControlMessage(msg))
+							return;
+						message = receive(msg);
+					} catch (Exception e) {
+						handler.handleException(e);
+						return;
+					}
+					handler.handleMessage(message);
+				}
+			};
+			consumer.setMessageListener(messageListener);
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		}
+	}
+	
+	/**
+	 * Tell the message handler the broker connection is gone, it won't get any more messages
+	 * through it. Without a handler there's nothing to do, readMessage notices by itself.
+	 */
+	protected void connectionLost(String reason) {
+		MessageHandler handler = messageHandler;
+		if(handler != null)
+			handler.handleException(new ConnectionLostException(reason));
+	}
+	
+	/**
+	 * Acknowledge and deserialize a received message
+	 */
+	private Message receive(javax.jms.Message msg) throws JMSException, IOException, ClassNotFoundException {
+		long received = timing ? RequestTiming.now() : 0;
+		long eventStart = TransportEvents.start();
+		
+		acknowledge(msg);
+		
+		if(msg.propertyExists(PROP_COMPRESSIONS))
+			setPeerCompressions(msg.getStringProperty(PROP_COMPRESSIONS));
+		if(msg.propertyExists(PROP_SESSIONTOKEN))
+			sessionToken = msg.getStringProperty(PROP_SESSIONTOKEN);
+		if(!peerReadsBytes && (msg instanceof BytesMessage || msg.propertyExists(PROP_BYTES)))
+			peerReadsBytes = true;
+
+		// If the peer destination is still unknown. Use this message's
+		// JMSReplyTo as the peer destination.
+		if(peerDestination == null && producer == null)
+			createProducer(msg.getJMSReplyTo());
+		
+		// Peers running older versions send ObjectMessages
+		Message message;
+		int size;
+		if(msg instanceof ObjectMessage) {
+			message = (Message)((ObjectMessage)msg).getObject();
+			size = -1;
+		} else if(msg.propertyExists(PROP_BLOB)) {
+			size = msg.getIntProperty(PROP_BLOBLENGTH);
+			message = decodeBlob(msg, msg.getStringProperty(PROP_BLOB), size);
+		} else {
+			size = (int)((BytesMessage)msg).getBodyLength();
+			message = decode((BytesMessage)msg, size);
+		}
+		
+		if(timing)
+			received(message, msg, received);
+		TransportEvents.messageRead(connectionId, message, size, eventStart);
+		
+		return message;
+	}
 
 	public void writeMessage(Message message) throws IOException {
 		if(producer == null)
 			throw new IOException("The connection is closed");
 		
+		long encodeStart = timing ? RequestTiming.now() : 0;
+		long eventStart = TransportEvents.start();
+		
+		if(!peerReadsBytes) {
+			writeObjectMessage(message, encodeStart, eventStart);
+			return;
+		}
+		
+		MessageCodec.Encoder encoder = MessageCodec.borrowEncoder();
 		try {
-			ObjectMessage msg = session.createObjectMessage();
-			msg.setJMSReplyTo(myDestination);
-			msg.setObject(message);
-			producer.send(msg);
+			encoder.encode(message);
+			
+			byte[] payload = encoder.getBuffer();
+			int length = encoder.getSize();
+			
+			Compression compression = this.compression;
+			if(compression != null) {
+				byte[] compressed = Compression.getScratch(length);
+				int compressedLength = compress(compression, payload, length, compressed);
+				if(compressedLength >= 0) {
+					payload = compressed;
+					length = compressedLength;
+				} else {
+					compression = null;
+				}
+			}
+			
+			synchronized(writeLock) {
+				BytesMessage msg = createBytesMessage();
+				msg.setJMSReplyTo(myDestination);
+				
+				if(!compressionsAdvertised)
+					advertiseCompressions(msg);
+				if(!sessionTokenSent) {
+					msg.setStringProperty(PROP_SESSIONTOKEN, sessionToken);
+					sessionTokenSent = true;
+				}
+				if(compression != null) {
+					msg.setStringProperty(PROP_COMPRESSION, compression.getName());
+					msg.setIntProperty(PROP_UNCOMPRESSEDLENGTH, encoder.getSize());
+				}
+				
+				if(blobStore != null && length > blobThreshold) {
+					// Keep the big payload off the broker, only send where to find it
+					msg.setStringProperty(PROP_BLOB, blobStore.put(payload, 0, length, getBlobExpiration()));
+					msg.setIntProperty(PROP_BLOBLENGTH, length);
+				} else {
+					msg.writeBytes(payload, 0, length);
+				}
+				
+				if(timing)
+					sending(message, msg, encodeStart);
+				
+				producer.send(msg);
+			}
+			TransportEvents.messageWritten(connectionId, message, encoder.getSize(), eventStart);
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		} finally {
+			MessageCodec.release(encoder);
+		}
+	}
+	
+	/**
+	 * Send a message as an ObjectMessage, which peers running older versions expect. The 
+	 * message says this side reads BytesMessages, so the peer can switch to those.
+	 */
+	private void writeObjectMessage(Message message, long encodeStart, long eventStart) throws IOException {
+		try {
+			synchronized(writeLock) {
+				ObjectMessage msg = session.createObjectMessage(message);
+				msg.setJMSReplyTo(myDestination);
+				msg.setBooleanProperty(PROP_BYTES, true);
+				
+				if(!compressionsAdvertised)
+					advertiseCompressions(msg);
+				if(!sessionTokenSent) {
+					msg.setStringProperty(PROP_SESSIONTOKEN, sessionToken);
+					sessionTokenSent = true;
+				}
+				
+				if(timing)
+					sending(message, msg, encodeStart);
+				
+				producer.send(msg);
+			}
+			TransportEvents.messageWritten(connectionId, message, -1, eventStart);
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
 		}
 	}
 	
+	/**
+	 * The peer said it reads BytesMessages, send those from now on
+	 */
+	void setPeerReadsBytes() {
+		peerReadsBytes = true;
+	}
+	
+	/**
+	 * Compress a payload unless it's too small or the last messages didn't compress well
+	 * 
+	 * @return The compressed length, or -1 to send the payload uncompressed
+	 */
+	private int compress(Compression compression, byte[] payload, int length, byte[] compressed) {
+		CompressionStatistics statistics = CompressionStatistics.getInstance();
+		if(length < compressionThreshold) {
+			statistics.small();
+			return -1;
+		}
+		
+		synchronized(compressionLock) {
+			if(skip > 0) {
+				skip--;
+				statistics.skipped();
+				return -1;
+			}
+		}
+		
+		long start = CompressionStatistics.cpuTime();
+		int compressedLength = compression.compress(payload, length, compressed);
+		long time = CompressionStatistics.cpuTime() - start;
+		
+		boolean worthIt = compressedLength <= length * (1 - MIN_SAVINGS);
+		synchronized(compressionLock) {
+			if(worthIt) {
+				skipRun = 0;
+			} else {
+				// Back off further each time compression is tried and fails again
+				skipRun = Math.min(Math.max(skipRun * 2, 1), MAX_SKIPPED);
+				skip = skipRun;
+			}
+		}
+		
+		if(!worthIt) {
+			statistics.incompressible(time);
+			return -1;
+		}
+		
+		statistics.compressed(length, compressedLength, time);
+		return compressedLength;
+	}
+	
+	/**
+	 * Tell the peer which compressions this side can read
+	 */
+	protected void advertiseCompressions(javax.jms.Message msg) throws JMSException {
+		StringBuilder names = new StringBuilder();
+		for(Compression c: compressions) {
+			if(names.length() > 0)
+				names.append(',');
+			names.append(c.getName());
+		}
+		
+		if(names.length() > 0)
+			msg.setStringProperty(PROP_COMPRESSIONS, names.toString());
+		compressionsAdvertised = true;
+	}
+	
+	/**
+	 * Compress messages with the first compression of ours the peer can read
+	 * 
+	 * @param names The comma separated compressions the peer advertised
+	 */
+	void setPeerCompressions(String names) {
+		peerCompressions = names;
+		chooseCompression();
+	}
+	
+	private void chooseCompression() {
+		Compression chosen = null;
+		if(peerCompressions != null) {
+			List<String> peer = Arrays.asList(peerCompressions.split(","));
+			for(Compression c: compressions) {
+				if(peer.contains(c.getName())) {
+					chosen = c;
+					break;
+				}
+			}
+		}
+		compression = chosen;
+	}
+	
+	/**
+	 * Move this connection to a new session, after the broker connection was lost and the
+	 * session resumed. Messages are received through <i>consumer</i> on <i>myDestination</i>
+	 * and sent to the peer's new destination from now on.
+	 */
+	protected void rebind(Session session, Destination myDestination, MessageConsumer consumer, 
+			Destination peerDestination) throws JMSException {
+		synchronized(writeLock) {
+			// The old session is gone with the broker connection, closing its parts is a formality
+			try {
+				if(this.consumer != null)
+					this.consumer.close();
+				if(producer != null)
+					producer.close();
+			} catch (JMSException e) {
+				// Closed already
+			}
+			
+			this.session = session;
+			this.myDestination = myDestination;
+			this.consumer = consumer;
+			sendMessage = null;
+			unacknowledged = null;
+			unacknowledgedCount = 0;
+			
+			if(messageListener != null)
+				consumer.setMessageListener(messageListener);
+			createProducer(peerDestination);
+		}
+	}
+	
+	/**
+	 * @return Whether an exception means the broker connection was lost
+	 */
+	protected static boolean isConnectionLost(IOException e) {
+		return e instanceof ConnectionLostException || e instanceof WrappedJMSException;
+	}
+	
+	/**
+	 * Messages that only manage the connection, like the answer to a resume, don't carry 
+	 * a JMXMP message. Late duplicates of them are skipped.
+	 */
+	private static boolean isControlMessage(javax.jms.Message msg) throws JMSException {
+		return msg.propertyExists(PROP_REQUESTTYPE);
+	}
+	
+	/**
+	 * Called with timing enabled just before a message is sent, to stamp it
+	 * 
+	 * @param encodeStart When serialization of the message started
+	 */
+	protected void sending(Message message, javax.jms.Message msg, long encodeStart) throws JMSException {
+	}
+	
+	/**
+	 * Called with timing enabled after a message has been received and deserialized
+	 * 
+	 * @param received When the JMS message was received
+	 */
+	protected void received(Message message, javax.jms.Message msg, long received) throws JMSException {
+	}
+	
+	private Message decode(BytesMessage msg, int length) throws JMSException, IOException, ClassNotFoundException {
+		MessageCodec.Decoder decoder = MessageCodec.borrowDecoder();
+		try {
+			byte[] buffer = getPayloadBuffer(decoder, msg, length);
+			if(msg.readBytes(buffer, length) != length)
+				throw new IOException("Short read from message body");
+			
+			return decode(decoder, msg, buffer, length);
+		} finally {
+			MessageCodec.release(decoder);
+		}
+	}
+	
+	/**
+	 * Get the buffer to read a payload into. Uncompressed payloads are read into the 
+	 * decoder's buffer, compressed ones are decompressed into it.
+	 */
+	private byte[] getPayloadBuffer(MessageCodec.Decoder decoder, javax.jms.Message msg, int length) throws JMSException {
+		return msg.propertyExists(PROP_COMPRESSION) ? Compression.getScratch(length) : decoder.getBuffer(length);
+	}
+	
+	/**
+	 * Deserialize a payload, decompressing it first if the peer compressed it
+	 */
+	private Message decode(MessageCodec.Decoder decoder, javax.jms.Message msg, byte[] payload, int length) 
+			throws JMSException, IOException, ClassNotFoundException {
+		String name = msg.getStringProperty(PROP_COMPRESSION);
+		if(name == null)
+			return decoder.decode(payload, 0, length);
+		
+		Compression compression = Compression.forName(name);
+		if(compression == null)
+			throw new IOException("Received a message compressed with unknown compression " + name);
+		
+		int originalLength = msg.getIntProperty(PROP_UNCOMPRESSEDLENGTH);
+		long start = CompressionStatistics.cpuTime();
+		compression.decompress(payload, length, decoder.getBuffer(originalLength), originalLength);
+		CompressionStatistics.getInstance().decompressed(CompressionStatistics.cpuTime() - start);
+		
+		return decoder.decode(originalLength);
+	}
+	
+	/**
+	 * Read a message the peer offloaded to the blob store and remove the blob
+	 */
+	private Message decodeBlob(javax.jms.Message msg, String reference, int length) 
+			throws JMSException, IOException, ClassNotFoundException {
+		if(blobStore == null)
+			throw new IOException("Received blob " + reference + " without a blob store to read it from");
+		
+		MessageCodec.Decoder decoder = MessageCodec.borrowDecoder();
+		try {
+			byte[] buffer = getPayloadBuffer(decoder, msg, length);
+			InputStream in = blobStore.open(reference);
+			try {
+				int read = 0;
+				while(read < length) {
+					int n = in.read(buffer, read, length - read);
+					if(n < 0)
+						throw new IOException("Short read from blob " + reference);
+					read += n;
+				}
+			} finally {
+				in.close();
+			}
+			blobStore.delete(reference);
+			
+			return decode(decoder, msg, buffer, length);
+		} finally {
+			MessageCodec.release(decoder);
+		}
+	}
+	
+	/**
+	 * Blobs of messages that are never read expire with the message, or after the maximum 
+	 * timeout when messages live forever
+	 */
+	private long getBlobExpiration() {
+		long timeToLive = deliveryStrategy.getTimeToLive();
+		return System.currentTimeMillis() + (timeToLive > 0 ? timeToLive : MAX_TIMEOUT);
+	}
+	
+	/**
+	 * Return an empty message to send. When messages are reused, this is always the
+	 * same instance. Must be called with the write lock held.
+	 */
+	private BytesMessage createBytesMessage() throws JMSException {
+		if(!reuseMessages)
+			return session.createBytesMessage();
+		
+		if(sendMessage == null) {
+			sendMessage = session.createBytesMessage();
+		} else {
+			sendMessage.clearBody();
+			sendMessage.clearProperties();
+		}
+		return sendMessage;
+	}
+	
+	/**
+	 * In CLIENT_ACKNOWLEDGE mode, acknowledge received messages once per batch instead
+	 * of once per message. Acknowledging a message acknowledges all messages consumed
+	 * by the session before it.
+	 */
+	private void acknowledge(javax.jms.Message msg) throws JMSException {
+		if(!deliveryStrategy.isClientAcknowledge())
+			return;
+		
+		if(++unacknowledgedCount >= deliveryStrategy.getAcknowledgeBatchSize()) {
+			msg.acknowledge();
+			unacknowledged = null;
+			unacknowledgedCount = 0;
+		} else {
+			unacknowledged = msg;
+		}
+	}
+	
 	private void createProducer(Destination dst) throws JMSException {
 		peerDestination = dst;
-		producer = session.createProducer(dst);
+		producer = deliveryStrategy.createProducer(session, dst);
 	}	
 }
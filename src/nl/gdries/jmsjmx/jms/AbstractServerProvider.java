@@ -39,12 +39,13 @@ import javax.management.remote.generic.GenericConnectorServer;
 /**
  * Factory class for JMX connections over JMS. Service URL must have the following structure:
  * <p>
- * service:jmx:<i>protocol</i>://<i>hostname</i>:<i>portnumber<i>/<i>topic</i>
+ * service:jmx:<i>protocol</i>://<i>hostname</i>:<i>portnumber<i>/<i>topic</i>[;brokers=<i>host</i>:<i>port</i>,...]
  * <p>
  * <i>protocol</i> = The JMS provider to use (activemq/sonicmq/etc).<br/>
  * <i>hostname</i> = The hostname of the JMS broker<br/>
  * <i>portnumber</i> = The port number for the JMS broker<br/>
  * <i>topic</i> = The prefix to use to create Topic publishers/subscribers<br/>
+ * <i>brokers</i> = Optional other brokers of the same broker network, the fastest one is used<br/>
  * <p>
  * The ServerProvider will listen for messages on <i>topic</i> from connecting clients. The
  * client is required to provide a JMSReplyTo Destination for it's connect message. The server will
@@ -60,6 +61,62 @@ public abstract class AbstractServerProvider implements JMXConnectorServerProvid
 	 * Environment property name for a javax.jms.Connection instance to be used by this ServerProvider
 	 */
 	public static final String CONNECTION_FACTORY = "nl.gdries.jmsjmx.jms.connectionfactory";
+	
+	/**
+	 * Environment property name for the interval in milliseconds at which the server advertises
+	 * its presence (Long object). Servers don't advertise unless this is set.
+	 */
+	public static final String ADVERTISEMENT_INTERVAL = "nl.gdries.jmsjmx.jms.advertisementinterval";
+	
+	/**
+	 * Environment property name for the topic to advertise on, defaults to 
+	 * ServerDirectory.DEFAULT_ADVERTISEMENT_TOPIC
+	 */
+	public static final String ADVERTISEMENT_TOPIC = "nl.gdries.jmsjmx.jms.advertisementtopic";
+	
+	/**
+	 * Environment property name to start the connector server without waiting for the broker 
+	 * (Boolean). start() returns right away and the server connects in the background, retrying
+	 * until the broker is there. Its ConnectorServerStatus is registered to tell when it's ready.
+	 */
+	public static final String BACKGROUND_START = "nl.gdries.jmsjmx.jms.backgroundstart";
+	
+	/**
+	 * Environment property name for the directory to spool notifications in (String). When set,
+	 * a NotificationSpooler is registered for clients that are slow or disconnected now and then.
+	 */
+	public static final String NOTIFICATION_SPOOL = "nl.gdries.jmsjmx.jms.notificationspool";
+	
+	/**
+	 * Environment property name for the largest page of query results clients can fetch 
+	 * (Integer). When set, a QueryCursors is registered so clients can page through queries.
+	 */
+	public static final String QUERY_PAGE_SIZE = "nl.gdries.jmsjmx.jms.querypagesize";
+	
+	/**
+	 * Environment property name for the attributes to publish on the telemetry topic 
+	 * (TelemetrySpec[]). Servers don't publish telemetry unless this is set.
+	 */
+	public static final String TELEMETRY = "nl.gdries.jmsjmx.jms.telemetry";
+	
+	/**
+	 * Environment property name for the interval in milliseconds at which telemetry is 
+	 * published (Long object), defaults to TelemetryCollector.DEFAULT_INTERVAL.
+	 */
+	public static final String TELEMETRY_INTERVAL = "nl.gdries.jmsjmx.jms.telemetryinterval";
+	
+	/**
+	 * Environment property name for the number of telemetry frames between keyframes
+	 * (Integer object), defaults to TelemetryCollector.DEFAULT_KEYFRAME_INTERVAL.
+	 */
+	public static final String TELEMETRY_KEYFRAME_INTERVAL = "nl.gdries.jmsjmx.jms.telemetrykeyframeinterval";
+	
+	/**
+	 * Environment property name for the MBeans whose notifications are published once on the
+	 * shared notification topic (ObjectName[], patterns allowed). Anyone who can subscribe to 
+	 * the topic receives these notifications, see SharedNotifications.
+	 */
+	public static final String SHARED_NOTIFICATIONS = "nl.gdries.jmsjmx.jms.sharednotifications";
 
 	/**
 	 * Override this method to provide the protocol name this provider uses
@@ -85,13 +142,20 @@ public abstract class AbstractServerProvider implements JMXConnectorServerProvid
 			
 			// Create the connectorserver instance using the ConnectionFactory from the environment
 			final ServerMessageConnectionServer messageConnectionServer = 
-				new ServerMessageConnectionServer((ConnectionFactory)env.get(CONNECTION_FACTORY), serviceURL);
+				new ServerMessageConnectionServer((ConnectionFactory)env.get(CONNECTION_FACTORY), serviceURL, mbeanServer);
 			env.remove(CONNECTION_FACTORY);
 
 			// Create the GenericConnectorServer and return it.
 			env.put(GenericConnectorServer.MESSAGE_CONNECTION_SERVER, messageConnectionServer);
 			
-			return new GenericConnectorServer(env, mbeanServer);
+			GenericConnectorServer server = new GenericConnectorServer(env, mbeanServer);
+			
+			// Tell queueing apart from execution in request timings. Without an MBeanServer yet, the 
+			// forwarder could never be given the real one.
+			if(mbeanServer != null && EnvHelper.getBoolean(env, AbstractMessageConnection.TIMING, false))
+				server.setMBeanServerForwarder(ExecutionTimer.newForwarder());
+			
+			return server;
 		}
 		
 		return null;
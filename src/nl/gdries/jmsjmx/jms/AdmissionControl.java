@@ -0,0 +1,380 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much work clients can make a connector server do. Requests from collector 
+ * connections are limited by a token bucket per connection and one shared by all of them. 
+ * Requests from all connections are limited by a cap on the number of requests executing 
+ * at once, part of which is reserved for operator connections. Refused requests are 
+ * answered with a ServerOverloadedException without being executed.
+ * <p>
+ * The server decides which connections are operators: those whose connect message was sent
+ * by one of the OPERATOR_USERS, as the broker stamps it in JMSXUserID. Clients can only
+ * lower their own priority by asking for a COLLECTOR session with 
+ * AbstractClientProvider.SESSION_CLASS.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class AdmissionControl implements AdmissionControlMBean {
+	/**
+	 * Environment property name for the requests per second all collector connections
+	 * together may make (Double or String)
+	 */
+	public static final String GLOBAL_RATE = "nl.gdries.jmsjmx.jms.admission.globalrate";
+	
+	/**
+	 * Environment property name for the requests per second a single collector connection
+	 * may make (Double or String)
+	 */
+	public static final String CONNECTION_RATE = "nl.gdries.jmsjmx.jms.admission.connectionrate";
+	
+	/**
+	 * Environment property name for the number of requests a token bucket allows in a burst,
+	 * as a multiple of its rate per second (Double or String). Defaults to 1.
+	 */
+	public static final String BURST = "nl.gdries.jmsjmx.jms.admission.burst";
+	
+	/**
+	 * Environment property name for the maximum number of requests executing at once (Integer)
+	 */
+	public static final String MAX_CONCURRENT = "nl.gdries.jmsjmx.jms.admission.maxconcurrent";
+	
+	/**
+	 * Environment property name for the number of concurrent requests reserved for 
+	 * operator connections (Integer). Defaults to a quarter of MAX_CONCURRENT.
+	 */
+	public static final String OPERATOR_RESERVE = "nl.gdries.jmsjmx.jms.admission.operatorreserve";
+	
+	/**
+	 * Environment property name for the milliseconds a request may wait for an execution
+	 * slot before it's refused (Long). Defaults to DEFAULT_QUEUE_TIMEOUT.
+	 */
+	public static final String QUEUE_TIMEOUT = "nl.gdries.jmsjmx.jms.admission.queuetimeout";
+	
+	/**
+	 * Environment property name for the comma separated broker user names whose connections
+	 * are operators (String). The broker must be configured to set JMSXUserID on the messages
+	 * it receives, for example with populateJMSXUserID in ActiveMQ.
+	 */
+	public static final String OPERATOR_USERS = "nl.gdries.jmsjmx.jms.admission.operatorusers";
+	
+	/**
+	 * Environment property name for the session class of connections that aren't sent by
+	 * one of the OPERATOR_USERS, OPERATOR or COLLECTOR (String). Defaults to COLLECTOR.
+	 */
+	public static final String DEFAULT_SESSION_CLASS = "nl.gdries.jmsjmx.jms.admission.defaultsessionclass";
+	
+	public static final String OPERATOR  = "operator";
+	public static final String COLLECTOR = "collector";
+	
+	public static final long DEFAULT_QUEUE_TIMEOUT = 1000;
+	
+	private final double globalRate;
+	private final double connectionRate;
+	private final double burst;
+	private final int maxConcurrent;
+	private final int operatorReserve;
+	private final long queueTimeout;
+	private final String defaultSessionClass;
+	private final Set<String> operatorUsers;
+	
+	private final TokenBucket globalBucket;
+	private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+	
+	private int executing;
+	
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong connectionRateLimited = new AtomicLong();
+	private final AtomicLong globalRateLimited = new AtomicLong();
+	private final AtomicLong concurrencyLimited = new AtomicLong();
+	
+	public AdmissionControl(double globalRate, double connectionRate, double burst, 
+			int maxConcurrent, int operatorReserve, long queueTimeout, String defaultSessionClass,
+			Set<String> operatorUsers) {
+		if(maxConcurrent > 0 && operatorReserve >= maxConcurrent)
+			throw new IllegalArgumentException("The operator reserve must be less than the maximum concurrency");
+		
+		this.globalRate = globalRate;
+		this.connectionRate = connectionRate;
+		this.burst = burst;
+		this.maxConcurrent = maxConcurrent;
+		this.operatorReserve = operatorReserve;
+		this.queueTimeout = queueTimeout;
+		this.defaultSessionClass = OPERATOR.equalsIgnoreCase(defaultSessionClass) ? OPERATOR : COLLECTOR;
+		this.operatorUsers = operatorUsers == null ? Collections.<String>emptySet() : new HashSet<String>(operatorUsers);
+		
+		this.globalBucket = globalRate > 0 ? new TokenBucket(globalRate, burst) : null;
+	}
+	
+	/**
+	 * Read the admission control settings from the environment map
+	 * 
+	 * @return null if no limits are configured
+	 */
+	@SuppressWarnings("unchecked")
+	public static AdmissionControl fromEnvironment(Map env) {
+		double globalRate = getDouble(env, GLOBAL_RATE);
+		double connectionRate = getDouble(env, CONNECTION_RATE);
+		int maxConcurrent = EnvHelper.getInt(env, MAX_CONCURRENT, 0);
+		
+		if(globalRate <= 0 && connectionRate <= 0 && maxConcurrent <= 0)
+			return null;
+		
+		double burst = getDouble(env, BURST);
+		
+		return new AdmissionControl(globalRate, connectionRate, burst > 0 ? burst : 1, maxConcurrent,
+				EnvHelper.getInt(env, OPERATOR_RESERVE, maxConcurrent / 4),
+				EnvHelper.getLong(env, QUEUE_TIMEOUT, DEFAULT_QUEUE_TIMEOUT),
+				EnvHelper.getString(env, DEFAULT_SESSION_CLASS, COLLECTOR),
+				getUsers(env, OPERATOR_USERS));
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Set<String> getUsers(Map env, String name) {
+		Set<String> users = new HashSet<String>();
+		String value = EnvHelper.getString(env, name, null);
+		if(value != null) {
+			for(String user: value.split(",")) {
+				if(user.trim().length() > 0)
+					users.add(user.trim());
+			}
+		}
+		return users;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static double getDouble(Map env, String name) {
+		String value = EnvHelper.getString(env, name, null);
+		if(value == null)
+			return 0;
+		
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("The property " + name + " must be a number, not '" + value + "'");
+		}
+	}
+	
+	/**
+	 * Start keeping track of a new connection
+	 * 
+	 * @param userId The broker user that sent the connect message, or null if the broker didn't say
+	 * @param sessionClass What the client asked to be, or null. This can only lower its priority.
+	 */
+	Client connected(String connectionId, String userId, String sessionClass) {
+		boolean operator = (userId != null && operatorUsers.contains(userId)) 
+			|| OPERATOR.equals(defaultSessionClass);
+		if(COLLECTOR.equalsIgnoreCase(sessionClass))
+			operator = false;
+		
+		Client client = new Client(connectionId, operator);
+		clients.add(client);
+		return client;
+	}
+	
+	/**
+	 * Stop keeping track of a connection and free the slots of its unanswered requests
+	 */
+	void closed(Client client, int unanswered) {
+		clients.remove(client);
+		for(int i = 0; i < unanswered; i++)
+			done();
+	}
+	
+	/**
+	 * Decide whether a request may be executed. If it may, done() must be called when
+	 * it's finished.
+	 * 
+	 * @return null if the request is admitted, or why it's refused
+	 */
+	String admit(Client client) throws InterruptedException {
+		if(!client.operator) {
+			if(client.bucket != null && !client.bucket.tryAcquire()) {
+				connectionRateLimited.incrementAndGet();
+				client.refused.incrementAndGet();
+				return "This connection exceeds its limit of " + connectionRate + " requests per second";
+			}
+			
+			if(globalBucket != null && !globalBucket.tryAcquire()) {
+				globalRateLimited.incrementAndGet();
+				client.refused.incrementAndGet();
+				return "The server exceeds its limit of " + globalRate + " requests per second";
+			}
+		}
+		
+		if(maxConcurrent > 0 && !acquireSlot(client.operator ? maxConcurrent : maxConcurrent - operatorReserve)) {
+			concurrencyLimited.incrementAndGet();
+			client.refused.incrementAndGet();
+			return "The server is executing too many requests";
+		}
+		
+		admitted.incrementAndGet();
+		client.admitted.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * An admitted request has finished
+	 */
+	synchronized void done() {
+		if(maxConcurrent > 0 && executing > 0) {
+			executing--;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Wait up to the queue timeout for one of <i>limit</i> execution slots
+	 */
+	private synchronized boolean acquireSlot(int limit) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + queueTimeout;
+		while(executing >= limit) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		executing++;
+		return true;
+	}
+	
+	public double getGlobalRate() {
+		return globalRate;
+	}
+
+	public double getConnectionRate() {
+		return connectionRate;
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public int getOperatorReserve() {
+		return operatorReserve;
+	}
+
+	public synchronized int getExecuting() {
+		return executing;
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getConnectionRateLimited() {
+		return connectionRateLimited.get();
+	}
+
+	public long getGlobalRateLimited() {
+		return globalRateLimited.get();
+	}
+
+	public long getConcurrencyLimited() {
+		return concurrencyLimited.get();
+	}
+
+	public String[] getConnectionStatistics() {
+		List<String> result = new ArrayList<String>();
+		for(Client client: clients)
+			result.add(client.toString());
+		return result.toArray(new String[result.size()]);
+	}
+
+	public void resetCounters() {
+		admitted.set(0);
+		connectionRateLimited.set(0);
+		globalRateLimited.set(0);
+		concurrencyLimited.set(0);
+		for(Client client: clients) {
+			client.admitted.set(0);
+			client.refused.set(0);
+		}
+	}
+	
+	/**
+	 * The admission state of one connection
+	 */
+	class Client {
+		final String connectionId;
+		final boolean operator;
+		final TokenBucket bucket;
+		final AtomicLong admitted = new AtomicLong();
+		final AtomicLong refused = new AtomicLong();
+		
+		Client(String connectionId, boolean operator) {
+			this.connectionId = connectionId;
+			this.operator = operator;
+			this.bucket = connectionRate > 0 && !operator ? new TokenBucket(connectionRate, burst) : null;
+		}
+		
+		@Override
+		public String toString() {
+			return connectionId + " (" + (operator ? OPERATOR : COLLECTOR) + "): admitted=" 
+				+ admitted.get() + " refused=" + refused.get();
+		}
+	}
+	
+	/**
+	 * Allows <i>rate</i> requests per second, with bursts of up to <i>rate * burst</i> requests
+	 */
+	static class TokenBucket {
+		private final double rate;
+		private final double capacity;
+		
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+		
+		TokenBucket(double rate, double burst) {
+			this.rate = rate;
+			this.capacity = Math.max(1, rate * burst);
+			this.tokens = capacity;
+		}
+		
+		synchronized boolean tryAcquire() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1000000000.0);
+			lastRefill = now;
+			
+			if(tokens < 1)
+				return false;
+			
+			tokens--;
+			return true;
+		}
+	}
+}
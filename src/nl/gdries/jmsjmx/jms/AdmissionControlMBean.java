@@ -0,0 +1,86 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+/**
+ * Management interface of a connector server's admission control
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface AdmissionControlMBean {
+	/**
+	 * @return Requests per second all collector connections together may make, 0 for no limit
+	 */
+	double getGlobalRate();
+	
+	/**
+	 * @return Requests per second a single collector connection may make, 0 for no limit
+	 */
+	double getConnectionRate();
+	
+	/**
+	 * @return The maximum number of requests executing at once, 0 for no limit
+	 */
+	int getMaxConcurrent();
+	
+	/**
+	 * @return The number of concurrent requests only operator connections may use
+	 */
+	int getOperatorReserve();
+	
+	/**
+	 * @return The number of requests executing now
+	 */
+	int getExecuting();
+	
+	/**
+	 * @return The number of requests admitted
+	 */
+	long getAdmitted();
+	
+	/**
+	 * @return The number of requests refused because a connection exceeded its rate
+	 */
+	long getConnectionRateLimited();
+	
+	/**
+	 * @return The number of requests refused because all collectors together exceeded the global rate
+	 */
+	long getGlobalRateLimited();
+	
+	/**
+	 * @return The number of requests refused because no execution slot became free in time
+	 */
+	long getConcurrencyLimited();
+	
+	/**
+	 * @return One line per open connection with its session class and counters
+	 */
+	String[] getConnectionStatistics();
+	
+	void resetCounters();
+}
@@ -0,0 +1,383 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Samples numeric attributes many times a second and keeps the samples for a window, so
+ * clients that poll once a minute still see the spikes in between. A client gets the
+ * minimum, maximum, average and percentiles of all sampled attributes in one call.
+ * <p>
+ * Attributes are named like in a TelemetrySpec. An item of an attribute holding 
+ * CompositeData is named with a dot, like HeapMemoryUsage.used. Samples are kept in a
+ * ring of primitives per attribute. The MBeans matching a spec are looked up again every 
+ * REFRESH_INTERVAL.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class AttributeSampler implements AttributeSamplerMBean, MBeanRegistration {
+	private static final Logger logger = Logger.getLogger(AttributeSampler.class.getName());
+	
+	/**
+	 * Environment property name for the attributes to sample (TelemetrySpec[]). Servers 
+	 * don't sample unless this is set.
+	 */
+	public static final String ATTRIBUTES = "nl.gdries.jmsjmx.jms.sampler.attributes";
+	
+	/**
+	 * Environment property name for the milliseconds between samples (Long object)
+	 */
+	public static final String PERIOD = "nl.gdries.jmsjmx.jms.sampler.period";
+	
+	/**
+	 * Environment property name for the milliseconds of samples to keep (Long object)
+	 */
+	public static final String WINDOW = "nl.gdries.jmsjmx.jms.sampler.window";
+	
+	public static final long DEFAULT_PERIOD = 100;
+	public static final long DEFAULT_WINDOW = 60000;
+	public static final long REFRESH_INTERVAL = 10000;
+	
+	private final TelemetrySpec[] specs;
+	private final long period;
+	private final long window;
+	private final int capacity;
+	
+	// The sampled MBeans, only touched by the timer thread
+	private final Map<ObjectName, SampledMBean> mbeans = new HashMap<ObjectName, SampledMBean>();
+	
+	// The same series for readers, replaced as a whole when MBeans come and go
+	private volatile Series[] series = new Series[0];
+	
+	private MBeanServer mbeanServer;
+	private Timer timer;
+	private long lastRefresh;
+	private volatile long failedSamples;
+	
+	public AttributeSampler(TelemetrySpec[] specs, long period, long window) {
+		if(period <= 0 || window < period)
+			throw new IllegalArgumentException("The period must be positive and the window at least one period");
+		
+		this.specs = specs.clone();
+		this.period = period;
+		this.window = window;
+		this.capacity = (int)(window / period) + 1;
+	}
+	
+	/**
+	 * @return A sampler configured by the environment, or null if no attributes are configured
+	 */
+	public static AttributeSampler fromEnvironment(Map env) {
+		TelemetrySpec[] specs = (TelemetrySpec[])env.get(ATTRIBUTES);
+		if(specs == null || specs.length == 0)
+			return null;
+		
+		return new AttributeSampler(specs, EnvHelper.getLong(env, PERIOD, DEFAULT_PERIOD), 
+				EnvHelper.getLong(env, WINDOW, DEFAULT_WINDOW));
+	}
+	
+	public SampleSummary[] getSummaries(long window) {
+		return getSummaries(null, window);
+	}
+	
+	public SampleSummary[] getSummaries(ObjectName name, long window) {
+		long now = System.currentTimeMillis();
+		long span = Math.min(window, this.window);
+		
+		List<SampleSummary> result = new ArrayList<SampleSummary>();
+		for(Series s: series) {
+			if(name == null || name.apply(s.name))
+				result.add(s.summarize(now, span));
+		}
+		return result.toArray(new SampleSummary[result.size()]);
+	}
+
+	public String[] getAttributes() {
+		String[] result = new String[specs.length];
+		for(int i = 0; i < specs.length; i++)
+			result[i] = specs[i].toString();
+		return result;
+	}
+
+	public int getSeriesCount() {
+		return series.length;
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	public long getFailedSamples() {
+		return failedSamples;
+	}
+	
+	/**
+	 * Take one sample of every attribute
+	 */
+	private void sample() {
+		long now = System.currentTimeMillis();
+		if(now - lastRefresh >= REFRESH_INTERVAL) {
+			refresh();
+			lastRefresh = now;
+		}
+		
+		for(SampledMBean mbean: mbeans.values()) {
+			AttributeList values;
+			try {
+				values = mbeanServer.getAttributes(mbean.name, mbean.attributes);
+			} catch (JMException e) {
+				// Unregistered since the last refresh
+				failedSamples += mbean.series.length;
+				continue;
+			} catch (RuntimeException e) {
+				// The MBean failed, like a RuntimeMBeanException from its getAttributes
+				failedSamples += mbean.series.length;
+				continue;
+			}
+			
+			Map<String, Object> read = new HashMap<String, Object>();
+			for(Object o: values) {
+				Attribute attribute = (Attribute)o;
+				read.put(attribute.getName(), attribute.getValue());
+			}
+			
+			for(Series s: mbean.series) {
+				Object value = read.get(s.attribute);
+				if(value instanceof CompositeData && s.item != null) {
+					CompositeData data = (CompositeData)value;
+					value = data.containsKey(s.item) ? data.get(s.item) : null;
+				}
+				
+				if(value instanceof Number)
+					s.add(now, ((Number)value).doubleValue());
+				else
+					failedSamples++;
+			}
+		}
+	}
+	
+	/**
+	 * Find the MBeans matching the specs, keeping the samples of those still there
+	 */
+	private void refresh() {
+		Map<ObjectName, Set<String>> wanted = new HashMap<ObjectName, Set<String>>();
+		for(TelemetrySpec spec: specs) {
+			for(ObjectName name: mbeanServer.queryNames(spec.getName(), null)) {
+				Set<String> attributes = wanted.get(name);
+				if(attributes == null) {
+					attributes = new LinkedHashSet<String>();
+					wanted.put(name, attributes);
+				}
+				attributes.addAll(Arrays.asList(spec.getAttributes()));
+			}
+		}
+		
+		mbeans.keySet().retainAll(wanted.keySet());
+		List<Series> all = new ArrayList<Series>();
+		for(Map.Entry<ObjectName, Set<String>> entry: wanted.entrySet()) {
+			SampledMBean mbean = mbeans.get(entry.getKey());
+			if(mbean == null || !mbean.samples(entry.getValue())) {
+				mbean = new SampledMBean(entry.getKey(), entry.getValue(), mbean);
+				mbeans.put(entry.getKey(), mbean);
+			}
+			all.addAll(Arrays.asList(mbean.series));
+		}
+		series = all.toArray(new Series[all.size()]);
+	}
+	
+	/**
+	 * The attributes sampled of one MBean
+	 */
+	private class SampledMBean {
+		final ObjectName name;
+		final String[] attributes;
+		final Series[] series;
+		
+		SampledMBean(ObjectName name, Set<String> sampled, SampledMBean previous) {
+			this.name = name;
+			
+			Set<String> attributes = new LinkedHashSet<String>();
+			series = new Series[sampled.size()];
+			int i = 0;
+			for(String fullName: sampled) {
+				Series s = previous == null ? null : previous.getSeries(fullName);
+				if(s == null)
+					s = new Series(name, fullName);
+				series[i++] = s;
+				attributes.add(s.attribute);
+			}
+			this.attributes = attributes.toArray(new String[attributes.size()]);
+		}
+		
+		boolean samples(Set<String> sampled) {
+			if(sampled.size() != series.length)
+				return false;
+			for(Series s: series) {
+				if(!sampled.contains(s.fullName))
+					return false;
+			}
+			return true;
+		}
+		
+		Series getSeries(String fullName) {
+			for(Series s: series) {
+				if(s.fullName.equals(fullName))
+					return s;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * The samples of one attribute, in a ring of primitives
+	 */
+	private class Series {
+		final ObjectName name;
+		final String fullName;
+		final String attribute;
+		final String item;
+		
+		private final long[] timestamps = new long[capacity];
+		private final double[] values = new double[capacity];
+		private int next;
+		private int count;
+		
+		Series(ObjectName name, String fullName) {
+			this.name = name;
+			this.fullName = fullName;
+			
+			int dot = fullName.indexOf('.');
+			this.attribute = dot < 0 ? fullName : fullName.substring(0, dot);
+			this.item = dot < 0 ? null : fullName.substring(dot + 1);
+		}
+		
+		synchronized void add(long timestamp, double value) {
+			timestamps[next] = timestamp;
+			values[next] = value;
+			next = (next + 1) % capacity;
+			if(count < capacity)
+				count++;
+		}
+		
+		SampleSummary summarize(long now, long span) {
+			double[] sorted;
+			double sum = 0;
+			double last = Double.NaN;
+			long lastTimestamp = 0;
+			int n = 0;
+			
+			synchronized(this) {
+				sorted = new double[count];
+				for(int i = 1; i <= count; i++) {
+					int index = (next - i + capacity) % capacity;
+					if(now - timestamps[index] > span)
+						break;
+					
+					if(i == 1) {
+						last = values[index];
+						lastTimestamp = timestamps[index];
+					}
+					sorted[n++] = values[index];
+					sum += values[index];
+				}
+			}
+			
+			if(n == 0)
+				return new SampleSummary(name, fullName, span, 0, Double.NaN, Double.NaN, Double.NaN, 
+						Double.NaN, Double.NaN, Double.NaN, last, lastTimestamp);
+			
+			Arrays.sort(sorted, 0, n);
+			return new SampleSummary(name, fullName, span, n, sorted[0], sorted[n - 1], sum / n,
+					percentile(sorted, n, 0.5), percentile(sorted, n, 0.9), percentile(sorted, n, 0.99), 
+					last, lastTimestamp);
+		}
+	}
+	
+	/**
+	 * @return The nearest-rank percentile of the first n sorted values
+	 */
+	private static double percentile(double[] sorted, int n, double fraction) {
+		int rank = (int)Math.ceil(fraction * n);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	public ObjectName preRegister(MBeanServer server, ObjectName name) throws Exception {
+		this.mbeanServer = server;
+		return name;
+	}
+
+	public void postRegister(Boolean registrationDone) {
+		if(!registrationDone.booleanValue())
+			return;
+		
+		timer = new Timer("AttributeSampler", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				// An exception would cancel the timer and stop sampling for good
+				try {
+					sample();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Sampling failed", e);
+				}
+			}
+		}, 0, period);
+	}
+
+	public void preDeregister() throws Exception {
+	}
+
+	public void postDeregister() {
+		if(timer != null)
+			timer.cancel();
+		
+		mbeanServer = null;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import javax.management.ObjectName;
+
+/**
+ * Management interface of a connector server's attribute sampler
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface AttributeSamplerMBean {
+	/**
+	 * Summarize the samples of every sampled attribute
+	 * 
+	 * @param window Milliseconds back from now to summarize, at most the sampler's window
+	 */
+	SampleSummary[] getSummaries(long window);
+	
+	/**
+	 * Summarize the samples of the sampled attributes of the MBeans matching a pattern
+	 * 
+	 * @param name An MBean name or pattern
+	 * @param window Milliseconds back from now to summarize, at most the sampler's window
+	 */
+	SampleSummary[] getSummaries(ObjectName name, long window);
+	
+	/**
+	 * @return One line per spec with the MBean pattern and attributes sampled
+	 */
+	String[] getAttributes();
+	
+	/**
+	 * @return The number of attributes of individual MBeans being sampled
+	 */
+	int getSeriesCount();
+	
+	/**
+	 * @return Milliseconds between samples
+	 */
+	long getPeriod();
+	
+	/**
+	 * @return Milliseconds of samples kept
+	 */
+	long getWindow();
+	
+	/**
+	 * @return The number of times an attribute could not be read or was not a number
+	 */
+	long getFailedSamples();
+}
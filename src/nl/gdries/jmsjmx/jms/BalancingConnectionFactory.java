@@ -0,0 +1,209 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+
+/**
+ * A ConnectionFactory that connects to the lowest latency reachable broker out of
+ * several. Brokers are probed with a TCP connect before the first connection and 
+ * every rebalance interval after that. Connections to a broker that has become 
+ * unreachable or much slower than the best one are closed, so their connectors 
+ * reconnect through the best broker.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class BalancingConnectionFactory implements ConnectionFactory {
+	public static final long DEFAULT_REBALANCE_INTERVAL = 30000;
+	public static final int DEFAULT_PROBE_TIMEOUT = 2000;
+	
+	/**
+	 * Creates the JMS provider's ConnectionFactory for a single broker
+	 */
+	public interface BrokerFactory {
+		/**
+		 * @param broker host:port of the broker
+		 */
+		ConnectionFactory createConnectionFactory(String broker) throws JMSException;
+	}
+	
+	private final BrokerFactory brokerFactory;
+	private final BrokerSelector selector;
+	private final long rebalanceInterval;
+	
+	private final Map<String, ConnectionFactory> factories = new HashMap<String, ConnectionFactory>();
+	
+	// Open connections and the broker each one is connected to
+	private final Map<Connection, String> connections = new HashMap<Connection, String>();
+	
+	private boolean probed;
+	private Timer timer;
+	
+	public BalancingConnectionFactory(List<String> brokers, BrokerFactory brokerFactory) {
+		this(brokers, brokerFactory, DEFAULT_REBALANCE_INTERVAL, DEFAULT_PROBE_TIMEOUT);
+	}
+	
+	/**
+	 * @param brokers host:port of each broker
+	 * @param brokerFactory Creates the factory for each broker
+	 * @param rebalanceInterval Milliseconds between probes of open connections' brokers, 0 to
+	 *        never move open connections
+	 * @param probeTimeout Milliseconds to wait for a broker to accept a TCP connection
+	 */
+	public BalancingConnectionFactory(List<String> brokers, BrokerFactory brokerFactory, 
+			long rebalanceInterval, int probeTimeout) {
+		if(brokers.isEmpty())
+			throw new IllegalArgumentException("At least one broker is required");
+		
+		this.brokerFactory = brokerFactory;
+		this.selector = new BrokerSelector(new ArrayList<String>(brokers), probeTimeout);
+		this.rebalanceInterval = rebalanceInterval;
+	}
+	
+	public Connection createConnection() throws JMSException {
+		return createConnection(null, null);
+	}
+
+	/**
+	 * Connect to the fastest broker, or to the next one if that fails
+	 */
+	public Connection createConnection(String userName, String password) throws JMSException {
+		synchronized(this) {
+			if(!probed) {
+				selector.probe();
+				probed = true;
+			}
+		}
+		
+		JMSException failure = null;
+		for(String broker: selector.rank()) {
+			try {
+				ConnectionFactory factory = getFactory(broker);
+				Connection connection = userName == null ? 
+						factory.createConnection() : factory.createConnection(userName, password);
+				return track(connection, broker);
+			} catch (JMSException e) {
+				selector.failed(broker);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+	
+	/**
+	 * @return The smoothed TCP connect latency of each broker in microseconds, 
+	 * Long.MAX_VALUE for unreachable brokers
+	 */
+	public Map<String, Long> getLatencies() {
+		return selector.getLatencies();
+	}
+	
+	private synchronized ConnectionFactory getFactory(String broker) throws JMSException {
+		ConnectionFactory factory = factories.get(broker);
+		if(factory == null) {
+			factory = brokerFactory.createConnectionFactory(broker);
+			factories.put(broker, factory);
+		}
+		return factory;
+	}
+	
+	/**
+	 * Remember which broker the connection is connected to, until it's closed
+	 */
+	private synchronized Connection track(final Connection connection, String broker) {
+		Connection proxy = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), 
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("close") && args == null)
+					untrack(proxy);
+				
+				try {
+					return method.invoke(connection, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+		
+		connections.put(proxy, broker);
+		
+		if(timer == null && rebalanceInterval > 0) {
+			timer = new Timer("BalancingConnectionFactory", true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					rebalance();
+				}
+			}, rebalanceInterval, rebalanceInterval);
+		}
+		return proxy;
+	}
+	
+	private synchronized void untrack(Object connection) {
+		connections.remove(connection);
+		if(connections.isEmpty() && timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+	
+	/**
+	 * Close connections to degraded brokers, so they are reopened through a better one
+	 */
+	private void rebalance() {
+		selector.probe();
+		
+		List<Connection> degraded = new ArrayList<Connection>();
+		synchronized(this) {
+			for(Map.Entry<Connection, String> entry: connections.entrySet()) {
+				if(selector.isDegraded(entry.getValue()))
+					degraded.add(entry.getKey());
+			}
+		}
+		
+		for(Connection connection: degraded) {
+			try {
+				connection.close();
+			} catch (JMSException e) {
+				// It's going away either way
+			}
+		}
+	}
+}
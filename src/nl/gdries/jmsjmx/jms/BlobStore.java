@@ -0,0 +1,61 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage for message payloads that are too big to send through the broker. The sender 
+ * puts the payload in the store and only sends the reference, the receiver reads the 
+ * payload from the store and deletes it. Both peers must use stores that see the same
+ * blobs, like FileBlobStores on a shared directory.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface BlobStore {
+	/**
+	 * Store a payload
+	 * 
+	 * @param expiration Time in milliseconds since the epoch after which the blob may be 
+	 *        removed, even when nobody read it
+	 * @return The reference to send to the receiver
+	 */
+	String put(byte[] data, int offset, int length, long expiration) throws IOException;
+	
+	/**
+	 * Read a stored payload
+	 * 
+	 * @throws IOException When the blob does not exist (anymore)
+	 */
+	InputStream open(String reference) throws IOException;
+	
+	/**
+	 * Remove a payload that was read, nothing happens if it's already gone
+	 */
+	void delete(String reference) throws IOException;
+}
@@ -0,0 +1,168 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks brokers by the time it takes to open a TCP connection to them. Latencies are
+ * smoothed over successive probes so a single slow probe doesn't cause a switch.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class BrokerSelector {
+	static final long UNREACHABLE = Long.MAX_VALUE;
+	
+	// A broker is degraded when it's this many times slower than the best one, plus some slack
+	private static final int DEGRADED_FACTOR = 2;
+	private static final long DEGRADED_SLACK = 5000; // microseconds
+	
+	private final List<String> brokers;
+	private final int probeTimeout;
+	
+	// Smoothed connect latency in microseconds per broker
+	private final Map<String, Long> latencies = new HashMap<String, Long>();
+	
+	/**
+	 * @param brokers host:port of each broker
+	 * @param probeTimeout How long to wait for a TCP connection in milliseconds
+	 */
+	BrokerSelector(List<String> brokers, int probeTimeout) {
+		this.brokers = brokers;
+		this.probeTimeout = probeTimeout;
+	}
+	
+	/**
+	 * Probe all brokers in parallel and update their latencies
+	 */
+	void probe() {
+		final long[] results = new long[brokers.size()];
+		Thread[] threads = new Thread[brokers.size()];
+		for(int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread("BrokerProbe-" + brokers.get(i)) {
+				@Override
+				public void run() {
+					results[index] = connectTime(brokers.get(index));
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		
+		for(int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join(probeTimeout * 2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		
+		synchronized(this) {
+			for(int i = 0; i < threads.length; i++) {
+				long latency = threads[i].isAlive() || results[i] == 0 ? UNREACHABLE : results[i];
+				Long previous = latencies.get(brokers.get(i));
+				if(latency != UNREACHABLE && previous != null && previous != UNREACHABLE)
+					latency = (previous + latency) / 2;
+				latencies.put(brokers.get(i), latency);
+			}
+		}
+	}
+	
+	/**
+	 * @return The time to open a TCP connection in microseconds, or UNREACHABLE
+	 */
+	private long connectTime(String broker) {
+		int colon = broker.lastIndexOf(':');
+		Socket socket = new Socket();
+		try {
+			long start = System.nanoTime();
+			socket.connect(new InetSocketAddress(broker.substring(0, colon), 
+					Integer.parseInt(broker.substring(colon + 1))), probeTimeout);
+			return Math.max(1, (System.nanoTime() - start) / 1000);
+		} catch (IOException e) {
+			return UNREACHABLE;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+	
+	/**
+	 * Remember that connecting to a broker failed, until the next probe says otherwise
+	 */
+	synchronized void failed(String broker) {
+		latencies.put(broker, UNREACHABLE);
+	}
+	
+	synchronized long getLatency(String broker) {
+		Long latency = latencies.get(broker);
+		return latency == null ? UNREACHABLE : latency;
+	}
+	
+	/**
+	 * @return All brokers, fastest first and unreachable ones last in their original order
+	 */
+	synchronized List<String> rank() {
+		List<String> result = new ArrayList<String>(brokers);
+		Collections.sort(result, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long la = getLatency(a), lb = getLatency(b);
+				return la < lb ? -1 : la > lb ? 1 : 0;
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * @return true if the broker is unreachable, or much slower than the best broker
+	 */
+	synchronized boolean isDegraded(String broker) {
+		long latency = getLatency(broker);
+		if(latency == UNREACHABLE)
+			return true;
+		
+		long best = getLatency(rank().get(0));
+		return latency > best * DEGRADED_FACTOR + DEGRADED_SLACK;
+	}
+	
+	synchronized Map<String, Long> getLatencies() {
+		return new HashMap<String, Long>(latencies);
+	}
+}
@@ -26,46 +26,151 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package nl.gdries.jmsjmx.jms;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.jms.TemporaryTopic;
+import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXServiceURL;
+import javax.management.remote.generic.GenericConnector;
+import javax.management.remote.generic.ObjectWrapping;
+import javax.management.remote.message.MBeanServerRequestMessage;
+import javax.management.remote.message.MBeanServerResponseMessage;
 import javax.management.remote.message.Message;
+import javax.management.remote.message.NotificationRequestMessage;
+import javax.management.remote.message.NotificationResponseMessage;
 
+import com.sun.jmx.remote.generic.ObjectWrappingImpl;
+
+/**
+ * The client side of a connection over JMS. When the server hands out a session token and
+ * RESUME_TIMEOUT is set, losing the broker connection doesn't fail the connection. The
+ * session is resumed on a new broker connection instead, without a new JMXMP handshake, 
+ * so the server keeps the listeners of this client. Of the requests that were not answered
+ * when the broker connection was lost, the server answers the ones it's still executing. 
+ * The others are sent again if that's harmless, or fail with an IOException since they may
+ * or may not have been executed.
+ */
 public class ClientMessageConnection extends AbstractMessageConnection {
 	public static final Long DEFAULT_CONNECT_TIMEOUT = 10000L;
+	
+	// Delays between attempts to reach the server when resuming
+	private static final long INITIAL_RESUME_DELAY = 50;
+	private static final long MAX_RESUME_DELAY = 2000;
 
 	protected final ConnectionFactory connectionFactory;
+	protected final JMXServiceURL serviceURL;
 	protected final String topic;
 	
 	protected Connection connection;
+	protected boolean sharedConnection;
+	private LossListener lossListener;
+	
+	// At most this many requests are timed at once, requests unanswered for PENDING_EXPIRY 
+	// microseconds are forgotten to make room
+	private static final int MAX_PENDING = 10000;
+	private static final long PENDING_EXPIRY = 600000000L;
+	
+	// Requests sent with timing enabled that have not been answered yet
+	private final Map<Long, PendingRequest> pending = new ConcurrentHashMap<Long, PendingRequest>();
+	private final ClockOffset clockOffset = new ClockOffset();
+	
+	private Object brokerKey;
+	private long resumeTimeout;
+	private ObjectWrapping objectWrapping;
+	private volatile boolean closing;
+	
+	// Writes hold the read lock, resuming holds the write lock so nothing is sent halfway
+	private final ReadWriteLock resumeLock = new ReentrantReadWriteLock();
+	private volatile int generation;
+	
+	// Requests and the notification fetch that have not been answered yet, when resuming is enabled
+	private final Map<Long, Sent> unanswered = new ConcurrentHashMap<Long, Sent>();
+	private volatile Sent fetch;
+	
+	// Answers for requests that failed because they could not be sent again
+	private final LinkedList<Message> failed = new LinkedList<Message>();
+	
+	// Set when messages are handed to a handler instead of read by readMessage
+	private volatile MessageHandler handler;
+	
+	// The directory shared with other connectors, held until this connection is closed
+	private ServerDirectory sharedDirectory;
 	
 	public ClientMessageConnection(ConnectionFactory connectionFactory, JMXServiceURL serviceURL) {
 		this.connectionFactory = connectionFactory;
+		this.serviceURL = serviceURL;
 		
-		String topic = serviceURL.getURLPath();
-		if(topic.length() == 0) {
-			throw new IllegalArgumentException("The topic name must be provided in the service URL");
-		}
-		
-		// Use the part after the / or ; as the topic name
-		this.topic = topic.substring(1);
+		this.topic = ServiceURLHelper.getTopic(serviceURL);
 	}
 	
 	@Override
 	@SuppressWarnings("unchecked")
 	public void connect(Map env) throws IOException {
+		long eventStart = TransportEvents.start();
 		try {
-			// Create the connection
-			connection = connectionFactory.createConnection();
+			// Don't wait for the connect timeout if we know the server isn't there
+			ServerDirectory directory = getServerDirectory(env);
+			ServerDirectory acquired = directory != env.get(AbstractClientProvider.SERVER_DIRECTORY) ? directory : null;
+			if(directory != null && directory.isGone(topic)) {
+				if(acquired != null)
+					ServerDirectory.releaseShared(acquired);
+				throw new IOException("No server is listening on " + topic);
+			}
+			
+			// When the connector reconnects, let go of the previous connection. The server 
+			// will answer from a new destination.
+			if(session != null) {
+				try {
+					close();
+				} catch (IOException e) {
+					// It's broken already, that's why we're reconnecting
+				}
+				peerDestination = null;
+				producer = null;
+			}
+			
+			// Keep using the shared directory until closed
+			releaseDirectory();
+			sharedDirectory = acquired;
+			
+			// The new connection gets a new session token, if the server hands them out
+			closing = false;
+			sessionToken = null;
+			unanswered.clear();
+			fetch = null;
+			pending.clear();
+			synchronized(failed) {
+				failed.clear();
+			}
+			resumeTimeout = EnvHelper.getLong(env, RESUME_TIMEOUT, 0);
+			Object wrapping = env.get(GenericConnector.OBJECT_WRAPPING);
+			objectWrapping = wrapping instanceof ObjectWrapping ? (ObjectWrapping)wrapping : new ObjectWrappingImpl();
+			
+			// Create the connection, or use the one shared by all connectors to this broker
+			sharedConnection = EnvHelper.getBoolean(env, AbstractClientProvider.SHARE_CONNECTION, false);
+			brokerKey = getBrokerKey(env);
+			lossListener = new LossListener();
+			connection = openConnection(lossListener);
 			
 			// Create the session 
-			connection.start();
-			session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			deliveryStrategy = DeliveryStrategy.fromEnvironment(env);
+			session = deliveryStrategy.createSession(connection);
 
 			// Create a topic for communication
 			myDestination = session.createTemporaryTopic();
@@ -77,8 +182,17 @@ public class ClientMessageConnection extends AbstractMessageConnection {
 			javax.jms.Message msg = session.createMessage();
 			msg.setStringProperty(PROP_REQUESTTYPE, REQUESTTYPE_CONNECT);
 			msg.setJMSReplyTo(myDestination);
+			msg.setStringProperty(PROP_CONNECTIONID, connectionId);
+			
+			String sessionClass = EnvHelper.getString(env, AbstractClientProvider.SESSION_CLASS, null);
+			if(sessionClass != null)
+				msg.setStringProperty(PROP_SESSIONCLASS, sessionClass);
+			
+			// The server compresses its messages only with what we can read
+			advertiseCompressions(msg);
+			msg.setBooleanProperty(PROP_BYTES, true);
 			
-			MessageProducer p = session.createProducer(session.createTopic(topic));
+			MessageProducer p = deliveryStrategy.createProducer(session, session.createTopic(topic));
 			p.send(msg);
 			p.close();
 			
@@ -87,6 +201,8 @@ public class ClientMessageConnection extends AbstractMessageConnection {
 				receiveTimeout = (Long)env.get(AbstractClientProvider.CONNECTION_TIMEOUT);
 			else
 				receiveTimeout = DEFAULT_CONNECT_TIMEOUT;
+			
+			TransportEvents.connected(connectionId, topic, eventStart);
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
 		}		
@@ -98,21 +214,592 @@ public class ClientMessageConnection extends AbstractMessageConnection {
 	 */
 	@Override
 	public Message readMessage() throws IOException, ClassNotFoundException {
+		boolean handshake = receiveTimeout != MAX_TIMEOUT;
 		try {
-			return super.readMessage();
+			while(true) {
+				synchronized(failed) {
+					if(!failed.isEmpty())
+						return failed.removeFirst();
+				}
+				
+				int generation = this.generation;
+				try {
+					Message message = super.readMessage();
+					if(answered(message))
+						return message;
+				} catch (IOException e) {
+					resume(generation, e);
+				}
+			}
+		} catch (IOException e) {
+			// The connector gives up on a connection whose handshake fails without closing it
+			if(handshake)
+				releaseDirectory();
+			throw e;
 		} finally {
 			receiveTimeout = MAX_TIMEOUT;
 		}
 	}
 	
+	/**
+	 * Messages handed to the handler get the same treatment as the ones readMessage returns:
+	 * second answers to requests sent again are dropped, and losing the broker connection
+	 * resumes the session.
+	 */
 	@Override
-	public void close() throws IOException {
+	public void setMessageHandler(final MessageHandler handler) throws IOException {
+		this.handler = handler;
+		super.setMessageHandler(new MessageHandler() {
+			public void handleMessage(Message message) {
+				if(answered(message))
+					handler.handleMessage(message);
+			}
+			
+			public void handleException(Exception e) {
+				if(e instanceof IOException && isConnectionLost((IOException)e)) {
+					try {
+						resume(generation, (IOException)e);
+						return;
+					} catch (IOException failure) {
+						// The handler only has to know the connection is gone for good
+						if(failure instanceof ConnectionLostException) {
+							e = failure;
+						} else {
+							ConnectionLostException lost = new ConnectionLostException(failure.getMessage());
+							lost.initCause(failure);
+							e = lost;
+						}
+					}
+				}
+				handler.handleException(e);
+			}
+		});
+	}
+	
+	/**
+	 * Writes a message. When the broker connection is lost, the message is sent again once
+	 * the session is resumed.
+	 */
+	@Override
+	public void writeMessage(Message message) throws IOException {
+		IOException failure;
+		resumeLock.readLock().lock();
+		int generation = this.generation;
+		try {
+			track(message, generation);
+			super.writeMessage(message);
+			return;
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			resumeLock.readLock().unlock();
+		}
+		
+		resume(generation, failure);
+		
+		// Resuming sent the tracked messages again, others are sent here
+		resumeLock.readLock().lock();
+		try {
+			if(!isTracked(message))
+				super.writeMessage(message);
+		} finally {
+			resumeLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Remember requests and notification fetches until they're answered, so they can be
+	 * sent again when resuming
+	 */
+	private void track(Message message, int generation) {
+		if(resumeTimeout <= 0 || sessionToken == null)
+			return;
+		
+		if(message instanceof MBeanServerRequestMessage)
+			unanswered.put(((MBeanServerRequestMessage)message).getMessageId(), new Sent(message, generation));
+		else if(message instanceof NotificationRequestMessage)
+			fetch = new Sent(message, generation);
+	}
+	
+	private boolean isTracked(Message message) {
+		if(message instanceof MBeanServerRequestMessage)
+			return true;
+		if(message instanceof NotificationRequestMessage)
+			return fetch != null && fetch.message == message;
+		return false;
+	}
+	
+	/**
+	 * @return false for a second answer to a request that was sent again when resuming
+	 */
+	private boolean answered(Message message) {
+		if(resumeTimeout <= 0 || sessionToken == null)
+			return true;
+		
+		if(message instanceof MBeanServerResponseMessage)
+			return unanswered.remove(((MBeanServerResponseMessage)message).getMessageId()) != null;
+		
+		if(message instanceof NotificationResponseMessage) {
+			if(fetch == null)
+				return false;
+			fetch = null;
+		}
+		return true;
+	}
+	
+	/**
+	 * Re-attach to our session on the server after the broker connection was lost. Only the
+	 * first thread to notice resumes, the others wait for it.
+	 * 
+	 * @param generation The generation the failure happened in
+	 * @param cause Thrown if the session can't be resumed
+	 */
+	private void resume(int generation, IOException cause) throws IOException {
+		resumeLock.writeLock().lock();
+		try {
+			if(this.generation != generation)
+				return;
+			if(closing || resumeTimeout <= 0 || sessionToken == null || !isConnectionLost(cause))
+				throw cause;
+			
+			javax.jms.Message answer = reattach(System.currentTimeMillis() + resumeTimeout, cause);
+			this.generation++;
+			resend(answer.getStringProperty(PROP_EXECUTING), answer.getBooleanProperty(PROP_FETCHING));
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		} finally {
+			resumeLock.writeLock().unlock();
+		}
+		
+		deliverFailed();
+	}
+	
+	/**
+	 * Hand the answers to requests that failed when resuming to the handler. Without one,
+	 * readMessage returns them.
+	 */
+	private void deliverFailed() {
+		MessageHandler handler = this.handler;
+		if(handler == null)
+			return;
+		
+		while(true) {
+			Message message;
+			synchronized(failed) {
+				if(failed.isEmpty())
+					return;
+				message = failed.removeFirst();
+			}
+			handler.handleMessage(message);
+		}
+	}
+	
+	/**
+	 * Open a new broker connection and ask the server to send to it from now on, retrying
+	 * until the server answers or the deadline passes
+	 * 
+	 * @return The server's answer, it tells which requests it's still executing
+	 */
+	private javax.jms.Message reattach(long deadline, IOException cause) throws IOException {
+		releaseConnection();
+		
+		Connection newConnection = null;
+		LossListener newListener = null;
+		Session newSession = null;
+		TemporaryTopic destination = null;
+		MessageConsumer newConsumer = null;
+		long delay = INITIAL_RESUME_DELAY;
+		
+		while(true) {
+			if(closing) {
+				closeConnection(newConnection, newListener);
+				throw cause;
+			}
+			
+			try {
+				if(newConnection == null) {
+					newListener = new LossListener();
+					newConnection = openConnection(newListener);
+					newSession = deliveryStrategy.createSession(newConnection);
+					destination = newSession.createTemporaryTopic();
+					newConsumer = newSession.createConsumer(destination);
+				}
+				
+				javax.jms.Message msg = newSession.createMessage();
+				msg.setStringProperty(PROP_REQUESTTYPE, REQUESTTYPE_CONNECT);
+				msg.setStringProperty(PROP_SESSIONTOKEN, sessionToken);
+				msg.setJMSReplyTo(destination);
+				MessageProducer p = deliveryStrategy.createProducer(newSession, newSession.createTopic(topic));
+				p.send(msg);
+				p.close();
+				
+				// The server may still be reconnecting itself, ask again if it doesn't answer
+				javax.jms.Message answer = newConsumer.receive(Math.max(1, Math.min(delay, deadline - System.currentTimeMillis())));
+				if(answer != null && deliveryStrategy.isClientAcknowledge())
+					answer.acknowledge();
+				
+				String type = answer == null ? null : answer.getStringProperty(PROP_REQUESTTYPE);
+				if(REQUESTTYPE_RESUMED.equals(type)) {
+					connection = newConnection;
+					lossListener = newListener;
+					rebind(newSession, destination, newConsumer, answer.getJMSReplyTo());
+					return answer;
+				}
+				
+				if(REQUESTTYPE_REJECTED.equals(type)) {
+					closeConnection(newConnection, newListener);
+					IOException e = new IOException("The server no longer has the session to resume");
+					e.initCause(cause);
+					throw e;
+				}
+			} catch (JMSException e) {
+				// The broker isn't back yet
+				closeConnection(newConnection, newListener);
+				newConnection = null;
+				sleep(Math.min(delay, deadline - System.currentTimeMillis()));
+			}
+			
+			if(System.currentTimeMillis() >= deadline) {
+				closeConnection(newConnection, newListener);
+				throw cause;
+			}
+			delay = Math.min(delay * 2, MAX_RESUME_DELAY);
+		}
+	}
+	
+	/**
+	 * Send the requests that were not answered again, or fail them if executing them twice
+	 * would do harm. Requests the server is still executing will be answered as usual. Must 
+	 * be called with the write lock held.
+	 * 
+	 * @param executing The comma separated ids of the requests the server is executing
+	 * @param fetching Whether the server is still working on our notification fetch
+	 */
+	private void resend(String executing, boolean fetching) throws IOException {
+		List<String> busy = executing == null ? Collections.<String>emptyList() : Arrays.asList(executing.split(","));
+		Long[] ids = unanswered.keySet().toArray(new Long[0]);
+		Arrays.sort(ids);
+		
+		for(Long id: ids) {
+			Sent sent = unanswered.get(id);
+			if(sent == null || sent.generation == generation)
+				continue;
+			
+			if(busy.contains(id.toString())) {
+				sent.generation = generation;
+				continue;
+			}
+			
+			MBeanServerRequestMessage request = (MBeanServerRequestMessage)sent.message;
+			if(isIdempotent(request.getMethodId())) {
+				sent.generation = generation;
+				super.writeMessage(request);
+			} else {
+				unanswered.remove(id);
+				IOException e = new IOException("The broker connection was lost, the request may or may not have been executed");
+				synchronized(failed) {
+					failed.add(new MBeanServerResponseMessage(id, objectWrapping.wrap(e), true));
+				}
+			}
+		}
+		
+		// Fetching notifications again returns the same ones, the server keeps them by sequence number
+		Sent sent = fetch;
+		if(sent != null && sent.generation != generation) {
+			sent.generation = generation;
+			if(!fetching)
+				super.writeMessage(sent.message);
+		}
+	}
+	
+	/**
+	 * @return Whether a request only reads, so executing it twice does no harm
+	 */
+	private static boolean isIdempotent(int methodId) {
+		switch(methodId) {
+		case MBeanServerRequestMessage.GET_ATTRIBUTE:
+		case MBeanServerRequestMessage.GET_ATTRIBUTES:
+		case MBeanServerRequestMessage.GET_DEFAULT_DOMAIN:
+		case MBeanServerRequestMessage.GET_DOMAINS:
+		case MBeanServerRequestMessage.GET_MBEAN_COUNT:
+		case MBeanServerRequestMessage.GET_MBEAN_INFO:
+		case MBeanServerRequestMessage.GET_OBJECT_INSTANCE:
+		case MBeanServerRequestMessage.IS_INSTANCE_OF:
+		case MBeanServerRequestMessage.IS_REGISTERED:
+		case MBeanServerRequestMessage.QUERY_MBEANS:
+		case MBeanServerRequestMessage.QUERY_NAMES:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Create and start a connection, or use the one shared by all connectors to this broker
+	 */
+	private Connection openConnection(LossListener listener) throws JMSException {
+		Connection c;
+		if(sharedConnection) {
+			c = SharedConnections.acquire(brokerKey, connectionFactory, listener);
+		} else {
+			c = connectionFactory.createConnection();
+			c.setExceptionListener(listener);
+			c.start();
+		}
+		listener.connection = c;
+		return c;
+	}
+	
+	/**
+	 * Let go of the broken broker connection
+	 */
+	private void releaseConnection() {
 		try {
-			super.close();
 			session.close();
-			connection.close();
+		} catch (JMSException e) {
+			// Closed already
+		}
+		
+		try {
+			if(sharedConnection)
+				SharedConnections.release(connection, lossListener);
+			else
+				connection.close();
+		} catch (JMSException e) {
+			// Closed already
+		}
+	}
+	
+	private void closeConnection(Connection c, LossListener listener) {
+		if(c == null)
+			return;
+		
+		try {
+			if(sharedConnection)
+				SharedConnections.release(c, listener);
+			else
+				c.close();
+		} catch (JMSException e) {
+			// Nothing left to clean up
+		}
+	}
+	
+	private static void sleep(long millis) throws IOException {
+		if(millis <= 0)
+			return;
+		
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while resuming the session");
+		}
+	}
+	
+	/**
+	 * Stamp requests with the time they were serialized and sent
+	 */
+	@Override
+	protected void sending(Message message, javax.jms.Message msg, long encodeStart) throws JMSException {
+		if(!(message instanceof MBeanServerRequestMessage))
+			return;
+		
+		MBeanServerRequestMessage request = (MBeanServerRequestMessage)message;
+		long sent = RequestTiming.now();
+		msg.setLongProperty(RequestTiming.PROP_CLIENT_SEND, sent);
+		
+		// Requests that are never answered, like ones that timed out, would pile up
+		if(pending.size() >= MAX_PENDING) {
+			for(Iterator<PendingRequest> i = pending.values().iterator(); i.hasNext();) {
+				if(sent - i.next().sent > PENDING_EXPIRY)
+					i.remove();
+			}
+			if(pending.size() >= MAX_PENDING)
+				return;
+		}
+		pending.put(request.getMessageId(), new PendingRequest(RequestTiming.describe(request), encodeStart, sent));
+	}
+	
+	/**
+	 * Combine the timestamps of the request and its response into a timing breakdown
+	 */
+	@Override
+	protected void received(Message message, javax.jms.Message msg, long received) throws JMSException {
+		if(!(message instanceof MBeanServerResponseMessage))
+			return;
+		
+		PendingRequest request = pending.remove(((MBeanServerResponseMessage)message).getMessageId());
+		if(request == null || !msg.propertyExists(RequestTiming.PROP_SERVER_SEND))
+			return;
+		
+		long[] t = new long[10];
+		t[0] = request.encodeStart;
+		t[1] = request.sent;
+		t[2] = msg.getLongProperty(RequestTiming.PROP_SERVER_RECEIVE);
+		t[3] = msg.getLongProperty(RequestTiming.PROP_SERVER_DECODED);
+		if(msg.propertyExists(RequestTiming.PROP_EXECUTE_START)) {
+			t[4] = msg.getLongProperty(RequestTiming.PROP_EXECUTE_START);
+			t[5] = msg.getLongProperty(RequestTiming.PROP_EXECUTE_END);
+		}
+		t[6] = msg.getLongProperty(RequestTiming.PROP_SERVER_ENCODE);
+		t[7] = msg.getLongProperty(RequestTiming.PROP_SERVER_SEND);
+		t[8] = received;
+		t[9] = RequestTiming.now();
+		
+		long offset = clockOffset.update(t[1], t[2], t[7], t[8]);
+		RequestTimings.getInstance().record(new RequestTiming(serviceURL.toString(), request.operation, t, offset));
+	}
+	
+	@Override
+	public void close() throws IOException {
+		closing = true;
+		pending.clear();
+		try {
+			try {
+				super.close();
+				session.close();
+			} finally {
+				// Always let go of the connection, even if the session is broken
+				if(sharedConnection)
+					SharedConnections.release(connection, lossListener);
+				else
+					connection.close();
+			}
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
+		} finally {
+			releaseDirectory();
+		}
+	}
+	
+	/**
+	 * Let go of the shared directory, the last connector to do so stops it
+	 */
+	private void releaseDirectory() {
+		if(sharedDirectory == null)
+			return;
+		
+		try {
+			ServerDirectory.releaseShared(sharedDirectory);
+		} catch (IOException e) {
+			// The directory lost its connection, it has stopped listening already
+		} finally {
+			sharedDirectory = null;
+		}
+	}
+	
+	/**
+	 * @return The directory of live servers configured in the environment, or null if none is
+	 */
+	@SuppressWarnings("unchecked")
+	private ServerDirectory getServerDirectory(Map env) throws JMSException {
+		Object directory = env.get(AbstractClientProvider.SERVER_DIRECTORY);
+		if(directory instanceof ServerDirectory)
+			return (ServerDirectory)directory;
+		
+		if(!EnvHelper.getBoolean(env, AbstractClientProvider.SERVER_DIRECTORY, false))
+			return null;
+		
+		return ServerDirectory.getShared(getBrokerKey(env), connectionFactory, 
+				EnvHelper.getString(env, AbstractClientProvider.ADVERTISEMENT_TOPIC, ServerDirectory.DEFAULT_ADVERTISEMENT_TOPIC), 
+				EnvHelper.getLong(env, AbstractClientProvider.ADVERTISEMENT_INTERVAL, ServerDirectory.DEFAULT_ADVERTISEMENT_INTERVAL));
+	}
+	
+	/**
+	 * Identifies the broker and credentials this connection uses, so connectors that
+	 * share JMS connections only share with connectors to the same broker as the same user.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object getBrokerKey(Map env) {
+		// Without a host in the URL, only connectors using the same factory can share
+		if(serviceURL.getHost().length() == 0)
+			return connectionFactory;
+		
+		String key = serviceURL.getProtocol() + "://" + ServiceURLHelper.getBrokers(serviceURL);
+		
+		Object credentials = env.get(JMXConnector.CREDENTIALS);
+		if(credentials instanceof String[])
+			key = ((String[])credentials)[0] + "@" + key;
+		
+		return key;
+	}
+	
+	private static class Sent {
+		final Message message;
+		int generation;
+		
+		Sent(Message message, int generation) {
+			this.message = message;
+			this.generation = generation;
+		}
+	}
+	
+	private static class PendingRequest {
+		final String operation;
+		final long encodeStart;
+		final long sent;
+		
+		PendingRequest(String operation, long encodeStart, long sent) {
+			this.operation = operation;
+			this.encodeStart = encodeStart;
+			this.sent = sent;
+		}
+	}
+	
+	/**
+	 * Estimates the server clock minus the client clock the way NTP does, using the
+	 * sample with the smallest network delay of the most recent SAMPLES requests.
+	 */
+	private static class ClockOffset {
+		private static final int SAMPLES = 16;
+		
+		private final long[] offsets = new long[SAMPLES];
+		private final long[] delays = new long[SAMPLES];
+		private int count;
+		private int next;
+		
+		/**
+		 * @param sent Client send time
+		 * @param received Server receive time
+		 * @param replied Server send time
+		 * @param answered Client receive time
+		 * @return The current estimate
+		 */
+		synchronized long update(long sent, long received, long replied, long answered) {
+			offsets[next] = ((received - sent) + (replied - answered)) / 2;
+			delays[next] = (answered - sent) - (replied - received);
+			next = (next + 1) % SAMPLES;
+			if(count < SAMPLES)
+				count++;
+			
+			int best = 0;
+			for(int j = 1; j < count; j++) {
+				if(delays[j] < delays[best])
+					best = j;
+			}
+			return offsets[best];
+		}
+	}
+	
+	/**
+	 * Tells the message handler when the broker connection in use fails. Resuming the
+	 * session can take a while, so that doesn't happen on the JMS provider's thread.
+	 */
+	private class LossListener implements ExceptionListener {
+		volatile Connection connection;
+		
+		public void onException(final JMSException e) {
+			if(closing || connection == null || connection != ClientMessageConnection.this.connection)
+				return;
+			
+			Thread thread = new Thread("ClientMessageConnection-" + topic) {
+				@Override
+				public void run() {
+					connectionLost("The broker connection failed: " + e.getMessage());
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
 		}
 	}
 }
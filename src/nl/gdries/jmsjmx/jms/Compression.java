@@ -0,0 +1,116 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compression algorithm for message payloads. Implementations are stateless and may be 
+ * used by several threads at once.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+abstract class Compression {
+	static final String LZF     = "lzf";
+	static final String DEFLATE = "deflate";
+	
+	private static final Compression lzf = new LzfCompression();
+	private static final Compression deflate = new DeflateCompression();
+	
+	// Output buffers for compression, one per thread
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+	
+	/**
+	 * @return The compression with the given name, or null if there is none
+	 */
+	static Compression forName(String name) {
+		if(LZF.equals(name))
+			return lzf;
+		if(DEFLATE.equals(name))
+			return deflate;
+		return null;
+	}
+	
+	/**
+	 * Parse a comma separated list of compression names, in order of preference
+	 */
+	static List<Compression> parse(String names) {
+		List<Compression> result = new ArrayList<Compression>();
+		if(names == null)
+			return result;
+		
+		for(String name: names.split(",")) {
+			name = name.trim().toLowerCase();
+			if(name.length() == 0 || name.equals("none"))
+				continue;
+			
+			Compression compression = forName(name);
+			if(compression == null)
+				throw new IllegalArgumentException("Unknown compression '" + name + "', use " + LZF + " or " + DEFLATE);
+			result.add(compression);
+		}
+		return result;
+	}
+	
+	/**
+	 * Get this thread's buffer to compress <i>length</i> bytes into. It's only valid until 
+	 * the next call on the same thread.
+	 */
+	static byte[] getScratch(int length) {
+		int size = maxCompressedLength(length);
+		byte[] buffer = scratch.get();
+		if(buffer == null || buffer.length < size) {
+			buffer = new byte[size];
+			if(size <= MessageCodec.MAX_RETAINED_BUFFER)
+				scratch.set(buffer);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * @return The size of a buffer that fits <i>length</i> bytes compressed by any algorithm
+	 */
+	static int maxCompressedLength(int length) {
+		return length + (length >> 5) + 64;
+	}
+	
+	abstract String getName();
+	
+	/**
+	 * Compress into a buffer of at least maxCompressedLength(length) bytes
+	 * 
+	 * @return The compressed length
+	 */
+	abstract int compress(byte[] in, int length, byte[] out);
+	
+	/**
+	 * Decompress into a buffer of at least the original length
+	 */
+	abstract void decompress(byte[] in, int length, byte[] out, int originalLength) throws IOException;
+}
@@ -0,0 +1,168 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what compression does for the connections in this JVM. It is registered on the
+ * platform MBeanServer as nl.gdries.jmsjmx:type=CompressionStatistics when the first
+ * connection with compression enabled connects.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class CompressionStatistics implements CompressionStatisticsMBean {
+	public static final String OBJECT_NAME = "nl.gdries.jmsjmx:type=CompressionStatistics";
+	
+	private static final CompressionStatistics instance = new CompressionStatistics();
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static boolean registered;
+	
+	private final AtomicLong compressed = new AtomicLong();
+	private final AtomicLong small = new AtomicLong();
+	private final AtomicLong incompressible = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong decompressed = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final AtomicLong compressionTime = new AtomicLong();
+	private final AtomicLong decompressionTime = new AtomicLong();
+	
+	CompressionStatistics() {
+	}
+	
+	public static CompressionStatistics getInstance() {
+		return instance;
+	}
+	
+	static synchronized void register() {
+		if(registered)
+			return;
+		
+		registered = true;
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!mbs.isRegistered(name))
+				mbs.registerMBean(instance, name);
+		} catch (JMException e) {
+			// Compression still works, it just can't be watched over JMX
+		}
+	}
+	
+	/**
+	 * @return The CPU time of this thread in nanoseconds, or the wall clock time if the
+	 *         JVM doesn't measure CPU time
+	 */
+	static long cpuTime() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+	
+	void compressed(int before, int after, long nanos) {
+		compressed.incrementAndGet();
+		uncompressedBytes.addAndGet(before);
+		compressedBytes.addAndGet(after);
+		compressionTime.addAndGet(nanos);
+	}
+	
+	void incompressible(long nanos) {
+		incompressible.incrementAndGet();
+		compressionTime.addAndGet(nanos);
+	}
+	
+	void small() {
+		small.incrementAndGet();
+	}
+	
+	void skipped() {
+		skipped.incrementAndGet();
+	}
+	
+	void decompressed(long nanos) {
+		decompressed.incrementAndGet();
+		decompressionTime.addAndGet(nanos);
+	}
+
+	public long getCompressedMessages() {
+		return compressed.get();
+	}
+
+	public long getSmallMessages() {
+		return small.get();
+	}
+
+	public long getIncompressibleMessages() {
+		return incompressible.get();
+	}
+
+	public long getSkippedMessages() {
+		return skipped.get();
+	}
+
+	public long getDecompressedMessages() {
+		return decompressed.get();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	public double getRatio() {
+		long before = uncompressedBytes.get();
+		return before == 0 ? 1 : (double)compressedBytes.get() / before;
+	}
+
+	public long getCompressionTime() {
+		return compressionTime.get() / 1000000;
+	}
+
+	public long getDecompressionTime() {
+		return decompressionTime.get() / 1000000;
+	}
+
+	public void resetCounters() {
+		compressed.set(0);
+		small.set(0);
+		incompressible.set(0);
+		skipped.set(0);
+		decompressed.set(0);
+		uncompressedBytes.set(0);
+		compressedBytes.set(0);
+		compressionTime.set(0);
+		decompressionTime.set(0);
+	}
+}
@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+/**
+ * Management interface of the compression statistics
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface CompressionStatisticsMBean {
+	/**
+	 * @return The number of messages sent compressed
+	 */
+	long getCompressedMessages();
+	
+	/**
+	 * @return The number of messages sent uncompressed because they were below the threshold
+	 */
+	long getSmallMessages();
+	
+	/**
+	 * @return The number of messages compressed and then sent uncompressed, because it saved too little
+	 */
+	long getIncompressibleMessages();
+	
+	/**
+	 * @return The number of messages sent uncompressed without trying, because the messages
+	 *         before them saved too little
+	 */
+	long getSkippedMessages();
+	
+	/**
+	 * @return The number of messages received compressed
+	 */
+	long getDecompressedMessages();
+	
+	/**
+	 * @return The bytes of the messages sent compressed, before compression
+	 */
+	long getUncompressedBytes();
+	
+	/**
+	 * @return The bytes of the messages sent compressed, after compression
+	 */
+	long getCompressedBytes();
+	
+	/**
+	 * @return Compressed bytes divided by uncompressed bytes
+	 */
+	double getRatio();
+	
+	/**
+	 * @return Milliseconds of CPU time spent compressing, including messages that were 
+	 *         sent uncompressed after all
+	 */
+	long getCompressionTime();
+	
+	/**
+	 * @return Milliseconds of CPU time spent decompressing
+	 */
+	long getDecompressionTime();
+	
+	void resetCounters();
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+/**
+ * Tracks whether a connector server is connected to the broker. A connector server that 
+ * starts in the background, see AbstractServerProvider.BACKGROUND_START, registers its
+ * status so applications can tell when it's ready.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class ConnectorServerStatus implements ConnectorServerStatusMBean {
+	public static final String STARTING = "STARTING";
+	public static final String READY = "READY";
+	public static final String RECONNECTING = "RECONNECTING";
+	public static final String STOPPED = "STOPPED";
+	
+	private String state = STARTING;
+	private int failedAttempts;
+	private String lastError;
+	private long readySince;
+	
+	public synchronized String getState() {
+		return state;
+	}
+	
+	public synchronized boolean isReady() {
+		return state == READY;
+	}
+	
+	public synchronized int getFailedAttempts() {
+		return failedAttempts;
+	}
+	
+	public synchronized String getLastError() {
+		return lastError;
+	}
+	
+	public synchronized long getReadySince() {
+		return readySince;
+	}
+	
+	/**
+	 * Wait until the connector server is ready
+	 * 
+	 * @return false if it wasn't ready within <i>timeout</i> milliseconds or was stopped
+	 */
+	public synchronized boolean awaitReady(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while(state != READY && state != STOPPED) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		return state == READY;
+	}
+	
+	synchronized void ready() {
+		state = READY;
+		failedAttempts = 0;
+		readySince = System.currentTimeMillis();
+		notifyAll();
+	}
+	
+	synchronized void failed(Exception e) {
+		failedAttempts++;
+		lastError = e.toString();
+	}
+	
+	synchronized void reconnecting() {
+		state = RECONNECTING;
+		readySince = 0;
+	}
+	
+	synchronized void stopped() {
+		state = STOPPED;
+		readySince = 0;
+		notifyAll();
+	}
+}
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression, slower than LZF but smaller. Each thread keeps its own Deflater
+ * and Inflater, they are expensive to create.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class DeflateCompression extends Compression {
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION);
+		}
+	};
+	
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	
+	@Override
+	String getName() {
+		return DEFLATE;
+	}
+
+	@Override
+	int compress(byte[] in, int length, byte[] out) {
+		Deflater deflater = deflaters.get();
+		try {
+			deflater.setInput(in, 0, length);
+			deflater.finish();
+			
+			int size = 0;
+			while(!deflater.finished() && size < out.length)
+				size += deflater.deflate(out, size, out.length - size);
+			
+			if(!deflater.finished())
+				throw new IllegalStateException("Deflated data exceeds " + out.length + " bytes");
+			return size;
+		} finally {
+			deflater.reset();
+		}
+	}
+
+	@Override
+	void decompress(byte[] in, int length, byte[] out, int originalLength) throws IOException {
+		Inflater inflater = inflaters.get();
+		try {
+			inflater.setInput(in, 0, length);
+			int size = 0;
+			while(size < originalLength) {
+				int n = inflater.inflate(out, size, originalLength - size);
+				if(n == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				size += n;
+			}
+			
+			if(size != originalLength)
+				throw new IOException("Inflated " + size + " bytes instead of " + originalLength);
+		} catch (DataFormatException e) {
+			IOException ioe = new IOException("Corrupt deflated message: " + e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		} finally {
+			inflater.reset();
+		}
+	}
+}
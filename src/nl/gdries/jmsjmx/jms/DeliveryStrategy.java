@@ -0,0 +1,192 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.util.Map;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Describes how messages are acknowledged and delivered by the JMS transport. Both
+ * the client and the server read their strategy from the environment map, so every
+ * session and producer they create is configured the same way.
+ * <p>
+ * The defaults (AUTO_ACKNOWLEDGE, non-persistent, no time-to-live, synchronous send)
+ * match the behaviour of earlier versions.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class DeliveryStrategy {
+	/**
+	 * Environment property name for the acknowledge mode: AUTO, DUPS_OK or CLIENT (String)
+	 * or one of the javax.jms.Session constants (Integer)
+	 */
+	public static final String ACKNOWLEDGE_MODE = "nl.gdries.jmsjmx.jms.acknowledgemode";
+	
+	/**
+	 * Environment property name for the number of messages received before they are 
+	 * acknowledged in CLIENT mode (Integer)
+	 */
+	public static final String ACKNOWLEDGE_BATCH_SIZE = "nl.gdries.jmsjmx.jms.acknowledgebatchsize";
+	
+	/**
+	 * Environment property name to send messages with PERSISTENT delivery mode (Boolean)
+	 */
+	public static final String PERSISTENT = "nl.gdries.jmsjmx.jms.persistent";
+	
+	/**
+	 * Environment property name for the time-to-live of sent messages in milliseconds (Long)
+	 */
+	public static final String TIME_TO_LIVE = "nl.gdries.jmsjmx.jms.timetolive";
+	
+	/**
+	 * Environment property name to let the JMS provider send messages without waiting
+	 * for the broker's receipt (Boolean). Only honoured by providers that support it.
+	 */
+	public static final String ASYNC_SEND = "nl.gdries.jmsjmx.jms.asyncsend";
+	
+	public static final int DEFAULT_ACKNOWLEDGE_BATCH_SIZE = 32;
+	
+	public static final DeliveryStrategy DEFAULT = 
+		new DeliveryStrategy(Session.AUTO_ACKNOWLEDGE, DEFAULT_ACKNOWLEDGE_BATCH_SIZE, false, 0, false);
+	
+	private final int acknowledgeMode;
+	private final int acknowledgeBatchSize;
+	private final boolean persistent;
+	private final long timeToLive;
+	private final boolean asyncSend;
+	
+	public DeliveryStrategy(int acknowledgeMode, int acknowledgeBatchSize, boolean persistent, 
+			long timeToLive, boolean asyncSend) {
+		if(acknowledgeMode != Session.AUTO_ACKNOWLEDGE && acknowledgeMode != Session.DUPS_OK_ACKNOWLEDGE 
+				&& acknowledgeMode != Session.CLIENT_ACKNOWLEDGE) {
+			throw new IllegalArgumentException("Unsupported acknowledge mode " + acknowledgeMode);
+		}
+		
+		if(acknowledgeBatchSize < 1) {
+			throw new IllegalArgumentException("The acknowledge batch size must be at least 1");
+		}
+		
+		this.acknowledgeMode = acknowledgeMode;
+		this.acknowledgeBatchSize = acknowledgeBatchSize;
+		this.persistent = persistent;
+		this.timeToLive = timeToLive;
+		this.asyncSend = asyncSend;
+	}
+	
+	/**
+	 * Read the delivery strategy from the environment map. Properties that are not 
+	 * present get their default value.
+	 */
+	@SuppressWarnings("unchecked")
+	public static DeliveryStrategy fromEnvironment(Map env) {
+		return new DeliveryStrategy(
+				parseAcknowledgeMode(env == null ? null : env.get(ACKNOWLEDGE_MODE)),
+				EnvHelper.getInt(env, ACKNOWLEDGE_BATCH_SIZE, DEFAULT_ACKNOWLEDGE_BATCH_SIZE),
+				EnvHelper.getBoolean(env, PERSISTENT, false),
+				EnvHelper.getLong(env, TIME_TO_LIVE, 0),
+				EnvHelper.getBoolean(env, ASYNC_SEND, false));
+	}
+	
+	private static int parseAcknowledgeMode(Object value) {
+		if(value == null)
+			return Session.AUTO_ACKNOWLEDGE;
+		
+		if(value instanceof Number)
+			return ((Number)value).intValue();
+		
+		String mode = value.toString().trim().toUpperCase();
+		if(mode.equals("AUTO") || mode.equals("AUTO_ACKNOWLEDGE"))
+			return Session.AUTO_ACKNOWLEDGE;
+		if(mode.equals("DUPS_OK") || mode.equals("DUPS_OK_ACKNOWLEDGE"))
+			return Session.DUPS_OK_ACKNOWLEDGE;
+		if(mode.equals("CLIENT") || mode.equals("CLIENT_ACKNOWLEDGE"))
+			return Session.CLIENT_ACKNOWLEDGE;
+		
+		throw new IllegalArgumentException("The property " + ACKNOWLEDGE_MODE + " must be one of " +
+				"AUTO, DUPS_OK or CLIENT, not '" + value + "'");
+	}
+	
+	/**
+	 * Create a non-transacted session using this strategy's acknowledge mode
+	 */
+	public Session createSession(Connection connection) throws JMSException {
+		return connection.createSession(false, acknowledgeMode);
+	}
+	
+	/**
+	 * Create a producer with this strategy's delivery mode and time-to-live
+	 */
+	public MessageProducer createProducer(Session session, Destination destination) throws JMSException {
+		MessageProducer producer = session.createProducer(destination);
+		producer.setDeliveryMode(persistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT);
+		producer.setTimeToLive(timeToLive);
+		return producer;
+	}
+	
+	public int getAcknowledgeMode() {
+		return acknowledgeMode;
+	}
+	
+	public boolean isClientAcknowledge() {
+		return acknowledgeMode == Session.CLIENT_ACKNOWLEDGE;
+	}
+
+	public int getAcknowledgeBatchSize() {
+		return acknowledgeBatchSize;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public boolean isAsyncSend() {
+		return asyncSend;
+	}
+	
+	@Override
+	public String toString() {
+		String mode;
+		switch(acknowledgeMode) {
+		case Session.DUPS_OK_ACKNOWLEDGE: mode = "DUPS_OK"; break;
+		case Session.CLIENT_ACKNOWLEDGE: mode = "CLIENT(" + acknowledgeBatchSize + ")"; break;
+		default: mode = "AUTO";
+		}
+		
+		return mode + (persistent ? " PERSISTENT" : " NON_PERSISTENT") + " ttl=" + timeToLive + 
+			(asyncSend ? " async" : " sync");
+	}
+}
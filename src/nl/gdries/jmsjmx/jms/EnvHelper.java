@@ -0,0 +1,83 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.util.Map;
+
+/**
+ * Helper methods to read typed values from a JMX environment map. Values may be
+ * provided as their native type (Long, Integer, Boolean) or as a String, which
+ * makes it possible to pass them on the command line.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public final class EnvHelper {
+	private EnvHelper() {
+	}
+
+	@SuppressWarnings("unchecked")
+	public static String getString(Map env, String name, String defaultValue) {
+		Object value = env == null ? null : env.get(name);
+		if(value == null)
+			return defaultValue;
+		
+		return value.toString();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static long getLong(Map env, String name, long defaultValue) {
+		Object value = env == null ? null : env.get(name);
+		if(value == null)
+			return defaultValue;
+		
+		if(value instanceof Number)
+			return ((Number)value).longValue();
+		
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("The property " + name + " must be a number, not '" + value + "'");
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static int getInt(Map env, String name, int defaultValue) {
+		return (int)getLong(env, name, defaultValue);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static boolean getBoolean(Map env, String name, boolean defaultValue) {
+		Object value = env == null ? null : env.get(name);
+		if(value == null)
+			return defaultValue;
+		
+		if(value instanceof Boolean)
+			return ((Boolean)value).booleanValue();
+		
+		return Boolean.valueOf(value.toString().trim()).booleanValue();
+	}
+}
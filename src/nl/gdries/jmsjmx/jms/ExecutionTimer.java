@@ -0,0 +1,98 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.management.MBeanServer;
+import javax.management.remote.MBeanServerForwarder;
+
+/**
+ * An MBeanServerForwarder that remembers when the last MBeanServer call made by each thread
+ * started and ended. The connector server executes a request and writes its response on
+ * the same thread, so the response can be stamped with the execution time.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class ExecutionTimer implements InvocationHandler {
+	private static final ThreadLocal<long[]> lastExecution = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+	
+	private MBeanServer mbeanServer;
+	
+	private ExecutionTimer() {
+	}
+	
+	static MBeanServerForwarder newForwarder() {
+		return (MBeanServerForwarder)Proxy.newProxyInstance(MBeanServerForwarder.class.getClassLoader(), 
+				new Class<?>[] { MBeanServerForwarder.class }, new ExecutionTimer());
+	}
+	
+	/**
+	 * Get and forget the start and end of the last MBeanServer call on this thread
+	 * 
+	 * @return true if there was one
+	 */
+	static boolean takeLastExecution(long[] result) {
+		long[] execution = lastExecution.get();
+		if(execution[0] == 0)
+			return false;
+		
+		result[0] = execution[0];
+		result[1] = execution[1];
+		execution[0] = 0;
+		return true;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if(name.equals("getMBeanServer") && args == null)
+			return mbeanServer;
+		
+		if(name.equals("setMBeanServer") && args != null && args.length == 1) {
+			mbeanServer = (MBeanServer)args[0];
+			return null;
+		}
+		
+		long[] execution = lastExecution.get();
+		execution[0] = RequestTiming.now();
+		try {
+			return method.invoke(mbeanServer, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		} finally {
+			execution[1] = RequestTiming.now();
+		}
+	}
+}
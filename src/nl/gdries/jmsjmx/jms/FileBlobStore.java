@@ -0,0 +1,235 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+/**
+ * Stores blobs as files in a directory, normally one that client and server share. The 
+ * expiration time is part of the file name, so any process using the directory can clean
+ * up blobs that were never read because their message got lost or their reader died.
+ * <p>
+ * Blobs are written to a temporary file and renamed when complete, readers never see a
+ * partial blob. A store created with a constructor sweeps until it's closed, the shared
+ * stores of forDirectory() sweep as long as the JVM runs.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class FileBlobStore implements BlobStore {
+	public static final long DEFAULT_SWEEP_INTERVAL = 60000;
+	
+	private static final String BLOB_SUFFIX = ".blob";
+	private static final String TEMP_SUFFIX = ".tmp";
+	
+	// Temporary files this old belong to a writer that died
+	private static final long TEMP_EXPIRATION = 3600000;
+	
+	// One store per directory, so connections don't each run a sweeper
+	private static final Map<File, FileBlobStore> stores = new HashMap<File, FileBlobStore>();
+	
+	private static Timer timer;
+	
+	private final File directory;
+	private final TimerTask sweeper;
+	private long swept;
+	
+	/**
+	 * Create a store that is swept every DEFAULT_SWEEP_INTERVAL
+	 */
+	public FileBlobStore(File directory) {
+		this(directory, DEFAULT_SWEEP_INTERVAL);
+	}
+	
+	/**
+	 * @param sweepInterval Milliseconds between removals of expired blobs, 0 to never remove them
+	 */
+	public FileBlobStore(File directory, long sweepInterval) {
+		this.directory = directory;
+		
+		if(sweepInterval > 0) {
+			sweeper = new TimerTask() {
+				@Override
+				public void run() {
+					sweep();
+				}
+			};
+			getTimer().schedule(sweeper, sweepInterval, sweepInterval);
+		} else {
+			sweeper = null;
+		}
+	}
+	
+	/**
+	 * @return The store for a directory, shared by everyone in the JVM that uses that directory
+	 */
+	public static FileBlobStore forDirectory(File directory) {
+		File key = directory.getAbsoluteFile();
+		synchronized(stores) {
+			FileBlobStore store = stores.get(key);
+			if(store == null) {
+				store = new FileBlobStore(key);
+				stores.put(key, store);
+			}
+			return store;
+		}
+	}
+	
+	private static synchronized Timer getTimer() {
+		if(timer == null)
+			timer = new Timer("FileBlobStore sweeper", true);
+		return timer;
+	}
+	
+	/**
+	 * Stop sweeping. A closed shared store is replaced by a new one on the next forDirectory().
+	 */
+	public void close() {
+		synchronized(stores) {
+			if(stores.get(directory) == this)
+				stores.remove(directory);
+		}
+		
+		if(sweeper != null) {
+			sweeper.cancel();
+			getTimer().purge();
+		}
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+
+	public String put(byte[] data, int offset, int length, long expiration) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create blob directory " + directory);
+		
+		String reference = expiration + "-" + UUID.randomUUID() + BLOB_SUFFIX;
+		File temp = new File(directory, reference + TEMP_SUFFIX);
+		
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data, offset, length);
+		} catch (IOException e) {
+			out.close();
+			temp.delete();
+			throw e;
+		}
+		out.close();
+		
+		if(!temp.renameTo(new File(directory, reference))) {
+			temp.delete();
+			throw new IOException("Unable to store blob " + reference + " in " + directory);
+		}
+		return reference;
+	}
+
+	public InputStream open(String reference) throws IOException {
+		try {
+			return new FileInputStream(getFile(reference));
+		} catch (FileNotFoundException e) {
+			throw new IOException("Blob " + reference + " expired or was removed from " + directory);
+		}
+	}
+
+	public void delete(String reference) throws IOException {
+		getFile(reference).delete();
+	}
+	
+	/**
+	 * Only accept references this store handed out, never a path to somewhere else
+	 */
+	private File getFile(String reference) throws IOException {
+		if(!reference.endsWith(BLOB_SUFFIX) || reference.indexOf('/') >= 0 || reference.indexOf('\\') >= 0 || 
+				reference.startsWith("."))
+			throw new IOException("Invalid blob reference " + reference);
+		return new File(directory, reference);
+	}
+	
+	/**
+	 * Remove expired blobs and temporary files left behind by writers that died
+	 * 
+	 * @return The number of files removed
+	 */
+	public int sweep() {
+		File[] files = directory.listFiles();
+		if(files == null)
+			return 0;
+		
+		long now = System.currentTimeMillis();
+		int removed = 0;
+		for(File file: files) {
+			String name = file.getName();
+			boolean expired;
+			if(name.endsWith(TEMP_SUFFIX))
+				expired = now - file.lastModified() > TEMP_EXPIRATION;
+			else if(name.endsWith(BLOB_SUFFIX))
+				expired = getExpiration(name) < now;
+			else
+				continue;
+			
+			if(expired && file.delete())
+				removed++;
+		}
+		
+		synchronized(this) {
+			swept += removed;
+		}
+		return removed;
+	}
+	
+	private static long getExpiration(String name) {
+		int end = name.indexOf('-');
+		try {
+			return Long.parseLong(name.substring(0, end));
+		} catch (RuntimeException e) {
+			// Not one of ours
+			return Long.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * @return The number of expired blobs and temporary files removed so far
+	 */
+	public synchronized long getSweptCount() {
+		return swept;
+	}
+	
+	@Override
+	public String toString() {
+		return "FileBlobStore " + directory;
+	}
+}
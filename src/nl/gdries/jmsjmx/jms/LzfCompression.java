@@ -0,0 +1,205 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZF compression, the format of liblzf. It compresses less than deflate but many times 
+ * faster. The output is a sequence of literal runs and back references:
+ * <ul>
+ * <li>000LLLLL: a run of L + 1 literal bytes follows</li>
+ * <li>LLLooooo oooooooo: copy L + 2 bytes from o + 1 bytes back</li>
+ * <li>111ooooo LLLLLLLL oooooooo: copy L + 9 bytes from o + 1 bytes back</li>
+ * </ul>
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class LzfCompression extends Compression {
+	private static final int HASH_SIZE = 1 << 14;
+	private static final int MAX_LITERAL = 1 << 5;
+	private static final int MAX_OFFSET = 1 << 13;
+	private static final int MAX_REFERENCE = (1 << 8) + (1 << 3);
+	
+	// Hash tables for compression, one per thread
+	private static final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[HASH_SIZE];
+		}
+	};
+	
+	@Override
+	String getName() {
+		return LZF;
+	}
+
+	@Override
+	int compress(byte[] in, int length, byte[] out) {
+		if(length < 4)
+			return literals(in, 0, length, out, 0);
+		
+		int[] hashTable = hashTables.get();
+		Arrays.fill(hashTable, -1);
+		
+		int inPos = 0;
+		int inEnd = length - 4;
+		int outPos = 1;
+		int literals = 0;
+		int seen = first(in, 0);
+		
+		while(inPos < inEnd) {
+			byte p2 = in[inPos + 2];
+			seen = (seen << 8) + (p2 & 255);
+			int slot = hash(seen);
+			int ref = hashTable[slot];
+			hashTable[slot] = inPos;
+			
+			int offset = inPos - ref - 1;
+			if(ref >= 0 && offset < MAX_OFFSET && in[ref + 2] == p2 
+					&& in[ref + 1] == (byte)(seen >> 8) && in[ref] == (byte)(seen >> 16)) {
+				// Close the literal run, or take back the byte reserved for its length
+				if(literals == 0) {
+					outPos--;
+				} else {
+					out[outPos - literals - 1] = (byte)(literals - 1);
+					literals = 0;
+				}
+				
+				int maxLength = Math.min(inEnd - inPos + 2, MAX_REFERENCE);
+				int matched = 3;
+				while(matched < maxLength && in[ref + matched] == in[inPos + matched])
+					matched++;
+				matched -= 2;
+				
+				if(matched < 7) {
+					out[outPos++] = (byte)((offset >> 8) + (matched << 5));
+				} else {
+					out[outPos++] = (byte)((offset >> 8) + (7 << 5));
+					out[outPos++] = (byte)(matched - 7);
+				}
+				out[outPos++] = (byte)offset;
+				
+				// Reserve the length of the next literal run
+				outPos++;
+				inPos += matched;
+				
+				seen = first(in, inPos);
+				seen = (seen << 8) + (in[inPos + 2] & 255);
+				hashTable[hash(seen)] = inPos++;
+				seen = (seen << 8) + (in[inPos + 2] & 255);
+				hashTable[hash(seen)] = inPos++;
+			} else {
+				out[outPos++] = in[inPos++];
+				if(++literals == MAX_LITERAL) {
+					out[outPos - literals - 1] = (byte)(literals - 1);
+					literals = 0;
+					outPos++;
+				}
+			}
+		}
+		
+		// The last bytes are too few to start a reference
+		while(inPos < length) {
+			out[outPos++] = in[inPos++];
+			if(++literals == MAX_LITERAL) {
+				out[outPos - literals - 1] = (byte)(literals - 1);
+				literals = 0;
+				outPos++;
+			}
+		}
+		
+		if(literals == 0)
+			return outPos - 1;
+		
+		out[outPos - literals - 1] = (byte)(literals - 1);
+		return outPos;
+	}
+	
+	/**
+	 * Write bytes as literal runs only
+	 */
+	private static int literals(byte[] in, int inPos, int length, byte[] out, int outPos) {
+		while(length > 0) {
+			int run = Math.min(length, MAX_LITERAL);
+			out[outPos++] = (byte)(run - 1);
+			System.arraycopy(in, inPos, out, outPos, run);
+			inPos += run;
+			outPos += run;
+			length -= run;
+		}
+		return outPos;
+	}
+	
+	private static int first(byte[] in, int inPos) {
+		return (in[inPos] << 8) + (in[inPos + 1] & 255);
+	}
+	
+	private static int hash(int seen) {
+		return ((seen * 57321) >> 9) & (HASH_SIZE - 1);
+	}
+
+	@Override
+	void decompress(byte[] in, int length, byte[] out, int originalLength) throws IOException {
+		int inPos = 0;
+		int outPos = 0;
+		
+		try {
+			while(inPos < length) {
+				int control = in[inPos++] & 255;
+				
+				if(control < MAX_LITERAL) {
+					int run = control + 1;
+					if(outPos + run > originalLength)
+						throw new IOException("LZF data exceeds the original length");
+					System.arraycopy(in, inPos, out, outPos, run);
+					inPos += run;
+					outPos += run;
+				} else {
+					int run = control >> 5;
+					if(run == 7)
+						run += in[inPos++] & 255;
+					run += 2;
+					
+					int ref = outPos - ((control & 31) << 8) - (in[inPos++] & 255) - 1;
+					if(ref < 0 || outPos + run > originalLength)
+						throw new IOException("Corrupt LZF back reference");
+					
+					// Byte by byte, the source may overlap what is being written
+					for(int i = 0; i < run; i++)
+						out[outPos++] = out[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated LZF data");
+		}
+		
+		if(outPos != originalLength)
+			throw new IOException("Decompressed " + outPos + " bytes instead of " + originalLength);
+	}
+}
@@ -0,0 +1,291 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.util.LinkedList;
+
+import javax.management.remote.message.Message;
+
+/**
+ * Serializes JMXMP messages to and from byte arrays without allocating a new stream
+ * and buffer for every message. Encoders and decoders are kept in small bounded pools
+ * that are shared by all connections in the JVM.
+ * <p>
+ * The encoded form is a Java serialization stream without a stream header that starts
+ * with a reset marker. Each encoded message can therefore be decoded by any decoder,
+ * regardless of the messages that decoder has seen before.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public final class MessageCodec {
+	/**
+	 * Maximum number of idle encoders and decoders kept in each pool
+	 */
+	public static final int MAX_POOLED = 16;
+	
+	/**
+	 * Buffers that have grown beyond this size are not returned to the pool
+	 */
+	public static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+	
+	private static final int INITIAL_BUFFER = 4096;
+	
+	private static final byte[] RESET = { ObjectStreamConstants.TC_RESET, ObjectStreamConstants.TC_NULL };
+	
+	private static final LinkedList<Encoder> encoders = new LinkedList<Encoder>();
+	private static final LinkedList<Decoder> decoders = new LinkedList<Decoder>();
+	
+	private MessageCodec() {
+	}
+	
+	public static Encoder borrowEncoder() throws IOException {
+		synchronized(encoders) {
+			if(!encoders.isEmpty())
+				return encoders.removeFirst();
+		}
+		
+		return new Encoder();
+	}
+	
+	public static void release(Encoder encoder) {
+		if(encoder.broken || encoder.buffer.capacity() > MAX_RETAINED_BUFFER)
+			return;
+		
+		try {
+			encoder.clear();
+		} catch (IOException e) {
+			return;
+		}
+		
+		synchronized(encoders) {
+			if(encoders.size() < MAX_POOLED)
+				encoders.addFirst(encoder);
+		}
+	}
+	
+	public static Decoder borrowDecoder() throws IOException {
+		synchronized(decoders) {
+			if(!decoders.isEmpty())
+				return decoders.removeFirst();
+		}
+		
+		return new Decoder();
+	}
+	
+	public static void release(Decoder decoder) {
+		if(decoder.broken || decoder.buffer.length > MAX_RETAINED_BUFFER)
+			return;
+		
+		synchronized(decoders) {
+			if(decoders.size() < MAX_POOLED)
+				decoders.addFirst(decoder);
+		}
+	}
+	
+	/**
+	 * Serializes messages into a reusable buffer
+	 */
+	public static final class Encoder {
+		private final Buffer buffer = new Buffer(INITIAL_BUFFER);
+		private final ObjectOutputStream out;
+		private boolean broken;
+		
+		private Encoder() throws IOException {
+			out = new ObjectOutputStream(buffer) {
+				@Override
+				protected void writeStreamHeader() {
+					// Every message is decoded on its own, a stream header would be overhead
+				}
+			};
+		}
+		
+		/**
+		 * Serialize the message. The result is available through getBuffer() and
+		 * getSize() until the next call to encode().
+		 */
+		public void encode(Message message) throws IOException {
+			buffer.reset();
+			try {
+				out.reset();
+				out.writeObject(message);
+				out.flush();
+			} catch (IOException e) {
+				broken = true;
+				throw e;
+			} catch (RuntimeException e) {
+				broken = true;
+				throw e;
+			}
+		}
+		
+		/**
+		 * Drop the references to the last encoded message. The output of the reset is 
+		 * discarded by the next call to encode().
+		 */
+		private void clear() throws IOException {
+			out.reset();
+		}
+		
+		public byte[] getBuffer() {
+			return buffer.getBuffer();
+		}
+		
+		public int getSize() {
+			return buffer.size();
+		}
+	}
+	
+	/**
+	 * Deserializes messages from a reusable buffer
+	 */
+	public static final class Decoder {
+		private final Source source = new Source();
+		private final ObjectInputStream in;
+		private byte[] buffer = new byte[INITIAL_BUFFER];
+		private boolean broken;
+		
+		private Decoder() throws IOException {
+			in = new ObjectInputStream(source) {
+				@Override
+				protected void readStreamHeader() {
+					// Encoded messages have no stream header
+				}
+				
+				@Override
+				protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+					ClassLoader loader = Thread.currentThread().getContextClassLoader();
+					if(loader != null) {
+						try {
+							return Class.forName(desc.getName(), false, loader);
+						} catch (ClassNotFoundException e) {
+							// Fall back to the default behaviour
+						}
+					}
+					return super.resolveClass(desc);
+				}
+			};
+		}
+		
+		/**
+		 * Get a buffer of at least the requested size to read the encoded message into
+		 */
+		public byte[] getBuffer(int size) {
+			if(buffer.length < size)
+				buffer = new byte[Math.max(size, buffer.length * 2)];
+			return buffer;
+		}
+		
+		/**
+		 * Deserialize the message in the first <i>length</i> bytes of the buffer
+		 */
+		public Message decode(int length) throws IOException, ClassNotFoundException {
+			return decode(buffer, 0, length);
+		}
+		
+		/**
+		 * Deserialize the message in the given part of a byte array
+		 */
+		public Message decode(byte[] bytes, int offset, int length) throws IOException, ClassNotFoundException {
+			boolean success = false;
+			try {
+				source.set(bytes, offset, length);
+				Message message = (Message)in.readObject();
+				
+				// Make the stream forget about the message so the pool doesn't keep it alive
+				source.set(RESET, 0, RESET.length);
+				in.readObject();
+				
+				success = true;
+				return message;
+			} finally {
+				source.set(null, 0, 0);
+				if(!success)
+					broken = true;
+			}
+		}
+	}
+	
+	/**
+	 * ByteArrayOutputStream that exposes its internal buffer
+	 */
+	static final class Buffer extends ByteArrayOutputStream {
+		Buffer(int size) {
+			super(size);
+		}
+		
+		byte[] getBuffer() {
+			return buf;
+		}
+		
+		int capacity() {
+			return buf.length;
+		}
+	}
+	
+	/**
+	 * InputStream over a part of a byte array that can be pointed at a new array
+	 */
+	static final class Source extends InputStream {
+		private byte[] bytes;
+		private int pos;
+		private int end;
+		
+		void set(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+		
+		@Override
+		public int read() {
+			return pos < end ? bytes[pos++] & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(pos >= end)
+				return -1;
+			
+			int n = Math.min(len, end - pos);
+			System.arraycopy(bytes, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return end - pos;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Periodically announces a connector server on the advertisement topic, so clients
+ * with a ServerDirectory know it is alive without connecting to it.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class PresenceAdvertiser {
+	static final String PROP_TOPIC       = "nl_gdries_jmsjmx_topic";
+	static final String PROP_SERVICEURL  = "nl_gdries_jmsjmx_serviceurl";
+	static final String PROP_INTERVAL    = "nl_gdries_jmsjmx_interval";
+	static final String PROP_STATUS      = "nl_gdries_jmsjmx_status";
+	static final String PROP_JVMNAME     = "nl_gdries_jmsjmx_jvmname";
+	static final String PROP_STARTTIME   = "nl_gdries_jmsjmx_starttime";
+	
+	static final String STATUS_UP   = "UP";
+	static final String STATUS_DOWN = "DOWN";
+	
+	private final String topic;
+	private final JMXServiceURL serviceURL;
+	private final long interval;
+	private final long startTime = System.currentTimeMillis();
+	
+	private Session session;
+	private MessageProducer producer;
+	private Timer timer;
+	
+	PresenceAdvertiser(String topic, JMXServiceURL serviceURL, long interval) {
+		this.topic = topic;
+		this.serviceURL = serviceURL;
+		this.interval = interval;
+	}
+	
+	/**
+	 * Start advertising on the given topic. The advertiser uses its own session, 
+	 * because it publishes from a timer thread.
+	 */
+	synchronized void start(Connection connection, String advertisementTopic) throws JMSException {
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		producer = session.createProducer(session.createTopic(advertisementTopic));
+		
+		// Advertisements are worthless once the next one should have arrived
+		producer.setDeliveryMode(javax.jms.DeliveryMode.NON_PERSISTENT);
+		producer.setTimeToLive(interval * ServerDirectory.MISSED_ADVERTISEMENTS);
+		
+		timer = new Timer("PresenceAdvertiser-" + topic, true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					advertise(STATUS_UP);
+				} catch (JMSException e) {
+					// Try again next time, clients will consider us gone if this persists
+				}
+			}
+		}, 0, interval);
+	}
+	
+	/**
+	 * Stop advertising and tell clients the server is gone
+	 */
+	synchronized void stop() throws JMSException {
+		if(timer == null)
+			return;
+		
+		timer.cancel();
+		timer = null;
+		
+		try {
+			advertise(STATUS_DOWN);
+		} finally {
+			session.close();
+		}
+	}
+	
+	private synchronized void advertise(String status) throws JMSException {
+		if(producer == null)
+			return;
+		
+		Message msg = session.createMessage();
+		msg.setStringProperty(PROP_TOPIC, topic);
+		msg.setStringProperty(PROP_SERVICEURL, serviceURL.toString());
+		msg.setLongProperty(PROP_INTERVAL, interval);
+		msg.setStringProperty(PROP_STATUS, status);
+		msg.setStringProperty(PROP_JVMNAME, ManagementFactory.getRuntimeMXBean().getName());
+		msg.setLongProperty(PROP_STARTTIME, startTime);
+		producer.send(msg);
+	}
+}
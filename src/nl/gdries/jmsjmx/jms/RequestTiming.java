@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.management.ObjectName;
+import javax.management.remote.message.MBeanServerRequestMessage;
+
+/**
+ * Where the time of one request went, from the moment the client started serializing
+ * it until it finished deserializing the response. All durations are in microseconds.
+ * Transit times are corrected for the estimated clock offset between client and server,
+ * so they are only as accurate as that estimate.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class RequestTiming implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	// Timestamps stamped into JMS properties, in microseconds
+	static final String PROP_CLIENT_SEND     = "nl_gdries_jmsjmx_t_clientsend";
+	static final String PROP_SERVER_RECEIVE  = "nl_gdries_jmsjmx_t_serverreceive";
+	static final String PROP_SERVER_DECODED  = "nl_gdries_jmsjmx_t_serverdecoded";
+	static final String PROP_EXECUTE_START   = "nl_gdries_jmsjmx_t_executestart";
+	static final String PROP_EXECUTE_END     = "nl_gdries_jmsjmx_t_executeend";
+	static final String PROP_SERVER_ENCODE   = "nl_gdries_jmsjmx_t_serverencode";
+	static final String PROP_SERVER_SEND     = "nl_gdries_jmsjmx_t_serversend";
+	
+	private static final String[] OPERATIONS = {
+		null, "addNotificationListeners", "addNotificationListener", "createMBean", "createMBean",
+		"createMBean", "createMBean", "getAttribute", "getAttributes", "getDefaultDomain",
+		"getDomains", "getMBeanCount", "getMBeanInfo", "getObjectInstance", "invoke",
+		"isInstanceOf", "isRegistered", "queryMBeans", "queryNames", "removeNotificationListener",
+		"removeNotificationListener", "removeNotificationListener", "removeNotificationListener", 
+		"setAttribute", "setAttributes", "unregisterMBean"
+	};
+	
+	// Wall clock time in microseconds, with nanoTime resolution between calls
+	private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+	private static final long BASE_NANOS = System.nanoTime();
+	
+	private final long timestamp;
+	private final String connection;
+	private final String operation;
+	
+	private final long clientEncode;
+	private final long requestTransit;
+	private final long serverDecode;
+	private final long serverProcessing;
+	private final long serverQueue;
+	private final long execution;
+	private final long serverEncode;
+	private final long responseTransit;
+	private final long clientDecode;
+	private final long total;
+	private final long clockOffset;
+	
+	/**
+	 * @param t Timestamps: client encode start, client send, server receive, server decoded, 
+	 *        execute start, execute end, server encode start, server send, client receive and 
+	 *        client decoded. Execute start and end are 0 if the server didn't measure them. 
+	 */
+	RequestTiming(String connection, String operation, long[] t, long clockOffset) {
+		this.timestamp = t[0] / 1000;
+		this.connection = connection;
+		this.operation = operation;
+		this.clockOffset = clockOffset;
+		
+		clientEncode = t[1] - t[0];
+		requestTransit = t[2] - clockOffset - t[1];
+		serverDecode = t[3] - t[2];
+		serverProcessing = t[6] - t[3];
+		serverQueue = t[4] == 0 ? -1 : t[4] - t[3];
+		execution = t[4] == 0 ? -1 : t[5] - t[4];
+		serverEncode = t[7] - t[6];
+		responseTransit = t[8] - (t[7] - clockOffset);
+		clientDecode = t[9] - t[8];
+		total = t[9] - t[0];
+	}
+	
+	/**
+	 * @return The current time in microseconds since the epoch
+	 */
+	static long now() {
+		return BASE_MICROS + (System.nanoTime() - BASE_NANOS) / 1000;
+	}
+	
+	/**
+	 * @return A short description of the request, like getAttribute(java.lang:type=Memory)
+	 */
+	static String describe(MBeanServerRequestMessage request) {
+		int id = request.getMethodId();
+		String operation = id > 0 && id < OPERATIONS.length ? OPERATIONS[id] : "method" + id;
+		
+		Object[] params = request.getParams();
+		if(params != null && params.length > 0 && params[0] instanceof ObjectName)
+			return operation + "(" + params[0] + ")";
+		
+		return operation + "()";
+	}
+	
+	/** When the request was made, in milliseconds since the epoch */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/** The connection the request was made on */
+	public String getConnection() {
+		return connection;
+	}
+
+	/** The operation and MBean name */
+	public String getOperation() {
+		return operation;
+	}
+
+	/** Serializing the request on the client */
+	public long getClientEncode() {
+		return clientEncode;
+	}
+
+	/** From the client sending the request until the server received it */
+	public long getRequestTransit() {
+		return requestTransit;
+	}
+
+	/** Deserializing the request on the server */
+	public long getServerDecode() {
+		return serverDecode;
+	}
+
+	/** From the request being deserialized until the server started serializing the response */
+	public long getServerProcessing() {
+		return serverProcessing;
+	}
+
+	/** The part of server processing spent waiting for a thread, -1 if unknown */
+	public long getServerQueue() {
+		return serverQueue;
+	}
+
+	/** The part of server processing spent in the MBeanServer, -1 if unknown */
+	public long getExecution() {
+		return execution;
+	}
+
+	/** Serializing the response on the server */
+	public long getServerEncode() {
+		return serverEncode;
+	}
+
+	/** From the server sending the response until the client received it */
+	public long getResponseTransit() {
+		return responseTransit;
+	}
+
+	/** Deserializing the response on the client */
+	public long getClientDecode() {
+		return clientDecode;
+	}
+
+	/** The whole request */
+	public long getTotal() {
+		return total;
+	}
+
+	/** The estimated server clock minus the client clock */
+	public long getClockOffset() {
+		return clockOffset;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(new Date(timestamp)).append(' ').append(operation).append(" on ").append(connection)
+			.append(": total=").append(total)
+			.append("us encode=").append(clientEncode)
+			.append("us request=").append(requestTransit)
+			.append("us decode=").append(serverDecode);
+		
+		if(execution >= 0)
+			sb.append("us queue=").append(serverQueue).append("us execute=").append(execution);
+		else
+			sb.append("us processing=").append(serverProcessing);
+		
+		sb.append("us encode=").append(serverEncode)
+			.append("us response=").append(responseTransit)
+			.append("us decode=").append(clientDecode)
+			.append("us (offset ").append(clockOffset).append("us)");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,166 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects the timing breakdowns of requests made by connectors in this JVM with timing
+ * enabled. Listeners receive every breakdown. Requests slower than the threshold are kept
+ * in a ring buffer that is registered on the platform MBeanServer as 
+ * nl.gdries.jmsjmx:type=RequestTimings when the first request is timed. Slow requests are
+ * also logged at INFO level.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class RequestTimings implements RequestTimingsMBean {
+	private static final Logger logger = Logger.getLogger(RequestTimings.class.getName());
+	
+	public static final String OBJECT_NAME = "nl.gdries.jmsjmx:type=RequestTimings";
+	
+	public static final long DEFAULT_SLOW_THRESHOLD = 500;
+	public static final int DEFAULT_CAPACITY = 100;
+	
+	/**
+	 * Receives the timing breakdown of every timed request
+	 */
+	public interface Listener {
+		void requestTimed(RequestTiming timing);
+	}
+	
+	private static final RequestTimings instance = new RequestTimings(DEFAULT_CAPACITY);
+	private static boolean registered;
+	
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final RequestTiming[] slow;
+	
+	private volatile long slowThreshold = DEFAULT_SLOW_THRESHOLD * 1000;
+	private long timedRequests;
+	private long slowRequests;
+	
+	RequestTimings(int capacity) {
+		this.slow = new RequestTiming[capacity];
+	}
+	
+	public static RequestTimings getInstance() {
+		return instance;
+	}
+	
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+	
+	void record(RequestTiming timing) {
+		register();
+		
+		boolean isSlow = timing.getTotal() >= slowThreshold;
+		synchronized(this) {
+			timedRequests++;
+			if(isSlow)
+				slow[(int)(slowRequests++ % slow.length)] = timing;
+		}
+		
+		if(isSlow && logger.isLoggable(Level.INFO))
+			logger.info("Slow request " + timing);
+		
+		for(Listener listener: listeners)
+			listener.requestTimed(timing);
+	}
+	
+	/**
+	 * @return The kept slow requests, newest first
+	 */
+	public synchronized RequestTiming[] getSlowRequestTimings() {
+		int count = (int)Math.min(slowRequests, slow.length);
+		RequestTiming[] result = new RequestTiming[count];
+		for(int i = 0; i < count; i++)
+			result[i] = slow[(int)((slowRequests - 1 - i) % slow.length)];
+		return result;
+	}
+	
+	private static synchronized void register() {
+		if(registered)
+			return;
+		
+		registered = true;
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!mbs.isRegistered(name))
+				mbs.registerMBean(instance, name);
+		} catch (JMException e) {
+			// Timing still works, it just can't be queried over JMX
+		}
+	}
+
+	public long getSlowThreshold() {
+		return slowThreshold / 1000;
+	}
+
+	public void setSlowThreshold(long millis) {
+		slowThreshold = millis * 1000;
+	}
+
+	public int getCapacity() {
+		return slow.length;
+	}
+
+	public synchronized long getTimedRequests() {
+		return timedRequests;
+	}
+
+	public synchronized long getSlowRequests() {
+		return slowRequests;
+	}
+
+	public String[] getSlowRequestLog() {
+		RequestTiming[] timings = getSlowRequestTimings();
+		String[] result = new String[timings.length];
+		for(int i = 0; i < timings.length; i++)
+			result[i] = timings[i].toString();
+		return result;
+	}
+
+	public synchronized void clear() {
+		for(int i = 0; i < slow.length; i++)
+			slow[i] = null;
+		timedRequests = 0;
+		slowRequests = 0;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.Serializable;
+
+import javax.management.ObjectName;
+
+/**
+ * Statistics of the samples an AttributeSampler took of one attribute within a window
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class SampleSummary implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private final ObjectName name;
+	private final String attribute;
+	private final long window;
+	private final int count;
+	private final double min;
+	private final double max;
+	private final double average;
+	private final double median;
+	private final double p90;
+	private final double p99;
+	private final double last;
+	private final long lastTimestamp;
+	
+	SampleSummary(ObjectName name, String attribute, long window, int count, double min, double max, 
+			double average, double median, double p90, double p99, double last, long lastTimestamp) {
+		this.name = name;
+		this.attribute = attribute;
+		this.window = window;
+		this.count = count;
+		this.min = min;
+		this.max = max;
+		this.average = average;
+		this.median = median;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.last = last;
+		this.lastTimestamp = lastTimestamp;
+	}
+
+	public ObjectName getName() {
+		return name;
+	}
+
+	/**
+	 * @return The attribute, followed by a dot and the item for an item of CompositeData
+	 */
+	public String getAttribute() {
+		return attribute;
+	}
+
+	/**
+	 * @return The milliseconds before the summary was made that the samples were taken in
+	 */
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return The number of samples, the other statistics are NaN if it's 0
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getAverage() {
+		return average;
+	}
+
+	public double getMedian() {
+		return median;
+	}
+
+	public double getP90() {
+		return p90;
+	}
+
+	public double getP99() {
+		return p99;
+	}
+
+	/**
+	 * @return The most recent sample
+	 */
+	public double getLast() {
+		return last;
+	}
+
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+	
+	@Override
+	public String toString() {
+		return name + " " + attribute + ": " + count + " samples in " + window + "ms, min " + min + ", max " + max 
+			+ ", avg " + average + ", p50 " + median + ", p90 " + p90 + ", p99 " + p99 + ", last " + last;
+	}
+}
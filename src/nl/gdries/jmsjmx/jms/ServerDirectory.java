@@ -0,0 +1,355 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+/**
+ * Keeps track of the connector servers that advertise their presence on a broker. A
+ * server is considered alive until it announces that it is going down or misses
+ * MISSED_ADVERTISEMENTS advertisements in a row.
+ * <p>
+ * A directory only knows about servers it has heard from, servers that don't advertise
+ * are never known to be gone. Until it has listened for
+ * WARMUP_INTERVALS advertisement intervals it is not authoritative and absent servers 
+ * may still be alive. The interval is the one the directory was created with, or the 
+ * longest interval a server advertised with if that is longer. A directory that lost 
+ * its broker connection is not authoritative until it listens again.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class ServerDirectory {
+	/**
+	 * The default topic connector servers advertise on
+	 */
+	public static final String DEFAULT_ADVERTISEMENT_TOPIC = "nl.gdries.jmsjmx.presence";
+	
+	/**
+	 * The default interval between advertisements in milliseconds
+	 */
+	public static final long DEFAULT_ADVERTISEMENT_INTERVAL = 5000;
+	
+	/**
+	 * The number of advertisements a server can miss before it is considered gone
+	 */
+	public static final int MISSED_ADVERTISEMENTS = 3;
+	
+	/**
+	 * The number of advertisement intervals a directory must listen before it is authoritative
+	 */
+	public static final int WARMUP_INTERVALS = 2;
+	
+	private static final Map<Object, ServerDirectory> shared = new HashMap<Object, ServerDirectory>();
+	
+	private final Map<String, ServerInfo> servers = new HashMap<String, ServerInfo>();
+	
+	// The topics of all servers that advertised since the directory started listening
+	private final Set<String> heardFrom = new HashSet<String>();
+	private long interval;
+	
+	// The key in the shared directories and the number of users, guarded by the shared map
+	private Object sharedKey;
+	private int references;
+	
+	private Connection connection;
+	private ExceptionListener lossListener;
+	private Session session;
+	private long listeningSince;
+	
+	/**
+	 * Create a directory for servers that advertise at the default interval
+	 */
+	public ServerDirectory() {
+		this(DEFAULT_ADVERTISEMENT_INTERVAL);
+	}
+	
+	/**
+	 * @param interval The interval in milliseconds at which servers are expected to advertise
+	 */
+	public ServerDirectory(long interval) {
+		this.interval = interval;
+	}
+	
+	/**
+	 * Get the directory for a broker that is shared by all connectors in this JVM, 
+	 * creating and starting it if required. A shared directory that lost its connection 
+	 * is replaced by a new one, which has to warm up before it is authoritative again.
+	 * Every directory returned must be released with releaseShared().
+	 */
+	static ServerDirectory getShared(Object brokerKey, ConnectionFactory connectionFactory, 
+			String advertisementTopic, long interval) throws JMSException {
+		synchronized(shared) {
+			final Object key = advertisementTopic + " " + brokerKey;
+			ServerDirectory directory = shared.get(key);
+			if(directory == null) {
+				final ServerDirectory created = new ServerDirectory(interval);
+				created.sharedKey = key;
+				created.lossListener = new ExceptionListener() {
+					public void onException(JMSException e) {
+						synchronized(shared) {
+							if(shared.get(key) == created)
+								shared.remove(key);
+						}
+						created.connectionLost();
+					}
+				};
+				created.connection = SharedConnections.acquire(brokerKey, connectionFactory, created.lossListener);
+				try {
+					created.listen(advertisementTopic);
+				} catch (JMSException e) {
+					SharedConnections.release(created.connection, created.lossListener);
+					throw e;
+				}
+				directory = created;
+				shared.put(key, directory);
+			}
+			directory.expectInterval(interval);
+			directory.references++;
+			return directory;
+		}
+	}
+	
+	/**
+	 * Let go of a directory returned by getShared(). The last connector to let go of it
+	 * stops it.
+	 */
+	static void releaseShared(ServerDirectory directory) throws IOException {
+		synchronized(shared) {
+			if(--directory.references > 0)
+				return;
+			
+			if(shared.get(directory.sharedKey) == directory)
+				shared.remove(directory.sharedKey);
+		}
+		directory.stop();
+	}
+	
+	/**
+	 * Start listening for advertisements on the default topic
+	 */
+	public void start(ConnectionFactory connectionFactory) throws IOException {
+		start(connectionFactory, DEFAULT_ADVERTISEMENT_TOPIC);
+	}
+	
+	/**
+	 * Start listening for advertisements
+	 */
+	public synchronized void start(ConnectionFactory connectionFactory, String advertisementTopic) throws IOException {
+		try {
+			connection = connectionFactory.createConnection();
+			connection.setExceptionListener(new ExceptionListener() {
+				public void onException(JMSException e) {
+					connectionLost();
+				}
+			});
+			connection.start();
+			listen(advertisementTopic);
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		}
+	}
+	
+	private synchronized void listen(String advertisementTopic) throws JMSException {
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = session.createConsumer(session.createTopic(advertisementTopic));
+		consumer.setMessageListener(new MessageListener() {
+			public void onMessage(Message msg) {
+				try {
+					advertisementReceived(msg);
+				} catch (JMSException e) {
+					// Ignore malformed advertisements
+				}
+			}
+		});
+		listeningSince = System.currentTimeMillis();
+	}
+	
+	public synchronized void stop() throws IOException {
+		try {
+			if(session != null)
+				session.close();
+			
+			if(lossListener != null)
+				SharedConnections.release(connection, lossListener);
+			else if(connection != null)
+				connection.close();
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		} finally {
+			session = null;
+			connection = null;
+			servers.clear();
+			heardFrom.clear();
+		}
+	}
+	
+	/**
+	 * The broker connection failed. Advertisements may be missed from now on, so the 
+	 * directory can no longer tell that a server is absent.
+	 */
+	private void connectionLost() {
+		try {
+			stop();
+		} catch (IOException e) {
+			// The connection is broken, there is nothing left to close
+		}
+	}
+	
+	/**
+	 * Servers are expected to advertise at least every <i>interval</i> milliseconds
+	 */
+	private synchronized void expectInterval(long interval) {
+		this.interval = Math.max(this.interval, interval);
+	}
+	
+	private synchronized void advertisementReceived(Message msg) throws JMSException {
+		String topic = msg.getStringProperty(PresenceAdvertiser.PROP_TOPIC);
+		if(topic == null)
+			return;
+		
+		heardFrom.add(topic);
+		if(PresenceAdvertiser.STATUS_DOWN.equals(msg.getStringProperty(PresenceAdvertiser.PROP_STATUS))) {
+			servers.remove(topic);
+			return;
+		}
+		
+		long advertised = msg.getLongProperty(PresenceAdvertiser.PROP_INTERVAL);
+		expectInterval(advertised);
+		servers.put(topic, new ServerInfo(topic, 
+				msg.getStringProperty(PresenceAdvertiser.PROP_SERVICEURL),
+				msg.getStringProperty(PresenceAdvertiser.PROP_JVMNAME),
+				msg.getLongProperty(PresenceAdvertiser.PROP_STARTTIME),
+				advertised,
+				System.currentTimeMillis()));
+	}
+	
+	/**
+	 * @return true if the directory has listened long enough to have heard from every live server
+	 */
+	public synchronized boolean isAuthoritative() {
+		return session != null && System.currentTimeMillis() - listeningSince >= interval * WARMUP_INTERVALS;
+	}
+	
+	/**
+	 * @return true if the server listening on <i>topic</i> has recently advertised its presence
+	 */
+	public synchronized boolean isAlive(String topic) {
+		ServerInfo info = servers.get(topic);
+		return info != null && info.isAlive(System.currentTimeMillis());
+	}
+	
+	/**
+	 * @return true if the server listening on <i>topic</i> advertised its presence, but has
+	 *         since gone down or stopped advertising
+	 */
+	public synchronized boolean isGone(String topic) {
+		return isAuthoritative() && heardFrom.contains(topic) && !isAlive(topic);
+	}
+	
+	/**
+	 * @return The servers that have recently advertised their presence
+	 */
+	public synchronized List<ServerInfo> getLiveServers() {
+		long now = System.currentTimeMillis();
+		List<ServerInfo> result = new ArrayList<ServerInfo>();
+		for(ServerInfo info: servers.values()) {
+			if(info.isAlive(now))
+				result.add(info);
+		}
+		return result;
+	}
+	
+	/**
+	 * What a server told about itself in its last advertisement
+	 */
+	public static class ServerInfo {
+		private final String topic;
+		private final String serviceURL;
+		private final String jvmName;
+		private final long startTime;
+		private final long interval;
+		private final long lastSeen;
+		
+		ServerInfo(String topic, String serviceURL, String jvmName, long startTime, long interval, long lastSeen) {
+			this.topic = topic;
+			this.serviceURL = serviceURL;
+			this.jvmName = jvmName;
+			this.startTime = startTime;
+			this.interval = interval;
+			this.lastSeen = lastSeen;
+		}
+		
+		boolean isAlive(long now) {
+			return now - lastSeen <= interval * MISSED_ADVERTISEMENTS;
+		}
+
+		/** The topic the server listens on for connections */
+		public String getTopic() {
+			return topic;
+		}
+
+		/** The service URL the server was started with */
+		public String getServiceURL() {
+			return serviceURL;
+		}
+
+		/** The name of the server's JVM, usually pid@hostname */
+		public String getJvmName() {
+			return jvmName;
+		}
+
+		/** When the server started advertising */
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/** When the last advertisement was received */
+		public long getLastSeen() {
+			return lastSeen;
+		}
+		
+		@Override
+		public String toString() {
+			return topic + " (" + serviceURL + ", " + jvmName + ")";
+		}
+	}
+}
@@ -25,13 +25,325 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package nl.gdries.jmsjmx.jms;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
 import javax.jms.Session;
+import javax.jms.TemporaryTopic;
+import javax.management.remote.message.MBeanServerRequestMessage;
+import javax.management.remote.message.MBeanServerResponseMessage;
+import javax.management.remote.generic.GenericConnectorServer;
+import javax.management.remote.generic.ObjectWrapping;
+import javax.management.remote.message.Message;
+import javax.management.remote.message.NotificationRequestMessage;
+import javax.management.remote.message.NotificationResponseMessage;
+
+import com.sun.jmx.remote.generic.ObjectWrappingImpl;
 
 public class ServerMessageConnection extends AbstractMessageConnection {
+	// Receive and decode times of stamped requests that have not been answered yet
+	private final Map<Long, long[]> stamped = new ConcurrentHashMap<Long, long[]>();
+	
+	private AdmissionControl admissionControl;
+	private AdmissionControl.Client admissionClient;
+	private ObjectWrapping objectWrapping;
+	
+	// Admitted requests that have not been answered yet
+	private final Map<Long, Boolean> admitted = new ConcurrentHashMap<Long, Boolean>();
+	
+	// Sessions that can be resumed by token, shared with the connection server
+	private Map<String, ServerMessageConnection> sessions;
+	private long resumeTimeout;
+	
+	// Writes hold the read lock, resuming holds the write lock so nothing is sent halfway
+	private final ReadWriteLock resumeLock = new ReentrantReadWriteLock();
+	private final Object resumed = new Object();
+	private volatile int generation;
+	private volatile boolean closed;
+	
+	// Requests of a resumable session that have been received and not answered yet
+	private final Map<Long, Boolean> executing = new ConcurrentHashMap<Long, Boolean>();
+	private volatile boolean fetching;
 
 	public ServerMessageConnection(Session session, Destination destination) {
 		super(session, destination);
 	}
 	
+	public ServerMessageConnection(Session session, Destination destination, DeliveryStrategy deliveryStrategy) {
+		super(session, destination, deliveryStrategy);
+	}
+	
+	/**
+	 * Answer stamped requests whether timing is enabled on the server or not, the client
+	 * decides which requests are timed.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void connect(Map env) throws IOException {
+		super.connect(env);
+		timing = true;
+		
+		// Refusals must be wrapped the way the connector server wraps results
+		Object wrapping = env == null ? null : env.get(GenericConnectorServer.OBJECT_WRAPPING);
+		objectWrapping = wrapping instanceof ObjectWrapping ? (ObjectWrapping)wrapping : new ObjectWrappingImpl();
+	}
+	
+	/**
+	 * Subject this connection's requests to admission control
+	 * 
+	 * @param userId The broker user that sent the connect message, or null
+	 * @param sessionClass The session class the client asked for, or null
+	 */
+	void setAdmissionControl(AdmissionControl admissionControl, String userId, String sessionClass) {
+		this.admissionControl = admissionControl;
+		this.admissionClient = admissionControl.connected(connectionId, userId, sessionClass);
+	}
+	
+	/**
+	 * Keep this connection's state for <i>resumeTimeout</i> milliseconds when the broker 
+	 * connection is lost, so the client can resume it with the session token we send it.
+	 * 
+	 * @param sessions The sessions the connection server resumes, by token
+	 */
+	void setResumable(Map<String, ServerMessageConnection> sessions, long resumeTimeout) {
+		this.sessions = sessions;
+		this.resumeTimeout = resumeTimeout;
+		
+		sessionToken = UUID.randomUUID().toString();
+		sessionTokenSent = false;
+		sessions.put(sessionToken, this);
+	}
+	
+	/**
+	 * Re-attach the client to this connection after the broker connection was lost. Tells
+	 * the client where to send to from now on and which requests we're still working on, 
+	 * before anything else is sent to it.
+	 * 
+	 * @param session The connection server's new session
+	 * @param replyTo The client's new destination
+	 * @return false if the connection was closed in the meantime
+	 */
+	boolean resume(Session session, Destination replyTo) throws JMSException {
+		resumeLock.writeLock().lock();
+		try {
+			if(closed)
+				return false;
+			
+			// The client repeats its request until it hears from us, only move once
+			if(!replyTo.equals(peerDestination)) {
+				TemporaryTopic destination = session.createTemporaryTopic();
+				MessageConsumer consumer = session.createConsumer(destination);
+				rebind(session, destination, consumer, replyTo);
+			}
+			
+			javax.jms.Message msg = session.createMessage();
+			msg.setStringProperty(PROP_REQUESTTYPE, REQUESTTYPE_RESUMED);
+			msg.setJMSReplyTo(myDestination);
+			
+			StringBuilder ids = new StringBuilder();
+			for(Long id: executing.keySet()) {
+				if(ids.length() > 0)
+					ids.append(',');
+				ids.append(id);
+			}
+			msg.setStringProperty(PROP_EXECUTING, ids.toString());
+			msg.setBooleanProperty(PROP_FETCHING, fetching);
+			producer.send(msg);
+			
+			synchronized(resumed) {
+				generation++;
+				resumed.notifyAll();
+			}
+			return true;
+		} finally {
+			resumeLock.writeLock().unlock();
+		}
+	}
+	
+	private void executing(long id) {
+		if(sessions != null)
+			executing.put(id, Boolean.TRUE);
+	}
+	
+	/**
+	 * Wait for the client to resume the session after the broker connection was lost
+	 * 
+	 * @param generation The generation the failure happened in
+	 * @param cause Thrown if the session is not resumed in time
+	 */
+	private void awaitResume(int generation, IOException cause) throws IOException {
+		if(sessions == null || closed || !isConnectionLost(cause))
+			throw cause;
+		
+		long deadline = System.currentTimeMillis() + resumeTimeout;
+		synchronized(resumed) {
+			while(this.generation == generation && !closed) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+					throw cause;
+				
+				try {
+					resumed.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the session to resume");
+				}
+			}
+		}
+		
+		if(closed)
+			throw cause;
+	}
+	
+	/**
+	 * Read the next message, waiting for the session to resume if the broker connection is lost
+	 */
+	private Message readResumable() throws IOException, ClassNotFoundException {
+		while(true) {
+			int generation = this.generation;
+			try {
+				return super.readMessage();
+			} catch (IOException e) {
+				awaitResume(generation, e);
+			}
+		}
+	}
+	
+	/**
+	 * Write a message, sending it again once the session resumes if the broker connection is lost
+	 */
+	private void writeResumable(Message message) throws IOException {
+		while(true) {
+			IOException failure;
+			resumeLock.readLock().lock();
+			int generation = this.generation;
+			try {
+				super.writeMessage(message);
+				return;
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				resumeLock.readLock().unlock();
+			}
+			
+			// Wait outside the lock, resuming needs it
+			awaitResume(generation, failure);
+		}
+	}
+	
+	/**
+	 * Answer requests that admission control refuses right away and return the next one
+	 * that is admitted.
+	 */
+	@Override
+	public Message readMessage() throws IOException, ClassNotFoundException {
+		while(true) {
+			Message message = readResumable();
+			if(message instanceof NotificationRequestMessage)
+				fetching = sessions != null;
+			if(!(message instanceof MBeanServerRequestMessage))
+				return message;
+			
+			long id = ((MBeanServerRequestMessage)message).getMessageId();
+			if(admissionControl == null) {
+				executing(id);
+				return message;
+			}
+			
+			String refusal;
+			try {
+				refusal = admissionControl.admit(admissionClient);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for admission");
+			}
+			
+			if(refusal == null) {
+				admitted.put(id, Boolean.TRUE);
+				executing(id);
+				return message;
+			}
+			
+			writeMessage(new MBeanServerResponseMessage(id, 
+					objectWrapping.wrap(new ServerOverloadedException(refusal)), true));
+		}
+	}
+	
+	@Override
+	public void writeMessage(Message message) throws IOException {
+		try {
+			writeResumable(message);
+			if(sessions != null && message instanceof MBeanServerResponseMessage)
+				executing.remove(((MBeanServerResponseMessage)message).getMessageId());
+			else if(message instanceof NotificationResponseMessage)
+				fetching = false;
+		} finally {
+			if(admissionControl != null && message instanceof MBeanServerResponseMessage
+					&& admitted.remove(((MBeanServerResponseMessage)message).getMessageId()) != null)
+				admissionControl.done();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if(sessions != null)
+			sessions.remove(sessionToken);
+		synchronized(resumed) {
+			resumed.notifyAll();
+		}
+		
+		try {
+			super.close();
+		} finally {
+			if(admissionControl != null) {
+				admissionControl.closed(admissionClient, admitted.size());
+				admitted.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Remember when stamped requests arrived
+	 */
+	@Override
+	protected void received(Message message, javax.jms.Message msg, long received) throws JMSException {
+		if(message instanceof MBeanServerRequestMessage && msg.propertyExists(RequestTiming.PROP_CLIENT_SEND)) {
+			stamped.put(((MBeanServerRequestMessage)message).getMessageId(), 
+					new long[] { received, RequestTiming.now() });
+		}
+	}
+	
+	/**
+	 * Stamp responses to stamped requests with the server side timestamps
+	 */
+	@Override
+	protected void sending(Message message, javax.jms.Message msg, long encodeStart) throws JMSException {
+		if(!(message instanceof MBeanServerResponseMessage))
+			return;
+		
+		long[] times = stamped.remove(((MBeanServerResponseMessage)message).getMessageId());
+		if(times == null)
+			return;
+		
+		msg.setLongProperty(RequestTiming.PROP_SERVER_RECEIVE, times[0]);
+		msg.setLongProperty(RequestTiming.PROP_SERVER_DECODED, times[1]);
+		
+		// Only trust the execution times if they belong to this request
+		if(ExecutionTimer.takeLastExecution(times) && times[0] >= msg.getLongProperty(RequestTiming.PROP_SERVER_DECODED)) {
+			msg.setLongProperty(RequestTiming.PROP_EXECUTE_START, times[0]);
+			msg.setLongProperty(RequestTiming.PROP_EXECUTE_END, times[1]);
+		}
+		
+		msg.setLongProperty(RequestTiming.PROP_SERVER_ENCODE, encodeStart);
+		msg.setLongProperty(RequestTiming.PROP_SERVER_SEND, RequestTiming.now());
+	}
 }
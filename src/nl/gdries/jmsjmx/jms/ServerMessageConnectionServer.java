@@ -25,19 +25,33 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package nl.gdries.jmsjmx.jms;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.management.remote.JMXServiceURL;
 import javax.management.remote.generic.MessageConnection;
 import javax.management.remote.generic.MessageConnectionServer;
 
+import nl.gdries.jmsjmx.query.QueryCursors;
+import nl.gdries.jmsjmx.spool.NotificationSpooler;
+
 /**
  * Connects the platform MBeanServer to a JMS Topic
  * 
@@ -45,25 +59,57 @@ import javax.management.remote.generic.MessageConnectionServer;
  *
  */
 public class ServerMessageConnectionServer implements MessageConnectionServer {
+	private static final Logger logger = Logger.getLogger(ServerMessageConnectionServer.class.getName());
+	
+	// Delays between attempts to reconnect to the broker
+	private static final long INITIAL_RECONNECT_DELAY = 100;
+	private static final long MAX_RECONNECT_DELAY = 5000;
+	
 	private final ConnectionFactory connectionFactory;
 	private final JMXServiceURL serviceURL;
 	private final String topicPrefix;
 	
+	private DeliveryStrategy deliveryStrategy = DeliveryStrategy.DEFAULT;
+	
 	private Connection connection;
 	private Session session;
 	private MessageConsumer consumer;
+	private PresenceAdvertiser advertiser;
+	private String advertisementTopic;
+	private TelemetryPublisher telemetry;
+	private SharedNotificationPublisher notifications;
+	private volatile boolean stopped;
+	private final Object stopLock = new Object();
+	
+	private final ConnectorServerStatus status = new ConnectorServerStatus();
+	private ObjectName statusName;
+	
+	// Connections that can be resumed after the broker connection is lost, by session token
+	private final Map<String, ServerMessageConnection> sessions = new ConcurrentHashMap<String, ServerMessageConnection>();
+	private long resumeTimeout;
+	
+	private final MBeanServer mbeanServer;
+	private AdmissionControl admissionControl;
+	private ObjectName admissionControlName;
+	private ObjectName spoolerName;
+	private ObjectName cursorsName;
+	private ObjectName samplerName;
 	
 	public ServerMessageConnectionServer(ConnectionFactory connectionFactory, JMXServiceURL serviceURL) {
+		this(connectionFactory, serviceURL, null);
+	}
+	
+	/**
+	 * @param mbeanServer The MBeanServer to register management interfaces of the connector 
+	 *        server in, or null for the platform MBeanServer
+	 */
+	public ServerMessageConnectionServer(ConnectionFactory connectionFactory, JMXServiceURL serviceURL, 
+			MBeanServer mbeanServer) {
 		this.connectionFactory = connectionFactory;
+		this.mbeanServer = mbeanServer;
 		this.serviceURL = serviceURL;
 		
-		String topic = serviceURL.getURLPath();
-		if(topic.length() == 0) {
-			throw new IllegalArgumentException("The topic name must be provided in the service URL");
-		}
-		
-		// Use the part after the / or ; as the topic name
-		this.topicPrefix = topic.substring(1);
+		this.topicPrefix = ServiceURLHelper.getTopic(serviceURL);
 	}
 
 	/**
@@ -72,50 +118,451 @@ public class ServerMessageConnectionServer implements MessageConnectionServer {
 	public MessageConnection accept() throws IOException {
 		try {		
 			// Open a consumer on the connect topic and receive a message to initiate the connection
-			Message msg = consumer.receive();
-			if(msg == null)
-				throw new IOException("Received null message");
+			long eventStart = TransportEvents.start();
+			Message msg = receiveConnect();
+			
+			if(deliveryStrategy.isClientAcknowledge())
+				msg.acknowledge();
 
 			// Use the received message to designate a communications destination (the JMSReplyTo)
-			return new ServerMessageConnection(session, msg.getJMSReplyTo());
+			ServerMessageConnection connection = new ServerMessageConnection(session, msg.getJMSReplyTo(), deliveryStrategy);
+			if(admissionControl != null)
+				connection.setAdmissionControl(admissionControl, msg.getStringProperty("JMSXUserID"), 
+						msg.getStringProperty(ServerMessageConnection.PROP_SESSIONCLASS));
+			if(msg.propertyExists(ServerMessageConnection.PROP_COMPRESSIONS))
+				connection.setPeerCompressions(msg.getStringProperty(ServerMessageConnection.PROP_COMPRESSIONS));
+			if(msg.propertyExists(ServerMessageConnection.PROP_BYTES))
+				connection.setPeerReadsBytes();
+			if(resumeTimeout > 0)
+				connection.setResumable(sessions, resumeTimeout);
+			
+			TransportEvents.accepted(connection.getConnectionId(), 
+					msg.getStringProperty(ServerMessageConnection.PROP_CONNECTIONID), eventStart);
+			
+			return connection;
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
 		} 
 	}
 
+	/**
+	 * Receive the next message that asks for a new connection. Requests to resume a session
+	 * are handled here, and the broker connection is restored when it's lost. When starting 
+	 * in the background, the broker connection is made here first.
+	 */
+	private Message receiveConnect() throws IOException {
+		if(consumer == null)
+			connect();
+		
+		while(true) {
+			Message msg;
+			try {
+				msg = consumer.receive();
+				if(msg != null && msg.propertyExists(ServerMessageConnection.PROP_SESSIONTOKEN)) {
+					resume(msg);
+					continue;
+				}
+			} catch (JMSException e) {
+				msg = null;
+			}
+			
+			if(msg != null)
+				return msg;
+			if(stopped)
+				throw new IOException("Received null message");
+			
+			reconnect();
+		}
+	}
+	
+	/**
+	 * Re-attach a client to the connection it had before the broker connection was lost,
+	 * or tell it we don't have that connection anymore
+	 */
+	private void resume(Message msg) throws JMSException {
+		if(deliveryStrategy.isClientAcknowledge())
+			msg.acknowledge();
+		
+		ServerMessageConnection connection = sessions.get(msg.getStringProperty(ServerMessageConnection.PROP_SESSIONTOKEN));
+		if(connection != null && connection.resume(session, msg.getJMSReplyTo()))
+			return;
+		
+		Message rejection = session.createMessage();
+		rejection.setStringProperty(ServerMessageConnection.PROP_REQUESTTYPE, ServerMessageConnection.REQUESTTYPE_REJECTED);
+		MessageProducer producer = deliveryStrategy.createProducer(session, msg.getJMSReplyTo());
+		producer.send(rejection);
+		producer.close();
+	}
+	
+	/**
+	 * Replace the broken broker connection
+	 */
+	private void reconnect() throws IOException {
+		status.reconnecting();
+		try {
+			connection.close();
+		} catch (JMSException e) {
+			// It's broken, that's why we're here
+		}
+		
+		connect();
+	}
+	
+	/**
+	 * Connect to the broker, retrying with increasing delays until it's there or we're stopped
+	 */
+	private void connect() throws IOException {
+		long delay = INITIAL_RECONNECT_DELAY;
+		while(!stopped) {
+			try {
+				open();
+				if(stopped) {
+					connection.close();
+					break;
+				}
+				
+				startPublishers();
+				status.ready();
+				return;
+			} catch (JMSException e) {
+				// The broker isn't there (yet)
+				status.failed(e);
+			}
+			
+			synchronized(stopLock) {
+				try {
+					if(!stopped)
+						stopLock.wait(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while connecting to the broker");
+				}
+			}
+			delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+		}
+		throw new IOException("Received null message");
+	}
+	
+	/**
+	 * Start the advertiser and publishers on the broker connection, stopping them on the 
+	 * previous one first
+	 */
+	private void startPublishers() {
+		// Each on its own, one that fails to start must not keep the others down
+		if(advertiser != null) {
+			try {
+				try {
+					advertiser.stop();
+				} catch (JMSException e) {
+					// Its session went down with the old connection
+				}
+				advertiser.start(connection, advertisementTopic);
+			} catch (JMSException e) {
+				// Clients see us as absent until the next reconnect, but can still connect
+				logger.log(Level.WARNING, "Unable to restart the presence advertiser of " + topicPrefix, e);
+			}
+		}
+		
+		if(telemetry != null) {
+			try {
+				try {
+					telemetry.stop();
+				} catch (JMSException e) {
+					// Its session went down with the old connection
+				}
+				telemetry.start(connection);
+			} catch (JMSException e) {
+				logger.log(Level.WARNING, "Unable to restart the telemetry publisher of " + topicPrefix, e);
+			}
+		}
+		
+		if(notifications != null) {
+			try {
+				try {
+					notifications.stop();
+				} catch (JMSException e) {
+					// Its session went down with the old connection
+				}
+				notifications.start(connection);
+			} catch (JMSException e) {
+				logger.log(Level.WARNING, "Unable to restart the shared notification publisher of " + topicPrefix, e);
+			}
+		}
+	}
+	
+	/**
+	 * Open the JMS connection, session and the consumer on the connect topic
+	 */
+	private void open() throws JMSException {
+		connection = connectionFactory.createConnection();
+		try {
+			connection.start();
+			session = deliveryStrategy.createSession(connection);
+			consumer = session.createConsumer(
+				session.createTopic(topicPrefix),
+				ServerMessageConnection.PROP_REQUESTTYPE + " = '" + ServerMessageConnection.REQUESTTYPE_CONNECT + "'");
+		} catch (JMSException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
 	public JMXServiceURL getAddress() {
 		return serviceURL;
 	}
 
 	@SuppressWarnings("unchecked")
-	public void start(Map arg0) throws IOException {
+	public void start(Map env) throws IOException {
 		try {
-			// Open a JMS Connection & Session if none is already open
+			// Open a JMS Connection, Session and the consumer on the connect topic if none is already 
+			// open. In the background, accept() connects without holding up the application.
+			boolean background = EnvHelper.getBoolean(env, AbstractServerProvider.BACKGROUND_START, false);
 			if(connection == null) {
-					connection = connectionFactory.createConnection();
-					connection.start();
-					session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				deliveryStrategy = DeliveryStrategy.fromEnvironment(env);
+				if(!background) {
+					open();
+					status.ready();
+				}
 			}
-	
-			// Create the message consumer if not already created
-			if(consumer == null) {
-				consumer = session.createConsumer(
-					session.createTopic(topicPrefix),
-					ServerMessageConnection.PROP_REQUESTTYPE + " = '" + ServerMessageConnection.REQUESTTYPE_CONNECT + "'");
+			stopped = false;
+			
+			if(background && statusName == null)
+				registerStatus();
+			
+			// Keep the state of clients that lose their broker connection
+			resumeTimeout = EnvHelper.getLong(env, AbstractMessageConnection.RESUME_TIMEOUT, 0);
+			
+			// Limit the work clients can make us do
+			if(admissionControl == null) {
+				admissionControl = AdmissionControl.fromEnvironment(env);
+				if(admissionControl != null)
+					registerAdmissionControl();
+			}
+			
+			// Sample attributes faster than clients poll them
+			if(samplerName == null) {
+				AttributeSampler sampler = AttributeSampler.fromEnvironment(env);
+				if(sampler != null)
+					registerSampler(sampler);
+			}
+			
+			// Keep notifications for clients that can't keep up
+			String spoolDirectory = EnvHelper.getString(env, AbstractServerProvider.NOTIFICATION_SPOOL, null);
+			if(spoolerName == null && spoolDirectory != null)
+				registerSpooler(new File(spoolDirectory));
+			
+			// Let clients page through queries with many results
+			int pageSize = EnvHelper.getInt(env, AbstractServerProvider.QUERY_PAGE_SIZE, 0);
+			if(cursorsName == null && pageSize > 0)
+				registerCursors(pageSize);
+			
+			// Let clients know we're here, once we can accept their connections
+			long interval = EnvHelper.getLong(env, AbstractServerProvider.ADVERTISEMENT_INTERVAL, 0);
+			if(advertiser == null && interval > 0) {
+				advertiser = new PresenceAdvertiser(topicPrefix, serviceURL, interval);
+				advertisementTopic = EnvHelper.getString(env, 
+						AbstractServerProvider.ADVERTISEMENT_TOPIC, ServerDirectory.DEFAULT_ADVERTISEMENT_TOPIC);
+				if(connection != null)
+					advertiser.start(connection, advertisementTopic);
+			}
+			
+			// Publish metrics for collectors
+			TelemetrySpec[] specs = (TelemetrySpec[])env.get(AbstractServerProvider.TELEMETRY);
+			if(telemetry == null && specs != null && specs.length > 0) {
+				telemetry = new TelemetryPublisher(topicPrefix, getMBeanServer(), specs, 
+						EnvHelper.getLong(env, AbstractServerProvider.TELEMETRY_INTERVAL, TelemetryCollector.DEFAULT_INTERVAL),
+						EnvHelper.getInt(env, AbstractServerProvider.TELEMETRY_KEYFRAME_INTERVAL, TelemetryCollector.DEFAULT_KEYFRAME_INTERVAL));
+				if(connection != null)
+					telemetry.start(connection);
+			}
+			
+			// Publish notifications once for all clients listening to them
+			ObjectName[] shared = (ObjectName[])env.get(AbstractServerProvider.SHARED_NOTIFICATIONS);
+			if(notifications == null && shared != null && shared.length > 0) {
+				notifications = new SharedNotificationPublisher(topicPrefix, getMBeanServer(), shared);
+				if(connection != null)
+					notifications.start(connection);
 			}
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
 		}
 	}
+	
+	private void registerStatus() throws IOException {
+		try {
+			ObjectName name = new ObjectName("nl.gdries.jmsjmx:type=ConnectorServerStatus,topic=" + ObjectName.quote(topicPrefix));
+			getMBeanServer().registerMBean(status, name);
+			statusName = name;
+		} catch (JMException e) {
+			IOException ioe = new IOException("Unable to register connector server status: " + e);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	private void registerAdmissionControl() throws IOException {
+		try {
+			ObjectName name = new ObjectName("nl.gdries.jmsjmx:type=AdmissionControl,topic=" + ObjectName.quote(topicPrefix));
+			getMBeanServer().registerMBean(admissionControl, name);
+			admissionControlName = name;
+		} catch (JMException e) {
+			IOException ioe = new IOException("Unable to register admission control: " + e);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+	
+	private void registerSampler(AttributeSampler sampler) throws IOException {
+		try {
+			ObjectName name = new ObjectName("nl.gdries.jmsjmx:type=AttributeSampler,topic=" + ObjectName.quote(topicPrefix));
+			getMBeanServer().registerMBean(sampler, name);
+			samplerName = name;
+		} catch (JMException e) {
+			IOException ioe = new IOException("Unable to register attribute sampler: " + e);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+	
+	private void registerSpooler(File directory) throws IOException {
+		try {
+			ObjectName name = new ObjectName(NotificationSpooler.OBJECT_NAME);
+			getMBeanServer().registerMBean(new NotificationSpooler(directory), name);
+			spoolerName = name;
+		} catch (InstanceAlreadyExistsException e) {
+			// Another connector server shares its MBeanServer and spooler with us
+		} catch (JMException e) {
+			IOException ioe = new IOException("Unable to register notification spooler: " + e);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+	
+	private void registerCursors(int maxPageSize) throws IOException {
+		try {
+			ObjectName name = new ObjectName(QueryCursors.OBJECT_NAME);
+			getMBeanServer().registerMBean(new QueryCursors(maxPageSize, QueryCursors.DEFAULT_IDLE_TIMEOUT), name);
+			cursorsName = name;
+		} catch (InstanceAlreadyExistsException e) {
+			// Another connector server shares its MBeanServer and cursors with us
+		} catch (JMException e) {
+			IOException ioe = new IOException("Unable to register query cursors: " + e);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+	
+	private MBeanServer getMBeanServer() {
+		return mbeanServer != null ? mbeanServer : ManagementFactory.getPlatformMBeanServer();
+	}
 
 	public void stop() throws IOException {
+		synchronized(stopLock) {
+			stopped = true;
+			stopLock.notifyAll();
+		}
+		status.stopped();
+		
+		// Started in the background, the server may not have connected yet
+		if(session == null && statusName == null)
+			return;
+		
+		// Every step is taken even if an earlier one fails, the first failure is thrown at the end
+		JMSException failure = null;
+		if(statusName != null) {
+			try {
+				getMBeanServer().unregisterMBean(statusName);
+			} catch (JMException e) {
+				// Someone else already did
+			}
+			statusName = null;
+		}
+		
+		if(advertiser != null) {
+			try {
+				advertiser.stop();
+			} catch (JMSException e) {
+				failure = e;
+			} finally {
+				advertiser = null;
+			}
+		}
+		
+		if(telemetry != null) {
+			try {
+				telemetry.stop();
+			} catch (JMSException e) {
+				if(failure == null)
+					failure = e;
+			} finally {
+				telemetry = null;
+			}
+		}
+		
+		if(notifications != null) {
+			try {
+				notifications.stop();
+			} catch (JMSException e) {
+				if(failure == null)
+					failure = e;
+			} finally {
+				notifications = null;
+			}
+		}
+		
+		if(admissionControlName != null) {
+			try {
+				getMBeanServer().unregisterMBean(admissionControlName);
+			} catch (JMException e) {
+				// Someone else already did
+			}
+			admissionControlName = null;
+		}
+		
+		if(samplerName != null) {
+			try {
+				getMBeanServer().unregisterMBean(samplerName);
+			} catch (JMException e) {
+				// Someone else already did
+			}
+			samplerName = null;
+		}
+		
+		if(spoolerName != null) {
+			try {
+				getMBeanServer().unregisterMBean(spoolerName);
+			} catch (JMException e) {
+				// Someone else already did
+			}
+			spoolerName = null;
+		}
+		
+		if(cursorsName != null) {
+			try {
+				getMBeanServer().unregisterMBean(cursorsName);
+			} catch (JMException e) {
+				// Someone else already did
+			}
+			cursorsName = null;
+		}
+		
 		if(session != null) {
 			try {
 				session.close();
-				connection.close();
 			} catch (JMSException e) {
-				throw new WrappedJMSException(e);
+				if(failure == null)
+					failure = e;
+			} finally {
+				try {
+					connection.close();
+				} catch (JMSException e) {
+					if(failure == null)
+						failure = e;
+				}
 			}
 		}
+		
+		if(failure != null)
+			throw new WrappedJMSException(failure);
 	}
 }
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Helper methods to take a service URL apart. The URL path consists of the topic name,
+ * optionally followed by parameters separated by semicolons:
+ * <p>
+ * service:jmx:<i>protocol</i>://<i>hostname</i>:<i>portnumber</i>/<i>topic</i>;brokers=<i>host</i>:<i>port</i>,...
+ * <p>
+ * The brokers parameter lists brokers in addition to the one in the URL's host and port.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public final class ServiceURLHelper {
+	public static final String BROKERS = "brokers";
+	
+	private ServiceURLHelper() {
+	}
+	
+	/**
+	 * @return The topic name from the URL path
+	 */
+	public static String getTopic(JMXServiceURL serviceURL) {
+		String path = serviceURL.getURLPath();
+		if(path.length() <= 1) {
+			throw new IllegalArgumentException("The topic name must be provided in the service URL");
+		}
+		
+		// Use the part after the / or ; up to the first parameter as the topic name
+		int end = path.indexOf(';', 1);
+		return end < 0 ? path.substring(1) : path.substring(1, end);
+	}
+	
+	/**
+	 * @return The value of a parameter in the URL path, or null if it's not there
+	 */
+	public static String getParameter(JMXServiceURL serviceURL, String name) {
+		String path = serviceURL.getURLPath();
+		int start = path.indexOf(';', 1);
+		while(start >= 0) {
+			int end = path.indexOf(';', start + 1);
+			String parameter = end < 0 ? path.substring(start + 1) : path.substring(start + 1, end);
+			if(parameter.startsWith(name + "="))
+				return parameter.substring(name.length() + 1);
+			
+			start = end;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return All brokers in the URL as host:port, the one in the host and port first
+	 */
+	public static List<String> getBrokers(JMXServiceURL serviceURL) {
+		List<String> brokers = new ArrayList<String>();
+		brokers.add(serviceURL.getHost() + ":" + serviceURL.getPort());
+		
+		String parameter = getParameter(serviceURL, BROKERS);
+		if(parameter != null) {
+			for(String broker: parameter.split(",")) {
+				broker = broker.trim();
+				if(broker.length() == 0)
+					continue;
+				if(broker.indexOf(':') < 0)
+					throw new IllegalArgumentException("Broker " + broker + " in the service URL must be host:port");
+				if(!brokers.contains(broker))
+					brokers.add(broker);
+			}
+		}
+		return brokers;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+
+/**
+ * Registry of reference counted JMS connections. Connectors that are configured to 
+ * share connections use one started javax.jms.Connection per broker and only create 
+ * their own Session on it. The connection is closed when the last user releases it.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+final class SharedConnections {
+	private static final Map<Object, Entry> entries = new HashMap<Object, Entry>();
+	
+	private SharedConnections() {
+	}
+	
+	/**
+	 * Get the shared connection for <i>key</i>, creating and starting it using the 
+	 * ConnectionFactory if there is none yet.
+	 */
+	static Connection acquire(Object key, ConnectionFactory connectionFactory) throws JMSException {
+		return acquire(key, connectionFactory, null);
+	}
+	
+	/**
+	 * Get the shared connection for <i>key</i>, creating and starting it using the 
+	 * ConnectionFactory if there is none yet.
+	 * 
+	 * @param listener Told when the connection fails, or null. The connection has one 
+	 *        ExceptionListener that tells all users.
+	 */
+	static Connection acquire(final Object key, ConnectionFactory connectionFactory, ExceptionListener listener) 
+			throws JMSException {
+		synchronized(entries) {
+			Entry entry = entries.get(key);
+			if(entry == null) {
+				final Connection connection = connectionFactory.createConnection();
+				final Entry created = new Entry(key, connection);
+				connection.setExceptionListener(new ExceptionListener() {
+					public void onException(JMSException e) {
+						// Make sure nobody else picks up the broken connection
+						synchronized(entries) {
+							Entry current = entries.get(key);
+							if(current == created)
+								entries.remove(key);
+						}
+						
+						for(ExceptionListener listener: created.listeners)
+							listener.onException(e);
+					}
+				});
+				connection.start();
+				entry = created;
+				entries.put(key, entry);
+			}
+			entry.references++;
+			if(listener != null)
+				entry.listeners.add(listener);
+			return entry.connection;
+		}
+	}
+	
+	/**
+	 * Release a connection obtained from acquire(). The connection is closed when it
+	 * is no longer used.
+	 */
+	static void release(Connection connection) throws JMSException {
+		release(connection, null);
+	}
+	
+	/**
+	 * Release a connection obtained from acquire() with a listener. The connection is 
+	 * closed when it is no longer used.
+	 */
+	static void release(Connection connection, ExceptionListener listener) throws JMSException {
+		synchronized(entries) {
+			for(Entry entry: entries.values()) {
+				if(entry.connection == connection) {
+					entry.listeners.remove(listener);
+					if(--entry.references > 0)
+						return;
+					entries.remove(entry.key);
+					break;
+				}
+			}
+		}
+		connection.close();
+	}
+	
+	private static class Entry {
+		final Object key;
+		final Connection connection;
+		final List<ExceptionListener> listeners = new CopyOnWriteArrayList<ExceptionListener>();
+		int references;
+		
+		Entry(Object key, Connection connection) {
+			this.key = key;
+			this.connection = connection;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.management.AttributeChangeNotification;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationBroadcaster;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the notifications of the MBeans matching a set of patterns on the server's
+ * shared notification topic. Each notification is serialized and sent once, however many 
+ * clients listen to it, the broker delivers it to the subscriptions whose selector matches.
+ * See SharedNotifications for the client side.
+ * <p>
+ * Notifications are queued and sent from a thread of the publisher, so MBeans never wait
+ * for the broker. When the queue is full, new notifications are dropped and counted.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class SharedNotificationPublisher implements NotificationListener {
+	private static final Logger logger = Logger.getLogger(SharedNotificationPublisher.class.getName());
+	
+	/**
+	 * Maximum number of notifications waiting to be sent
+	 */
+	static final int MAX_QUEUED = 10000;
+	
+	// Handback of the MBeanServerDelegate registration, other handbacks are the source's name
+	private static final Object REGISTRATIONS = new Object();
+	
+	private final String topicPrefix;
+	private final MBeanServer mbeanServer;
+	private final ObjectName[] patterns;
+	private final Set<ObjectName> listening = new HashSet<ObjectName>();
+	private final BlockingQueue<Queued> queue = new ArrayBlockingQueue<Queued>(MAX_QUEUED);
+	private final AtomicLong dropped = new AtomicLong();
+	
+	private ObjectName delegate;
+	private Session session;
+	private Thread sender;
+	
+	SharedNotificationPublisher(String topicPrefix, MBeanServer mbeanServer, ObjectName[] patterns) {
+		this.topicPrefix = topicPrefix;
+		this.mbeanServer = mbeanServer;
+		this.patterns = patterns.clone();
+	}
+	
+	/**
+	 * Start publishing. The publisher sends on a session of its own, from its own thread.
+	 */
+	synchronized void start(Connection connection) throws JMSException {
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		MessageProducer producer = session.createProducer(session.createTopic(topicPrefix + SharedNotifications.NOTIFICATION_SUFFIX));
+		producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+		
+		sender = new Sender(session, producer);
+		sender.setDaemon(true);
+		sender.start();
+		
+		try {
+			delegate = new ObjectName("JMImplementation:type=MBeanServerDelegate");
+			mbeanServer.addNotificationListener(delegate, this, null, REGISTRATIONS);
+			
+			for(ObjectName pattern: patterns) {
+				for(ObjectName name: mbeanServer.queryNames(pattern, null))
+					listen(name);
+			}
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Unable to listen for notifications to share", e);
+		}
+	}
+	
+	/**
+	 * Stop publishing. Notifications that were not sent yet are sent after the next start.
+	 */
+	synchronized void stop() throws JMSException {
+		if(session == null)
+			return;
+		
+		try {
+			mbeanServer.removeNotificationListener(delegate, this);
+		} catch (JMException e) {
+			// Not listening
+		}
+		for(ObjectName name: listening) {
+			try {
+				mbeanServer.removeNotificationListener(name, this);
+			} catch (JMException e) {
+				// Unregistered in the meantime
+			}
+		}
+		listening.clear();
+		
+		// Closing the session releases the sender if it's waiting for the broker
+		sender.interrupt();
+		sender = null;
+		try {
+			session.close();
+		} finally {
+			session = null;
+		}
+	}
+	
+	/**
+	 * @return The number of notifications dropped because the queue was full
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+	
+	public void handleNotification(Notification notification, Object handback) {
+		if(handback == REGISTRATIONS) {
+			MBeanServerNotification registration = (MBeanServerNotification)notification;
+			if(MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(registration.getType()))
+				registered(registration.getMBeanName());
+			else if(MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(registration.getType()))
+				unregistered(registration.getMBeanName());
+		} else if(!queue.offer(new Queued((ObjectName)handback, notification))) {
+			// Log at 1, 2, 4, 8... dropped notifications, not every single one
+			long count = dropped.incrementAndGet();
+			if(Long.bitCount(count) == 1)
+				logger.warning("Dropped " + count + " shared notifications so far, more than " + 
+						MAX_QUEUED + " were waiting to be sent");
+		}
+	}
+	
+	private synchronized void registered(ObjectName name) {
+		if(session == null)
+			return;
+		
+		for(ObjectName pattern: patterns) {
+			if(pattern.apply(name)) {
+				try {
+					listen(name);
+				} catch (JMException e) {
+					logger.log(Level.WARNING, "Unable to listen for notifications of " + name, e);
+				}
+				return;
+			}
+		}
+	}
+	
+	private synchronized void unregistered(ObjectName name) {
+		// The MBeanServer removed the listener already
+		listening.remove(name);
+	}
+	
+	private void listen(ObjectName name) throws JMException {
+		if(listening.contains(name) || !mbeanServer.isInstanceOf(name, NotificationBroadcaster.class.getName()))
+			return;
+		
+		mbeanServer.addNotificationListener(name, this, null, name);
+		listening.add(name);
+	}
+	
+	private static class Queued {
+		final ObjectName name;
+		final Notification notification;
+		
+		Queued(ObjectName name, Notification notification) {
+			this.name = name;
+			this.notification = notification;
+		}
+	}
+	
+	/**
+	 * Sends queued notifications on one session, until it's interrupted
+	 */
+	private class Sender extends Thread {
+		private final Session session;
+		private final MessageProducer producer;
+		private final MessageCodec.Buffer buffer = new MessageCodec.Buffer(4096);
+		
+		Sender(Session session, MessageProducer producer) {
+			super("SharedNotificationPublisher-" + topicPrefix);
+			this.session = session;
+			this.producer = producer;
+		}
+		
+		@Override
+		public void run() {
+			while(!isInterrupted()) {
+				Queued queued;
+				try {
+					queued = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				try {
+					publish(queued.name, queued.notification);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Unable to serialize a notification of " + queued.name, e);
+				} catch (JMSException e) {
+					// Stopping closes the session under us
+					if(!isInterrupted())
+						logger.log(Level.WARNING, "Unable to publish a notification of " + queued.name, e);
+				}
+			}
+		}
+		
+		/**
+		 * Serialize the notification and send it on the topic, with the properties client 
+		 * selectors filter on
+		 */
+		private void publish(ObjectName name, Notification notification) throws IOException, JMSException {
+			buffer.reset();
+			ObjectOutputStream out = new ObjectOutputStream(buffer);
+			out.writeObject(notification);
+			out.close();
+			
+			BytesMessage message = session.createBytesMessage();
+			message.writeBytes(buffer.getBuffer(), 0, buffer.size());
+			message.setStringProperty(SharedNotifications.PROP_SOURCE, name.getCanonicalName());
+			message.setStringProperty(SharedNotifications.PROP_TYPE, notification.getType());
+			if(notification instanceof AttributeChangeNotification)
+				message.setStringProperty(SharedNotifications.PROP_ATTRIBUTE, 
+						((AttributeChangeNotification)notification).getAttributeName());
+			producer.send(message);
+		}
+	}
+}
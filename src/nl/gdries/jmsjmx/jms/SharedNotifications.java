@@ -0,0 +1,374 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.management.AttributeChangeNotification;
+import javax.management.AttributeChangeNotificationFilter;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * Receives the notifications a connector server publishes once on its shared notification 
+ * topic, see AbstractServerProvider.SHARED_NOTIFICATIONS. Each listener has its own 
+ * subscription, with a message selector on the MBean it listens to and on what its filter 
+ * lets through, so the broker only delivers notifications the listener may want. Filters 
+ * the selector can't express are applied when the notification arrives.
+ * <p>
+ * When the broker connection is lost, the listeners are subscribed again once it's back.
+ * Notifications published in the meantime are lost.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class SharedNotifications {
+	private static final Logger logger = Logger.getLogger(SharedNotifications.class.getName());
+	
+	/**
+	 * Appended to a server's topic prefix to get the topic it publishes shared notifications on
+	 */
+	public static final String NOTIFICATION_SUFFIX = ".notifications";
+	
+	static final String PROP_SOURCE    = "nl_gdries_jmsjmx_source";
+	static final String PROP_TYPE      = "nl_gdries_jmsjmx_type";
+	static final String PROP_ATTRIBUTE = "nl_gdries_jmsjmx_attribute";
+	
+	// Delays between attempts to reconnect to the broker
+	private static final long INITIAL_RECONNECT_DELAY = 100;
+	private static final long MAX_RECONNECT_DELAY = 5000;
+	
+	private final String topicPrefix;
+	private final List<Registration> registrations = new ArrayList<Registration>();
+	
+	private ConnectionFactory connectionFactory;
+	private Connection connection;
+	
+	public SharedNotifications(String topicPrefix) {
+		this.topicPrefix = topicPrefix;
+	}
+	
+	public synchronized void start(ConnectionFactory connectionFactory) throws IOException {
+		this.connectionFactory = connectionFactory;
+		try {
+			connection = open();
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		}
+	}
+	
+	/**
+	 * Receive the notifications of an MBean, or of all MBeans matching a pattern
+	 * 
+	 * @param filter The filter to apply, or null for all notifications
+	 */
+	public synchronized void addNotificationListener(ObjectName name, NotificationListener listener, 
+			NotificationFilter filter, Object handback) throws IOException {
+		if(connection == null)
+			throw new IllegalStateException("Shared notifications are not started");
+		
+		Registration registration = new Registration(name, listener, filter, handback);
+		try {
+			registration.subscribe(connection);
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		}
+		registrations.add(registration);
+	}
+	
+	/**
+	 * Remove all registrations of a listener for an MBean
+	 */
+	public synchronized void removeNotificationListener(ObjectName name, NotificationListener listener) 
+			throws ListenerNotFoundException, IOException {
+		remove(name, listener, false, null, null);
+	}
+	
+	/**
+	 * Remove the registration of a listener for an MBean with exactly this filter and handback
+	 */
+	public synchronized void removeNotificationListener(ObjectName name, NotificationListener listener, 
+			NotificationFilter filter, Object handback) throws ListenerNotFoundException, IOException {
+		remove(name, listener, true, filter, handback);
+	}
+	
+	private void remove(ObjectName name, NotificationListener listener, boolean exact, 
+			NotificationFilter filter, Object handback) throws ListenerNotFoundException, IOException {
+		boolean found = false;
+		for(Iterator<Registration> i = registrations.iterator(); i.hasNext(); ) {
+			Registration registration = i.next();
+			if(!registration.name.equals(name) || registration.listener != listener)
+				continue;
+			if(exact && (registration.filter != filter || registration.handback != handback))
+				continue;
+			
+			i.remove();
+			found = true;
+			try {
+				registration.unsubscribe();
+			} catch (JMSException e) {
+				throw new WrappedJMSException(e);
+			}
+			
+			if(exact)
+				break;
+		}
+		
+		if(!found)
+			throw new ListenerNotFoundException("Listener not registered for " + name);
+	}
+	
+	public synchronized void stop() throws IOException {
+		if(connection == null)
+			return;
+		
+		try {
+			connection.close();
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		} finally {
+			connection = null;
+			registrations.clear();
+		}
+	}
+	
+	/**
+	 * Build the message selector for a listener. Only what the selector can express exactly
+	 * is selected on, the listener's filter has the last word.
+	 */
+	static String selector(ObjectName name, NotificationFilter filter) {
+		StringBuilder selector = new StringBuilder();
+		if(!name.isPattern())
+			selector.append(PROP_SOURCE).append(" = ").append(quote(name.getCanonicalName()));
+		
+		List<String> alternatives = new ArrayList<String>();
+		if(filter instanceof AttributeChangeNotificationFilter) {
+			Vector<String> attributes = ((AttributeChangeNotificationFilter)filter).getEnabledAttributes();
+			for(String attribute: attributes) {
+				alternatives.add("(" + PROP_TYPE + " = " + quote(AttributeChangeNotification.ATTRIBUTE_CHANGE) + 
+						" AND " + PROP_ATTRIBUTE + " = " + quote(attribute) + ")");
+			}
+		} else if(filter instanceof NotificationFilterSupport) {
+			// Enabled types are prefixes of the types let through
+			Vector<String> types = ((NotificationFilterSupport)filter).getEnabledTypes();
+			for(String type: types)
+				alternatives.add(PROP_TYPE + " LIKE " + quote(escapeLike(type) + "%") + " ESCAPE '!'");
+		}
+		
+		if(!alternatives.isEmpty()) {
+			if(selector.length() > 0)
+				selector.append(" AND ");
+			selector.append('(');
+			for(int i = 0; i < alternatives.size(); i++) {
+				if(i > 0)
+					selector.append(" OR ");
+				selector.append(alternatives.get(i));
+			}
+			selector.append(')');
+		}
+		
+		return selector.length() > 0 ? selector.toString() : null;
+	}
+	
+	private static String quote(String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+	
+	private static String escapeLike(String value) {
+		StringBuilder escaped = new StringBuilder();
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '%' || c == '_' || c == '!')
+				escaped.append('!');
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+	
+	/**
+	 * Open a connection that subscribes the listeners again when it's lost
+	 */
+	private Connection open() throws JMSException {
+		final Connection c = connectionFactory.createConnection();
+		try {
+			c.setExceptionListener(new ExceptionListener() {
+				public void onException(JMSException e) {
+					lost(c);
+				}
+			});
+			c.start();
+		} catch (JMSException e) {
+			c.close();
+			throw e;
+		}
+		return c;
+	}
+	
+	/**
+	 * The broker connection was lost, reconnect in the background
+	 */
+	private void lost(final Connection lost) {
+		Thread thread = new Thread("SharedNotifications-" + topicPrefix) {
+			@Override
+			public void run() {
+				long delay = INITIAL_RECONNECT_DELAY;
+				while(reconnect(lost)) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						return;
+					}
+					delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * @return Whether to try again later
+	 */
+	private synchronized boolean reconnect(Connection lost) {
+		// Stopped, or someone reconnected already
+		if(connection != lost)
+			return false;
+		
+		try {
+			lost.close();
+		} catch (JMSException e) {
+			// It's broken
+		}
+		
+		Connection c = null;
+		try {
+			c = open();
+			for(Registration registration: registrations)
+				registration.subscribe(c);
+			connection = c;
+			return false;
+		} catch (JMSException e) {
+			if(c != null) {
+				try {
+					c.close();
+				} catch (JMSException ignore) {
+					// Try again later
+				}
+			}
+			return true;
+		}
+	}
+	
+	private class Registration implements MessageListener {
+		final ObjectName name;
+		final NotificationListener listener;
+		final NotificationFilter filter;
+		final Object handback;
+		
+		private Session session;
+		
+		Registration(ObjectName name, NotificationListener listener, NotificationFilter filter, Object handback) {
+			this.name = name;
+			this.listener = listener;
+			this.filter = filter;
+			this.handback = handback;
+		}
+		
+		/**
+		 * Subscribe on a session of its own, so each listener is called on its own thread
+		 */
+		void subscribe(Connection connection) throws JMSException {
+			session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageConsumer consumer = session.createConsumer(
+					session.createTopic(topicPrefix + NOTIFICATION_SUFFIX), selector(name, filter));
+			consumer.setMessageListener(this);
+		}
+		
+		void unsubscribe() throws JMSException {
+			session.close();
+		}
+		
+		public void onMessage(Message message) {
+			Notification notification;
+			try {
+				BytesMessage bytes = (BytesMessage)message;
+				byte[] data = new byte[(int)bytes.getBodyLength()];
+				bytes.readBytes(data);
+				notification = decode(data);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unable to decode a notification of " + name, e);
+				return;
+			}
+			
+			if(name.isPattern() && !(notification.getSource() instanceof ObjectName && name.apply((ObjectName)notification.getSource())))
+				return;
+			if(filter != null && !filter.isNotificationEnabled(notification))
+				return;
+			
+			listener.handleNotification(notification, handback);
+		}
+	}
+	
+	private static Notification decode(byte[] data) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				ClassLoader loader = Thread.currentThread().getContextClassLoader();
+				if(loader != null) {
+					try {
+						return Class.forName(desc.getName(), false, loader);
+					} catch (ClassNotFoundException e) {
+						// Fall back to the default behaviour
+					}
+				}
+				return super.resolveClass(desc);
+			}
+		};
+		return (Notification)in.readObject();
+	}
+}
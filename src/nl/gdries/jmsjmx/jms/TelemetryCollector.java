@@ -0,0 +1,174 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Subscribes to the telemetry topics of connector servers and hands the decoded frames to
+ * a listener. When a subscription starts, or frames were missed, the collector asks the
+ * server for a keyframe so it has the latest values without waiting for the next one.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class TelemetryCollector {
+	private static final Logger logger = Logger.getLogger(TelemetryCollector.class.getName());
+	
+	/**
+	 * Appended to a server's topic prefix to get the topic it publishes telemetry on
+	 */
+	public static final String TELEMETRY_SUFFIX = ".telemetry";
+	
+	/**
+	 * Appended to a server's topic prefix to get the topic it receives keyframe requests on
+	 */
+	public static final String SYNC_SUFFIX = ".telemetry.sync";
+	
+	/**
+	 * The default interval between frames in milliseconds
+	 */
+	public static final long DEFAULT_INTERVAL = 10000;
+	
+	/**
+	 * The default number of frames after a keyframe before the next one
+	 */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+	
+	private final TelemetryListener listener;
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+	
+	private Connection connection;
+	
+	public TelemetryCollector(TelemetryListener listener) {
+		this.listener = listener;
+	}
+	
+	public synchronized void start(ConnectionFactory connectionFactory) throws IOException {
+		try {
+			connection = connectionFactory.createConnection();
+			connection.start();
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		}
+	}
+	
+	/**
+	 * Start receiving the telemetry of a server. Each server is received on its own session
+	 * and thread.
+	 */
+	public synchronized void subscribe(final String topicPrefix) throws IOException {
+		if(connection == null)
+			throw new IllegalStateException("The collector is not started");
+		if(sessions.containsKey(topicPrefix))
+			return;
+		
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageConsumer consumer = session.createConsumer(session.createTopic(topicPrefix + TELEMETRY_SUFFIX));
+			final MessageProducer sync = session.createProducer(session.createTopic(topicPrefix + SYNC_SUFFIX));
+			sync.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+			final Session syncSession = session;
+			
+			sessions.put(topicPrefix, session);
+			sync.send(session.createMessage());
+			
+			final TelemetryDecoder decoder = new TelemetryDecoder();
+			consumer.setMessageListener(new MessageListener() {
+				private boolean syncRequested = true;
+				
+				public void onMessage(Message message) {
+					try {
+						BytesMessage bytes = (BytesMessage)message;
+						byte[] data = new byte[(int)bytes.getBodyLength()];
+						bytes.readBytes(data);
+						
+						TelemetryFrame frame = decoder.decode(data);
+						if(frame == null) {
+							// Missed a frame, ask for a keyframe once until one arrives
+							if(!syncRequested)
+								sync.send(syncSession.createMessage());
+							syncRequested = true;
+							return;
+						}
+						
+						if(frame.isKeyframe())
+							syncRequested = false;
+						listener.frameReceived(topicPrefix, frame);
+					} catch (Exception e) {
+						logger.log(Level.WARNING, "Unable to decode telemetry of " + topicPrefix, e);
+					}
+				}
+			});
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		}
+	}
+	
+	/**
+	 * Stop receiving the telemetry of a server
+	 */
+	public synchronized void unsubscribe(String topicPrefix) throws IOException {
+		Session session = sessions.remove(topicPrefix);
+		if(session == null)
+			return;
+		
+		try {
+			session.close();
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		}
+	}
+	
+	public synchronized void stop() throws IOException {
+		if(connection == null)
+			return;
+		
+		try {
+			connection.close();
+		} catch (JMSException e) {
+			throw new WrappedJMSException(e);
+		} finally {
+			connection = null;
+			sessions.clear();
+		}
+	}
+}
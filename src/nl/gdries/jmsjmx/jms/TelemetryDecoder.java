@@ -0,0 +1,190 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Decodes the telemetry frames of one connector server. Frames other than keyframes can
+ * only be decoded when every frame since the last keyframe was decoded, after a missing
+ * frame the decoder waits for the next keyframe.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class TelemetryDecoder {
+	private ObjectName[] names;
+	private String[] attributes;
+	private byte[] types;
+	
+	// The previous value of each series
+	private long[] longs;
+	private String[] strings;
+	
+	private long nextSequence = -1;
+	private long lastTimestamp;
+	
+	private byte[] data;
+	private int position;
+	
+	/**
+	 * @return The frame, or null if it depends on frames this decoder has not seen
+	 */
+	public synchronized TelemetryFrame decode(byte[] frame) throws IOException {
+		data = frame;
+		position = 0;
+		try {
+			return decode();
+		} catch (IOException e) {
+			// The series' previous values may be half updated
+			nextSequence = -1;
+			throw e;
+		} finally {
+			data = null;
+		}
+	}
+	
+	private TelemetryFrame decode() throws IOException {
+		if(readByte() != TelemetryFrame.VERSION)
+			throw new IOException("Unsupported telemetry frame version " + data[0]);
+		
+		boolean keyframe = (readByte() & TelemetryFrame.FLAG_KEYFRAME) != 0;
+		long sequence = readVarLong();
+		
+		if(!keyframe && sequence != nextSequence) {
+			// Missed a frame, the values can't be reconstructed until the next keyframe
+			nextSequence = -1;
+			return null;
+		}
+		nextSequence = sequence + 1;
+		
+		long timestamp;
+		if(keyframe) {
+			timestamp = readVarLong();
+			int count = (int)readVarLong();
+			names = new ObjectName[count];
+			attributes = new String[count];
+			types = new byte[count];
+			for(int i = 0; i < count; i++) {
+				try {
+					names[i] = new ObjectName(readString());
+				} catch (MalformedObjectNameException e) {
+					IOException ioe = new IOException("Invalid MBean name in telemetry frame: " + e);
+					ioe.initCause(e);
+					throw ioe;
+				}
+				attributes[i] = readString();
+				types[i] = readByte();
+			}
+			longs = new long[count];
+			strings = new String[count];
+		} else {
+			timestamp = lastTimestamp + unzigzag(readVarLong());
+		}
+		lastTimestamp = timestamp;
+		
+		boolean[] present = new boolean[names.length];
+		for(int i = 0; i < names.length; i += 8) {
+			int bits = readByte();
+			for(int j = i; j < i + 8 && j < names.length; j++)
+				present[j] = (bits & (1 << (j - i))) != 0;
+		}
+		
+		Object[] values = new Object[names.length];
+		for(int i = 0; i < names.length; i++) {
+			if(present[i])
+				values[i] = readValue(i);
+		}
+		
+		return new TelemetryFrame(sequence, timestamp, keyframe, names, attributes, values);
+	}
+	
+	private Object readValue(int series) throws IOException {
+		switch(types[series]) {
+		case TelemetryFrame.TYPE_LONG:
+			longs[series] += unzigzag(readVarLong());
+			return longs[series];
+		case TelemetryFrame.TYPE_DOUBLE:
+			longs[series] ^= Long.reverse(readVarLong());
+			return Double.longBitsToDouble(longs[series]);
+		case TelemetryFrame.TYPE_BOOLEAN:
+			return readByte() != 0;
+		case TelemetryFrame.TYPE_STRING:
+			if(readByte() != 0)
+				strings[series] = readString();
+			return strings[series];
+		default:
+			throw new IOException("Unknown telemetry type " + types[series]);
+		}
+	}
+	
+	/**
+	 * @return Whether the next frame can be decoded if it's not a keyframe
+	 */
+	public synchronized boolean isSynchronized() {
+		return nextSequence >= 0;
+	}
+	
+	private byte readByte() throws IOException {
+		if(position >= data.length)
+			throw new EOFException("Truncated telemetry frame");
+		return data[position++];
+	}
+	
+	private long readVarLong() throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint in telemetry frame");
+	}
+	
+	private String readString() throws IOException {
+		int length = (int)readVarLong();
+		if(length < 0 || length > data.length - position)
+			throw new EOFException("Truncated telemetry frame");
+		
+		try {
+			String value = new String(data, position, length, "UTF-8");
+			position += length;
+			return value;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
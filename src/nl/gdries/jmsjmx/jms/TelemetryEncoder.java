@@ -0,0 +1,226 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+/**
+ * Encodes telemetry frames. A keyframe holds the names and types of all series, the 
+ * frames after it only the values, in the keyframe's order. Each value is written as the
+ * difference with the series' previous value: integers as zigzag varints, doubles as a 
+ * varint of the bits that changed and strings only when they changed. Unchanged values 
+ * take one byte, missing values one bit.
+ * <p>
+ * A keyframe is written when the series change, every keyframe interval and when one
+ * is requested for a subscriber that has just started listening.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class TelemetryEncoder {
+	private final int keyframeInterval;
+	
+	private ObjectName[] names = new ObjectName[0];
+	private String[] attributes = new String[0];
+	private byte[] types = new byte[0];
+	private Map<String, Integer> index = new HashMap<String, Integer>();
+	
+	// The previous value of each series
+	private long[] longs;
+	private String[] strings;
+	
+	private long sequence;
+	private long lastTimestamp;
+	private int sinceKeyframe;
+	private boolean keyframeRequested = true;
+	
+	TelemetryEncoder(int keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+	
+	/**
+	 * @return The series type for a value, or 0 if the value can't be published
+	 */
+	static byte typeOf(Object value) {
+		if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return TelemetryFrame.TYPE_LONG;
+		if(value instanceof Double || value instanceof Float)
+			return TelemetryFrame.TYPE_DOUBLE;
+		if(value instanceof Boolean)
+			return TelemetryFrame.TYPE_BOOLEAN;
+		if(value instanceof String)
+			return TelemetryFrame.TYPE_STRING;
+		return 0;
+	}
+	
+	/**
+	 * Make the next frame a keyframe
+	 */
+	synchronized void requestKeyframe() {
+		keyframeRequested = true;
+	}
+	
+	/**
+	 * Encode the values read at one moment
+	 * 
+	 * @param values Values of a type typeOf() accepts
+	 */
+	synchronized byte[] encode(List<ObjectName> sampleNames, List<String> sampleAttributes, List<Object> values, long timestamp) {
+		boolean keyframe = keyframeRequested || sinceKeyframe >= keyframeInterval || 
+			!matchesSeries(sampleNames, sampleAttributes, values);
+		
+		if(keyframe)
+			defineSeries(sampleNames, sampleAttributes, values);
+		
+		Object[] columns = new Object[names.length];
+		for(int i = 0; i < values.size(); i++)
+			columns[index.get(key(sampleNames.get(i), sampleAttributes.get(i)))] = values.get(i);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + names.length * 2);
+		out.write(TelemetryFrame.VERSION);
+		out.write(keyframe ? TelemetryFrame.FLAG_KEYFRAME : 0);
+		writeVarLong(out, sequence++);
+		
+		if(keyframe) {
+			writeVarLong(out, timestamp);
+			writeVarLong(out, names.length);
+			for(int i = 0; i < names.length; i++) {
+				writeString(out, names[i].getCanonicalName());
+				writeString(out, attributes[i]);
+				out.write(types[i]);
+			}
+			longs = new long[names.length];
+			strings = new String[names.length];
+			sinceKeyframe = 0;
+			keyframeRequested = false;
+		} else {
+			writeVarLong(out, zigzag(timestamp - lastTimestamp));
+			sinceKeyframe++;
+		}
+		lastTimestamp = timestamp;
+		
+		// Which series have a value
+		for(int i = 0; i < columns.length; i += 8) {
+			int bits = 0;
+			for(int j = i; j < i + 8 && j < columns.length; j++) {
+				if(columns[j] != null)
+					bits |= 1 << (j - i);
+			}
+			out.write(bits);
+		}
+		
+		for(int i = 0; i < columns.length; i++) {
+			if(columns[i] != null)
+				writeValue(out, i, columns[i]);
+		}
+		return out.toByteArray();
+	}
+	
+	private void writeValue(ByteArrayOutputStream out, int series, Object value) {
+		switch(types[series]) {
+		case TelemetryFrame.TYPE_LONG:
+			long l = ((Number)value).longValue();
+			writeVarLong(out, zigzag(l - longs[series]));
+			longs[series] = l;
+			break;
+		case TelemetryFrame.TYPE_DOUBLE:
+			long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+			// The bits that change between values like counters and percentages are at the
+			// high end of the mantissa, reversed they make a short varint
+			writeVarLong(out, Long.reverse(bits ^ longs[series]));
+			longs[series] = bits;
+			break;
+		case TelemetryFrame.TYPE_BOOLEAN:
+			out.write(((Boolean)value).booleanValue() ? 1 : 0);
+			break;
+		case TelemetryFrame.TYPE_STRING:
+			if(value.equals(strings[series])) {
+				out.write(0);
+			} else {
+				out.write(1);
+				writeString(out, (String)value);
+				strings[series] = (String)value;
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * @return Whether every sampled value belongs to a known series of the same type
+	 */
+	private boolean matchesSeries(List<ObjectName> sampleNames, List<String> sampleAttributes, List<Object> values) {
+		for(int i = 0; i < values.size(); i++) {
+			Integer series = index.get(key(sampleNames.get(i), sampleAttributes.get(i)));
+			if(series == null || types[series] != typeOf(values.get(i)))
+				return false;
+		}
+		return true;
+	}
+	
+	private void defineSeries(List<ObjectName> sampleNames, List<String> sampleAttributes, List<Object> values) {
+		int count = values.size();
+		names = sampleNames.toArray(new ObjectName[count]);
+		attributes = sampleAttributes.toArray(new String[count]);
+		types = new byte[count];
+		index = new HashMap<String, Integer>();
+		for(int i = 0; i < count; i++) {
+			types[i] = typeOf(values.get(i));
+			index.put(key(names[i], attributes[i]), i);
+		}
+	}
+	
+	private static String key(ObjectName name, String attribute) {
+		return name.getCanonicalName() + "#" + attribute;
+	}
+	
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while((value & ~0x7FL) != 0) {
+			out.write((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+	
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		try {
+			byte[] bytes = value.getBytes("UTF-8");
+			writeVarLong(out, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import javax.management.ObjectName;
+
+/**
+ * The attribute values a connector server published at one moment, one column per
+ * series. A series is an attribute of one MBean. Values that could not be read are null.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class TelemetryFrame {
+	static final byte VERSION = 1;
+	
+	static final byte FLAG_KEYFRAME = 1;
+	
+	static final byte TYPE_LONG    = 1;
+	static final byte TYPE_DOUBLE  = 2;
+	static final byte TYPE_BOOLEAN = 3;
+	static final byte TYPE_STRING  = 4;
+	
+	private final long sequence;
+	private final long timestamp;
+	private final boolean keyframe;
+	private final ObjectName[] names;
+	private final String[] attributes;
+	private final Object[] values;
+	
+	TelemetryFrame(long sequence, long timestamp, boolean keyframe, ObjectName[] names, String[] attributes, Object[] values) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.keyframe = keyframe;
+		this.names = names;
+		this.attributes = attributes;
+		this.values = values;
+	}
+
+	/**
+	 * @return The number of the frame, counting from the server's start
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return When the values were read
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return Whether the frame can be decoded without the frames before it
+	 */
+	public boolean isKeyframe() {
+		return keyframe;
+	}
+	
+	public int size() {
+		return values.length;
+	}
+
+	public ObjectName getName(int series) {
+		return names[series];
+	}
+
+	public String getAttribute(int series) {
+		return attributes[series];
+	}
+
+	/**
+	 * @return A Long, Double, Boolean or String, or null if the value could not be read
+	 */
+	public Object getValue(int series) {
+		return values[series];
+	}
+}
@@ -0,0 +1,203 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Periodically publishes the attributes described by telemetry specs on the server's
+ * telemetry topic, so collectors subscribe once instead of polling every server. Frames
+ * expire after two intervals, a collector that falls behind gets the latest values 
+ * rather than old ones. A collector that starts listening asks for a keyframe on the 
+ * sync topic and gets one right away.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class TelemetryPublisher {
+	private static final Logger logger = Logger.getLogger(TelemetryPublisher.class.getName());
+	
+	static final String PROP_KEYFRAME = "nl_gdries_jmsjmx_keyframe";
+	
+	private final String topicPrefix;
+	private final MBeanServer mbeanServer;
+	private final TelemetrySpec[] specs;
+	private final long interval;
+	private final TelemetryEncoder encoder;
+	
+	private Session session;
+	private Session syncSession;
+	private MessageProducer producer;
+	private Timer timer;
+	private boolean keyframeScheduled;
+	
+	TelemetryPublisher(String topicPrefix, MBeanServer mbeanServer, TelemetrySpec[] specs, long interval, int keyframeInterval) {
+		this.topicPrefix = topicPrefix;
+		this.mbeanServer = mbeanServer;
+		this.specs = specs.clone();
+		this.interval = interval;
+		this.encoder = new TelemetryEncoder(keyframeInterval);
+	}
+	
+	/**
+	 * Start publishing. The publisher uses its own sessions, because it publishes from a
+	 * timer thread and receives keyframe requests on a listener thread.
+	 */
+	synchronized void start(Connection connection) throws JMSException {
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		producer = session.createProducer(session.createTopic(topicPrefix + TelemetryCollector.TELEMETRY_SUFFIX));
+		producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+		producer.setTimeToLive(interval * 2);
+		
+		timer = new Timer("TelemetryPublisher-" + topicPrefix, true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				publish();
+			}
+		}, 0, interval);
+		
+		syncSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = syncSession.createConsumer(
+				syncSession.createTopic(topicPrefix + TelemetryCollector.SYNC_SUFFIX));
+		consumer.setMessageListener(new MessageListener() {
+			public void onMessage(Message message) {
+				keyframeRequested();
+			}
+		});
+	}
+	
+	/**
+	 * Stop publishing
+	 */
+	synchronized void stop() throws JMSException {
+		if(timer == null)
+			return;
+		
+		timer.cancel();
+		timer = null;
+		
+		try {
+			syncSession.close();
+		} finally {
+			session.close();
+		}
+	}
+	
+	/**
+	 * Publish a keyframe now, unless one is about to be published already
+	 */
+	private synchronized void keyframeRequested() {
+		if(timer == null || keyframeScheduled)
+			return;
+		
+		keyframeScheduled = true;
+		encoder.requestKeyframe();
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				publish();
+			}
+		}, 0);
+	}
+	
+	private synchronized void publish() {
+		if(producer == null || timer == null)
+			return;
+		
+		// An exception would cancel the timer and stop publishing for good
+		try {
+			publishFrame();
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Unable to publish telemetry of " + topicPrefix, e);
+			encoder.requestKeyframe();
+		}
+		keyframeScheduled = false;
+	}
+	
+	private void publishFrame() {
+		List<ObjectName> names = new ArrayList<ObjectName>();
+		List<String> attributes = new ArrayList<String>();
+		List<Object> values = new ArrayList<Object>();
+		long timestamp = System.currentTimeMillis();
+		
+		for(TelemetrySpec spec: specs) {
+			for(ObjectName name: mbeanServer.queryNames(spec.getName(), null)) {
+				AttributeList read;
+				try {
+					read = mbeanServer.getAttributes(name, spec.getAttributes());
+				} catch (JMException e) {
+					// Unregistered since the query, its values are missing from this frame
+					continue;
+				} catch (RuntimeException e) {
+					// The MBean failed, its values are missing from this frame
+					continue;
+				}
+				
+				for(Object o: read) {
+					Attribute attribute = (Attribute)o;
+					if(TelemetryEncoder.typeOf(attribute.getValue()) == 0)
+						continue;
+					
+					names.add(name);
+					attributes.add(attribute.getName());
+					values.add(attribute.getValue());
+				}
+			}
+		}
+		
+		try {
+			byte[] frame = encoder.encode(names, attributes, values, timestamp);
+			BytesMessage message = session.createBytesMessage();
+			message.setBooleanProperty(PROP_KEYFRAME, (frame[1] & TelemetryFrame.FLAG_KEYFRAME) != 0);
+			message.writeBytes(frame);
+			producer.send(message);
+		} catch (JMSException e) {
+			// Collectors miss this frame and wait for the next keyframe
+			encoder.requestKeyframe();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import javax.management.ObjectName;
+
+/**
+ * Describes attributes a connector server publishes on its telemetry topic or samples
+ * with its AttributeSampler. The MBean name may be a pattern, the attributes of every 
+ * matching MBean are used.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class TelemetrySpec implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private final ObjectName name;
+	private final String[] attributes;
+	
+	/**
+	 * @param name The MBean name or pattern
+	 * @param attributes The attributes to publish of each MBean
+	 */
+	public TelemetrySpec(ObjectName name, String... attributes) {
+		if(attributes.length == 0)
+			throw new IllegalArgumentException("At least one attribute is required");
+		
+		this.name = name;
+		this.attributes = attributes.clone();
+	}
+
+	public ObjectName getName() {
+		return name;
+	}
+
+	public String[] getAttributes() {
+		return attributes.clone();
+	}
+	
+	@Override
+	public String toString() {
+		return name + " " + Arrays.asList(attributes);
+	}
+}
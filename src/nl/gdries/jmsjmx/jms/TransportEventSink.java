@@ -0,0 +1,67 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+/**
+ * Receives the events of the JMS transport, to forward them to a profiler or event
+ * recorder. Implementations are called on the transport's threads and must be quick.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface TransportEventSink {
+	/**
+	 * A JMXMP message was received and deserialized
+	 * 
+	 * @param messageType The class name of the JMXMP message, without package
+	 * @param size The serialized size in bytes, or -1 if unknown
+	 * @param duration Nanoseconds from receipt of the JMS message until it was deserialized
+	 */
+	void messageRead(String connectionId, String messageType, int size, long duration);
+	
+	/**
+	 * A JMXMP message was serialized and sent
+	 * 
+	 * @param duration Nanoseconds spent serializing and sending
+	 */
+	void messageWritten(String connectionId, String messageType, int size, long duration);
+	
+	/**
+	 * A client sent its connect message
+	 * 
+	 * @param topic The topic the server listens on
+	 * @param duration Nanoseconds spent setting up the JMS session and sending the message
+	 */
+	void connected(String connectionId, String topic, long duration);
+	
+	/**
+	 * A server accepted a connection
+	 * 
+	 * @param clientConnectionId The id the client uses for the connection, or null for old clients
+	 * @param duration Nanoseconds spent waiting for the connect message
+	 */
+	void accepted(String connectionId, String clientConnectionId, long duration);
+}
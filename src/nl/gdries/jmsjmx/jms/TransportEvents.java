@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.jms;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands transport events to the installed TransportEventSink. Without a sink, the 
+ * transport only pays for a check of a static field.
+ * <p>
+ * A sink can be installed with setSink() or by naming its class in the system property 
+ * nl.gdries.jmsjmx.events.sink, for example nl.gdries.jmsjmx.jfr.JfrEventSink to record 
+ * JDK Flight Recorder events. Events faster than the threshold, set with setThreshold()
+ * or the system property nl.gdries.jmsjmx.events.threshold (microseconds), are skipped.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public final class TransportEvents {
+	public static final String SINK_PROPERTY = "nl.gdries.jmsjmx.events.sink";
+	public static final String THRESHOLD_PROPERTY = "nl.gdries.jmsjmx.events.threshold";
+	
+	private static final Logger logger = Logger.getLogger(TransportEvents.class.getName());
+	
+	private static volatile TransportEventSink sink;
+	private static volatile long threshold;
+	
+	static {
+		String className = System.getProperty(SINK_PROPERTY);
+		if(className != null) {
+			try {
+				sink = (TransportEventSink)Class.forName(className).newInstance();
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unable to create transport event sink " + className, e);
+			} catch (LinkageError e) {
+				logger.log(Level.WARNING, "Unable to create transport event sink " + className, e);
+			}
+		}
+		
+		threshold = Long.getLong(THRESHOLD_PROPERTY, 0).longValue() * 1000;
+	}
+	
+	private TransportEvents() {
+	}
+	
+	/**
+	 * @param sink The sink for all transport events in the JVM, or null for none
+	 */
+	public static void setSink(TransportEventSink sink) {
+		TransportEvents.sink = sink;
+	}
+	
+	public static TransportEventSink getSink() {
+		return sink;
+	}
+	
+	/**
+	 * @param threshold Events that took less microseconds than this are skipped
+	 */
+	public static void setThreshold(long threshold) {
+		TransportEvents.threshold = threshold * 1000;
+	}
+	
+	public static long getThreshold() {
+		return threshold / 1000;
+	}
+	
+	/**
+	 * Check this before collecting an event's data
+	 */
+	public static boolean isEnabled() {
+		return sink != null;
+	}
+	
+	/**
+	 * @return The start time to pass to the event methods, 0 if events are disabled
+	 */
+	public static long start() {
+		return sink == null ? 0 : System.nanoTime();
+	}
+	
+	static void messageRead(String connectionId, Object message, int size, long start) {
+		TransportEventSink current = sink;
+		if(start == 0 || current == null)
+			return;
+		
+		long duration = System.nanoTime() - start;
+		if(duration >= threshold)
+			current.messageRead(connectionId, message.getClass().getSimpleName(), size, duration);
+	}
+	
+	static void messageWritten(String connectionId, Object message, int size, long start) {
+		TransportEventSink current = sink;
+		if(start == 0 || current == null)
+			return;
+		
+		long duration = System.nanoTime() - start;
+		if(duration >= threshold)
+			current.messageWritten(connectionId, message.getClass().getSimpleName(), size, duration);
+	}
+	
+	static void connected(String connectionId, String topic, long start) {
+		TransportEventSink current = sink;
+		if(start == 0 || current == null)
+			return;
+		
+		long duration = System.nanoTime() - start;
+		if(duration >= threshold)
+			current.connected(connectionId, topic, duration);
+	}
+	
+	static void accepted(String connectionId, String clientConnectionId, long start) {
+		TransportEventSink current = sink;
+		if(start == 0 || current == null)
+			return;
+		
+		long duration = System.nanoTime() - start;
+		if(duration >= threshold)
+			current.accepted(connectionId, clientConnectionId, duration);
+	}
+}
@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.query;
+
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+
+/**
+ * Iterates over the results of a query on a remote QueryCursors, fetching a page at a
+ * time as the results are consumed. The first page is fetched when the query is started.
+ * <p>
+ * Iterating rethrows an IOException fetching a page as UndeclaredThrowableException, as 
+ * MBean proxies do. Use nextPage() to have it thrown as is. A query that is not iterated 
+ * to the end should be closed.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class PagedQuery<T> implements Iterator<T>, Iterable<T> {
+	private final MBeanServerConnection connection;
+	private final ObjectName cursorsName;
+	
+	private String cursor;
+	private List<T> page;
+	private int index;
+	private int remaining;
+	
+	private PagedQuery(MBeanServerConnection connection, ObjectName cursorsName, QueryPage<T> first) {
+		this.connection = connection;
+		this.cursorsName = cursorsName;
+		accept(first);
+	}
+	
+	/**
+	 * Start a queryNames on the default cursors
+	 */
+	public static PagedQuery<ObjectName> queryNames(MBeanServerConnection connection, ObjectName name, 
+			QueryExp query, int pageSize) throws IOException {
+		return queryNames(connection, defaultName(), name, query, pageSize);
+	}
+	
+	/**
+	 * Start a queryNames on the given cursors
+	 */
+	public static PagedQuery<ObjectName> queryNames(MBeanServerConnection connection, ObjectName cursorsName, 
+			ObjectName name, QueryExp query, int pageSize) throws IOException {
+		QueryPage<ObjectName> first = open(connection, cursorsName, "queryNames", name, query, pageSize);
+		return new PagedQuery<ObjectName>(connection, cursorsName, first);
+	}
+	
+	/**
+	 * Start a queryMBeans on the default cursors
+	 */
+	public static PagedQuery<ObjectInstance> queryMBeans(MBeanServerConnection connection, ObjectName name, 
+			QueryExp query, int pageSize) throws IOException {
+		return queryMBeans(connection, defaultName(), name, query, pageSize);
+	}
+	
+	/**
+	 * Start a queryMBeans on the given cursors
+	 */
+	public static PagedQuery<ObjectInstance> queryMBeans(MBeanServerConnection connection, ObjectName cursorsName, 
+			ObjectName name, QueryExp query, int pageSize) throws IOException {
+		QueryPage<ObjectInstance> first = open(connection, cursorsName, "queryMBeans", name, query, pageSize);
+		return new PagedQuery<ObjectInstance>(connection, cursorsName, first);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> QueryPage<T> open(MBeanServerConnection connection, ObjectName cursorsName, 
+			String operation, ObjectName name, QueryExp query, int pageSize) throws IOException {
+		try {
+			return (QueryPage<T>)connection.invoke(cursorsName, operation, 
+					new Object[] { name, query, pageSize }, 
+					new String[] { ObjectName.class.getName(), QueryExp.class.getName(), int.class.getName() });
+		} catch (JMException e) {
+			throw cursorException("Unable to start " + operation, e);
+		}
+	}
+	
+	private static ObjectName defaultName() throws IOException {
+		try {
+			return new ObjectName(QueryCursors.OBJECT_NAME);
+		} catch (JMException e) {
+			throw cursorException("Invalid cursors name", e);
+		}
+	}
+	
+	private void accept(QueryPage<T> next) {
+		cursor = next.getCursor();
+		page = next.getResults();
+		index = 0;
+		remaining = next.getRemaining();
+	}
+	
+	/**
+	 * Return the results of the current page that were not iterated over yet, or fetch 
+	 * the next page if there are none
+	 * 
+	 * @return The results, or an empty list after the last page
+	 */
+	public synchronized List<T> nextPage() throws IOException {
+		fetch();
+		
+		List<T> result = page.subList(index, page.size());
+		index = page.size();
+		return result;
+	}
+	
+	public synchronized boolean hasNext() {
+		try {
+			fetch();
+		} catch (IOException e) {
+			throw new UndeclaredThrowableException(e);
+		}
+		return index < page.size();
+	}
+	
+	/**
+	 * Fetch pages until one has results or there are no more
+	 */
+	@SuppressWarnings("unchecked")
+	private void fetch() throws IOException {
+		while(index >= page.size() && cursor != null) {
+			try {
+				accept((QueryPage<T>)connection.invoke(cursorsName, "next", new Object[] { cursor }, 
+						new String[] { String.class.getName() }));
+			} catch (JMException e) {
+				throw cursorException("Unable to fetch from cursor " + cursor, e);
+			}
+		}
+	}
+
+	public synchronized T next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		
+		return page.get(index++);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	public Iterator<T> iterator() {
+		return this;
+	}
+	
+	/**
+	 * @return The number of MBeans the server has yet to look at for this query
+	 */
+	public synchronized int getRemaining() {
+		return remaining;
+	}
+	
+	/**
+	 * Close the cursor on the server, if it's not done yet
+	 */
+	public synchronized void close() throws IOException {
+		if(cursor == null)
+			return;
+		
+		try {
+			connection.invoke(cursorsName, "close", new Object[] { cursor }, new String[] { String.class.getName() });
+		} catch (JMException e) {
+			throw cursorException("Unable to close cursor " + cursor, e);
+		} finally {
+			cursor = null;
+		}
+	}
+	
+	private static IOException cursorException(String message, Exception e) {
+		IOException ioe = new IOException(message + ": " + e);
+		ioe.initCause(e);
+		return ioe;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+
+/**
+ * The position in the results of a query. The names matching the query's pattern are
+ * taken once when the cursor is opened, the query expression is applied a page at a
+ * time. MBeans unregistered in the meantime are skipped, MBeans registered in the 
+ * meantime are not seen.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class QueryCursor {
+	private final String id;
+	private final MBeanServer server;
+	private final QueryExp query;
+	private final boolean instances;
+	private final int pageSize;
+	
+	private ObjectName[] names;
+	private int position;
+	private volatile long lastFetch = System.currentTimeMillis();
+	
+	QueryCursor(String id, MBeanServer server, ObjectName name, QueryExp query, boolean instances, int pageSize) {
+		this.id = id;
+		this.server = server;
+		this.query = query;
+		this.instances = instances;
+		this.pageSize = pageSize;
+		this.names = server.queryNames(name, null).toArray(new ObjectName[0]);
+	}
+	
+	/**
+	 * Find the next page of results
+	 */
+	synchronized QueryPage<Object> next() {
+		lastFetch = System.currentTimeMillis();
+		
+		// Query expressions find their MBeanServer through a thread local, and every page
+		// may be fetched by a different thread
+		if(query != null)
+			query.setMBeanServer(server);
+		
+		List<Object> results = new ArrayList<Object>(Math.min(pageSize, names.length - position));
+		while(position < names.length && results.size() < pageSize) {
+			ObjectName name = names[position];
+			
+			// Let go of the names we're done with
+			names[position++] = null;
+			
+			if(!matches(name))
+				continue;
+			
+			if(instances) {
+				try {
+					results.add(server.getObjectInstance(name));
+				} catch (InstanceNotFoundException e) {
+					// Unregistered since the cursor was opened
+				}
+			} else if(server.isRegistered(name)) {
+				results.add(name);
+			}
+		}
+		
+		int remaining = names.length - position;
+		if(remaining == 0)
+			names = new ObjectName[0];
+		
+		return new QueryPage<Object>(remaining > 0 ? id : null, results, remaining);
+	}
+	
+	private boolean matches(ObjectName name) {
+		if(query == null)
+			return true;
+		
+		try {
+			return query.apply(name);
+		} catch (Exception e) {
+			// Like the MBeanServer does, an MBean the query can't be applied to doesn't match
+			return false;
+		}
+	}
+	
+	String getId() {
+		return id;
+	}
+	
+	long getLastFetch() {
+		return lastFetch;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return id + ": " + (instances ? "queryMBeans" : "queryNames") + ", page size " + pageSize 
+			+ ", " + (names.length - position) + " remaining";
+	}
+}
@@ -0,0 +1,169 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+
+/**
+ * Pages through the results of queryNames and queryMBeans so clients of MBeanServers
+ * with very many MBeans don't have to receive them in one message. The cursors must be
+ * registered in the MBeanServer that is queried.
+ * <p>
+ * Cursors that are not fetched from for the idle timeout are closed.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class QueryCursors implements QueryCursorsMBean, MBeanRegistration {
+	public static final String OBJECT_NAME = "nl.gdries.jmsjmx:type=QueryCursors";
+	
+	public static final int DEFAULT_MAX_PAGE_SIZE = 1000;
+	public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+	
+	private final int maxPageSize;
+	private final long idleTimeout;
+	
+	private final Map<String, QueryCursor> cursors = new ConcurrentHashMap<String, QueryCursor>();
+	
+	private MBeanServer mbeanServer;
+	private Timer timer;
+	
+	public QueryCursors() {
+		this(DEFAULT_MAX_PAGE_SIZE, DEFAULT_IDLE_TIMEOUT);
+	}
+	
+	public QueryCursors(int maxPageSize, long idleTimeout) {
+		this.maxPageSize = maxPageSize;
+		this.idleTimeout = idleTimeout;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public QueryPage<ObjectName> queryNames(ObjectName name, QueryExp query, int pageSize) {
+		return (QueryPage<ObjectName>)(QueryPage<?>)open(name, query, false, pageSize);
+	}
+
+	@SuppressWarnings("unchecked")
+	public QueryPage<ObjectInstance> queryMBeans(ObjectName name, QueryExp query, int pageSize) {
+		return (QueryPage<ObjectInstance>)(QueryPage<?>)open(name, query, true, pageSize);
+	}
+	
+	private QueryPage<Object> open(ObjectName name, QueryExp query, boolean instances, int pageSize) {
+		if(mbeanServer == null)
+			throw new IllegalStateException("The cursors are not registered in an MBeanServer");
+		
+		if(pageSize <= 0 || pageSize > maxPageSize)
+			pageSize = maxPageSize;
+		
+		QueryCursor cursor = new QueryCursor(UUID.randomUUID().toString(), mbeanServer, name, query, instances, pageSize);
+		QueryPage<Object> page = cursor.next();
+		if(page.getCursor() != null)
+			cursors.put(cursor.getId(), cursor);
+		return page;
+	}
+
+	public QueryPage<?> next(String id) {
+		QueryCursor cursor = cursors.get(id);
+		if(cursor == null)
+			throw new IllegalArgumentException("No cursor " + id);
+		
+		QueryPage<Object> page = cursor.next();
+		if(page.getCursor() == null)
+			cursors.remove(id);
+		return page;
+	}
+
+	public void close(String id) {
+		cursors.remove(id);
+	}
+
+	public String[] getCursors() {
+		List<String> result = new ArrayList<String>();
+		for(QueryCursor cursor: cursors.values())
+			result.add(cursor.toString());
+		return result.toArray(new String[result.size()]);
+	}
+
+	public int getMaxPageSize() {
+		return maxPageSize;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	/**
+	 * Close cursors nobody fetched from for the idle timeout
+	 */
+	private void closeIdleCursors() {
+		long now = System.currentTimeMillis();
+		for(QueryCursor cursor: cursors.values()) {
+			if(now - cursor.getLastFetch() > idleTimeout)
+				close(cursor.getId());
+		}
+	}
+
+	public ObjectName preRegister(MBeanServer server, ObjectName name) throws Exception {
+		this.mbeanServer = server;
+		return name == null ? new ObjectName(OBJECT_NAME) : name;
+	}
+
+	public void postRegister(Boolean registrationDone) {
+		if(!registrationDone.booleanValue())
+			return;
+		
+		timer = new Timer("QueryCursors", true);
+		long period = Math.max(1000, idleTimeout / 10);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				closeIdleCursors();
+			}
+		}, period, period);
+	}
+
+	public void preDeregister() throws Exception {
+	}
+
+	public void postDeregister() {
+		if(timer != null)
+			timer.cancel();
+		
+		cursors.clear();
+		mbeanServer = null;
+	}
+}
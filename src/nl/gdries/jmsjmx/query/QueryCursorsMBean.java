@@ -0,0 +1,80 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.query;
+
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+
+/**
+ * Management interface of the query cursors
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface QueryCursorsMBean {
+	/**
+	 * Start a queryNames and return its first page
+	 * 
+	 * @param name The ObjectName pattern, or null for all MBeans
+	 * @param query The query expression, or null for none
+	 * @param pageSize The maximum number of results per page, or 0 for the largest allowed
+	 */
+	QueryPage<ObjectName> queryNames(ObjectName name, QueryExp query, int pageSize);
+	
+	/**
+	 * Start a queryMBeans and return its first page
+	 * 
+	 * @param name The ObjectName pattern, or null for all MBeans
+	 * @param query The query expression, or null for none
+	 * @param pageSize The maximum number of results per page, or 0 for the largest allowed
+	 */
+	QueryPage<ObjectInstance> queryMBeans(ObjectName name, QueryExp query, int pageSize);
+	
+	/**
+	 * Fetch the next page of a query. The cursor is closed after its last page.
+	 * 
+	 * @param cursor The cursor returned with the previous page
+	 */
+	QueryPage<?> next(String cursor);
+	
+	/**
+	 * Close a cursor before its last page
+	 */
+	void close(String cursor);
+	
+	/**
+	 * @return One line per open cursor with its query and the number of MBeans remaining
+	 */
+	String[] getCursors();
+	
+	int getMaxPageSize();
+	
+	/**
+	 * @return Milliseconds after the last fetch that a cursor is closed
+	 */
+	long getIdleTimeout();
+}
@@ -0,0 +1,67 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.query;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of query results
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class QueryPage<T> implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private final String cursor;
+	private final List<T> results;
+	private final int remaining;
+	
+	QueryPage(String cursor, List<T> results, int remaining) {
+		this.cursor = cursor;
+		this.results = results;
+		this.remaining = remaining;
+	}
+
+	/**
+	 * @return The cursor to fetch the next page with, or null if this is the last page
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	public List<T> getResults() {
+		return results;
+	}
+
+	/**
+	 * @return The number of MBeans the query has yet to look at. Fewer than that may match.
+	 */
+	public int getRemaining() {
+		return remaining;
+	}
+}
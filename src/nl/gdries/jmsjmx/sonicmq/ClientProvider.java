@@ -27,6 +27,7 @@ package nl.gdries.jmsjmx.sonicmq;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.jms.JMSException;
@@ -34,6 +35,9 @@ import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXServiceURL;
 
 import nl.gdries.jmsjmx.jms.AbstractClientProvider;
+import nl.gdries.jmsjmx.jms.BalancingConnectionFactory;
+import nl.gdries.jmsjmx.jms.EnvHelper;
+import nl.gdries.jmsjmx.jms.ServiceURLHelper;
 import nl.gdries.jmsjmx.jms.WrappedJMSException;
 import progress.message.jclient.ConnectionFactory;
 
@@ -52,26 +56,42 @@ public class ClientProvider extends AbstractClientProvider {
 			Map<String, ?> environment) throws IOException {
 
 		// Copy the environment
-		Map<String, Object> newEnv = new HashMap<String, Object>(environment);
+		final Map<String, Object> newEnv = new HashMap<String, Object>(environment);
 		
-		// Create the connection to activemq
+		// Create the connection to sonicmq
 		try {
-			ConnectionFactory connectionFactory = new ConnectionFactory(
-					"tcp://" + serviceURL.getHost() + ":" + serviceURL.getPort());
-	
-			if(newEnv.containsKey(JMXConnector.CREDENTIALS)) {
-				String[] cred = (String[])newEnv.get(JMXConnector.CREDENTIALS);
-				connectionFactory.setDefaultUser(cred[0]);
-				connectionFactory.setDefaultPassword(cred[1]);
+			List<String> brokers = ServiceURLHelper.getBrokers(serviceURL);
+			
+			// Connect through the fastest of several brokers
+			if(brokers.size() > 1) {
+				newEnv.put(CONNECTION_FACTORY, new BalancingConnectionFactory(brokers, 
+						new BalancingConnectionFactory.BrokerFactory() {
+							public javax.jms.ConnectionFactory createConnectionFactory(String broker) throws JMSException {
+								return ClientProvider.this.createConnectionFactory(broker, newEnv);
+							}
+						}, 
+						EnvHelper.getLong(newEnv, REBALANCE_INTERVAL, BalancingConnectionFactory.DEFAULT_REBALANCE_INTERVAL),
+						EnvHelper.getInt(newEnv, PROBE_TIMEOUT, BalancingConnectionFactory.DEFAULT_PROBE_TIMEOUT)));
+			} else {
+				newEnv.put(CONNECTION_FACTORY, createConnectionFactory(brokers.get(0), newEnv));
 			}
-						
-			newEnv.put(CONNECTION_FACTORY, connectionFactory);
 			
 			return super.newJMXConnector(serviceURL, newEnv);
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
 		}
 	}
+	
+	private ConnectionFactory createConnectionFactory(String broker, Map<String, Object> env) throws JMSException {
+		ConnectionFactory connectionFactory = new ConnectionFactory("tcp://" + broker);
+
+		if(env.containsKey(JMXConnector.CREDENTIALS)) {
+			String[] cred = (String[])env.get(JMXConnector.CREDENTIALS);
+			connectionFactory.setDefaultUser(cred[0]);
+			connectionFactory.setDefaultPassword(cred[1]);
+		}
+		return connectionFactory;
+	}
 
 	
 }
@@ -27,6 +27,7 @@ package nl.gdries.jmsjmx.sonicmq;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.jms.JMSException;
@@ -36,6 +37,8 @@ import javax.management.remote.JMXConnectorServer;
 import javax.management.remote.JMXServiceURL;
 
 import nl.gdries.jmsjmx.jms.AbstractServerProvider;
+import nl.gdries.jmsjmx.jms.BalancingConnectionFactory;
+import nl.gdries.jmsjmx.jms.ServiceURLHelper;
 import nl.gdries.jmsjmx.jms.WrappedJMSException;
 import progress.message.jclient.ConnectionFactory;
 
@@ -55,25 +58,40 @@ public class ServerProvider extends AbstractServerProvider {
 			throws IOException {
 		
 		// Copy the environment
-		Map<String, Object> newEnv = new HashMap<String, Object>(environment);
+		final Map<String, Object> newEnv = new HashMap<String, Object>(environment);
 		
 		try {
-			// Create the connection to activemq
-			ConnectionFactory connectionFactory = new ConnectionFactory(
-					"tcp://" + serviceURL.getHost() + ":" + serviceURL.getPort());
+			// Create the connection to sonicmq
+			List<String> brokers = ServiceURLHelper.getBrokers(serviceURL);
 			
-			if(newEnv.containsKey(JMXConnector.CREDENTIALS)) {
-				String[] cred = (String[])newEnv.get(JMXConnector.CREDENTIALS);
-				connectionFactory.setDefaultUser(cred[0]);
-				connectionFactory.setDefaultPassword(cred[1]);
+			// Listen on the fastest of several brokers. The server stays there, moving it would
+			// disconnect all of its clients.
+			if(brokers.size() > 1) {
+				newEnv.put(CONNECTION_FACTORY, new BalancingConnectionFactory(brokers, 
+						new BalancingConnectionFactory.BrokerFactory() {
+							public javax.jms.ConnectionFactory createConnectionFactory(String broker) throws JMSException {
+								return ServerProvider.this.createConnectionFactory(broker, newEnv);
+							}
+						}, 0, BalancingConnectionFactory.DEFAULT_PROBE_TIMEOUT));
+			} else {
+				newEnv.put(CONNECTION_FACTORY, createConnectionFactory(brokers.get(0), newEnv));
 			}
 			
-			newEnv.put(CONNECTION_FACTORY, connectionFactory);
-			
 			return super.newJMXConnectorServer(serviceURL, newEnv, mbeanServer);
 		} catch (JMSException e) {
 			throw new WrappedJMSException(e);
 		}
 	}
+	
+	private ConnectionFactory createConnectionFactory(String broker, Map<String, Object> env) throws JMSException {
+		ConnectionFactory connectionFactory = new ConnectionFactory("tcp://" + broker);
+		
+		if(env.containsKey(JMXConnector.CREDENTIALS)) {
+			String[] cred = (String[])env.get(JMXConnector.CREDENTIALS);
+			connectionFactory.setDefaultUser(cred[0]);
+			connectionFactory.setDefaultPassword(cred[1]);
+		}
+		return connectionFactory;
+	}
 
 }
@@ -0,0 +1,217 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.spool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * Listens to one MBean and writes its notifications to a ring file until they're fetched.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class NotificationSpool implements NotificationListener {
+	private final String id;
+	private final MBeanServer mbeanServer;
+	private final ObjectName name;
+	private final NotificationFilter filter;
+	private final RingFile ring;
+	
+	// Reused to serialize notifications, only grows to the largest notification
+	private final Buffer buffer = new Buffer();
+	
+	// Fetches waiting for notifications wait on this, it's notified when one is spooled
+	private final Object arrivals = new Object();
+	private volatile boolean closed;
+	
+	private volatile long lastFetch = System.currentTimeMillis();
+	private long unserializable;
+	
+	NotificationSpool(String id, MBeanServer mbeanServer, ObjectName name, NotificationFilter filter, 
+			File file, int capacity) throws IOException, InstanceNotFoundException {
+		this.id = id;
+		this.mbeanServer = mbeanServer;
+		this.name = name;
+		this.filter = filter;
+		this.ring = new RingFile(file, capacity);
+		
+		try {
+			mbeanServer.addNotificationListener(name, this, filter, null);
+		} catch (InstanceNotFoundException e) {
+			ring.close();
+			throw e;
+		}
+	}
+	
+	String getId() {
+		return id;
+	}
+	
+	ObjectName getName() {
+		return name;
+	}
+	
+	long getLastFetch() {
+		return lastFetch;
+	}
+
+	public void handleNotification(Notification notification, Object handback) {
+		// The MBeanServer does the same for notifications it forwards
+		if(!(notification.getSource() instanceof ObjectName))
+			notification.setSource(name);
+		
+		synchronized(buffer) {
+			try {
+				buffer.reset();
+				ObjectOutputStream out = new ObjectOutputStream(buffer);
+				out.writeObject(notification);
+				out.close();
+				
+				if(buffer.size() > ring.getMaxPayload())
+					unserializable++;
+				else
+					ring.append(buffer.getBuffer(), buffer.size());
+			} catch (IOException e) {
+				// Notifications with user data that can't be serialized can't be spooled
+				unserializable++;
+			}
+		}
+		
+		synchronized(arrivals) {
+			arrivals.notifyAll();
+		}
+	}
+	
+	/**
+	 * Wait up to <i>timeout</i> milliseconds for a notification from sequence number <i>from</i> 
+	 * on to be spooled, then read what there is
+	 */
+	SpoolBatch fetch(long from, int max, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(arrivals) {
+			while(!closed && ring.getNextSequence() <= from) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+					break;
+				
+				try {
+					arrivals.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		
+		if(closed)
+			throw new IOException("The spool " + id + " is closed");
+		return fetch(from, max);
+	}
+	
+	/**
+	 * Read spooled notifications without deserializing them, the client does that
+	 */
+	SpoolBatch fetch(long from, int max) throws IOException {
+		lastFetch = System.currentTimeMillis();
+		
+		final List<byte[]> payloads = new ArrayList<byte[]>();
+		final List<Long> sequences = new ArrayList<Long>();
+		long first = ring.getFirstSequence();
+		
+		ring.read(from, max, new RingFile.RecordReader() {
+			public void record(long sequence, byte[] payload) {
+				payloads.add(payload);
+				sequences.add(sequence);
+			}
+		});
+		
+		long[] seqs = new long[sequences.size()];
+		for(int i = 0; i < seqs.length; i++)
+			seqs[i] = sequences.get(i);
+		
+		long next = seqs.length > 0 ? seqs[seqs.length - 1] + 1 : Math.max(from, first);
+		return new SpoolBatch(payloads.toArray(new byte[payloads.size()][]), seqs, 
+				Math.max(0, first - from), next);
+	}
+	
+	long getNextSequence() {
+		return ring.getNextSequence();
+	}
+	
+	long getOverwritten() {
+		return ring.getOverwritten();
+	}
+	
+	long getUnserializable() {
+		synchronized(buffer) {
+			return unserializable;
+		}
+	}
+	
+	void close() {
+		closed = true;
+		synchronized(arrivals) {
+			arrivals.notifyAll();
+		}
+		
+		try {
+			mbeanServer.removeNotificationListener(name, this, filter, null);
+		} catch (InstanceNotFoundException e) {
+			// The MBean is gone already
+		} catch (ListenerNotFoundException e) {
+			// Nothing to remove
+		}
+		ring.close();
+	}
+	
+	@Override
+	public String toString() {
+		return id + " " + name + ": next=" + ring.getNextSequence() + " first=" + ring.getFirstSequence()
+			+ " overwritten=" + ring.getOverwritten() + " capacity=" + ring.getCapacity();
+	}
+	
+	/**
+	 * ByteArrayOutputStream that exposes its internal buffer
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.spool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.NotificationFilter;
+import javax.management.ObjectName;
+
+/**
+ * Spools notifications for clients that are slow or disconnected now and then. Each 
+ * spool listens to one MBean and writes its notifications to a memory-mapped ring file
+ * of fixed size, overwriting the oldest ones when it's full. Clients fetch notifications
+ * by sequence number, so after a reconnect they continue where they left off and learn
+ * how many were lost. Spooled notifications take disk space, not heap.
+ * <p>
+ * Spools that are not fetched from for the idle timeout are closed. The spooler must be
+ * registered in the MBeanServer whose MBeans it spools for.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class NotificationSpooler implements NotificationSpoolerMBean, MBeanRegistration {
+	public static final String OBJECT_NAME = "nl.gdries.jmsjmx:type=NotificationSpooler";
+	
+	public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+	public static final long DEFAULT_IDLE_TIMEOUT = 3600000;
+	
+	// Upper limit to what a single fetch returns
+	private static final int MAX_FETCH = 1000;
+	
+	private final File directory;
+	private final int defaultCapacity;
+	private final long idleTimeout;
+	
+	private final Map<String, NotificationSpool> spools = new ConcurrentHashMap<String, NotificationSpool>();
+	
+	private MBeanServer mbeanServer;
+	private Timer timer;
+	private long closedUnspooled;
+	
+	public NotificationSpooler(File directory) {
+		this(directory, DEFAULT_CAPACITY, DEFAULT_IDLE_TIMEOUT);
+	}
+	
+	public NotificationSpooler(File directory, int defaultCapacity, long idleTimeout) {
+		this.directory = directory;
+		this.defaultCapacity = defaultCapacity;
+		this.idleTimeout = idleTimeout;
+	}
+	
+	public String createSpool(ObjectName name, NotificationFilter filter, int capacity) 
+			throws InstanceNotFoundException, IOException {
+		if(mbeanServer == null)
+			throw new IllegalStateException("The spooler is not registered in an MBeanServer");
+		
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create spool directory " + directory);
+		
+		String id = UUID.randomUUID().toString();
+		NotificationSpool spool = new NotificationSpool(id, mbeanServer, name, filter, 
+				new File(directory, id + ".spool"), capacity > 0 ? capacity : defaultCapacity);
+		spools.put(id, spool);
+		return id;
+	}
+
+	public SpoolBatch fetch(String id, long fromSequence, int maxNotifications) throws IOException {
+		return fetch(id, fromSequence, maxNotifications, 0);
+	}
+	
+	public SpoolBatch fetch(String id, long fromSequence, int maxNotifications, long timeout) throws IOException {
+		NotificationSpool spool = spools.get(id);
+		if(spool == null)
+			throw new IllegalArgumentException("No spool " + id);
+		
+		return spool.fetch(fromSequence, Math.min(maxNotifications, MAX_FETCH), timeout);
+	}
+
+	public void closeSpool(String id) {
+		NotificationSpool spool = spools.remove(id);
+		if(spool != null) {
+			spool.close();
+			synchronized(this) {
+				closedUnspooled += spool.getUnserializable();
+			}
+		}
+	}
+
+	public String[] getSpoolIds() {
+		return spools.keySet().toArray(new String[0]);
+	}
+
+	public String[] getSpoolStatistics() {
+		List<String> result = new ArrayList<String>();
+		for(NotificationSpool spool: spools.values())
+			result.add(spool.toString());
+		return result.toArray(new String[result.size()]);
+	}
+
+	public String getDirectory() {
+		return directory.getPath();
+	}
+
+	public int getDefaultCapacity() {
+		return defaultCapacity;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public synchronized long getUnspooledNotifications() {
+		long result = closedUnspooled;
+		for(NotificationSpool spool: spools.values())
+			result += spool.getUnserializable();
+		return result;
+	}
+	
+	/**
+	 * Close spools nobody fetched from for the idle timeout
+	 */
+	private void closeIdleSpools() {
+		long now = System.currentTimeMillis();
+		for(NotificationSpool spool: spools.values()) {
+			if(now - spool.getLastFetch() > idleTimeout)
+				closeSpool(spool.getId());
+		}
+	}
+
+	public ObjectName preRegister(MBeanServer server, ObjectName name) throws Exception {
+		this.mbeanServer = server;
+		return name == null ? new ObjectName(OBJECT_NAME) : name;
+	}
+
+	public void postRegister(Boolean registrationDone) {
+		if(!registrationDone.booleanValue())
+			return;
+		
+		timer = new Timer("NotificationSpooler", true);
+		long period = Math.max(1000, idleTimeout / 10);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				closeIdleSpools();
+			}
+		}, period, period);
+	}
+
+	public void preDeregister() throws Exception {
+	}
+
+	public void postDeregister() {
+		if(timer != null)
+			timer.cancel();
+		
+		for(String id: spools.keySet())
+			closeSpool(id);
+		mbeanServer = null;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.spool;
+
+import java.io.IOException;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.NotificationFilter;
+import javax.management.ObjectName;
+
+/**
+ * Management interface of the notification spooler
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public interface NotificationSpoolerMBean {
+	/**
+	 * Start spooling the notifications of an MBean
+	 * 
+	 * @param name The MBean to listen to
+	 * @param filter Selects the notifications to spool, or null for all
+	 * @param capacity The size of the spool file in bytes, or 0 for the default
+	 * @return The id of the spool
+	 */
+	String createSpool(ObjectName name, NotificationFilter filter, int capacity) 
+		throws InstanceNotFoundException, IOException;
+	
+	/**
+	 * Fetch spooled notifications
+	 * 
+	 * @param id The spool
+	 * @param fromSequence The sequence number of the first notification wanted
+	 * @param maxNotifications The maximum number of notifications to return
+	 */
+	SpoolBatch fetch(String id, long fromSequence, int maxNotifications) throws IOException;
+	
+	/**
+	 * Fetch spooled notifications, waiting for one to arrive if there are none yet
+	 * 
+	 * @param id The spool
+	 * @param fromSequence The sequence number of the first notification wanted
+	 * @param maxNotifications The maximum number of notifications to return
+	 * @param timeout The milliseconds to wait for a notification before returning an empty batch
+	 */
+	SpoolBatch fetch(String id, long fromSequence, int maxNotifications, long timeout) throws IOException;
+	
+	/**
+	 * Stop spooling and delete the spool file
+	 */
+	void closeSpool(String id);
+	
+	String[] getSpoolIds();
+	
+	/**
+	 * @return One line per spool with its MBean, sequence numbers and overwritten notifications
+	 */
+	String[] getSpoolStatistics();
+	
+	/**
+	 * @return The directory spool files are created in
+	 */
+	String getDirectory();
+	
+	int getDefaultCapacity();
+	
+	/**
+	 * @return Milliseconds after the last fetch that a spool is closed
+	 */
+	long getIdleTimeout();
+	
+	/**
+	 * @return The number of notifications that could not be spooled because they can't be 
+	 * serialized or don't fit in the spool
+	 */
+	long getUnspooledNotifications();
+}
@@ -0,0 +1,205 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.spool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed size, memory-mapped file of numbered records. When a new record doesn't fit,
+ * the oldest records are overwritten. Record contents live in the file, not on the heap.
+ * <p>
+ * Each record is an int length, a long sequence number and the payload. A length of
+ * WRAP marks the end of the data before the writer wrapped around to the start.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class RingFile {
+	private static final int WRAP = -1;
+	private static final int RECORD_HEADER = 12;
+	
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	
+	private int head;   // Where the next record is written
+	private int tail;   // Where the oldest record starts
+	private int count;
+	private long firstSequence;
+	private long nextSequence;
+	private long overwritten;
+	
+	RingFile(File file, int capacity) throws IOException {
+		this.file = file;
+		this.capacity = capacity;
+		this.raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(capacity);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return The largest payload that fits
+	 */
+	int getMaxPayload() {
+		return capacity - RECORD_HEADER - 4;
+	}
+	
+	/**
+	 * Append a record, overwriting the oldest records if required
+	 * 
+	 * @return The sequence number of the record
+	 */
+	synchronized long append(byte[] payload, int length) {
+		if(length > getMaxPayload())
+			throw new IllegalArgumentException("A record of " + length + " bytes doesn't fit in " + capacity + " bytes");
+		
+		int needed = RECORD_HEADER + length;
+		if(count == 0) {
+			head = 0;
+			tail = 0;
+		}
+		
+		if(head + needed > capacity) {
+			// Everything between head and the end is older than what we write next. Drop it
+			// before marking the end, the marker may not overwrite the header of a live record.
+			while(count > 0 && tail >= head)
+				evict();
+			if(head + 4 <= capacity)
+				buffer.putInt(head, WRAP);
+			head = 0;
+		}
+		
+		while(count > 0 && tail >= head && tail < head + needed)
+			evict();
+		
+		long sequence = nextSequence++;
+		buffer.putInt(head, length);
+		buffer.putLong(head + 4, sequence);
+		buffer.position(head + RECORD_HEADER);
+		buffer.put(payload, 0, length);
+		
+		if(count++ == 0) {
+			tail = head;
+			firstSequence = sequence;
+		}
+		head += needed;
+		return sequence;
+	}
+	
+	/**
+	 * Drop the oldest record
+	 */
+	private void evict() {
+		if(tail + 4 > capacity || buffer.getInt(tail) == WRAP) {
+			tail = 0;
+			return;
+		}
+		
+		tail += RECORD_HEADER + buffer.getInt(tail);
+		firstSequence++;
+		overwritten++;
+		if(--count == 0)
+			tail = head;
+	}
+	
+	/**
+	 * Read records starting at a sequence number
+	 * 
+	 * @param from The first sequence number wanted, older records that were overwritten are skipped
+	 * @param max The maximum number of records
+	 * @param reader Receives the records
+	 */
+	synchronized void read(long from, int max, RecordReader reader) throws IOException {
+		if(count == 0 || from >= nextSequence)
+			return;
+		
+		long sequence = firstSequence;
+		int position = tail;
+		for(int read = 0; read < max && sequence < nextSequence;) {
+			if(position + 4 > capacity || buffer.getInt(position) == WRAP) {
+				position = 0;
+				continue;
+			}
+			
+			int length = buffer.getInt(position);
+			if(sequence >= from) {
+				byte[] payload = new byte[length];
+				buffer.position(position + RECORD_HEADER);
+				buffer.get(payload);
+				reader.record(buffer.getLong(position + 4), payload);
+				read++;
+			}
+			
+			position += RECORD_HEADER + length;
+			sequence++;
+		}
+	}
+	
+	synchronized long getFirstSequence() {
+		return count == 0 ? nextSequence : firstSequence;
+	}
+	
+	synchronized long getNextSequence() {
+		return nextSequence;
+	}
+	
+	synchronized long getOverwritten() {
+		return overwritten;
+	}
+	
+	int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Close and delete the file
+	 */
+	synchronized void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// Deleting it anyway
+		}
+		
+		// The mapping stays until it's garbage collected, on some platforms the file can't be deleted before that
+		if(!file.delete())
+			file.deleteOnExit();
+	}
+	
+	interface RecordReader {
+		void record(long sequence, byte[] payload) throws IOException;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.spool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Notification;
+
+/**
+ * Notifications fetched from a spool. They travel in the serialized form they were spooled
+ * in and are deserialized where they're read, so user data classes only have to be known 
+ * to the client. Notifications that can't be deserialized there are skipped and counted.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class SpoolBatch implements Serializable {
+	private static final long serialVersionUID = 2L;
+	
+	private final byte[][] payloads;
+	private final long[] payloadSequences;
+	private final long lost;
+	private final long nextSequence;
+	
+	// Deserialized on first use
+	private transient Notification[] notifications;
+	private transient long[] sequences;
+	private transient int undecodable;
+	
+	SpoolBatch(byte[][] payloads, long[] sequences, long lost, long nextSequence) {
+		this.payloads = payloads;
+		this.payloadSequences = sequences;
+		this.lost = lost;
+		this.nextSequence = nextSequence;
+	}
+	
+	/**
+	 * @return The notifications, oldest first
+	 */
+	public synchronized Notification[] getNotifications() {
+		decode();
+		return notifications;
+	}
+	
+	/**
+	 * @return The sequence number of each notification
+	 */
+	public synchronized long[] getSequences() {
+		decode();
+		return sequences;
+	}
+	
+	/**
+	 * @return How many notifications in this batch could not be deserialized, usually 
+	 * because the class of their user data is unknown here
+	 */
+	public synchronized int getUndecodable() {
+		decode();
+		return undecodable;
+	}
+	
+	/**
+	 * @return How many notifications after the requested sequence number were overwritten
+	 * before they could be fetched
+	 */
+	public long getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return The sequence number to fetch from next
+	 */
+	public long getNextSequence() {
+		return nextSequence;
+	}
+	
+	private void decode() {
+		if(notifications != null)
+			return;
+		
+		List<Notification> decoded = new ArrayList<Notification>(payloads.length);
+		List<Long> decodedSequences = new ArrayList<Long>(payloads.length);
+		for(int i = 0; i < payloads.length; i++) {
+			try {
+				decoded.add(decode(payloads[i]));
+				decodedSequences.add(payloadSequences[i]);
+			} catch (IOException e) {
+				undecodable++;
+			} catch (ClassNotFoundException e) {
+				undecodable++;
+			}
+		}
+		
+		notifications = decoded.toArray(new Notification[decoded.size()]);
+		sequences = new long[decodedSequences.size()];
+		for(int i = 0; i < sequences.length; i++)
+			sequences[i] = decodedSequences.get(i);
+	}
+	
+	private static Notification decode(byte[] payload) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				ClassLoader loader = Thread.currentThread().getContextClassLoader();
+				if(loader != null) {
+					try {
+						return Class.forName(desc.getName(), false, loader);
+					} catch (ClassNotFoundException e) {
+						// Fall back to the default behaviour
+					}
+				}
+				return super.resolveClass(desc);
+			}
+		};
+		return (Notification)in.readObject();
+	}
+}
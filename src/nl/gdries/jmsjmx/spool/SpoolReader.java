@@ -0,0 +1,170 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.spool;
+
+import java.io.IOException;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * Reads notifications from a spool on a remote NotificationSpooler. The reader remembers
+ * the next sequence number, so after a reconnect it can be given the new connection and 
+ * continue where it left off.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class SpoolReader {
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	
+	private final ObjectName spoolerName;
+	private final String spoolId;
+	
+	private MBeanServerConnection connection;
+	private long nextSequence;
+	private long lost;
+	
+	public SpoolReader(MBeanServerConnection connection, String spoolId) throws JMException {
+		this(connection, new ObjectName(NotificationSpooler.OBJECT_NAME), spoolId);
+	}
+	
+	public SpoolReader(MBeanServerConnection connection, ObjectName spoolerName, String spoolId) {
+		this.connection = connection;
+		this.spoolerName = spoolerName;
+		this.spoolId = spoolId;
+	}
+	
+	/**
+	 * Create a spool for an MBean on the default spooler and a reader for it
+	 */
+	public static SpoolReader create(MBeanServerConnection connection, ObjectName name, 
+			NotificationFilter filter, int capacity) throws JMException, IOException {
+		return create(connection, new ObjectName(NotificationSpooler.OBJECT_NAME), name, filter, capacity);
+	}
+	
+	/**
+	 * Create a spool for an MBean on the given spooler and a reader for it
+	 */
+	public static SpoolReader create(MBeanServerConnection connection, ObjectName spoolerName, ObjectName name, 
+			NotificationFilter filter, int capacity) throws JMException, IOException {
+		String id = (String)connection.invoke(spoolerName, "createSpool", 
+				new Object[] { name, filter, capacity }, 
+				new String[] { ObjectName.class.getName(), NotificationFilter.class.getName(), int.class.getName() });
+		return new SpoolReader(connection, spoolerName, id);
+	}
+	
+	/**
+	 * Continue reading through a new connection
+	 */
+	public synchronized void setConnection(MBeanServerConnection connection) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * Fetch the next batch of notifications and hand them to the listener
+	 * 
+	 * @return The number of notifications delivered
+	 */
+	public int deliver(NotificationListener listener, Object handback) throws IOException {
+		SpoolBatch batch = fetch(DEFAULT_BATCH_SIZE);
+		for(Notification notification: batch.getNotifications())
+			listener.handleNotification(notification, handback);
+		return batch.getNotifications().length;
+	}
+	
+	/**
+	 * Fetch the next batch of notifications
+	 */
+	public SpoolBatch fetch(int maxNotifications) throws IOException {
+		return fetch(maxNotifications, 0);
+	}
+	
+	/**
+	 * Fetch the next batch of notifications, waiting on the server for up to <i>timeout</i>
+	 * milliseconds when there are none yet. The timeout should be well below the connection's 
+	 * request timeout.
+	 */
+	public synchronized SpoolBatch fetch(int maxNotifications, long timeout) throws IOException {
+		SpoolBatch batch;
+		try {
+			batch = (SpoolBatch)connection.invoke(spoolerName, "fetch", 
+					new Object[] { spoolId, nextSequence, maxNotifications, timeout },
+					new String[] { String.class.getName(), long.class.getName(), int.class.getName(), 
+						long.class.getName() });
+		} catch (JMException e) {
+			throw spoolerException(e);
+		}
+		
+		lost += batch.getLost();
+		nextSequence = batch.getNextSequence();
+		return batch;
+	}
+	
+	/**
+	 * Stop spooling on the server
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			connection.invoke(spoolerName, "closeSpool", new Object[] { spoolId }, 
+					new String[] { String.class.getName() });
+		} catch (JMException e) {
+			throw spoolerException(e);
+		}
+	}
+	
+	private IOException spoolerException(Exception e) {
+		IOException ioe = new IOException("Unable to read spool " + spoolId + ": " + e);
+		ioe.initCause(e);
+		return ioe;
+	}
+	
+	public String getSpoolId() {
+		return spoolId;
+	}
+	
+	public synchronized long getNextSequence() {
+		return nextSequence;
+	}
+	
+	/**
+	 * Continue from a sequence number saved earlier
+	 */
+	public synchronized void setNextSequence(long nextSequence) {
+		this.nextSequence = nextSequence;
+	}
+	
+	/**
+	 * @return How many notifications were overwritten before this reader could fetch them
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+}
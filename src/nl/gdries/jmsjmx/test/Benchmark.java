@@ -0,0 +1,241 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import nl.gdries.jmsjmx.jms.AbstractClientProvider;
+import nl.gdries.jmsjmx.jms.AbstractMessageConnection;
+import nl.gdries.jmsjmx.jms.DeliveryStrategy;
+import nl.gdries.jmsjmx.test.memory.MemoryBroker;
+
+/**
+ * Measures request throughput over the JMS transport. Starts a connector server and
+ * a client in this JVM for every combination of delivery settings and performs a
+ * fixed number of getAttribute calls through each.
+ * <p>
+ * When the JVM supports it, the number of bytes allocated per request by all threads
+ * (client and server side together) is reported as well.
+ * <p>
+ * With the in-memory broker, the time it takes a client to recover from a broker restart 
+ * is measured too. Once by connecting again and adding its listeners again, once by 
+ * resuming the session.
+ * <p>
+ * Usage: Benchmark <i>serviceURL</i> [<i>requests</i>]
+ * <p>
+ * Without a broker at hand, use the in-memory broker, eg. service:jmx:memory://bench:0/jmx;latency=1
+ */
+public class Benchmark {
+	private static final String[] ACKNOWLEDGE_MODES = { "AUTO", "DUPS_OK", "CLIENT" };
+	private static final boolean[] BOOLEANS = { false, true };
+	private static final int WARMUP = 500;
+	private static final int BOUNCES = 10;
+	private static final long DOWNTIME = 200;
+	
+	public static void main(String[] args) throws Exception {
+		JMXServiceURL serviceURL = new JMXServiceURL(args[0]);
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		
+		System.out.println("ack mode    persistent  async   ops/sec  bytes/op");
+		for(String ackMode: ACKNOWLEDGE_MODES) {
+			for(boolean persistent: BOOLEANS) {
+				for(boolean async: BOOLEANS) {
+					Map<String, Object> environment = new HashMap<String, Object>();
+					environment.put(DeliveryStrategy.ACKNOWLEDGE_MODE, ackMode);
+					environment.put(DeliveryStrategy.PERSISTENT, persistent);
+					environment.put(DeliveryStrategy.ASYNC_SEND, async);
+					environment.put(DeliveryStrategy.TIME_TO_LIVE, 60000L);
+					
+					Result result = run(serviceURL, environment, requests);
+					System.out.println(String.format("%-11s %-11s %-7s %8.0f %9s", ackMode, persistent, async, 
+							result.opsPerSecond, result.bytesPerOp < 0 ? "n/a" : String.valueOf(result.bytesPerOp)));
+				}
+			}
+		}
+		
+		if("memory".equals(serviceURL.getProtocol())) {
+			System.out.println();
+			System.out.println("recovery    median ms  max ms");
+			for(boolean resume: BOOLEANS) {
+				long[] times = recover(serviceURL, resume, BOUNCES, DOWNTIME);
+				System.out.println(String.format("%-11s %9.1f %7.1f", resume ? "resume" : "reconnect", 
+						times[times.length / 2] / 1000000.0, times[times.length - 1] / 1000000.0));
+			}
+		}
+	}
+	
+	public static class Result {
+		/** Requests per second */
+		public final double opsPerSecond;
+		
+		/** Bytes allocated per request, or -1 if unknown */
+		public final long bytesPerOp;
+		
+		public Result(double opsPerSecond, long bytesPerOp) {
+			this.opsPerSecond = opsPerSecond;
+			this.bytesPerOp = bytesPerOp;
+		}
+	}
+	
+	/**
+	 * Run one benchmark pass with the given environment on both sides of the connection
+	 */
+	public static Result run(JMXServiceURL serviceURL, Map<String, Object> settings, int requests) throws Exception {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		
+		Map<String, Object> environment = new HashMap<String, Object>(settings);
+		environment.put(JMXConnectorServerFactory.PROTOCOL_PROVIDER_PACKAGES, "nl.gdries.jmsjmx|nl.gdries.jmsjmx.test");
+		environment.put(JMXConnector.CREDENTIALS, new String[] {"Administrator", "Administrator"});
+		
+		JMXConnectorServer server = JMXConnectorServerFactory.newJMXConnectorServer(serviceURL, environment, mbeanServer);
+		server.start();
+		
+		JMXConnector connector = JMXConnectorFactory.newJMXConnector(serviceURL, environment);
+		try {
+			connector.connect();
+			MBeanServerConnection connection = connector.getMBeanServerConnection();
+			ObjectName runtime = new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME);
+			
+			for(int i = 0; i < WARMUP; i++)
+				connection.getAttribute(runtime, "Uptime");
+			
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for(int i = 0; i < requests; i++)
+				connection.getAttribute(runtime, "Uptime");
+			long elapsed = System.nanoTime() - start;
+			if(allocated >= 0)
+				allocated = (allocatedBytes() - allocated) / requests;
+			
+			return new Result(requests * 1000000000.0 / elapsed, allocated);
+		} finally {
+			connector.close();
+			server.stop();
+		}
+	}
+	
+	/**
+	 * Restart the in-memory broker a number of times and measure how long it takes until 
+	 * a request succeeds again, counted from the restart. Without resuming, the client 
+	 * connects again and adds its notification listener again, like an application would.
+	 * 
+	 * @return The recovery times in nanoseconds, sorted
+	 */
+	public static long[] recover(JMXServiceURL serviceURL, boolean resume, int bounces, long downtime) throws Exception {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		MemoryBroker broker = MemoryBroker.get(serviceURL);
+		ObjectName runtime = new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME);
+		ObjectName delegate = new ObjectName("JMImplementation:type=MBeanServerDelegate");
+		NotificationListener listener = new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+			}
+		};
+		
+		Map<String, Object> environment = new HashMap<String, Object>();
+		environment.put(JMXConnectorServerFactory.PROTOCOL_PROVIDER_PACKAGES, "nl.gdries.jmsjmx|nl.gdries.jmsjmx.test");
+		environment.put(JMXConnector.CREDENTIALS, new String[] {"Administrator", "Administrator"});
+		if(resume)
+			environment.put(AbstractMessageConnection.RESUME_TIMEOUT, 10000L);
+		
+		// A connect request that reaches the server before it's back is not answered
+		environment.put(AbstractClientProvider.CONNECTION_TIMEOUT, 1000L);
+		
+		JMXConnectorServer server = JMXConnectorServerFactory.newJMXConnectorServer(serviceURL, environment, mbeanServer);
+		server.start();
+		
+		JMXConnector connector = JMXConnectorFactory.connect(serviceURL, environment);
+		long[] times = new long[bounces];
+		try {
+			connector.getMBeanServerConnection().addNotificationListener(delegate, listener, null, null);
+			
+			for(int i = 0; i < bounces; i++) {
+				long start = System.nanoTime();
+				broker.bounce(downtime);
+				
+				while(true) {
+					try {
+						if(!resume) {
+							try {
+								connector.close();
+							} catch (IOException e) {
+								// It's broken
+							}
+							connector = JMXConnectorFactory.connect(serviceURL, environment);
+							connector.getMBeanServerConnection().addNotificationListener(delegate, listener, null, null);
+						}
+						connector.getMBeanServerConnection().getAttribute(runtime, "Uptime");
+						break;
+					} catch (IOException e) {
+						Thread.sleep(10);
+					}
+				}
+				times[i] = System.nanoTime() - start;
+			}
+		} finally {
+			connector.close();
+			server.stop();
+		}
+		
+		Arrays.sort(times);
+		return times;
+	}
+	
+	/**
+	 * Total number of bytes allocated by all live threads, or -1 if the JVM can't tell
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		
+		com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean)threads;
+		if(!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled())
+			return -1;
+		
+		long total = 0;
+		for(long allocated: sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if(allocated > 0)
+				total += allocated;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.Query;
+
+import nl.gdries.jmsjmx.query.PagedQuery;
+import nl.gdries.jmsjmx.query.QueryCursors;
+
+/**
+ * Pages through a query with an attribute expression, fetching every page after the first
+ * on another thread than the one that opened the cursor, as a connector server's request
+ * threads do, and checks that every matching MBean is found.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class QueryCursorTest {
+	public interface ValueMBean {
+		public int getValue();
+	}
+	
+	public static class Value implements ValueMBean {
+		private final int value;
+		
+		Value(int value) {
+			this.value = value;
+		}
+		
+		public int getValue() {
+			return value;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+		mbeanServer.registerMBean(new QueryCursors(), new ObjectName(QueryCursors.OBJECT_NAME));
+		
+		for(int i = 0; i < 10; i++)
+			mbeanServer.registerMBean(new Value(i % 2), new ObjectName("nl.gdries.jmsjmx.test:type=Value,index=" + i));
+		
+		// Start the fetching thread before the cursor is opened, so it doesn't inherit
+		// the MBeanServer the query expression was given on this thread
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.submit(new Runnable() {
+			public void run() {
+			}
+		}).get();
+		
+		final PagedQuery<ObjectName> query = PagedQuery.queryNames(mbeanServer, 
+				new ObjectName("nl.gdries.jmsjmx.test:type=Value,*"), 
+				Query.eq(Query.attr("Value"), Query.value(1)), 2);
+		
+		List<ObjectName> found = new ArrayList<ObjectName>(query.nextPage());
+		
+		try {
+			while(query.getRemaining() > 0) {
+				found.addAll(executor.submit(new Callable<List<ObjectName>>() {
+					public List<ObjectName> call() throws Exception {
+						return query.nextPage();
+					}
+				}).get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		if(found.size() != 5)
+			throw new AssertionError("Expected 5 MBeans with Value 1 but found " + found);
+		
+		System.out.println("Found " + found + " fetching pages on another thread");
+	}
+}
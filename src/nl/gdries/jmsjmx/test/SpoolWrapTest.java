@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+
+import nl.gdries.jmsjmx.spool.NotificationSpooler;
+import nl.gdries.jmsjmx.spool.SpoolBatch;
+
+/**
+ * Fills small notification spools with notifications of varying sizes, so the ring file
+ * wraps around at every possible offset, and checks that after each notification the 
+ * spool returns an unbroken run of the most recent notifications.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class SpoolWrapTest {
+	public interface EmitterMBean {
+	}
+	
+	public static class Emitter extends NotificationBroadcasterSupport implements EmitterMBean {
+		private long sequence;
+		
+		void emit(String data) {
+			Notification notification = new Notification("test.wrap", this, sequence++);
+			notification.setUserData(data);
+			sendNotification(notification);
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+		File directory = new File(System.getProperty("java.io.tmpdir"), "spoolwraptest");
+		NotificationSpooler spooler = new NotificationSpooler(directory);
+		mbeanServer.registerMBean(spooler, new ObjectName(NotificationSpooler.OBJECT_NAME));
+		
+		Emitter emitter = new Emitter();
+		ObjectName name = new ObjectName("nl.gdries.jmsjmx.test:type=Emitter");
+		mbeanServer.registerMBean(emitter, name);
+		
+		Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 1);
+		int spools = 0;
+		for(int capacity = 1024; capacity < 1280; capacity += 7) {
+			String id = spooler.createSpool(name, null, capacity);
+			for(int i = 0; i < 200; i++) {
+				// Serialized notifications are several hundred bytes, vary the rest
+				char[] data = new char[random.nextInt(capacity / 3)];
+				Arrays.fill(data, (char)('a' + i % 26));
+				emitter.emit(i + ":" + new String(data));
+				check(spooler.fetch(id, 0, Integer.MAX_VALUE), i, capacity);
+			}
+			spooler.closeSpool(id);
+			spools++;
+		}
+		
+		System.out.println(spools + " spools wrapped without losing track of their notifications");
+	}
+	
+	private static void check(SpoolBatch batch, int last, int capacity) {
+		Notification[] notifications = batch.getNotifications();
+		if(notifications.length == 0)
+			throw new AssertionError("Capacity " + capacity + ": nothing spooled after notification " + last);
+		
+		long[] sequences = batch.getSequences();
+		for(int i = 0; i < notifications.length; i++) {
+			long expected = sequences[0] + i;
+			String data = (String)notifications[i].getUserData();
+			if(sequences[i] != expected || !data.startsWith(expected + ":"))
+				throw new AssertionError("Capacity " + capacity + ": expected notification " + expected + 
+						" but got " + sequences[i] + " after notification " + last);
+		}
+		
+		if(sequences[sequences.length - 1] != last)
+			throw new AssertionError("Capacity " + capacity + ": notification " + last + " is missing");
+		if(batch.getLost() != sequences[0])
+			throw new AssertionError("Capacity " + capacity + ": " + batch.getLost() + " lost but the oldest is " + sequences[0]);
+	}
+}
@@ -0,0 +1,371 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.management.remote.JMXServiceURL;
+
+import nl.gdries.jmsjmx.jms.ServiceURLHelper;
+
+/**
+ * A JMS broker that lives in the JVM, for testing and benchmarking the connector without
+ * a real broker. It supports topics, temporary topics and simple message selectors, which
+ * is all the connector uses.
+ * <p>
+ * Every message takes the configured latency plus a random part of the jitter to arrive,
+ * a fraction of the messages can be dropped and the broker can be limited to a number of
+ * messages per second. Messages still arrive in the order they were sent. The random 
+ * numbers come from a seeded generator, so a single-threaded test sees the same delays 
+ * and losses on every run.
+ * <p>
+ * Brokers are looked up by name, service URLs of the form 
+ * service:jmx:memory://<i>broker</i>:0/<i>topic</i> connect to the broker of that name. The
+ * URL can set up the broker with the parameters latency, jitter, maxrate, lossrate and seed, 
+ * for example service:jmx:memory://test:0/jmx;latency=5;jitter=2.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class MemoryBroker {
+	private static final Map<String, MemoryBroker> brokers = new HashMap<String, MemoryBroker>();
+	
+	private final String name;
+	private final Map<String, List<MemoryConsumer>> subscriptions = new ConcurrentHashMap<String, List<MemoryConsumer>>();
+	private final Set<MemoryConnection> connections = new CopyOnWriteArraySet<MemoryConnection>();
+	private final DelayQueue<Delivery> wire = new DelayQueue<Delivery>();
+	private final Map<MemoryConsumer, Long> lastDue = new HashMap<MemoryConsumer, Long>();
+	
+	private long latency;
+	private long jitter;
+	private int maxRate;
+	private double lossRate;
+	private Random random = new Random(0);
+	
+	private long nextSlot;
+	private long downUntil;
+	private long deliverySequence;
+	private Thread wireThread;
+	
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	
+	public MemoryBroker(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * @return The broker with the given name, created when it doesn't exist yet
+	 */
+	public static MemoryBroker get(String name) {
+		synchronized(brokers) {
+			MemoryBroker broker = brokers.get(name);
+			if(broker == null) {
+				broker = new MemoryBroker(name);
+				brokers.put(name, broker);
+			}
+			return broker;
+		}
+	}
+	
+	/**
+	 * @return The broker named by the host of the service URL, set up with the URL's parameters
+	 */
+	public static MemoryBroker get(JMXServiceURL serviceURL) {
+		MemoryBroker broker = get(serviceURL.getHost());
+		String value;
+		if((value = ServiceURLHelper.getParameter(serviceURL, "latency")) != null)
+			broker.setLatency(Long.parseLong(value));
+		if((value = ServiceURLHelper.getParameter(serviceURL, "jitter")) != null)
+			broker.setJitter(Long.parseLong(value));
+		if((value = ServiceURLHelper.getParameter(serviceURL, "maxrate")) != null)
+			broker.setMaxRate(Integer.parseInt(value));
+		if((value = ServiceURLHelper.getParameter(serviceURL, "lossrate")) != null)
+			broker.setLossRate(Double.parseDouble(value));
+		if((value = ServiceURLHelper.getParameter(serviceURL, "seed")) != null)
+			broker.setSeed(Long.parseLong(value));
+		return broker;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @param latency Milliseconds every message takes from producer to consumer
+	 */
+	public synchronized void setLatency(long latency) {
+		this.latency = latency;
+	}
+	
+	public synchronized long getLatency() {
+		return latency;
+	}
+	
+	/**
+	 * @param jitter Up to this many milliseconds are randomly added to the latency
+	 */
+	public synchronized void setJitter(long jitter) {
+		this.jitter = jitter;
+	}
+	
+	public synchronized long getJitter() {
+		return jitter;
+	}
+	
+	/**
+	 * @param maxRate The number of messages per second the broker handles, 0 for no limit. 
+	 * Messages sent faster than this queue up in the broker.
+	 */
+	public synchronized void setMaxRate(int maxRate) {
+		this.maxRate = maxRate;
+	}
+	
+	public synchronized int getMaxRate() {
+		return maxRate;
+	}
+	
+	/**
+	 * @param lossRate The fraction of messages that is silently dropped, between 0 and 1
+	 */
+	public synchronized void setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+	}
+	
+	public synchronized double getLossRate() {
+		return lossRate;
+	}
+	
+	/**
+	 * Restart the random generator for jitter and loss
+	 */
+	public synchronized void setSeed(long seed) {
+		random = new Random(seed);
+	}
+	
+	/**
+	 * Simulate a broker restart. All connections fail, their exception listeners are told
+	 * and new connections are refused until the downtime has passed.
+	 * 
+	 * @param downtime Milliseconds the broker stays unavailable
+	 */
+	public void bounce(long downtime) {
+		synchronized(this) {
+			downUntil = System.currentTimeMillis() + downtime;
+		}
+		
+		for(MemoryConnection connection: connections)
+			connection.fail(new JMSException("Broker " + name + " restarted"));
+		wire.clear();
+	}
+	
+	public long getSentMessages() {
+		return sent.get();
+	}
+	
+	public long getDeliveredMessages() {
+		return delivered.get();
+	}
+	
+	/**
+	 * @return Messages lost to the loss rate
+	 */
+	public long getDroppedMessages() {
+		return dropped.get();
+	}
+	
+	/**
+	 * @return Messages whose time to live passed before they could be delivered
+	 */
+	public long getExpiredMessages() {
+		return expired.get();
+	}
+	
+	/**
+	 * @return Messages on their way to consumers
+	 */
+	public int getPendingMessages() {
+		return wire.size();
+	}
+	
+	synchronized void connect(MemoryConnection connection) throws JMSException {
+		if(System.currentTimeMillis() < downUntil)
+			throw new JMSException("Broker " + name + " is not available");
+		connections.add(connection);
+	}
+	
+	void disconnect(MemoryConnection connection) {
+		connections.remove(connection);
+	}
+	
+	void subscribe(MemoryConsumer consumer) {
+		String topic = consumer.getTopic().getTopicName();
+		synchronized(subscriptions) {
+			List<MemoryConsumer> consumers = subscriptions.get(topic);
+			if(consumers == null) {
+				consumers = new CopyOnWriteArrayList<MemoryConsumer>();
+				subscriptions.put(topic, consumers);
+			}
+			consumers.add(consumer);
+		}
+	}
+	
+	void unsubscribe(MemoryConsumer consumer) {
+		String topic = consumer.getTopic().getTopicName();
+		synchronized(subscriptions) {
+			List<MemoryConsumer> consumers = subscriptions.get(topic);
+			if(consumers != null) {
+				consumers.remove(consumer);
+				if(consumers.isEmpty())
+					subscriptions.remove(topic);
+			}
+		}
+		synchronized(this) {
+			lastDue.remove(consumer);
+		}
+	}
+	
+	/**
+	 * Hand a message to every matching consumer of the topic, each gets its own copy
+	 */
+	void send(MemoryTopic topic, MemoryMessage message) throws JMSException {
+		sent.incrementAndGet();
+		List<MemoryConsumer> consumers = subscriptions.get(topic.getTopicName());
+		if(consumers == null)
+			return;
+		
+		synchronized(this) {
+			long now = System.nanoTime();
+			long base = now;
+			if(maxRate > 0) {
+				base = Math.max(now, nextSlot);
+				nextSlot = base + 1000000000L / maxRate;
+			}
+			
+			for(MemoryConsumer consumer: consumers) {
+				if(!consumer.getSelector().matches(message))
+					continue;
+				
+				if(lossRate > 0 && random.nextDouble() < lossRate) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				
+				long due = base + TimeUnit.MILLISECONDS.toNanos(latency);
+				if(jitter > 0)
+					due += (long)(random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(jitter));
+				
+				// Jitter must not reorder the messages of a consumer
+				Long previous = lastDue.get(consumer);
+				if(previous != null && previous.longValue() > due)
+					due = previous.longValue();
+				lastDue.put(consumer, due);
+				
+				wire.put(new Delivery(consumer, message.copy(), due, deliverySequence++));
+			}
+			
+			if(wireThread == null) {
+				wireThread = new Thread("MemoryBroker " + name) {
+					@Override
+					public void run() {
+						deliver();
+					}
+				};
+				wireThread.setDaemon(true);
+				wireThread.start();
+			}
+		}
+	}
+	
+	private void deliver() {
+		while(true) {
+			Delivery delivery;
+			try {
+				delivery = wire.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			long expiration = delivery.message.getJMSExpiration();
+			if(expiration != 0 && expiration < System.currentTimeMillis()) {
+				expired.incrementAndGet();
+				continue;
+			}
+			
+			if(delivery.consumer.deliver(delivery.message))
+				delivered.incrementAndGet();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "MemoryBroker " + name + ": latency=" + latency + " jitter=" + jitter + " maxRate=" + maxRate + 
+			" lossRate=" + lossRate + " sent=" + sent + " delivered=" + delivered + " dropped=" + dropped + 
+			" expired=" + expired;
+	}
+	
+	/**
+	 * A message on its way to a consumer
+	 */
+	private static class Delivery implements Delayed {
+		final MemoryConsumer consumer;
+		final MemoryMessage message;
+		final long due;
+		final long sequence;
+		
+		Delivery(MemoryConsumer consumer, MemoryMessage message, long due, long sequence) {
+			this.consumer = consumer;
+			this.message = message;
+			this.due = due;
+			this.sequence = sequence;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			Delivery other = (Delivery)o;
+			if(due != other.due)
+				return due < other.due ? -1 : 1;
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
+	}
+}
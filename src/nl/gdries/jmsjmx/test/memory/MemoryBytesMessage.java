@@ -0,0 +1,329 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotReadableException;
+import javax.jms.MessageNotWriteableException;
+
+/**
+ * A bytes message of the in-memory broker. It's written until reset or sent and read-only
+ * once received.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class MemoryBytesMessage extends MemoryMessage implements BytesMessage {
+	private ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private DataOutputStream out = new DataOutputStream(body);
+	
+	// Set in read mode
+	private byte[] bytes;
+	private DataInputStream in;
+	
+	@Override
+	MemoryMessage copy() throws JMSException {
+		MemoryBytesMessage copy = new MemoryBytesMessage();
+		copyTo(copy);
+		copy.setBody(bytes != null ? bytes : body.toByteArray());
+		return copy;
+	}
+	
+	private void setBody(byte[] bytes) {
+		this.bytes = bytes;
+		this.in = new DataInputStream(new ByteArrayInputStream(bytes));
+		this.body = null;
+		this.out = null;
+	}
+	
+	@Override
+	public void clearBody() {
+		body = new ByteArrayOutputStream();
+		out = new DataOutputStream(body);
+		bytes = null;
+		in = null;
+	}
+
+	public void reset() {
+		if(bytes != null)
+			setBody(bytes);
+		else
+			setBody(body.toByteArray());
+	}
+
+	public long getBodyLength() throws JMSException {
+		checkReadable();
+		return bytes.length;
+	}
+	
+	private void checkReadable() throws MessageNotReadableException {
+		if(in == null)
+			throw new MessageNotReadableException("The message is in write-only mode");
+	}
+	
+	private DataOutputStream writer() throws MessageNotWriteableException {
+		if(out == null)
+			throw new MessageNotWriteableException("The message is in read-only mode");
+		return out;
+	}
+	
+	private DataInputStream reader() throws MessageNotReadableException {
+		checkReadable();
+		return in;
+	}
+	
+	private static JMSException readFailure(IOException e) {
+		JMSException result = e instanceof EOFException ? new MessageEOFException("End of message body") : 
+			new JMSException("Unable to read message body: " + e);
+		result.setLinkedException(e);
+		return result;
+	}
+	
+	private static JMSException writeFailure(IOException e) {
+		JMSException result = new JMSException("Unable to write message body: " + e);
+		result.setLinkedException(e);
+		return result;
+	}
+
+	public boolean readBoolean() throws JMSException {
+		try {
+			return reader().readBoolean();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public byte readByte() throws JMSException {
+		try {
+			return reader().readByte();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public int readUnsignedByte() throws JMSException {
+		try {
+			return reader().readUnsignedByte();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public short readShort() throws JMSException {
+		try {
+			return reader().readShort();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public int readUnsignedShort() throws JMSException {
+		try {
+			return reader().readUnsignedShort();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public char readChar() throws JMSException {
+		try {
+			return reader().readChar();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public int readInt() throws JMSException {
+		try {
+			return reader().readInt();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public long readLong() throws JMSException {
+		try {
+			return reader().readLong();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public float readFloat() throws JMSException {
+		try {
+			return reader().readFloat();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public double readDouble() throws JMSException {
+		try {
+			return reader().readDouble();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public String readUTF() throws JMSException {
+		try {
+			return reader().readUTF();
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public int readBytes(byte[] value) throws JMSException {
+		return readBytes(value, value.length);
+	}
+
+	public int readBytes(byte[] value, int length) throws JMSException {
+		try {
+			return reader().read(value, 0, length);
+		} catch (IOException e) {
+			throw readFailure(e);
+		}
+	}
+
+	public void writeBoolean(boolean value) throws JMSException {
+		try {
+			writer().writeBoolean(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeByte(byte value) throws JMSException {
+		try {
+			writer().writeByte(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeShort(short value) throws JMSException {
+		try {
+			writer().writeShort(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeChar(char value) throws JMSException {
+		try {
+			writer().writeChar(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeInt(int value) throws JMSException {
+		try {
+			writer().writeInt(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeLong(long value) throws JMSException {
+		try {
+			writer().writeLong(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeFloat(float value) throws JMSException {
+		try {
+			writer().writeFloat(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeDouble(double value) throws JMSException {
+		try {
+			writer().writeDouble(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeUTF(String value) throws JMSException {
+		try {
+			writer().writeUTF(value);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeBytes(byte[] value) throws JMSException {
+		writeBytes(value, 0, value.length);
+	}
+
+	public void writeBytes(byte[] value, int offset, int length) throws JMSException {
+		try {
+			writer().write(value, offset, length);
+		} catch (IOException e) {
+			throw writeFailure(e);
+		}
+	}
+
+	public void writeObject(Object value) throws JMSException {
+		if(value instanceof Boolean)
+			writeBoolean(((Boolean)value).booleanValue());
+		else if(value instanceof Byte)
+			writeByte(((Byte)value).byteValue());
+		else if(value instanceof Short)
+			writeShort(((Short)value).shortValue());
+		else if(value instanceof Character)
+			writeChar(((Character)value).charValue());
+		else if(value instanceof Integer)
+			writeInt(((Integer)value).intValue());
+		else if(value instanceof Long)
+			writeLong(((Long)value).longValue());
+		else if(value instanceof Float)
+			writeFloat(((Float)value).floatValue());
+		else if(value instanceof Double)
+			writeDouble(((Double)value).doubleValue());
+		else if(value instanceof String)
+			writeUTF((String)value);
+		else if(value instanceof byte[])
+			writeBytes((byte[])value);
+		else
+			throw new MessageFormatException("Can't write a " + (value == null ? "null" : value.getClass().getName()));
+	}
+}
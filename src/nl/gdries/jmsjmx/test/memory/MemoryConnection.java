@@ -0,0 +1,171 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionMetaData;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * A connection to a MemoryBroker
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class MemoryConnection implements Connection {
+	private final MemoryBroker broker;
+	private final Set<MemorySession> sessions = new CopyOnWriteArraySet<MemorySession>();
+	
+	private String clientID;
+	private ExceptionListener exceptionListener;
+	private boolean started;
+	private volatile boolean closed;
+	
+	MemoryConnection(MemoryBroker broker) throws JMSException {
+		this.broker = broker;
+		broker.connect(this);
+	}
+	
+	MemoryBroker getBroker() {
+		return broker;
+	}
+
+	public Session createSession(boolean transacted, int acknowledgeMode) throws JMSException {
+		checkClosed();
+		if(transacted)
+			throw new JMSException("Transacted sessions are not supported by the in-memory broker");
+		
+		MemorySession session = new MemorySession(this, acknowledgeMode);
+		sessions.add(session);
+		return session;
+	}
+	
+	void sessionClosed(MemorySession session) {
+		sessions.remove(session);
+	}
+
+	public synchronized String getClientID() throws JMSException {
+		return clientID;
+	}
+
+	public synchronized void setClientID(String clientID) throws JMSException {
+		this.clientID = clientID;
+	}
+
+	public ConnectionMetaData getMetaData() throws JMSException {
+		throw new JMSException("Connection metadata is not supported by the in-memory broker");
+	}
+
+	public synchronized ExceptionListener getExceptionListener() throws JMSException {
+		return exceptionListener;
+	}
+
+	public synchronized void setExceptionListener(ExceptionListener listener) throws JMSException {
+		this.exceptionListener = listener;
+	}
+
+	public synchronized void start() throws JMSException {
+		checkClosed();
+		started = true;
+		notifyAll();
+	}
+
+	public synchronized void stop() throws JMSException {
+		started = false;
+	}
+	
+	/**
+	 * Wait until messages may be delivered
+	 * 
+	 * @return false if the connection was closed
+	 */
+	synchronized boolean awaitStarted() throws InterruptedException {
+		while(!started && !closed)
+			wait();
+		return !closed;
+	}
+
+	public void close() throws JMSException {
+		if(closed)
+			return;
+		
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		
+		for(MemorySession session: sessions)
+			session.close();
+		broker.disconnect(this);
+	}
+	
+	/**
+	 * The broker went away, close everything and tell the exception listener
+	 */
+	void fail(JMSException e) {
+		try {
+			close();
+		} catch (JMSException ignore) {
+			// Can't happen
+		}
+		
+		ExceptionListener listener;
+		synchronized(this) {
+			listener = exceptionListener;
+		}
+		if(listener != null)
+			listener.onException(e);
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+	
+	void checkClosed() throws IllegalStateException {
+		if(closed)
+			throw new IllegalStateException("The connection is closed");
+	}
+
+	public ConnectionConsumer createConnectionConsumer(Destination destination, String messageSelector, 
+			ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+		throw new JMSException("Connection consumers are not supported by the in-memory broker");
+	}
+
+	public ConnectionConsumer createDurableConnectionConsumer(Topic topic, String subscriptionName, 
+			String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+		throw new JMSException("Connection consumers are not supported by the in-memory broker");
+	}
+}
@@ -0,0 +1,156 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+
+/**
+ * Receives messages from a MemoryBroker topic, either through receive or a listener
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class MemoryConsumer implements MessageConsumer {
+	// Put on the queue to wake up receivers when the consumer closes
+	private static final MemoryMessage CLOSED = new MemoryMessage();
+	
+	private final MemorySession session;
+	private final MemoryTopic topic;
+	private final Selector selector;
+	private final LinkedBlockingQueue<MemoryMessage> queue = new LinkedBlockingQueue<MemoryMessage>();
+	
+	private volatile MessageListener listener;
+	private volatile boolean closed;
+	
+	MemoryConsumer(MemorySession session, MemoryTopic topic, Selector selector) {
+		this.session = session;
+		this.topic = topic;
+		this.selector = selector;
+	}
+	
+	MemoryTopic getTopic() {
+		return topic;
+	}
+	
+	Selector getSelector() {
+		return selector;
+	}
+	
+	MessageListener getListener() {
+		return listener;
+	}
+	
+	/**
+	 * Called by the broker when a message arrives
+	 * 
+	 * @return false if the consumer is closed
+	 */
+	synchronized boolean deliver(MemoryMessage message) {
+		if(closed)
+			return false;
+		
+		if(listener != null)
+			session.dispatch(this, message);
+		else
+			queue.add(message);
+		return true;
+	}
+
+	public String getMessageSelector() {
+		return selector.toString();
+	}
+
+	public MessageListener getMessageListener() {
+		return listener;
+	}
+
+	public synchronized void setMessageListener(MessageListener listener) throws JMSException {
+		session.checkClosed();
+		this.listener = listener;
+		
+		// Hand over what arrived before the listener was set
+		if(listener != null) {
+			MemoryMessage message;
+			while((message = queue.poll()) != null)
+				session.dispatch(this, message);
+		}
+	}
+
+	public Message receive() throws JMSException {
+		return receive(0);
+	}
+
+	public Message receive(long timeout) throws JMSException {
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		try {
+			if(!session.getConnection().awaitStarted())
+				return null;
+			
+			MemoryMessage message;
+			if(timeout > 0)
+				message = queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			else
+				message = queue.take();
+			
+			if(message == CLOSED) {
+				queue.add(CLOSED);
+				return null;
+			}
+			return message;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	public Message receiveNoWait() throws JMSException {
+		MemoryMessage message = queue.poll();
+		if(message == CLOSED) {
+			queue.add(CLOSED);
+			return null;
+		}
+		return message;
+	}
+
+	public void close() throws JMSException {
+		synchronized(this) {
+			if(closed)
+				return;
+			closed = true;
+		}
+		
+		session.getConnection().getBroker().unsubscribe(this);
+		session.consumerClosed(this);
+		queue.clear();
+		queue.add(CLOSED);
+	}
+}
@@ -0,0 +1,304 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+
+/**
+ * A message without a body, the base of the in-memory broker's messages
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class MemoryMessage implements Message {
+	private static final AtomicLong ids = new AtomicLong();
+	
+	private final Map<String, Object> properties = new HashMap<String, Object>();
+	
+	private String messageID = "ID:memory-" + ids.incrementAndGet();
+	private long timestamp;
+	private String correlationID;
+	private Destination replyTo;
+	private Destination destination;
+	private int deliveryMode = DeliveryMode.PERSISTENT;
+	private boolean redelivered;
+	private String type;
+	private long expiration;
+	private int priority = DEFAULT_PRIORITY;
+	
+	/**
+	 * @return A copy as it arrives at a consumer, with its own body and properties
+	 */
+	MemoryMessage copy() throws JMSException {
+		MemoryMessage copy = new MemoryMessage();
+		copyTo(copy);
+		return copy;
+	}
+	
+	protected void copyTo(MemoryMessage copy) {
+		copy.properties.putAll(properties);
+		copy.messageID = messageID;
+		copy.timestamp = timestamp;
+		copy.correlationID = correlationID;
+		copy.replyTo = replyTo;
+		copy.destination = destination;
+		copy.deliveryMode = deliveryMode;
+		copy.redelivered = redelivered;
+		copy.type = type;
+		copy.expiration = expiration;
+		copy.priority = priority;
+	}
+
+	public String getJMSMessageID() {
+		return messageID;
+	}
+
+	public void setJMSMessageID(String id) {
+		this.messageID = id;
+	}
+
+	public long getJMSTimestamp() {
+		return timestamp;
+	}
+
+	public void setJMSTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public byte[] getJMSCorrelationIDAsBytes() {
+		return correlationID == null ? null : correlationID.getBytes();
+	}
+
+	public void setJMSCorrelationIDAsBytes(byte[] correlationID) {
+		this.correlationID = correlationID == null ? null : new String(correlationID);
+	}
+
+	public void setJMSCorrelationID(String correlationID) {
+		this.correlationID = correlationID;
+	}
+
+	public String getJMSCorrelationID() {
+		return correlationID;
+	}
+
+	public Destination getJMSReplyTo() {
+		return replyTo;
+	}
+
+	public void setJMSReplyTo(Destination replyTo) {
+		this.replyTo = replyTo;
+	}
+
+	public Destination getJMSDestination() {
+		return destination;
+	}
+
+	public void setJMSDestination(Destination destination) {
+		this.destination = destination;
+	}
+
+	public int getJMSDeliveryMode() {
+		return deliveryMode;
+	}
+
+	public void setJMSDeliveryMode(int deliveryMode) {
+		this.deliveryMode = deliveryMode;
+	}
+
+	public boolean getJMSRedelivered() {
+		return redelivered;
+	}
+
+	public void setJMSRedelivered(boolean redelivered) {
+		this.redelivered = redelivered;
+	}
+
+	public String getJMSType() {
+		return type;
+	}
+
+	public void setJMSType(String type) {
+		this.type = type;
+	}
+
+	public long getJMSExpiration() {
+		return expiration;
+	}
+
+	public void setJMSExpiration(long expiration) {
+		this.expiration = expiration;
+	}
+
+	public int getJMSPriority() {
+		return priority;
+	}
+
+	public void setJMSPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public void clearProperties() {
+		properties.clear();
+	}
+
+	public boolean propertyExists(String name) {
+		return properties.containsKey(name);
+	}
+	
+	/**
+	 * @return The value of a property, used by selectors
+	 */
+	Object getProperty(String name) {
+		return properties.get(name);
+	}
+
+	public boolean getBooleanProperty(String name) throws JMSException {
+		Object value = properties.get(name);
+		if(value == null || value instanceof String)
+			return Boolean.valueOf((String)value).booleanValue();
+		if(value instanceof Boolean)
+			return ((Boolean)value).booleanValue();
+		throw new MessageFormatException("Property " + name + " is not a boolean");
+	}
+
+	public byte getByteProperty(String name) throws JMSException {
+		return (byte)getNumber(name, Byte.MIN_VALUE, Byte.MAX_VALUE);
+	}
+
+	public short getShortProperty(String name) throws JMSException {
+		return (short)getNumber(name, Short.MIN_VALUE, Short.MAX_VALUE);
+	}
+
+	public int getIntProperty(String name) throws JMSException {
+		return (int)getNumber(name, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	public long getLongProperty(String name) throws JMSException {
+		return getNumber(name, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+	
+	private long getNumber(String name, long min, long max) throws JMSException {
+		Object value = properties.get(name);
+		long result;
+		if(value == null || value instanceof String)
+			result = Long.parseLong((String)value);
+		else if(value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long)
+			result = ((Number)value).longValue();
+		else
+			throw new MessageFormatException("Property " + name + " is not an integral number");
+		
+		if(result < min || result > max)
+			throw new MessageFormatException("Property " + name + " is out of range");
+		return result;
+	}
+
+	public float getFloatProperty(String name) throws JMSException {
+		Object value = properties.get(name);
+		if(value == null || value instanceof String)
+			return Float.parseFloat((String)value);
+		if(value instanceof Float)
+			return ((Float)value).floatValue();
+		throw new MessageFormatException("Property " + name + " is not a float");
+	}
+
+	public double getDoubleProperty(String name) throws JMSException {
+		Object value = properties.get(name);
+		if(value == null || value instanceof String)
+			return Double.parseDouble((String)value);
+		if(value instanceof Float || value instanceof Double)
+			return ((Number)value).doubleValue();
+		throw new MessageFormatException("Property " + name + " is not a double");
+	}
+
+	public String getStringProperty(String name) {
+		Object value = properties.get(name);
+		return value == null ? null : value.toString();
+	}
+
+	public Object getObjectProperty(String name) {
+		return properties.get(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Enumeration getPropertyNames() {
+		return Collections.enumeration(properties.keySet());
+	}
+
+	public void setBooleanProperty(String name, boolean value) {
+		properties.put(name, Boolean.valueOf(value));
+	}
+
+	public void setByteProperty(String name, byte value) {
+		properties.put(name, Byte.valueOf(value));
+	}
+
+	public void setShortProperty(String name, short value) {
+		properties.put(name, Short.valueOf(value));
+	}
+
+	public void setIntProperty(String name, int value) {
+		properties.put(name, Integer.valueOf(value));
+	}
+
+	public void setLongProperty(String name, long value) {
+		properties.put(name, Long.valueOf(value));
+	}
+
+	public void setFloatProperty(String name, float value) {
+		properties.put(name, Float.valueOf(value));
+	}
+
+	public void setDoubleProperty(String name, double value) {
+		properties.put(name, Double.valueOf(value));
+	}
+
+	public void setStringProperty(String name, String value) {
+		properties.put(name, value);
+	}
+
+	public void setObjectProperty(String name, Object value) throws JMSException {
+		if(value != null && !(value instanceof String || value instanceof Number || value instanceof Boolean))
+			throw new MessageFormatException("Property " + name + " must be a primitive wrapper or String");
+		properties.put(name, value);
+	}
+
+	public void acknowledge() {
+		// Messages are acknowledged on delivery
+	}
+
+	public void clearBody() throws JMSException {
+	}
+}
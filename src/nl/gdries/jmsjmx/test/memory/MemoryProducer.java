@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageProducer;
+import javax.jms.Topic;
+
+/**
+ * Sends messages to a MemoryBroker. Messages are copied on send, so the producer may
+ * reuse them right away.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class MemoryProducer implements MessageProducer {
+	private final MemorySession session;
+	private final MemoryTopic destination;
+	
+	private int deliveryMode = DeliveryMode.PERSISTENT;
+	private int priority = Message.DEFAULT_PRIORITY;
+	private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+	private boolean disableMessageID;
+	private boolean disableMessageTimestamp;
+	private boolean closed;
+	
+	MemoryProducer(MemorySession session, MemoryTopic destination) {
+		this.session = session;
+		this.destination = destination;
+	}
+
+	public void setDisableMessageID(boolean value) {
+		disableMessageID = value;
+	}
+
+	public boolean getDisableMessageID() {
+		return disableMessageID;
+	}
+
+	public void setDisableMessageTimestamp(boolean value) {
+		disableMessageTimestamp = value;
+	}
+
+	public boolean getDisableMessageTimestamp() {
+		return disableMessageTimestamp;
+	}
+
+	public void setDeliveryMode(int deliveryMode) {
+		this.deliveryMode = deliveryMode;
+	}
+
+	public int getDeliveryMode() {
+		return deliveryMode;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public Destination getDestination() {
+		return destination;
+	}
+
+	public void close() {
+		closed = true;
+	}
+
+	public void send(Message message) throws JMSException {
+		send(destination, message, deliveryMode, priority, timeToLive);
+	}
+
+	public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+		send(destination, message, deliveryMode, priority, timeToLive);
+	}
+
+	public void send(Destination destination, Message message) throws JMSException {
+		send(destination, message, deliveryMode, priority, timeToLive);
+	}
+
+	public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive) 
+			throws JMSException {
+		if(closed)
+			throw new IllegalStateException("The producer is closed");
+		if(!(message instanceof MemoryMessage))
+			throw new MessageFormatException("Only messages of the in-memory broker can be sent");
+		if(destination == null)
+			throw new InvalidDestinationException("No destination to send to");
+		if(!(destination instanceof Topic))
+			throw new InvalidDestinationException("Only topics are supported by the in-memory broker");
+		
+		MemoryTopic topic = destination instanceof MemoryTopic ? (MemoryTopic)destination : 
+			new MemoryTopic(((Topic)destination).getTopicName());
+		
+		long now = System.currentTimeMillis();
+		message.setJMSDestination(topic);
+		message.setJMSDeliveryMode(deliveryMode);
+		message.setJMSPriority(priority);
+		message.setJMSTimestamp(disableMessageTimestamp ? 0 : now);
+		message.setJMSExpiration(timeToLive > 0 ? now + timeToLive : 0);
+		
+		session.send(topic, (MemoryMessage)message);
+	}
+}
@@ -0,0 +1,314 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+
+/**
+ * A session on a MemoryConnection. Message listeners of the session's consumers are called
+ * one at a time from the session's own thread, like JMS requires.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+class MemorySession implements Session {
+	private static final AtomicLong temporaryTopics = new AtomicLong();
+	
+	private final MemoryConnection connection;
+	private final int acknowledgeMode;
+	private final Set<MemoryConsumer> consumers = new CopyOnWriteArraySet<MemoryConsumer>();
+	private final Set<MemoryTemporaryTopic> temporaries = new CopyOnWriteArraySet<MemoryTemporaryTopic>();
+	
+	// Messages for consumers with a listener, in arrival order
+	private final LinkedBlockingQueue<Dispatch> dispatchQueue = new LinkedBlockingQueue<Dispatch>();
+	private Thread dispatcher;
+	
+	private volatile boolean closed;
+	
+	MemorySession(MemoryConnection connection, int acknowledgeMode) {
+		this.connection = connection;
+		this.acknowledgeMode = acknowledgeMode;
+	}
+	
+	MemoryConnection getConnection() {
+		return connection;
+	}
+
+	public BytesMessage createBytesMessage() throws JMSException {
+		checkClosed();
+		return new MemoryBytesMessage();
+	}
+
+	public Message createMessage() throws JMSException {
+		checkClosed();
+		return new MemoryMessage();
+	}
+
+	public MapMessage createMapMessage() throws JMSException {
+		throw unsupported("Map messages");
+	}
+
+	public ObjectMessage createObjectMessage() throws JMSException {
+		throw unsupported("Object messages");
+	}
+
+	public ObjectMessage createObjectMessage(Serializable object) throws JMSException {
+		throw unsupported("Object messages");
+	}
+
+	public StreamMessage createStreamMessage() throws JMSException {
+		throw unsupported("Stream messages");
+	}
+
+	public TextMessage createTextMessage() throws JMSException {
+		throw unsupported("Text messages");
+	}
+
+	public TextMessage createTextMessage(String text) throws JMSException {
+		throw unsupported("Text messages");
+	}
+
+	public boolean getTransacted() throws JMSException {
+		return false;
+	}
+
+	public int getAcknowledgeMode() throws JMSException {
+		return acknowledgeMode;
+	}
+
+	public void commit() throws JMSException {
+		throw new IllegalStateException("The session is not transacted");
+	}
+
+	public void rollback() throws JMSException {
+		throw new IllegalStateException("The session is not transacted");
+	}
+
+	public void recover() throws JMSException {
+		// Messages are acknowledged on delivery, there is nothing to redeliver
+	}
+
+	public void close() throws JMSException {
+		if(closed)
+			return;
+		closed = true;
+		
+		for(MemoryConsumer consumer: consumers)
+			consumer.close();
+		for(MemoryTemporaryTopic topic: temporaries)
+			topic.delete();
+		
+		synchronized(this) {
+			if(dispatcher != null)
+				dispatcher.interrupt();
+		}
+		connection.sessionClosed(this);
+	}
+	
+	void consumerClosed(MemoryConsumer consumer) {
+		consumers.remove(consumer);
+	}
+
+	public MessageListener getMessageListener() throws JMSException {
+		return null;
+	}
+
+	public void setMessageListener(MessageListener listener) throws JMSException {
+		throw unsupported("Session message listeners");
+	}
+
+	public void run() {
+	}
+
+	public MessageProducer createProducer(Destination destination) throws JMSException {
+		checkClosed();
+		return new MemoryProducer(this, toTopic(destination));
+	}
+
+	public MessageConsumer createConsumer(Destination destination) throws JMSException {
+		return createConsumer(destination, null, false);
+	}
+
+	public MessageConsumer createConsumer(Destination destination, String messageSelector) throws JMSException {
+		return createConsumer(destination, messageSelector, false);
+	}
+
+	public MessageConsumer createConsumer(Destination destination, String messageSelector, boolean noLocal) 
+			throws JMSException {
+		checkClosed();
+		if(noLocal)
+			throw unsupported("NoLocal consumers");
+		
+		MemoryTopic topic = toTopic(destination);
+		if(topic == null)
+			throw new InvalidDestinationException("A consumer needs a destination");
+		
+		MemoryConsumer consumer = new MemoryConsumer(this, topic, Selector.parse(messageSelector));
+		consumers.add(consumer);
+		connection.getBroker().subscribe(consumer);
+		return consumer;
+	}
+
+	public Topic createTopic(String topicName) throws JMSException {
+		checkClosed();
+		return new MemoryTopic(topicName);
+	}
+
+	public TemporaryTopic createTemporaryTopic() throws JMSException {
+		checkClosed();
+		MemoryTemporaryTopic topic = new MemoryTemporaryTopic("ID:" + connection.getBroker().getName() + 
+				"-temp-" + temporaryTopics.incrementAndGet());
+		temporaries.add(topic);
+		return topic;
+	}
+
+	public Queue createQueue(String queueName) throws JMSException {
+		throw unsupported("Queues");
+	}
+
+	public TemporaryQueue createTemporaryQueue() throws JMSException {
+		throw unsupported("Queues");
+	}
+
+	public QueueBrowser createBrowser(Queue queue) throws JMSException {
+		throw unsupported("Queues");
+	}
+
+	public QueueBrowser createBrowser(Queue queue, String messageSelector) throws JMSException {
+		throw unsupported("Queues");
+	}
+
+	public TopicSubscriber createDurableSubscriber(Topic topic, String name) throws JMSException {
+		throw unsupported("Durable subscribers");
+	}
+
+	public TopicSubscriber createDurableSubscriber(Topic topic, String name, String messageSelector, 
+			boolean noLocal) throws JMSException {
+		throw unsupported("Durable subscribers");
+	}
+
+	public void unsubscribe(String name) throws JMSException {
+		throw unsupported("Durable subscribers");
+	}
+	
+	/**
+	 * Queue a message for a consumer with a listener
+	 */
+	void dispatch(MemoryConsumer consumer, MemoryMessage message) {
+		synchronized(this) {
+			if(closed)
+				return;
+			
+			if(dispatcher == null) {
+				dispatcher = new Thread("MemorySession dispatcher") {
+					@Override
+					public void run() {
+						dispatchMessages();
+					}
+				};
+				dispatcher.setDaemon(true);
+				dispatcher.start();
+			}
+		}
+		dispatchQueue.add(new Dispatch(consumer, message));
+	}
+	
+	private void dispatchMessages() {
+		try {
+			while(!closed) {
+				Dispatch dispatch = dispatchQueue.take();
+				if(!connection.awaitStarted())
+					return;
+				
+				MessageListener listener = dispatch.consumer.getListener();
+				if(listener != null)
+					listener.onMessage(dispatch.message);
+			}
+		} catch (InterruptedException e) {
+			// Session closed
+		}
+	}
+	
+	void send(MemoryTopic topic, MemoryMessage message) throws JMSException {
+		checkClosed();
+		if(topic instanceof MemoryTemporaryTopic && ((MemoryTemporaryTopic)topic).isDeleted())
+			throw new InvalidDestinationException("Temporary topic " + topic.getTopicName() + " was deleted");
+		
+		connection.getBroker().send(topic, message);
+	}
+	
+	private MemoryTopic toTopic(Destination destination) throws JMSException {
+		if(destination == null || destination instanceof MemoryTopic)
+			return (MemoryTopic)destination;
+		if(destination instanceof Topic)
+			return new MemoryTopic(((Topic)destination).getTopicName());
+		throw new InvalidDestinationException("Only topics are supported by the in-memory broker");
+	}
+	
+	void checkClosed() throws IllegalStateException {
+		if(closed || connection.isClosed())
+			throw new IllegalStateException("The session is closed");
+	}
+	
+	private static JMSException unsupported(String feature) {
+		return new JMSException(feature + " are not supported by the in-memory broker");
+	}
+	
+	private static class Dispatch {
+		final MemoryConsumer consumer;
+		final MemoryMessage message;
+		
+		Dispatch(MemoryConsumer consumer, MemoryMessage message) {
+			this.consumer = consumer;
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.jms.InvalidSelectorException;
+
+/**
+ * The part of the JMS message selector syntax the connector uses: comparisons of message
+ * properties with string, numeric and boolean literals, [NOT] LIKE with an optional ESCAPE, 
+ * IS [NOT] NULL, AND, OR, NOT and parentheses. A comparison with a missing property is false.
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+abstract class Selector {
+	/**
+	 * Selects every message
+	 */
+	static final Selector ALL = new Selector() {
+		@Override
+		boolean matches(MemoryMessage message) {
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			return null;
+		}
+	};
+	
+	abstract boolean matches(MemoryMessage message);
+	
+	/**
+	 * @param expression The selector, or null or empty for all messages
+	 */
+	static Selector parse(String expression) throws InvalidSelectorException {
+		if(expression == null || expression.trim().length() == 0)
+			return ALL;
+		
+		Parser parser = new Parser(expression);
+		final Selector selector = parser.parseOr();
+		if(parser.position < parser.tokens.size())
+			throw new InvalidSelectorException("Unexpected " + parser.tokens.get(parser.position) + " in " + expression);
+		
+		final String text = expression;
+		return new Selector() {
+			@Override
+			boolean matches(MemoryMessage message) {
+				return selector.matches(message);
+			}
+			
+			@Override
+			public String toString() {
+				return text;
+			}
+		};
+	}
+	
+	private static class Parser {
+		final String expression;
+		final List<String> tokens = new ArrayList<String>();
+		int position;
+		
+		Parser(String expression) throws InvalidSelectorException {
+			this.expression = expression;
+			tokenize();
+		}
+		
+		private void tokenize() throws InvalidSelectorException {
+			int i = 0;
+			while(i < expression.length()) {
+				char c = expression.charAt(i);
+				if(Character.isWhitespace(c)) {
+					i++;
+				} else if(c == '\'') {
+					// String literal, '' is an escaped quote
+					StringBuilder literal = new StringBuilder("'");
+					i++;
+					while(true) {
+						if(i >= expression.length())
+							throw new InvalidSelectorException("Unterminated string in " + expression);
+						if(expression.charAt(i) == '\'') {
+							if(i + 1 < expression.length() && expression.charAt(i + 1) == '\'') {
+								literal.append('\'');
+								i += 2;
+								continue;
+							}
+							i++;
+							break;
+						}
+						literal.append(expression.charAt(i++));
+					}
+					tokens.add(literal.toString());
+				} else if(c == '<' || c == '>' || c == '=') {
+					if(i + 1 < expression.length() && (expression.charAt(i + 1) == '=' || (c == '<' && expression.charAt(i + 1) == '>'))) {
+						tokens.add(expression.substring(i, i + 2));
+						i += 2;
+					} else {
+						tokens.add(String.valueOf(c));
+						i++;
+					}
+				} else if(c == '(' || c == ')') {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else if(Character.isJavaIdentifierPart(c) || c == '.' || c == '-' || c == '+') {
+					int start = i;
+					while(i < expression.length() && (Character.isJavaIdentifierPart(expression.charAt(i)) || 
+							expression.charAt(i) == '.'))
+						i++;
+					if(i == start)
+						i++;
+					tokens.add(expression.substring(start, i));
+				} else {
+					throw new InvalidSelectorException("Unexpected '" + c + "' in " + expression);
+				}
+			}
+		}
+		
+		private String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+		
+		private boolean accept(String keyword) {
+			if(keyword.equalsIgnoreCase(peek())) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+		
+		private String next() throws InvalidSelectorException {
+			if(position >= tokens.size())
+				throw new InvalidSelectorException("Unexpected end of " + expression);
+			return tokens.get(position++);
+		}
+		
+		Selector parseOr() throws InvalidSelectorException {
+			Selector result = parseAnd();
+			while(accept("OR")) {
+				final Selector left = result;
+				final Selector right = parseAnd();
+				result = new Selector() {
+					@Override
+					boolean matches(MemoryMessage message) {
+						return left.matches(message) || right.matches(message);
+					}
+				};
+			}
+			return result;
+		}
+		
+		private Selector parseAnd() throws InvalidSelectorException {
+			Selector result = parseNot();
+			while(accept("AND")) {
+				final Selector left = result;
+				final Selector right = parseNot();
+				result = new Selector() {
+					@Override
+					boolean matches(MemoryMessage message) {
+						return left.matches(message) && right.matches(message);
+					}
+				};
+			}
+			return result;
+		}
+		
+		private Selector parseNot() throws InvalidSelectorException {
+			if(accept("NOT")) {
+				final Selector operand = parseNot();
+				return new Selector() {
+					@Override
+					boolean matches(MemoryMessage message) {
+						return !operand.matches(message);
+					}
+				};
+			}
+			
+			if(accept("(")) {
+				Selector result = parseOr();
+				if(!accept(")"))
+					throw new InvalidSelectorException("Missing ) in " + expression);
+				return result;
+			}
+			
+			return parseComparison();
+		}
+		
+		private Selector parseComparison() throws InvalidSelectorException {
+			final String property = next();
+			if(!Character.isJavaIdentifierStart(property.charAt(0)))
+				throw new InvalidSelectorException("Expected a property name instead of " + property + " in " + expression);
+			
+			if(accept("IS")) {
+				final boolean not = accept("NOT");
+				if(!accept("NULL"))
+					throw new InvalidSelectorException("Expected NULL after IS in " + expression);
+				return new Selector() {
+					@Override
+					boolean matches(MemoryMessage message) {
+						return (message.getProperty(property) == null) != not;
+					}
+				};
+			}
+			
+			final boolean not = accept("NOT");
+			if(accept("LIKE"))
+				return parseLike(property, not);
+			if(not)
+				throw new InvalidSelectorException("Expected LIKE after NOT in " + expression);
+			
+			final String operator = next();
+			if(!operator.equals("=") && !operator.equals("<>") && !operator.equals("<") && 
+					!operator.equals(">") && !operator.equals("<=") && !operator.equals(">="))
+				throw new InvalidSelectorException("Unsupported operator " + operator + " in " + expression);
+			
+			final Object literal = parseLiteral(next());
+			return new Selector() {
+				@Override
+				boolean matches(MemoryMessage message) {
+					Object value = message.getProperty(property);
+					if(value == null)
+						return false;
+					
+					int comparison;
+					if(literal instanceof String && value instanceof String)
+						comparison = ((String)value).compareTo((String)literal);
+					else if(literal instanceof Boolean && value instanceof Boolean)
+						comparison = value.equals(literal) ? 0 : 1;
+					else if(literal instanceof Number && value instanceof Number)
+						comparison = Double.compare(((Number)value).doubleValue(), ((Number)literal).doubleValue());
+					else
+						return false;
+					
+					if(operator.equals("="))
+						return comparison == 0;
+					if(operator.equals("<>"))
+						return comparison != 0;
+					if(literal instanceof Boolean)
+						return false;
+					if(operator.equals("<"))
+						return comparison < 0;
+					if(operator.equals(">"))
+						return comparison > 0;
+					if(operator.equals("<="))
+						return comparison <= 0;
+					return comparison >= 0;
+				}
+			};
+		}
+		
+		private Selector parseLike(final String property, final boolean not) throws InvalidSelectorException {
+			String pattern = next();
+			if(!pattern.startsWith("'"))
+				throw new InvalidSelectorException("Expected a string after LIKE in " + expression);
+			
+			char escape = 0;
+			if(accept("ESCAPE")) {
+				String literal = next();
+				if(!literal.startsWith("'") || literal.length() != 2)
+					throw new InvalidSelectorException("Expected a single character after ESCAPE in " + expression);
+				escape = literal.charAt(1);
+			}
+			
+			// % matches any sequence of characters, _ any single character
+			StringBuilder regex = new StringBuilder();
+			for(int i = 1; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				if(c == escape && i + 1 < pattern.length())
+					regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+				else if(c == '%')
+					regex.append(".*");
+				else if(c == '_')
+					regex.append('.');
+				else
+					regex.append(Pattern.quote(String.valueOf(c)));
+			}
+			
+			final Pattern compiled = Pattern.compile(regex.toString(), Pattern.DOTALL);
+			return new Selector() {
+				@Override
+				boolean matches(MemoryMessage message) {
+					Object value = message.getProperty(property);
+					if(!(value instanceof String))
+						return false;
+					return compiled.matcher((String)value).matches() != not;
+				}
+			};
+		}
+		
+		private Object parseLiteral(String token) throws InvalidSelectorException {
+			if(token.startsWith("'"))
+				return token.substring(1);
+			if(token.equalsIgnoreCase("TRUE"))
+				return Boolean.TRUE;
+			if(token.equalsIgnoreCase("FALSE"))
+				return Boolean.FALSE;
+			
+			// A sign is a token of its own
+			if((token.equals("-") || token.equals("+")) && position < tokens.size())
+				token = token + next();
+			try {
+				return Double.valueOf(token);
+			} catch (NumberFormatException e) {
+				throw new InvalidSelectorException("Expected a literal instead of " + token + " in " + expression);
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+Copyright (c) 2009, Gerco Dries (gerco@gdries.nl)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * The name of the contributors may not be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY GERCO DRIES ''AS IS'' AND ANY
+EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL GERCO DRIES BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package nl.gdries.jmsjmx.test.memory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXServiceURL;
+
+import nl.gdries.jmsjmx.jms.AbstractMessageConnection;
+import nl.gdries.jmsjmx.jms.AbstractServerProvider;
+
+/**
+ * Connector servers on a MemoryBroker, for service URLs like service:jmx:memory://<i>broker</i>:0/<i>topic</i>
+ * 
+ * @author Gerco Dries (gdr@progaia-rs.nl)
+ *
+ */
+public class ServerProvider extends AbstractServerProvider {
+	
+	@Override
+	protected String getProtocol() {
+		return "memory";
+	}
+
+	@Override
+	public JMXConnectorServer newJMXConnectorServer(JMXServiceURL serviceURL,
+			Map<String, ?> environment, MBeanServer mbeanServer)
+			throws IOException {
+		
+		// Copy the environment
+		Map<String, Object> newEnv = new HashMap<String, Object>(environment);
+		newEnv.put(CONNECTION_FACTORY, new MemoryConnectionFactory(MemoryBroker.get(serviceURL)));
+		
+		// The broker copies messages on send
+		if(!newEnv.containsKey(AbstractMessageConnection.REUSE_MESSAGES))
+			newEnv.put(AbstractMessageConnection.REUSE_MESSAGES, Boolean.TRUE);
+		
+		return super.newJMXConnectorServer(serviceURL, newEnv, mbeanServer);
+	}
+}